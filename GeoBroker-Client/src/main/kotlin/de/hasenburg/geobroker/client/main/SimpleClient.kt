@@ -22,8 +22,12 @@ private val logger = LogManager.getLogger()
  *
  * It is possible to supply a [socketHWM], for more information on HWM, check out the ZeroMQ documentation.
  * If no HWM is supplied, 1000 is used.
+ *
+ * All payloads are sent in the given [wireFormat]; the broker replies in the format of the CONNECT message.
  */
-class SimpleClient(ip: String, port: Int, socketHWM: Int = 1000, val identity: String = "SimpleClient-" + System.nanoTime()) {
+class SimpleClient @JvmOverloads constructor(ip: String, port: Int, socketHWM: Int = 1000,
+                                             val identity: String = "SimpleClient-" + System.nanoTime(),
+                                             val wireFormat: WireFormat = WireFormat.JSON) {
 
     private val spDealer = SPDealer(ip, port, socketHWM)
 
@@ -38,7 +42,7 @@ class SimpleClient(ip: String, port: Int, socketHWM: Int = 1000, val identity: S
      * Returns true, if successful, otherwise false.
      */
     fun send(payload: Payload): Boolean {
-        val zMsg = payload.toZMsg(clientIdentifier = identity)
+        val zMsg = payload.toZMsg(clientIdentifier = identity, wireFormat = wireFormat)
         return spDealer.toSent.offer(zMsg)
     }
 
@@ -99,6 +99,9 @@ public abstract class ZMQProcess implements Runnable {
 					}
 				}
 
+				// UDF after each poll, also called when the poll timed out
+				pollCompleted();
+
 				newTime = System.nanoTime();
 				processingTime += newTime - oldTime;
 
@@ -130,6 +133,13 @@ public abstract class ZMQProcess implements Runnable {
 
 	protected abstract void processZMsg(int socketIndex, ZMsg msg);
 
+	/**
+	 * Called after each poll, i.e., after a message has been processed or after the poll timed out. Does nothing by
+	 * default.
+	 */
+	protected void pollCompleted() {
+	}
+
 	protected abstract void utilizationCalculated(double utilization);
 
 	protected abstract void shutdownCompleted();
@@ -0,0 +1,437 @@
+package de.hasenburg.geobroker.commons.model.message
+
+import de.hasenburg.geobroker.commons.model.disgb.BrokerInfo
+import de.hasenburg.geobroker.commons.model.message.Payload.*
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.LOCATION_BINARY_SIZE
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import de.hasenburg.geobroker.commons.model.spatial.binarySize
+import de.hasenburg.geobroker.commons.model.spatial.getGeofence
+import de.hasenburg.geobroker.commons.model.spatial.getLocation
+import de.hasenburg.geobroker.commons.model.spatial.putGeofence
+import de.hasenburg.geobroker.commons.model.spatial.putLocation
+import kotlinx.serialization.SerializationException
+import java.nio.ByteBuffer
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.reflect.KClass
+
+/**
+ * Format of the frame that contains a [Payload], see [Payload.toZMsg]. The format of a received frame is detected by
+ * its first byte, see [wireFormatOf].
+ */
+enum class WireFormat {
+    /**
+     * JSON as created by kotlinx.serialization, geometries are embedded as WKT strings; frames start with '{'
+     */
+    JSON,
+
+    /**
+     * Compact binary encoding, see [encodeBinaryPayload]; frames start with [BINARY_FORMAT_TAG]
+     */
+    BINARY
+}
+
+// first byte of binary frames, which is also the version of the binary format
+const val BINARY_FORMAT_TAG: Byte = 0x01
+
+/**
+ * Returns the [WireFormat] of the given [frame]; everything that is not binary is treated as JSON.
+ */
+fun wireFormatOf(frame: ByteArray): WireFormat {
+    return if (frame.isNotEmpty() && frame[0] == BINARY_FORMAT_TAG) WireFormat.BINARY else WireFormat.JSON
+}
+
+/*****************************************************************
+ * Payload Types
+ ****************************************************************/
+
+// the type of a payload follows the format tag; new types must only be appended
+private const val CONNECT = 1
+private const val CONNACK = 2
+private const val DISCONNECT = 3
+private const val PINGREQ = 4
+private const val PINGRESP = 5
+private const val SUBSCRIBE = 6
+private const val SUBACK = 7
+private const val UNSUBSCRIBE = 8
+private const val UNSUBACK = 9
+private const val PUBLISH = 10
+private const val PUBACK = 11
+private const val BROKER_FORWARD_DISCONNECT = 12
+private const val BROKER_FORWARD_PINGREQ = 13
+private const val BROKER_FORWARD_SUBSCRIBE = 14
+private const val BROKER_FORWARD_UNSUBSCRIBE = 15
+private const val BROKER_FORWARD_PUBLISH = 16
+
+// payload classes indexed by their type
+private val payloadTypes: Array<KClass<out Payload>?> = arrayOf(null,
+        CONNECTPayload::class,
+        CONNACKPayload::class,
+        DISCONNECTPayload::class,
+        PINGREQPayload::class,
+        PINGRESPPayload::class,
+        SUBSCRIBEPayload::class,
+        SUBACKPayload::class,
+        UNSUBSCRIBEPayload::class,
+        UNSUBACKPayload::class,
+        PUBLISHPayload::class,
+        PUBACKPayload::class,
+        BrokerForwardDisconnectPayload::class,
+        BrokerForwardPingreqPayload::class,
+        BrokerForwardSubscribePayload::class,
+        BrokerForwardUnsubscribePayload::class,
+        BrokerForwardPublishPayload::class)
+
+// payload classes by their serial name, which equals their simple name
+private val jsonPayloadTypes = payloadTypes.filterNotNull().associateBy { it.simpleName!! }
+
+// JSON payloads start with their class discriminator
+private val jsonTypePrefix = "{\"type\":\"".toByteArray(Charsets.UTF_8)
+private const val MAX_JSON_TYPE_LENGTH = 64
+
+/**
+ * Returns the payload class of the given [frame] by only reading its header, i.e., the type that follows the
+ * [BINARY_FORMAT_TAG] or the leading class discriminator of JSON. Returns null if the header cannot be read; then,
+ * decoding the frame reports the actual error.
+ */
+fun payloadTypeOf(frame: ByteArray): KClass<out Payload>? {
+    if (wireFormatOf(frame) == WireFormat.BINARY) {
+        return if (frame.size > 1) payloadTypes.getOrNull(frame[1].toInt()) else null
+    }
+
+    if (frame.size < jsonTypePrefix.size || !jsonTypePrefix.indices.all { frame[it] == jsonTypePrefix[it] }) {
+        return null
+    }
+    val end = min(frame.size, jsonTypePrefix.size + MAX_JSON_TYPE_LENGTH)
+    for (i in jsonTypePrefix.size until end) {
+        if (frame[i] == '"'.code.toByte()) {
+            return jsonPayloadTypes[String(frame, jsonTypePrefix.size, i - jsonTypePrefix.size, Charsets.UTF_8)]
+        }
+    }
+    return null
+}
+
+private val reasonCodes = ReasonCode.values()
+
+/*****************************************************************
+ * Encoding
+ ****************************************************************/
+
+/**
+ * Encodes this payload in the binary [WireFormat]: the [BINARY_FORMAT_TAG], the payload type, and the fields in their
+ * declaration order. Strings are length prefixed UTF-8, lengths are varints, locations and geofences are binary
+ * geometries (see [putGeofence]), and other nullable fields are preceded by a presence byte. Reason codes are encoded
+ * by their ordinal, so new ones must only be appended.
+ *
+ * The content of published messages is not part of the encoded frame, it follows as its own frame, see
+ * [binaryContentFrame].
+ */
+fun Payload.encodeBinaryPayload(): ByteArray {
+    val writer = BinaryWriter()
+    writer.writeByte(BINARY_FORMAT_TAG.toInt())
+    writer.writePayload(this)
+    return writer.toByteArray()
+}
+
+/**
+ * Returns the frame that follows the encoded payload in the binary [WireFormat], i.e., the content of published
+ * messages, or null if this payload has no content. The frame is the content array itself, so it is never copied.
+ */
+fun Payload.binaryContentFrame(): ByteArray? {
+    return when (this) {
+        is PUBLISHPayload -> contentBytes
+        is BrokerForwardPublishPayload -> publishPayload.contentBytes
+        else -> null
+    }
+}
+
+private fun BinaryWriter.writePayload(payload: Payload) {
+    when (payload) {
+        is CONNECTPayload -> {
+            writeByte(CONNECT)
+            writeLocation(payload.location)
+        }
+        is CONNACKPayload -> {
+            writeByte(CONNACK)
+            writeReasonCode(payload.reasonCode)
+        }
+        is DISCONNECTPayload -> {
+            writeByte(DISCONNECT)
+            writeReasonCode(payload.reasonCode)
+            writeBrokerInfo(payload.brokerInfo)
+        }
+        is PINGREQPayload -> {
+            writeByte(PINGREQ)
+            writeLocation(payload.location)
+        }
+        is PINGRESPPayload -> {
+            writeByte(PINGRESP)
+            writeReasonCode(payload.reasonCode)
+            writeNullableString(payload.test)
+        }
+        is SUBSCRIBEPayload -> {
+            writeByte(SUBSCRIBE)
+            writeString(payload.topic.topic)
+            writeGeofence(payload.geofence)
+        }
+        is SUBACKPayload -> {
+            writeByte(SUBACK)
+            writeReasonCode(payload.reasonCode)
+        }
+        is UNSUBSCRIBEPayload -> {
+            writeByte(UNSUBSCRIBE)
+            writeString(payload.topic.topic)
+        }
+        is UNSUBACKPayload -> {
+            writeByte(UNSUBACK)
+            writeReasonCode(payload.reasonCode)
+        }
+        is PUBLISHPayload -> {
+            writeByte(PUBLISH)
+            writeString(payload.topic.topic)
+            writeGeofence(payload.geofence)
+        }
+        is PUBACKPayload -> {
+            writeByte(PUBACK)
+            writeReasonCode(payload.reasonCode)
+        }
+        is BrokerForwardDisconnectPayload -> {
+            writeByte(BROKER_FORWARD_DISCONNECT)
+            writeString(payload.clientIdentifier)
+            writePayload(payload.disconnectPayload)
+        }
+        is BrokerForwardPingreqPayload -> {
+            writeByte(BROKER_FORWARD_PINGREQ)
+            writeString(payload.clientIdentifier)
+            writePayload(payload.pingreqPayload)
+        }
+        is BrokerForwardSubscribePayload -> {
+            writeByte(BROKER_FORWARD_SUBSCRIBE)
+            writeString(payload.clientIdentifier)
+            writePayload(payload.subscribePayload)
+        }
+        is BrokerForwardUnsubscribePayload -> {
+            writeByte(BROKER_FORWARD_UNSUBSCRIBE)
+            writeString(payload.clientIdentifier)
+            writePayload(payload.unsubscribePayload)
+        }
+        is BrokerForwardPublishPayload -> {
+            writeByte(BROKER_FORWARD_PUBLISH)
+            writePayload(payload.publishPayload)
+            writeLocation(payload.publisherLocation)
+            writeVarInt(payload.subscriberClientIdentifiers.size)
+            payload.subscriberClientIdentifiers.forEach { writeString(it) }
+        }
+    }
+}
+
+private fun BinaryWriter.writeReasonCode(reasonCode: ReasonCode) {
+    writeByte(reasonCode.ordinal)
+}
+
+private fun BinaryWriter.writeLocation(location: Location?) {
+    writeBuffer(LOCATION_BINARY_SIZE) { it.putLocation(location) }
+}
+
+private fun BinaryWriter.writeGeofence(geofence: Geofence) {
+    writeBuffer(geofence.binarySize) { it.putGeofence(geofence) }
+}
+
+private fun BinaryWriter.writeBrokerInfo(brokerInfo: BrokerInfo?) {
+    if (brokerInfo == null) {
+        writeByte(0)
+    } else {
+        writeByte(1)
+        writeString(brokerInfo.brokerId)
+        writeString(brokerInfo.ip)
+        writeVarInt(brokerInfo.port)
+    }
+}
+
+private fun BinaryWriter.writeNullableString(value: String?) {
+    if (value == null) {
+        writeByte(0)
+    } else {
+        writeByte(1)
+        writeString(value)
+    }
+}
+
+/**
+ * Appends to a byte array that grows as needed, so that a payload is encoded without intermediate streams.
+ */
+private class BinaryWriter {
+
+    private var buffer = ByteArray(64)
+    private var position = 0
+
+    private fun ensureCapacity(additionalBytes: Int) {
+        if (position + additionalBytes > buffer.size) {
+            buffer = buffer.copyOf(max(buffer.size * 2, position + additionalBytes))
+        }
+    }
+
+    fun writeByte(value: Int) {
+        ensureCapacity(1)
+        buffer[position++] = value.toByte()
+    }
+
+    /**
+     * Writes a non-negative [value] with seven bits per byte, so that small values only need a single byte.
+     */
+    fun writeVarInt(value: Int) {
+        ensureCapacity(5)
+        var remaining = value
+        while (remaining and 0x7F.inv() != 0) {
+            buffer[position++] = ((remaining and 0x7F) or 0x80).toByte()
+            remaining = remaining ushr 7
+        }
+        buffer[position++] = remaining.toByte()
+    }
+
+    /**
+     * Lets [write] put at most [maxBytes] bytes with a [ByteBuffer], e.g., to embed binary geometries.
+     */
+    fun writeBuffer(maxBytes: Int, write: (ByteBuffer) -> Unit) {
+        ensureCapacity(maxBytes)
+        val byteBuffer = ByteBuffer.wrap(buffer, position, maxBytes)
+        write(byteBuffer)
+        position = byteBuffer.position()
+    }
+
+    fun writeString(value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        writeVarInt(bytes.size)
+        ensureCapacity(bytes.size)
+        System.arraycopy(bytes, 0, buffer, position, bytes.size)
+        position += bytes.size
+    }
+
+    fun toByteArray(): ByteArray {
+        return buffer.copyOf(position)
+    }
+
+}
+
+/*****************************************************************
+ * Decoding
+ ****************************************************************/
+
+/**
+ * Decodes a payload that has been encoded with [encodeBinaryPayload].
+ *
+ * @param frame - the encoded payload
+ * @param content - the frame that followed [frame], if any, see [binaryContentFrame]; it is used without copying
+ * @throws SerializationException if [frame] is not a valid binary payload or [content] does not match the payload
+ */
+fun decodeBinaryPayload(frame: ByteArray, content: ByteArray? = null): Payload {
+    try {
+        val buffer = ByteBuffer.wrap(frame)
+        val tag = buffer.get()
+        if (tag != BINARY_FORMAT_TAG) {
+            throw SerializationException("Unsupported binary format $tag")
+        }
+        val payload = buffer.getPayload(content)
+        if (buffer.hasRemaining()) {
+            throw SerializationException("${buffer.remaining()} unexpected bytes after payload")
+        }
+        if (content != null && payload.binaryContentFrame() == null) {
+            throw SerializationException("Unexpected content frame after ${payload::class.simpleName}")
+        }
+        return payload
+    } catch (e: SerializationException) {
+        throw e
+    } catch (e: Exception) {
+        // e.g., buffer underflows of truncated frames or invalid coordinates
+        throw SerializationException("Could not decode binary payload", e)
+    }
+}
+
+private fun ByteBuffer.getPayload(content: ByteArray? = null): Payload {
+    return when (val type = get().toInt()) {
+        CONNECT -> CONNECTPayload(getLocation())
+        CONNACK -> CONNACKPayload(getReasonCode())
+        DISCONNECT -> DISCONNECTPayload(getReasonCode(), getBrokerInfo())
+        PINGREQ -> PINGREQPayload(getLocation())
+        PINGRESP -> PINGRESPPayload(getReasonCode(), getNullableString())
+        SUBSCRIBE -> SUBSCRIBEPayload(Topic.intern(getString()), getGeofence())
+        SUBACK -> SUBACKPayload(getReasonCode())
+        UNSUBSCRIBE -> UNSUBSCRIBEPayload(Topic.intern(getString()))
+        UNSUBACK -> UNSUBACKPayload(getReasonCode())
+        PUBLISH -> PUBLISHPayload(Topic.intern(getString()),
+                getGeofence(),
+                content ?: throw SerializationException("Missing content frame of published message"))
+        PUBACK -> PUBACKPayload(getReasonCode())
+        BROKER_FORWARD_DISCONNECT -> BrokerForwardDisconnectPayload(getString(), getNested())
+        BROKER_FORWARD_PINGREQ -> BrokerForwardPingreqPayload(getString(), getNested())
+        BROKER_FORWARD_SUBSCRIBE -> BrokerForwardSubscribePayload(getString(), getNested())
+        BROKER_FORWARD_UNSUBSCRIBE -> BrokerForwardUnsubscribePayload(getString(), getNested())
+        BROKER_FORWARD_PUBLISH -> {
+            val publishPayload = getNested<PUBLISHPayload>(content)
+            val publisherLocation = getLocation()
+            // each identifier takes at least one byte, so larger counts cannot be valid
+            val count = getVarInt()
+            if (count > remaining()) {
+                throw SerializationException("$count subscriber client identifiers exceed the frame")
+            }
+            val subscriberClientIdentifiers = List(count) { getString() }
+            BrokerForwardPublishPayload(publishPayload, publisherLocation, subscriberClientIdentifiers)
+        }
+        else -> throw SerializationException("Unknown payload type $type")
+    }
+}
+
+private inline fun <reified T : Payload> ByteBuffer.getNested(content: ByteArray? = null): T {
+    val payload = getPayload(content)
+    return payload as? T
+            ?: throw SerializationException("Expected a ${T::class.simpleName}, got ${payload::class.simpleName}")
+}
+
+private fun ByteBuffer.getReasonCode(): ReasonCode {
+    val ordinal = get().toInt()
+    return reasonCodes.getOrNull(ordinal) ?: throw SerializationException("Unknown reason code $ordinal")
+}
+
+private fun ByteBuffer.getBrokerInfo(): BrokerInfo? {
+    return if (getPresence()) BrokerInfo(getString(), getString(), getVarInt()) else null
+}
+
+private fun ByteBuffer.getNullableString(): String? {
+    return if (getPresence()) getString() else null
+}
+
+private fun ByteBuffer.getPresence(): Boolean {
+    return when (val presence = get().toInt()) {
+        0 -> false
+        1 -> true
+        else -> throw SerializationException("Invalid presence byte $presence")
+    }
+}
+
+private fun ByteBuffer.getVarInt(): Int {
+    var value = 0
+    var shift = 0
+    while (shift < 32) {
+        val b = get().toInt()
+        value = value or ((b and 0x7F) shl shift)
+        if (b and 0x80 == 0) {
+            if (value < 0) {
+                throw SerializationException("Negative length $value")
+            }
+            return value
+        }
+        shift += 7
+    }
+    throw SerializationException("Malformed varint")
+}
+
+private fun ByteBuffer.getString(): String {
+    val length = getVarInt()
+    if (length > remaining()) {
+        throw SerializationException("String of length $length exceeds the frame")
+    }
+    val string = String(array(), arrayOffset() + position(), length, Charsets.UTF_8)
+    position(position() + length)
+    return string
+}
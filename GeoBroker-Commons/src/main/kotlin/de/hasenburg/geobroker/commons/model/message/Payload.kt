@@ -4,10 +4,17 @@ import de.hasenburg.geobroker.commons.model.disgb.BrokerInfo
 import de.hasenburg.geobroker.commons.model.spatial.Geofence
 import de.hasenburg.geobroker.commons.model.spatial.Location
 import kotlinx.serialization.*
+import kotlinx.serialization.descriptors.PrimitiveKind
+import kotlinx.serialization.descriptors.PrimitiveSerialDescriptor
+import kotlinx.serialization.descriptors.SerialDescriptor
+import kotlinx.serialization.encoding.Decoder
+import kotlinx.serialization.encoding.Encoder
 import kotlinx.serialization.json.Json
 import kotlinx.serialization.json.JsonConfiguration
 import org.apache.logging.log4j.LogManager
+import org.zeromq.ZMQ
 import org.zeromq.ZMsg
+import kotlin.reflect.KClass
 
 private val logger = LogManager.getLogger()
 
@@ -49,9 +56,53 @@ sealed class Payload {
     @SerialName("UNSUBACKPayload")
     data class UNSUBACKPayload(val reasonCode: ReasonCode) : Payload()
 
+    /**
+     * The broker never looks at the [contentBytes], it only forwards them. In the binary [WireFormat], they are carried
+     * in their own frame, so that they are neither decoded nor copied; in JSON, they are embedded as UTF-8 string.
+     */
     @Serializable
     @SerialName("PUBLISHPayload")
-    data class PUBLISHPayload(val topic: Topic, val geofence: Geofence, val content: String) : Payload()
+    class PUBLISHPayload(val topic: Topic, val geofence: Geofence,
+                         @Serializable(with = ContentSerializer::class) @SerialName("content")
+                         val contentBytes: ByteArray) : Payload() {
+
+        constructor(topic: Topic, geofence: Geofence, content: String) :
+                this(topic, geofence, content.toByteArray(Charsets.UTF_8))
+
+        /**
+         * The content decoded as UTF-8, which is decoded again on each access.
+         */
+        val content: String
+            get() = String(contentBytes, Charsets.UTF_8)
+
+        /*****************************************************************
+         * Generated methods
+         ****************************************************************/
+
+        override fun equals(other: Any?): Boolean {
+            if (this === other) return true
+            if (javaClass != other?.javaClass) return false
+
+            other as PUBLISHPayload
+
+            if (topic != other.topic) return false
+            if (geofence != other.geofence) return false
+            if (!contentBytes.contentEquals(other.contentBytes)) return false
+
+            return true
+        }
+
+        override fun hashCode(): Int {
+            var result = topic.hashCode()
+            result = 31 * result + geofence.hashCode()
+            result = 31 * result + contentBytes.contentHashCode()
+            return result
+        }
+
+        override fun toString(): String {
+            return "PUBLISHPayload(topic=$topic, geofence=$geofence, content=$content)"
+        }
+    }
 
     @Serializable
     @SerialName("PUBACKPayload")
@@ -88,23 +139,116 @@ sealed class Payload {
                                                val unsubscribePayload: UNSUBSCRIBEPayload) : Payload()
 }
 
-fun Payload.toZMsg(clientIdentifier: String? = null): ZMsg {
-    return if (clientIdentifier != null) {
-        ZMsg.newStringMsg(clientIdentifier, Json.encodeToString(Payload.serializer(), this))
-    } else {
-        ZMsg.newStringMsg(Json.encodeToString(Payload.serializer(), this))
+/**
+ * Creates a message whose last frame contains this payload in the given [wireFormat].
+ *
+ * @param clientIdentifier - if not null, it is put in front of the payload, e.g., to route the message to a client
+ * @param wireFormat - the format of the payload frame, receivers detect it, see [toPayload]
+ */
+fun Payload.toZMsg(clientIdentifier: String? = null, wireFormat: WireFormat = WireFormat.JSON): ZMsg {
+    val msg = ZMsg()
+    if (clientIdentifier != null) {
+        msg.add(clientIdentifier)
+    }
+    addFrames(msg, wireFormat, encode(wireFormat))
+    return msg
+}
+
+/**
+ * Adds the frames of this payload; in the binary [WireFormat], the content of published messages is added as its own
+ * frame after [encoded], see [binaryContentFrame].
+ */
+private fun Payload.addFrames(msg: ZMsg, wireFormat: WireFormat, encoded: ByteArray) {
+    msg.add(encoded)
+    if (wireFormat == WireFormat.BINARY) {
+        binaryContentFrame()?.let { msg.add(it) }
+    }
+}
+
+private fun Payload.encode(wireFormat: WireFormat): ByteArray {
+    return when (wireFormat) {
+        WireFormat.JSON -> Json.encodeToString(Payload.serializer(), this).toByteArray(ZMQ.CHARSET)
+        WireFormat.BINARY -> encodeBinaryPayload()
     }
 }
 
+/**
+ * A [payload] that is sent to many clients, e.g., a published message. It is encoded at most once per [WireFormat];
+ * all messages created by [toZMsg] share the encoded frames and only differ in their client identifier frame.
+ *
+ * Not thread-safe.
+ */
+class EncodedPayload(val payload: Payload) {
+
+    private val frames = arrayOfNulls<ByteArray>(WireFormat.values().size)
+
+    /**
+     * Returns the payload encoded in the given [wireFormat], encoding it on first use; must not be modified.
+     */
+    fun frame(wireFormat: WireFormat): ByteArray {
+        return frames[wireFormat.ordinal] ?: payload.encode(wireFormat).also { frames[wireFormat.ordinal] = it }
+    }
+
+    /**
+     * Same as [Payload.toZMsg], but the payload frames are shared with all other messages created by this instance.
+     */
+    fun toZMsg(clientIdentifier: String, wireFormat: WireFormat = WireFormat.JSON): ZMsg {
+        val msg = ZMsg()
+        msg.add(clientIdentifier)
+        payload.addFrames(msg, wireFormat, frame(wireFormat))
+        return msg
+    }
+
+}
+
+/**
+ * Returns the [WireFormat] of the payload of this message without decoding it. The message must start with a client
+ * identifier, e.g., as created by [toZMsg] with a client identifier.
+ */
+fun ZMsg.wireFormat(): WireFormat {
+    return wireFormatOf(elementAtOrNull(1)?.data ?: ByteArray(0))
+}
+
+/**
+ * Returns the payload class of this message without decoding it, see [payloadTypeOf]. Like [wireFormat], the message
+ * must start with a client identifier.
+ */
+fun ZMsg.payloadType(): KClass<out Payload>? {
+    return payloadTypeOf(elementAtOrNull(1)?.data ?: ByteArray(0))
+}
+
+/**
+ * Decodes the payload frames, which might have either [WireFormat], and destroys the message.
+ */
 fun ZMsg.toPayload(): Payload? {
     return try {
-        Json.decodeFromString(Payload.serializer(), this.popString().also { destroy() })
+        val frame = this.pop()?.data ?: throw SerializationException("Message has no payload frame")
+        when (wireFormatOf(frame)) {
+            WireFormat.JSON -> Json.decodeFromString(Payload.serializer(), String(frame, ZMQ.CHARSET))
+            WireFormat.BINARY -> decodeBinaryPayload(frame, this.pop()?.data)
+        }.also { destroy() }
     } catch (e: SerializationException) {
         logger.warn("Could not create Payload for received ZMsg", e)
         null
     }
 }
 
+/**
+ * Serializes the content of published messages as UTF-8 string, so that it stays readable in JSON.
+ */
+object ContentSerializer : KSerializer<ByteArray> {
+
+    override val descriptor: SerialDescriptor = PrimitiveSerialDescriptor("PublishContent", PrimitiveKind.STRING)
+
+    override fun serialize(encoder: Encoder, value: ByteArray) {
+        encoder.encodeString(String(value, Charsets.UTF_8))
+    }
+
+    override fun deserialize(decoder: Decoder): ByteArray {
+        return decoder.decodeString().toByteArray(Charsets.UTF_8)
+    }
+}
+
 fun ZMsg.toPayloadAndId(): Pair<String, Payload>? {
     return try {
         val clientIdentifier = this.popString()
@@ -15,5 +15,6 @@ enum class ReasonCode {
     // New Reason Codes
     LocationUpdated, //
     WrongBroker, //
-    NoMatchingSubscribersButForwarded //  locally there are no subscribers, but others MIGHT have some
+    NoMatchingSubscribersButForwarded, //  locally there are no subscribers, but others MIGHT have some
+    KeepAliveExpired // the broker did not receive a heartbeat from the client in time
 }
@@ -1,11 +1,31 @@
 package de.hasenburg.geobroker.commons.model.message
 
+import kotlinx.serialization.KSerializer
 import kotlinx.serialization.Serializable
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.builtins.ListSerializer
+import kotlinx.serialization.builtins.serializer
+import kotlinx.serialization.descriptors.SerialDescriptor
+import kotlinx.serialization.descriptors.buildClassSerialDescriptor
+import kotlinx.serialization.descriptors.element
+import kotlinx.serialization.encoding.CompositeDecoder
+import kotlinx.serialization.encoding.Decoder
+import kotlinx.serialization.encoding.Encoder
+import kotlinx.serialization.encoding.decodeStructure
+import kotlinx.serialization.encoding.encodeStructure
+import java.util.concurrent.ConcurrentHashMap
+
+// maximum number of topics kept by the intern table used during deserialization
+const val TOPIC_INTERN_TABLE_SIZE = 10000
+
+private val topicInternTable = TopicInternTable(TOPIC_INTERN_TABLE_SIZE)
 
 /**
  * [topic] - individual topic levels must be separated by /, e.g., this/is/a/six/level/topic
+ *
+ * Deserialized topics are interned, see [Topic.intern].
  */
-@Serializable
+@Serializable(with = TopicSerializer::class)
 data class Topic(val topic: String) {
 
     val levelSpecifiers = topic.split("/").toTypedArray()
@@ -17,4 +37,80 @@ data class Topic(val topic: String) {
         }
         return levelSpecifiers[levelIndex]
     }
-}
\ No newline at end of file
+
+    companion object {
+        /**
+         * Returns the canonical [Topic] instance for the given topic string, so that frequently used topics are
+         * neither split nor their level specifiers hashed again.
+         */
+        fun intern(topic: String): Topic {
+            return topicInternTable.intern(topic)
+        }
+    }
+}
+
+/**
+ * Maps topic strings to canonical [Topic] instances. The table holds at most [maxSize] topics; when full, an
+ * arbitrary topic is evicted, which only means that a later lookup creates a new instance.
+ *
+ * @param maxSize - the maximum number of interned topics, must be >= 1
+ */
+class TopicInternTable(private val maxSize: Int) {
+
+    private val topics = ConcurrentHashMap<String, Topic>()
+
+    val size: Int
+        get() = topics.size
+
+    fun intern(topic: String): Topic {
+        topics[topic]?.let { return it }
+
+        val created = Topic(topic)
+        // hash the level specifiers once, String caches the hash code for subsequent lookups in the topic levels
+        created.levelSpecifiers.forEach { it.hashCode() }
+        if (topics.size >= maxSize) {
+            val iterator = topics.keys.iterator()
+            if (iterator.hasNext()) {
+                topics.remove(iterator.next())
+            }
+        }
+        return topics.putIfAbsent(topic, created) ?: created
+    }
+
+}
+
+/**
+ * Serializes a [Topic] as an object that only contains the topic string; deserialized topics are interned.
+ *
+ * Older versions also serialized the level specifiers; these are accepted but ignored, as they are derived from the
+ * topic string anyway.
+ */
+object TopicSerializer : KSerializer<Topic> {
+
+    override val descriptor: SerialDescriptor =
+            buildClassSerialDescriptor("de.hasenburg.geobroker.commons.model.message.Topic") {
+                element<String>("topic")
+                element<List<String>>("levelSpecifiers", isOptional = true)
+            }
+
+    override fun serialize(encoder: Encoder, value: Topic) {
+        encoder.encodeStructure(descriptor) {
+            encodeStringElement(descriptor, 0, value.topic)
+        }
+    }
+
+    override fun deserialize(decoder: Decoder): Topic {
+        return decoder.decodeStructure(descriptor) {
+            var topic: String? = null
+            while (true) {
+                when (val index = decodeElementIndex(descriptor)) {
+                    CompositeDecoder.DECODE_DONE -> break
+                    0 -> topic = decodeStringElement(descriptor, 0)
+                    1 -> decodeSerializableElement(descriptor, 1, ListSerializer(String.serializer()))
+                    else -> throw SerializationException("Unexpected element index $index")
+                }
+            }
+            Topic.intern(topic ?: throw SerializationException("Field 'topic' is missing"))
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package de.hasenburg.geobroker.commons.model.spatial
+
+import de.hasenburg.geobroker.commons.exceptions.RuntimeShapeException
+import de.hasenburg.geobroker.commons.model.spatial.SpatialContextK.GEO
+import org.locationtech.jts.geom.Polygon
+import org.locationtech.spatial4j.shape.Circle
+import org.locationtech.spatial4j.shape.Point
+import org.locationtech.spatial4j.shape.Rectangle
+import org.locationtech.spatial4j.shape.Shape
+import org.locationtech.spatial4j.shape.jts.JtsGeometry
+import java.nio.ByteBuffer
+
+/*
+ * Binary geometry encoding that can be embedded in any binary format, e.g., the binary wire format of payloads or
+ * snapshots. Each geometry starts with a type tag followed by raw doubles (x = longitude, y = latitude), so decoding
+ * is a plain buffer read:
+ *
+ * - NULL: nothing, only used for locations
+ * - POINT: x, y
+ * - CIRCLE: center x, center y, radius in degree
+ * - RECTANGLE: min x, max x, min y, max y
+ * - POLYGON: number of vertices, x and y of each vertex including the closing one; only for polygons without holes
+ * - WKT: length prefixed UTF-8 WKT, used for all other shapes
+ */
+private const val NULL: Byte = 0
+private const val POINT: Byte = 1
+private const val CIRCLE: Byte = 2
+private const val RECTANGLE: Byte = 3
+private const val POLYGON: Byte = 4
+private const val WKT: Byte = 5
+
+// maximum number of bytes needed by putLocation
+const val LOCATION_BINARY_SIZE = 17
+
+/*****************************************************************
+ * Location
+ ****************************************************************/
+
+/**
+ * Puts the given [location], which might be null, as a point at the current position, see [getLocation].
+ */
+fun ByteBuffer.putLocation(location: Location?): ByteBuffer {
+    if (location == null) {
+        return put(NULL)
+    }
+    return put(POINT).putDouble(location.lon).putDouble(location.lat)
+}
+
+/**
+ * Reads a location that has been put with [putLocation].
+ *
+ * @throws RuntimeShapeException if the encoded geometry is not a point
+ * @throws org.locationtech.spatial4j.exception.InvalidShapeException if the coordinates are out of bounds
+ */
+fun ByteBuffer.getLocation(): Location? {
+    return when (val tag = get()) {
+        NULL -> null
+        POINT -> {
+            val x = double
+            Location(double, x)
+        }
+        else -> throw RuntimeShapeException("Expected a location, got geometry type $tag")
+    }
+}
+
+/*****************************************************************
+ * Geofence
+ ****************************************************************/
+
+/**
+ * The number of bytes needed to put this geofence, see [putGeofence].
+ */
+val Geofence.binarySize: Int
+    get() = when (val shape = shape) {
+        is Point -> 1 + 2 * 8
+        is Circle -> 1 + 3 * 8
+        is Rectangle -> 1 + 4 * 8
+        else -> simplePolygonOf(shape)?.let { 1 + 4 + it.numPoints * 2 * 8 } ?: (1 + 4 + wktOf(shape).size)
+    }
+
+/**
+ * Puts the given [geofence] at the current position; the buffer must have at least [Geofence.binarySize] bytes
+ * remaining.
+ */
+fun ByteBuffer.putGeofence(geofence: Geofence): ByteBuffer {
+    when (val shape = geofence.shape) {
+        is Point -> put(POINT).putDouble(shape.x).putDouble(shape.y)
+        is Circle -> put(CIRCLE).putDouble(shape.center.x).putDouble(shape.center.y).putDouble(shape.radius)
+        is Rectangle -> put(RECTANGLE).putDouble(shape.minX)
+            .putDouble(shape.maxX)
+            .putDouble(shape.minY)
+            .putDouble(shape.maxY)
+        else -> {
+            val polygon = simplePolygonOf(shape)
+            if (polygon != null) {
+                put(POLYGON).putInt(polygon.numPoints)
+                for (coordinate in polygon.exteriorRing.coordinates) {
+                    putDouble(coordinate.x).putDouble(coordinate.y)
+                }
+            } else {
+                val wkt = wktOf(shape)
+                put(WKT).putInt(wkt.size).put(wkt)
+            }
+        }
+    }
+    return this
+}
+
+/**
+ * Reads a geofence that has been put with [putGeofence]; only WKT encoded geofences are parsed.
+ *
+ * @throws RuntimeShapeException if the geometry type is not known
+ * @throws org.locationtech.spatial4j.exception.InvalidShapeException if the geometry is not valid
+ */
+fun ByteBuffer.getGeofence(): Geofence {
+    val shapeFactory = GEO.shapeFactory
+    val shape: Shape = when (val tag = get()) {
+        POINT -> shapeFactory.pointXY(double, double)
+        CIRCLE -> shapeFactory.circle(double, double, double)
+        RECTANGLE -> shapeFactory.rect(double, double, double, double)
+        POLYGON -> {
+            val numberOfPoints = int
+            if (numberOfPoints < 0 || numberOfPoints > remaining() / 16) {
+                throw RuntimeShapeException("Polygon with $numberOfPoints points exceeds the buffer")
+            }
+            val polygonBuilder = shapeFactory.polygon()
+            for (i in 0 until numberOfPoints) {
+                polygonBuilder.pointXY(double, double)
+            }
+            polygonBuilder.build()
+        }
+        WKT -> {
+            val length = int
+            if (length < 0 || length > remaining()) {
+                throw RuntimeShapeException("WKT of length $length exceeds the buffer")
+            }
+            val wkt = ByteArray(length)
+            get(wkt)
+            return Geofence.fromWkt(String(wkt, Charsets.UTF_8))
+        }
+        else -> throw RuntimeShapeException("Unknown geometry type $tag")
+    }
+    return Geofence(shape)
+}
+
+/**
+ * Returns the JTS polygon of [shape] if it has no holes and has not been shifted to cross the dateline, as only these
+ * can be rebuilt from their exterior ring.
+ */
+private fun simplePolygonOf(shape: Shape): Polygon? {
+    if (shape !is JtsGeometry) {
+        return null
+    }
+    val polygon = shape.geom as? Polygon ?: return null
+    val envelope = polygon.envelopeInternal
+    if (polygon.numInteriorRing > 0 || envelope.minX < -180.0 || envelope.maxX > 180.0) {
+        return null
+    }
+    return polygon
+}
+
+private fun wktOf(shape: Shape): ByteArray {
+    return GEO.formats.wktWriter.toString(shape).toByteArray(Charsets.UTF_8)
+}
@@ -11,14 +11,32 @@ import kotlinx.serialization.encoding.Encoder
 import kotlinx.serialization.json.Json
 import kotlinx.serialization.json.JsonConfiguration
 import org.apache.logging.log4j.LogManager
+import org.locationtech.spatial4j.distance.DistanceUtils
+import org.locationtech.spatial4j.shape.Circle
 import org.locationtech.spatial4j.shape.Rectangle
 import org.locationtech.spatial4j.shape.Shape
 import org.locationtech.spatial4j.shape.SpatialRelation
+import org.locationtech.spatial4j.shape.jts.JtsGeometry
 
 private val logger = LogManager.getLogger()
 
+// polygons with at least this many vertices are prepared before they are related to other shapes
+const val PREPARED_GEOMETRY_VERTEX_THRESHOLD = 16
+
 @Serializable
-class Geofence(@Serializable(with = ShapeWKTSerializer::class) @SerialName("wkt") private val shape: Shape) {
+class Geofence(@Serializable(with = ShapeWKTSerializer::class) @SerialName("wkt") internal val shape: Shape) {
+
+    @Transient
+    @Volatile
+    private var prepared = false
+
+    // circles and rectangles check whether they contain a location without spatial4j, see PrimitiveShape
+    @Transient
+    private val primitiveShape: PrimitiveShape? = when (shape) {
+        is Circle -> PrimitiveCircle(shape)
+        is Rectangle -> PrimitiveRectangle(shape)
+        else -> null
+    }
 
     val center: Location
         get() = Location(shape.center)
@@ -31,15 +49,36 @@ class Geofence(@Serializable(with = ShapeWKTSerializer::class) @SerialName("wkt"
      * Relationships
      ****************************************************************/
 
+    /**
+     * Returns the [shape], which is prepared on first use if it is a polygon with at least
+     * [PREPARED_GEOMETRY_VERTEX_THRESHOLD] vertices. Prepared polygons index their edges, so repeated relates, e.g.,
+     * contains checks of a subscription geofence for each published message, do not have to test every edge.
+     */
+    private val preparedShape: Shape
+        get() {
+            if (!prepared) {
+                // JtsGeometry does not publish its prepared geometry safely, so other threads must see prepared first
+                synchronized(this) {
+                    if (!prepared) {
+                        if (shape is JtsGeometry && shape.geom.numPoints >= PREPARED_GEOMETRY_VERTEX_THRESHOLD) {
+                            shape.index()
+                        }
+                        prepared = true
+                    }
+                }
+            }
+            return shape
+        }
+
     /**
      * Returns true if this geofence contains the given [location].
      * Returns false if not or [location] == null.
      */
     fun contains(location: Location?): Boolean {
-        return if (location != null) {
-            shape.relate(location.point) == SpatialRelation.CONTAINS
-        } else {
-            false
+        return when {
+            location == null -> false
+            primitiveShape != null -> primitiveShape.contains(location.lat, location.lon)
+            else -> preparedShape.relate(location.point) == SpatialRelation.CONTAINS
         }
     }
 
@@ -47,12 +86,21 @@ class Geofence(@Serializable(with = ShapeWKTSerializer::class) @SerialName("wkt"
      * For us, intersects is an "intersection" but also something more specific such as "contains" or within.
      */
     fun intersects(geofence: Geofence): Boolean {
-        val sr = shape.relate(geofence.shape)
+        val sr = preparedShape.relate(geofence.shape)
         return sr == SpatialRelation.INTERSECTS || sr == SpatialRelation.CONTAINS || sr == SpatialRelation.WITHIN
     }
 
     fun disjoint(geofence: Geofence): Boolean {
-        return shape.relate(geofence.shape) == SpatialRelation.DISJOINT
+        return preparedShape.relate(geofence.shape) == SpatialRelation.DISJOINT
+    }
+
+    /**
+     * Returns how this geofence relates to the given [geofence], e.g., [SpatialRelation.WITHIN] if this geofence is
+     * entirely covered by [geofence]. Useful if more than one of the above checks is needed, as it only relates the
+     * underlying shapes once.
+     */
+    fun relate(geofence: Geofence): SpatialRelation {
+        return preparedShape.relate(geofence.shape)
     }
 
     /*****************************************************************
@@ -152,6 +200,66 @@ class Geofence(@Serializable(with = ShapeWKTSerializer::class) @SerialName("wkt"
 
 }
 
+/*****************************************************************
+ * Primitive Shapes
+ ****************************************************************/
+
+/**
+ * Checks whether a shape contains a location using only primitive doubles. The results are the same as the ones of
+ * spatial4j's relate, but neither require virtual dispatch through the shape hierarchy nor repeated conversions.
+ */
+private abstract class PrimitiveShape {
+    abstract fun contains(lat: Double, lon: Double): Boolean
+}
+
+/**
+ * Uses the haversine distance like spatial4j's geo circles; locations whose latitude alone is further away from the
+ * center than the radius are rejected without computing it.
+ */
+private class PrimitiveCircle(circle: Circle) : PrimitiveShape() {
+
+    private val centerLat = circle.center.y
+    private val centerLatRad = DistanceUtils.toRadians(circle.center.y)
+    private val centerLonRad = DistanceUtils.toRadians(circle.center.x)
+    private val radiusDeg = circle.radius
+
+    override fun contains(lat: Double, lon: Double): Boolean {
+        if (Math.abs(lat - centerLat) > radiusDeg) {
+            return false
+        }
+        val distanceRad = DistanceUtils.distHaversineRAD(centerLatRad,
+                centerLonRad,
+                DistanceUtils.toRadians(lat),
+                DistanceUtils.toRadians(lon))
+        return DistanceUtils.toDegrees(distanceRad) <= radiusDeg
+    }
+}
+
+/**
+ * Uses min/max comparisons like spatial4j's geo rectangles, including rectangles that cross the dateline.
+ */
+private class PrimitiveRectangle(rectangle: Rectangle) : PrimitiveShape() {
+
+    private val minLat = rectangle.minY
+    private val maxLat = rectangle.maxY
+    private val minLon = rectangle.minX
+    // unwrapped, i.e., > 180 if the rectangle crosses the dateline; computed like spatial4j to get the same rounding
+    private val maxLon = (rectangle.maxX - rectangle.minX).let { if (it < 0) minLon + (it + 360) else rectangle.maxX }
+
+    override fun contains(lat: Double, lon: Double): Boolean {
+        if (lat > maxLat || lat < minLat) {
+            return false
+        }
+        // shift the longitude to potentially overlap with the unwrapped range
+        val shiftedLon = when {
+            lon < minLon -> lon + 360
+            lon > maxLon -> lon - 360
+            else -> return true
+        }
+        return shiftedLon >= minLon && shiftedLon <= maxLon
+    }
+}
+
 /*****************************************************************
  * Json Serialization
  ****************************************************************/
@@ -4,8 +4,12 @@ import kotlinx.serialization.*
 import kotlinx.serialization.descriptors.PrimitiveKind
 import kotlinx.serialization.descriptors.PrimitiveSerialDescriptor
 import kotlinx.serialization.descriptors.SerialDescriptor
+import kotlinx.serialization.descriptors.buildClassSerialDescriptor
+import kotlinx.serialization.encoding.CompositeDecoder
 import kotlinx.serialization.encoding.Decoder
 import kotlinx.serialization.encoding.Encoder
+import kotlinx.serialization.encoding.decodeStructure
+import kotlinx.serialization.encoding.encodeStructure
 import kotlinx.serialization.json.Json
 import kotlinx.serialization.json.JsonConfiguration
 import org.apache.logging.log4j.LogManager
@@ -16,22 +20,34 @@ import kotlin.random.Random
 
 private val logger = LogManager.getLogger()
 
-@Serializable
-class Location(@Serializable(with = PointWKTSerializer::class) @SerialName("wkt") val point: Point) {
-
-    /**
-     * Creates a location with the given lat/lon coordinates.
-     *
-     * @param lat - the latitude (Breitengrad)
-     * @param lon - the longitude (Längengrad)
-     */
-    constructor(lat: Double, lon: Double) : this(SpatialContextK.GEO.shapeFactory.pointLatLon(lat, lon))
+/**
+ * A location with the given lat/lon coordinates.
+ *
+ * The coordinates are stored as primitive doubles; the spatial4j [point] is only created when a generic shape relate
+ * needs it.
+ *
+ * @param lat - the latitude (Breitengrad)
+ * @param lon - the longitude (Längengrad)
+ * @throws org.locationtech.spatial4j.exception.InvalidShapeException if the coordinates are out of bounds
+ */
+@Serializable(with = LocationSerializer::class)
+class Location(val lat: Double, val lon: Double) {
+
+    @Volatile
+    private var cachedPoint: Point? = null
+
+    init {
+        // same checks as when creating a point
+        SpatialContextK.GEO.shapeFactory.verifyX(lon)
+        SpatialContextK.GEO.shapeFactory.verifyY(lat)
+    }
 
-    val lat: Double
-        get() = point.lat
+    constructor(point: Point) : this(point.lat, point.lon) {
+        cachedPoint = point
+    }
 
-    val lon: Double
-        get() = point.lon
+    val point: Point
+        get() = cachedPoint ?: SpatialContextK.GEO.shapeFactory.pointLatLon(lat, lon).also { cachedPoint = it }
 
     /**
      * @param distance - distance from starting location in km
@@ -52,7 +68,11 @@ class Location(@Serializable(with = PointWKTSerializer::class) @SerialName("wkt"
      * @return distance in radians
      */
     fun distanceRadiansTo(toL: Location): Double {
-        return SpatialContextK.GEO.distCalc.distance(point, toL.point)
+        // same as the haversine distance calculator of SpatialContextK.GEO, but without points
+        return DistanceUtils.toDegrees(DistanceUtils.distHaversineRAD(DistanceUtils.toRadians(lat),
+                DistanceUtils.toRadians(lon),
+                DistanceUtils.toRadians(toL.lat),
+                DistanceUtils.toRadians(toL.lon)))
     }
 
     /**
@@ -116,13 +136,16 @@ class Location(@Serializable(with = PointWKTSerializer::class) @SerialName("wkt"
 
         other as Location
 
-        if (point.lat != other.point.lat) return false
+        if (lat != other.lat) return false
+        if (lon != other.lon) return false
 
         return true
     }
 
     override fun hashCode(): Int {
-        return point.hashCode()
+        var result = lat.hashCode()
+        result = 31 * result + lon.hashCode()
+        return result
     }
 
     override fun toString(): String {
@@ -143,6 +166,37 @@ fun String.toLocation(): Location {
     return Json.decodeFromString(Location.serializer(), this)
 }
 
+/**
+ * Serializes a [Location] as an object with its WKT point, e.g., {"wkt":"POINT (13.405 52.52)"}.
+ */
+object LocationSerializer : KSerializer<Location> {
+
+    override val descriptor: SerialDescriptor =
+            buildClassSerialDescriptor("de.hasenburg.geobroker.commons.model.spatial.Location") {
+                element("wkt", PointWKTSerializer.descriptor)
+            }
+
+    override fun serialize(encoder: Encoder, value: Location) {
+        encoder.encodeStructure(descriptor) {
+            encodeSerializableElement(descriptor, 0, PointWKTSerializer, value.point)
+        }
+    }
+
+    override fun deserialize(decoder: Decoder): Location {
+        return decoder.decodeStructure(descriptor) {
+            var point: Point? = null
+            while (true) {
+                when (val index = decodeElementIndex(descriptor)) {
+                    CompositeDecoder.DECODE_DONE -> break
+                    0 -> point = decodeSerializableElement(descriptor, 0, PointWKTSerializer)
+                    else -> throw SerializationException("Unexpected element index $index")
+                }
+            }
+            Location(point ?: throw SerializationException("Field 'wkt' is missing"))
+        }
+    }
+}
+
 object PointWKTSerializer : KSerializer<Point> {
 
     override val descriptor: SerialDescriptor = PrimitiveSerialDescriptor("Location", PrimitiveKind.STRING)
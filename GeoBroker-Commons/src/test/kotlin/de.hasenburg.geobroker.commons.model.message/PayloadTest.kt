@@ -1,10 +1,12 @@
 package de.hasenburg.geobroker.commons.model.message
 
 import de.hasenburg.geobroker.commons.*
+import de.hasenburg.geobroker.commons.model.disgb.BrokerInfo
 import de.hasenburg.geobroker.commons.model.spatial.Geofence
 import de.hasenburg.geobroker.commons.model.spatial.Location
 import org.apache.logging.log4j.LogManager
 import org.junit.Test
+import org.zeromq.ZMsg
 
 import java.util.Arrays
 
@@ -55,11 +57,108 @@ class PayloadTest {
         transformAndCheck(subscriberMatchingPayload)
     }
 
+    @Test
+    fun testBinaryWireFormat() {
+        val disconnect = DISCONNECTPayload(ReasonCode.WrongBroker, BrokerInfo("broker", "localhost", 5559))
+        val payloads = listOf(CONNECTPayload(null),
+                CONNACKPayload(ReasonCode.Success),
+                disconnect,
+                DISCONNECTPayload(ReasonCode.KeepAliveExpired),
+                PINGREQPayload(null),
+                PINGRESPPayload(ReasonCode.LocationUpdated, "test-äöü"),
+                SUBACKPayload(ReasonCode.GrantedQoS0),
+                UNSUBSCRIBEPayload(Topic("a/+/c")),
+                UNSUBACKPayload(ReasonCode.NoSubscriptionExisted),
+                PUBACKPayload(ReasonCode.NoMatchingSubscribers),
+                BrokerForwardDisconnectPayload("client", disconnect),
+                BrokerForwardPingreqPayload("client", PINGREQPayload(Location(10.0, -20.0))),
+                BrokerForwardSubscribePayload("client",
+                        SUBSCRIBEPayload(Topic("data"), Geofence.rectangle(Location(1.0, 1.0), Location(2.0, 2.0)))),
+                BrokerForwardUnsubscribePayload("client", UNSUBSCRIBEPayload(Topic("data"))),
+                BrokerForwardPublishPayload(PUBLISHPayload(Topic("data"), Geofence.world(), generatePayloadWithSize(
+                        1000, "test-")), Location(0.0, 0.0)))
+
+        for (payload in payloads) {
+            transformAndCheck(payload)
+        }
+
+        // binary frames are smaller
+        val publish = PUBLISHPayload(Topic("data"), Geofence.circle(Location(10.0, 10.0), 1.0), "Content")
+        assertTrue(publish.toZMsg(wireFormat = WireFormat.BINARY).contentSize() < publish.toZMsg().contentSize())
+    }
+
+    @Test
+    fun testEncodedPayload() {
+        val payload = PUBLISHPayload(Topic("data"), Geofence.circle(Location(10.0, 10.0), 1.0), "Content")
+        val encodedPayload = EncodedPayload(payload)
+
+        for (wireFormat in WireFormat.values()) {
+            val message1 = encodedPayload.toZMsg("client-1", wireFormat)
+            val message2 = encodedPayload.toZMsg("client-2", wireFormat)
+            // the payload frames are shared
+            assertSame(message1.elementAt(1).data, message2.elementAt(1).data)
+            assertArrayEquals(payload.toZMsg("client-1", wireFormat).elementAt(1).data, message1.elementAt(1).data)
+            if (wireFormat == WireFormat.BINARY) {
+                // the content is neither encoded nor copied
+                assertEquals(3, message1.size)
+                assertSame(payload.contentBytes, message1.last.data)
+                assertSame(payload.contentBytes, message2.last.data)
+            }
+
+            assertEquals(Pair("client-2", payload), message2.toPayloadAndId())
+        }
+    }
+
+    @Test
+    fun testInvalidBinaryPayload() {
+        val valid = PINGREQPayload(Location(10.0, 10.0)).encodeBinaryPayload()
+        assertEquals(WireFormat.BINARY, wireFormatOf(valid))
+
+        // truncated, unknown type, and trailing bytes
+        assertNull(ZMsg().apply { add(valid.copyOf(valid.size - 1)) }.toPayload())
+        assertNull(ZMsg().apply { add(byteArrayOf(BINARY_FORMAT_TAG, 99)) }.toPayload())
+        assertNull(ZMsg().apply { add(valid + 0.toByte()) }.toPayload())
+        assertNull(payloadTypeOf(byteArrayOf(BINARY_FORMAT_TAG, 99)))
+        assertNull(payloadTypeOf("{\"type\":\"Unknown\"}".toByteArray()))
+
+        // missing and unexpected content frames
+        val publish = PUBLISHPayload(Topic("data"), Geofence.world(), "Content")
+        assertNull(ZMsg().apply { add(publish.encodeBinaryPayload()) }.toPayload())
+        assertNull(ZMsg().apply {
+            add(valid)
+            add("Content")
+        }.toPayload())
+
+        // a subscriber count that exceeds the frame, the count of zero subscribers is the last byte
+        val forward = BrokerForwardPublishPayload(publish, Location(10.0, 10.0), emptyList()).encodeBinaryPayload()
+        val hugeCount = byteArrayOf(-1, -1, -1, -1, 7)
+        assertNull(ZMsg().apply {
+            add(forward.copyOf(forward.size - 1) + hugeCount)
+            add("Content")
+        }.toPayload())
+    }
+
+    @Test
+    fun testBinaryContent() {
+        val content = byteArrayOf(0, -1, 42, -128)
+        val payload = PUBLISHPayload(Topic("data"), Geofence.world(), content)
+        val received = payload.toZMsg(wireFormat = WireFormat.BINARY).toPayload() as PUBLISHPayload
+        assertArrayEquals(content, received.contentBytes)
+        assertEquals(payload, received)
+    }
+
+    /**
+     * Checks that the [payload] is unchanged after it has been sent in both wire formats.
+     */
     private fun transformAndCheck(payload: Payload) {
-        val message = payload.toZMsg()
-        val payload2 = message.toPayload()
-        logger.info(payload2)
-        assertEquals(payload, payload2)
+        for (wireFormat in WireFormat.values()) {
+            val message = payload.toZMsg("client", wireFormat)
+            assertEquals(wireFormat, message.wireFormat())
+            assertEquals(payload::class, message.payloadType())
+            val payload2 = message.toPayloadAndId()
+            logger.info(payload2)
+            assertEquals(Pair("client", payload), payload2)
+        }
     }
 
 }
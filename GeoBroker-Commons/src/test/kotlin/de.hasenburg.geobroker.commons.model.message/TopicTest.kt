@@ -0,0 +1,43 @@
+package de.hasenburg.geobroker.commons.model.message
+
+import de.hasenburg.geobroker.commons.model.message.Payload.*
+import kotlinx.serialization.json.Json
+import org.junit.Assert.*
+import org.junit.Test
+
+class TopicTest {
+
+    @Test
+    fun testIntern() {
+        val topic = Topic.intern("a/b/c")
+        assertSame(topic, Topic.intern("a/b/c"))
+        assertEquals(Topic("a/b/c"), topic)
+        assertArrayEquals(arrayOf("a", "b", "c"), topic.levelSpecifiers)
+    }
+
+    @Test
+    fun testInternTableMaxSize() {
+        val table = TopicInternTable(5)
+        for (i in 0 until 20) {
+            assertEquals(Topic("topic/$i"), table.intern("topic/$i"))
+        }
+        assertEquals(5, table.size)
+    }
+
+    @Test
+    fun testDeserializationInterns() {
+        val first = UNSUBSCRIBEPayload(Topic("data/temperature")).toZMsg().toPayload() as UNSUBSCRIBEPayload
+        val second = UNSUBSCRIBEPayload(Topic("data/temperature")).toZMsg().toPayload() as UNSUBSCRIBEPayload
+        assertSame(first.topic, second.topic)
+    }
+
+    @Test
+    fun testDeserializeLevelSpecifiers() {
+        // older versions also serialized the level specifiers
+        val json = """{"type":"UNSUBSCRIBEPayload","topic":{"topic":"a/b","levelSpecifiers":["a","b"]}}"""
+        assertEquals(UNSUBSCRIBEPayload(Topic("a/b")), Json.decodeFromString(Payload.serializer(), json))
+        assertEquals("""{"type":"UNSUBSCRIBEPayload","topic":{"topic":"a/b"}}""",
+                Json.encodeToString(Payload.serializer(), UNSUBSCRIBEPayload(Topic("a/b"))))
+    }
+
+}
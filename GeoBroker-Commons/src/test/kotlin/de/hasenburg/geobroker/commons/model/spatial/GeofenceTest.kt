@@ -3,6 +3,9 @@ package de.hasenburg.geobroker.commons.model.spatial
 import org.apache.logging.log4j.LogManager
 import org.junit.Assert
 import org.junit.Test
+import org.locationtech.spatial4j.shape.SpatialRelation
+import java.nio.ByteBuffer
+import kotlin.random.Random
 
 private val logger = LogManager.getLogger()
 
@@ -37,6 +40,32 @@ class GeofenceTest {
         logger.info("Geofences {} and {} still equal after JSON stuff", fence, fence2)
     }
 
+    @Test
+    fun toAndFromBinary() {
+        val polygon = Geofence.polygon((0 until 20).map { Location(10.0 + Math.sin(it * 0.3), Math.cos(it * 0.3)) })
+        val geofences = listOf(Geofence.circle(Location(40.007499, 116.320013), 0.1),
+                Geofence.rectangle(Location(-10.0, -20.0), Location(10.0, 20.0)),
+                // crosses the dateline
+                Geofence.rectangle(Location(-10.0, 170.0), Location(10.0, -170.0)),
+                Geofence.world(),
+                Geofence.polygon(listOf(Location(0.0, 0.0), Location(1.0, 0.0), Location(1.0, 1.0))),
+                polygon,
+                // polygon with a hole, falls back to WKT
+                Geofence.fromWkt("POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0), (2 2, 4 2, 4 4, 2 4, 2 2))"))
+
+        for (geofence in geofences) {
+            val buffer = ByteBuffer.allocate(geofence.binarySize).putGeofence(geofence)
+            Assert.assertFalse(buffer.hasRemaining())
+            val geofence2 = buffer.flip().getGeofence()
+            Assert.assertEquals(geofence, geofence2)
+            Assert.assertFalse(buffer.hasRemaining())
+        }
+
+        // raw doubles are smaller than WKT
+        Assert.assertEquals(1 + 4 + 21 * 16, polygon.binarySize)
+        Assert.assertTrue(polygon.binarySize < polygon.toString().length)
+    }
+
     @Test
     fun testEquals() {
         val fence = berlinRectangle()
@@ -64,6 +93,48 @@ class GeofenceTest {
         Assert.assertTrue(fence.contains(l))
     }
 
+    @Test
+    fun testContainsPreparedPolygon() {
+        val center = Location(52.52, 13.405)
+        // polygon with more vertices than the threshold, approximating a circle with a radius of 10 km
+        val polygon = Geofence.polygon((0 until 2 * PREPARED_GEOMETRY_VERTEX_THRESHOLD).map {
+            center.locationInDistance(10.0, it * 360.0 / (2 * PREPARED_GEOMETRY_VERTEX_THRESHOLD))
+        })
+
+        for (i in 0 until 100) {
+            val direction = i * 3.6
+            Assert.assertTrue(polygon.contains(center.locationInDistance(5.0, direction)))
+            Assert.assertFalse(polygon.contains(center.locationInDistance(15.0, direction)))
+        }
+        Assert.assertFalse(polygon.disjoint(Geofence.circle(center, 0.01)))
+        Assert.assertTrue(polygon.disjoint(Geofence.circle(Location(0.0, 0.0), 0.01)))
+    }
+
+    @Test
+    fun testContainsPrimitiveShapes() {
+        val shapeFactory = SpatialContextK.GEO.shapeFactory
+        val random = Random(1)
+        for (i in 0 until 1000) {
+            val center = Location.random(random)
+            val radius = random.nextDouble() * 10.0
+            val southWest = Location.random(random)
+            val northEast = Location(southWest.lat + random.nextDouble() * (90.0 - southWest.lat),
+                    Location.random(random).lon)
+            val circle = shapeFactory.circle(center.point, radius)
+            val rectangle = shapeFactory.rect(southWest.point, northEast.point)
+
+            // the primitive checks must agree with spatial4j, also for locations close to the shapes
+            for (l in listOf(Location.random(random), center.locationInDistance(radius * 111.0, random.nextDouble() * 360),
+                    southWest, northEast, Location(southWest.lat, northEast.lon))) {
+                Assert.assertEquals(circle.relate(l.point) == SpatialRelation.CONTAINS,
+                        Geofence.circle(center, radius).contains(l))
+                Assert.assertEquals(rectangle.relate(l.point) == SpatialRelation.CONTAINS,
+                        Geofence.rectangle(southWest, northEast).contains(l))
+            }
+        }
+        Assert.assertTrue(Geofence.world().contains(Location.random()))
+    }
+
     @Test
     fun testDisjoint() {
         Assert.assertTrue(berlinRectangle().disjoint(datelineRectangle()))
@@ -6,6 +6,8 @@ import org.apache.logging.log4j.LogManager
 import org.junit.Assert
 import org.junit.Before
 import org.junit.Test
+import org.locationtech.spatial4j.exception.InvalidShapeException
+import java.nio.ByteBuffer
 import kotlin.system.measureTimeMillis
 
 private val logger = LogManager.getLogger()
@@ -98,4 +100,30 @@ class LocationTest {
         val l = Location.randomInGeofence(geofence)!!
         Assert.assertTrue(geofence.contains(l))
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testPrimitiveCoordinates() {
+        val berlin = Location(52.52, 13.405)
+        Assert.assertEquals(52.52, berlin.point.lat, 0.0)
+        Assert.assertEquals(13.405, berlin.point.lon, 0.0)
+        Assert.assertEquals(berlin, Location(berlin.point))
+        Assert.assertNotEquals(berlin, Location(52.52, 13.406))
+        Assert.assertEquals("{\"wkt\":\"POINT (13.405 52.52)\"}", berlin.toJson())
+    }
+
+    @Test
+    fun toAndFromBinary() {
+        val buffer = ByteBuffer.allocate(2 * LOCATION_BINARY_SIZE)
+        buffer.putLocation(null).putLocation(location)
+        buffer.flip()
+        Assert.assertNull(buffer.getLocation())
+        Assert.assertEquals(location, buffer.getLocation())
+        Assert.assertFalse(buffer.hasRemaining())
+    }
+
+    @Test(expected = InvalidShapeException::class)
+    fun testOutOfBounds() {
+        Location(91.0, 0.0)
+    }
+
+}
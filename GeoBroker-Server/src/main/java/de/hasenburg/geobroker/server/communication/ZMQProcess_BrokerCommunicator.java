@@ -49,8 +49,18 @@ public class ZMQProcess_BrokerCommunicator extends ZMQProcess {
 		this.otherBrokerInfos = otherBrokerInfos;
 	}
 
+	private static final String BROKER_COMMUNICATOR_ID_INFIX = "-broker_communicator-";
+
 	static String getBrokerCommunicatorId(String brokerId, int number) {
-		return brokerId + "-broker_communicator-" + number;
+		return brokerId + BROKER_COMMUNICATOR_ID_INFIX + number;
+	}
+
+	/**
+	 * @return true, if the given identity is the one of a broker communicator, i.e., the sender of a message is another
+	 * broker rather than a client
+	 */
+	static boolean isBrokerCommunicatorId(String identity) {
+		return identity.contains(BROKER_COMMUNICATOR_ID_INFIX);
 	}
 
 	@Override
@@ -119,14 +129,15 @@ public class ZMQProcess_BrokerCommunicator extends ZMQProcess {
 
 	/**
 	 * This message was sent to the pull socket by any {@link ZMQProcess_MessageProcessor}.
-	 * Should comprise two parts: first, the id of the target broker, second, the payload in serialized form.
+	 * Should comprise at least two parts: first, the id of the target broker, second, the payload in serialized form,
+	 * which might be followed by the content frame of published messages.
 	 *
 	 */
 	private void processPullSocketMessage(ZMsg msg) {
 		String targetBrokerId = null;
 
 		// get the target brokerId
-		if (msg != null && msg.size() == 2) { // target broker id + two parts for InternalBrokerMessage
+		if (msg != null && msg.size() >= 2) { // target broker id + payload frames
 			targetBrokerId = msg.pop().getString(ZMQ.CHARSET);
 		}
 
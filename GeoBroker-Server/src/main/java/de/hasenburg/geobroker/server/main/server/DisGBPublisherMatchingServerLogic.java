@@ -37,7 +37,7 @@ public class DisGBPublisherMatchingServerLogic implements IServerLogic {
 		brokerAreaManager = new BrokerAreaManager(configuration.getBrokerId());
 		brokerAreaManager.readFromFile(configuration.getBrokerAreaFilePath());
 
-		clientDirectory = new ClientDirectory();
+		clientDirectory = new ClientDirectory(configuration.getKeepAliveSeconds());
 		TopicAndGeofenceMapper topicAndGeofenceMapper = new TopicAndGeofenceMapper(configuration);
 
 		matchingLogic = new DisGBAtPublisherMatchingLogic(clientDirectory, topicAndGeofenceMapper, brokerAreaManager);
@@ -5,11 +5,16 @@ import de.hasenburg.geobroker.commons.communication.ZMQProcessManager;
 import de.hasenburg.geobroker.server.communication.ZMQProcessStarter;
 import de.hasenburg.geobroker.server.main.Configuration;
 import de.hasenburg.geobroker.server.matching.SingleGeoBrokerMatchingLogic;
+import de.hasenburg.geobroker.server.storage.SnapshotKt;
+import de.hasenburg.geobroker.server.storage.SnapshotWriter;
 import de.hasenburg.geobroker.server.storage.TopicAndGeofenceMapper;
+import de.hasenburg.geobroker.server.storage.WriteAheadLog;
+import de.hasenburg.geobroker.server.storage.WriteAheadLogKt;
 import de.hasenburg.geobroker.server.storage.client.ClientDirectory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SingleGeoBrokerServerLogic implements IServerLogic {
@@ -20,6 +25,8 @@ public class SingleGeoBrokerServerLogic implements IServerLogic {
 	private SingleGeoBrokerMatchingLogic matchingLogic;
 	private ZMQProcessManager processManager;
 	private ClientDirectory clientDirectory;
+	private SnapshotWriter snapshotWriter;
+	private WriteAheadLog writeAheadLog;
 
 	@Override
 	public void loadConfiguration(Configuration configuration) {
@@ -28,10 +35,31 @@ public class SingleGeoBrokerServerLogic implements IServerLogic {
 
 	@Override
 	public void initializeFields() {
-		clientDirectory = new ClientDirectory();
+		clientDirectory = new ClientDirectory(configuration.getKeepAliveSeconds());
 		TopicAndGeofenceMapper topicAndGeofenceMapper = new TopicAndGeofenceMapper(configuration);
 
-		matchingLogic = new SingleGeoBrokerMatchingLogic(clientDirectory, topicAndGeofenceMapper);
+		if (configuration.getSnapshotFilePath() != null) {
+			File snapshotFile = new File(configuration.getSnapshotFilePath());
+			SnapshotKt.restoreSnapshot(snapshotFile, clientDirectory, topicAndGeofenceMapper);
+		}
+
+		if (configuration.getWalDirectoryPath() != null) {
+			// replay the changes made after the snapshot, the log then continues in a new segment
+			File walDirectory = new File(configuration.getWalDirectoryPath());
+			WriteAheadLogKt.replayWriteAheadLog(walDirectory, clientDirectory, topicAndGeofenceMapper);
+			writeAheadLog = new WriteAheadLog(walDirectory,
+					configuration.getWalFsyncIntervalMillis(),
+					configuration.getWalSegmentSizeMB() * 1024L * 1024L);
+		}
+
+		if (configuration.getSnapshotFilePath() != null) {
+			snapshotWriter = new SnapshotWriter(new File(configuration.getSnapshotFilePath()),
+					configuration.getSnapshotIntervalSeconds(),
+					clientDirectory,
+					writeAheadLog);
+		}
+
+		matchingLogic = new SingleGeoBrokerMatchingLogic(clientDirectory, topicAndGeofenceMapper, writeAheadLog);
 		processManager = new ZMQProcessManager();
 	}
 
@@ -48,6 +76,12 @@ public class SingleGeoBrokerServerLogic implements IServerLogic {
 					matchingLogic,
 					0);
 		}
+		if (writeAheadLog != null) {
+			writeAheadLog.start();
+		}
+		if (snapshotWriter != null) {
+			snapshotWriter.start();
+		}
 		logger.info("Started server successfully!");
 	}
 
@@ -65,6 +99,12 @@ public class SingleGeoBrokerServerLogic implements IServerLogic {
 	@Override
 	public void cleanUp() {
 		processManager.tearDown(2000);
+		if (snapshotWriter != null) {
+			snapshotWriter.stop(); // writes a final snapshot
+		}
+		if (writeAheadLog != null) {
+			writeAheadLog.close();
+		}
 		logger.info("Tear down completed");
 	}
 
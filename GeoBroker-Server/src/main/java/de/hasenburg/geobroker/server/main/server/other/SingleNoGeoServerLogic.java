@@ -31,7 +31,7 @@ public class SingleNoGeoServerLogic implements IServerLogic {
 
 	@Override
 	public void initializeFields() {
-		clientDirectory = new ClientDirectory();
+		clientDirectory = new ClientDirectory(configuration.getKeepAliveSeconds());
 		NoGeoSubscriptionIndexingStructure subscriptionIndexingStructure = new NoGeoSubscriptionIndexingStructure();
 
 		matchingLogic = new SingleNoGeoMatchingLogic(clientDirectory, subscriptionIndexingStructure);
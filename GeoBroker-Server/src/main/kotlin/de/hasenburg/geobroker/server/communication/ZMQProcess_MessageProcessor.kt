@@ -7,12 +7,16 @@ import de.hasenburg.geobroker.commons.communication.ZMQProcess
 import de.hasenburg.geobroker.server.matching.IMatchingLogic
 import de.hasenburg.geobroker.commons.model.message.Payload
 import de.hasenburg.geobroker.commons.model.message.toPayloadAndId
+import de.hasenburg.geobroker.commons.model.message.payloadType
+import de.hasenburg.geobroker.commons.model.message.wireFormat
+import de.hasenburg.geobroker.server.storage.client.CoarseClock
 import io.prometheus.client.Gauge
 import kotlinx.serialization.json.Json
 import kotlinx.serialization.json.JsonConfiguration
 import org.apache.logging.log4j.LogManager
 import org.zeromq.SocketType
 import org.zeromq.ZContext
+import org.zeromq.ZMQ
 import org.zeromq.ZMQ.Socket
 import org.zeromq.ZMsg
 
@@ -81,12 +85,27 @@ class ZMQProcess_MessageProcessor(private val brokerId: String, private val numb
         // start processing the message
         numberOfProcessedMessages++
 
-        val message = msg.toPayloadAndId()
-
         logger.trace("ZMQProcess_MessageProcessor {} processing message number {}",
                 identity,
                 numberOfProcessedMessages)
 
+        // the poll might have waited long, so refresh the clock before the message refreshes any heartbeat
+        CoarseClock.update()
+
+        // read from the header before decoding, which destroys the message
+        val wireFormat = msg.wireFormat()
+        val identity = msg.first.getString(ZMQ.CHARSET)
+        val fromBroker = ZMQProcess_BrokerCommunicator.isBrokerCommunicatorId(identity)
+        if (!fromBroker) {
+            // every message of a client counts as heartbeat
+            matchingLogic.processHeartbeat(identity)
+        }
+        if (rejectBeforeDecoding(msg, identity, fromBroker)) {
+            msg.destroy()
+            return
+        }
+        val message = msg.toPayloadAndId()
+
         if (message != null) {
             val clientsSocket = sockets[processorIndex]
             val brokersSocket = sockets[brokerCommunicatorIndex]
@@ -95,6 +114,7 @@ class ZMQProcess_MessageProcessor(private val brokerId: String, private val numb
             when (message.second) {
                 is Payload.CONNECTPayload -> matchingLogic.processCONNECT(message.first,
                         message.second as Payload.CONNECTPayload,
+                        wireFormat,
                         clientsSocket,
                         brokersSocket)
                 is Payload.DISCONNECTPayload -> matchingLogic.processDISCONNECT(message.first,
@@ -151,6 +171,37 @@ class ZMQProcess_MessageProcessor(private val brokerId: String, private val numb
 
     }
 
+    /**
+     * Rejects messages based on their header, so that they do not need to be decoded: acknowledgements are ignored by
+     * the server, messages that are only exchanged between brokers are ignored if sent by a client, and PUBLISH
+     * messages might be rejected by the matching logic, see [IMatchingLogic.rejectPUBLISH]. Messages whose header
+     * cannot be read are decoded as usual.
+     */
+    private fun rejectBeforeDecoding(msg: ZMsg, identity: String, fromBroker: Boolean): Boolean {
+        return when (val payloadType = msg.payloadType()) {
+            in serverIgnoredPayloadTypes -> {
+                logger.warn("{} messages are ignored by server", payloadType?.simpleName)
+                true
+            }
+            in brokerOnlyPayloadTypes -> {
+                if (fromBroker) {
+                    false
+                } else {
+                    logger.warn("{} messages of client {} are ignored by server", payloadType?.simpleName, identity)
+                    true
+                }
+            }
+            Payload.PUBLISHPayload::class -> matchingLogic.rejectPUBLISH(identity, sockets[processorIndex])
+            else -> false
+        }
+    }
+
+    override fun pollCompleted() {
+        // refresh the clock once per poll rather than on each heartbeat, also if the poll timed out
+        CoarseClock.update()
+        matchingLogic.processExpiredClients(sockets[processorIndex], sockets[brokerCommunicatorIndex])
+    }
+
     override fun utilizationCalculated(utilization: Double) {
         util.set(utilization);
         logger.info("Current Utilization is {}%", utilization)
@@ -162,6 +213,20 @@ class ZMQProcess_MessageProcessor(private val brokerId: String, private val numb
 
 }
 
+// payload types that are only sent by the server
+private val serverIgnoredPayloadTypes = setOf(Payload.CONNACKPayload::class,
+        Payload.PINGRESPPayload::class,
+        Payload.SUBACKPayload::class,
+        Payload.UNSUBACKPayload::class,
+        Payload.PUBACKPayload::class)
+
+// payload types that are only sent by other brokers
+private val brokerOnlyPayloadTypes = setOf(Payload.BrokerForwardDisconnectPayload::class,
+        Payload.BrokerForwardPingreqPayload::class,
+        Payload.BrokerForwardSubscribePayload::class,
+        Payload.BrokerForwardUnsubscribePayload::class,
+        Payload.BrokerForwardPublishPayload::class)
+
 fun getMessageProcessorIdentity(brokerId: String, number: Int): String {
     return "$brokerId-message_processor-$number"
 }
@@ -9,6 +9,20 @@ import kotlin.system.exitProcess
 private val logger = LogManager.getLogger()
 
 /**
+ * @param spatialIndex - the [SpatialIndexType] used to store the geofences of subscriptions
+ * @param publishMatchCacheSize - maximum number of cached publish matches, 0 disables the cache; requires
+ * [SpatialIndexType.raster]
+ * @param keepAliveSeconds - clients that did not send any message for this many seconds are disconnected, 0 disables
+ * the expiry
+ * @param snapshotFilePath - file the clients and subscriptions are periodically written to and restored from on
+ * startup, null disables snapshots; only has a meaning when [mode] == [Mode.single]
+ * @param snapshotIntervalSeconds - seconds between two snapshots
+ * @param walDirectoryPath - directory of the write-ahead log that records all client and subscription changes
+ * between two snapshots, null disables the log; only has a meaning when [mode] == [Mode.single]. Without snapshots,
+ * the log is never truncated.
+ * @param walFsyncIntervalMillis - milliseconds between two fsyncs of the write-ahead log, i.e., changes of this
+ * period are committed together and might get lost on a crash
+ * @param walSegmentSizeMB - size after which the write-ahead log continues in a new segment file
  * @param brokerAreaFilePath - only has a meaning when [mode] == [Mode.disgb_subscriberMatching] or [Mode.disgb_publisherMatching].
  */
 data class Configuration(
@@ -19,6 +33,14 @@ data class Configuration(
         val messageProcessors: Int = 1,
         val logConfFile: File? = null,
         val prometheusPort: Int = -1,
+        val spatialIndex: SpatialIndexType = SpatialIndexType.raster,
+        val publishMatchCacheSize: Int = 0,
+        val keepAliveSeconds: Int = 0,
+        val snapshotFilePath: String? = null,
+        val snapshotIntervalSeconds: Int = 60,
+        val walDirectoryPath: String? = null,
+        val walFsyncIntervalMillis: Int = 10,
+        val walSegmentSizeMB: Int = 64,
 
         // server mode - general
         val mode: Mode = Mode.single,
@@ -39,6 +61,13 @@ enum class Mode {
     single_noGeo
 }
 
+@Suppress("EnumEntryName")
+enum class SpatialIndexType {
+    raster, // fixed size grid, see Raster
+    quadtree, // multi-resolution grid, see QuadtreeRaster
+    rtree // bounding boxes of geofences, see RTree
+}
+
 fun getDefaultConfiguration(): Configuration {
     return Configuration()
 }
@@ -77,6 +106,14 @@ private fun parseToml(toml: Toml): Configuration { // server information
     val messageProcessors = tomlServer?.getInt("messageProcessors") ?: c.messageProcessors
     val logConfFile = tomlServer?.getFile("logConfFile") ?: c.logConfFile
     val prometheusPort = tomlServer?.getInt("prometheusPort") ?: c.prometheusPort
+    val spatialIndex = tomlServer?.getSpatialIndexType("spatialIndex") ?: c.spatialIndex
+    val publishMatchCacheSize = tomlServer?.getInt("publishMatchCacheSize") ?: c.publishMatchCacheSize
+    val keepAliveSeconds = tomlServer?.getInt("keepAliveSeconds") ?: c.keepAliveSeconds
+    val snapshotFilePath = tomlServer?.getString("snapshotFilePath") ?: c.snapshotFilePath
+    val snapshotIntervalSeconds = tomlServer?.getInt("snapshotIntervalSeconds") ?: c.snapshotIntervalSeconds
+    val walDirectoryPath = tomlServer?.getString("walDirectoryPath") ?: c.walDirectoryPath
+    val walFsyncIntervalMillis = tomlServer?.getInt("walFsyncIntervalMillis") ?: c.walFsyncIntervalMillis
+    val walSegmentSizeMB = tomlServer?.getInt("walSegmentSizeMB") ?: c.walSegmentSizeMB
 
     // [sever.mode]
     val tomlServerMode: Toml? = tomlServer?.getTable("mode")
@@ -100,6 +137,14 @@ private fun parseToml(toml: Toml): Configuration { // server information
             messageProcessors,
             logConfFile,
             prometheusPort,
+            spatialIndex,
+            publishMatchCacheSize,
+            keepAliveSeconds,
+            snapshotFilePath,
+            snapshotIntervalSeconds,
+            walDirectoryPath,
+            walFsyncIntervalMillis,
+            walSegmentSizeMB,
             mode,
             brokerAreaFilePath,
             brokerCommunicators)
@@ -118,6 +163,10 @@ fun Toml.getMode(key: String): Mode? {
     getString(key)?.run { return Mode.valueOf(this) } ?: return null
 }
 
+fun Toml.getSpatialIndexType(key: String): SpatialIndexType? {
+    getString(key)?.run { return SpatialIndexType.valueOf(this) } ?: return null
+}
+
 fun Toml.getFile(key: String): File? {
     getString(key)?.run {
         val file = File(this)
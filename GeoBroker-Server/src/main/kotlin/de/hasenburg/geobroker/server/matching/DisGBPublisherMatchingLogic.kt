@@ -1,7 +1,9 @@
 package de.hasenburg.geobroker.server.matching
 
+import de.hasenburg.geobroker.commons.model.message.EncodedPayload
 import de.hasenburg.geobroker.commons.model.message.Payload.*
 import de.hasenburg.geobroker.commons.model.message.ReasonCode
+import de.hasenburg.geobroker.commons.model.message.WireFormat
 import de.hasenburg.geobroker.commons.model.message.toZMsg
 import de.hasenburg.geobroker.commons.model.spatial.Location
 import de.hasenburg.geobroker.server.distribution.BrokerAreaManager
@@ -25,15 +27,20 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
         response.send(clients)
     }
 
-    override fun processCONNECT(clientIdentifier: String, payload: CONNECTPayload, clients: Socket,
-                                brokers: Socket) {
+    override fun processCONNECT(clientIdentifier: String, payload: CONNECTPayload, wireFormat: WireFormat,
+                                clients: Socket, brokers: Socket) {
 
         if (!weAreResponsible(clientIdentifier, payload.location, clients, brokers)) {
             return  // we are not responsible, client has been notified
         }
 
-        val payloadResponse = connectClientAtLocalBroker(clientIdentifier, payload.location, clientDirectory, logger)
-        val response = payloadResponse.toZMsg(clientIdentifier)
+        val payloadResponse = connectClientAtLocalBroker(clientIdentifier,
+                payload.location,
+                clientDirectory,
+                topicAndGeofenceMapper::removeSubscription,
+                wireFormat,
+                logger)
+        val response = payloadResponse.toZMsg(clientIdentifier, wireFormat)
 
         sendResponse(response, clients)
     }
@@ -51,6 +58,18 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
 
     }
 
+    override fun processHeartbeat(clientIdentifier: String) {
+        clientDirectory.updateHeartbeat(clientIdentifier)
+    }
+
+    override fun processExpiredClients(clients: Socket, brokers: Socket) {
+        for (clientIdentifier in clientDirectory.expireClients()) {
+            // forwards the disconnect to all formerly affected brokers
+            doDisconnect(clientIdentifier, DISCONNECTPayload(ReasonCode.KeepAliveExpired), clients, brokers)
+            logger.debug("Disconnected client {}, keep-alive expired", clientIdentifier)
+        }
+    }
+
     override fun processPINGREQ(clientIdentifier: String, payload: PINGREQPayload, clients: Socket,
                                 brokers: Socket) {
 
@@ -90,7 +109,7 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
          * Response
          ****************************************************************/
 
-        val response = PINGRESPPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = PINGRESPPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
         sendResponse(response, clients)
     }
 
@@ -134,7 +153,7 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
 
             // all brokers that did not know the client before have to also receive the client location
             val newlyAffectedBrokers = subscriptionAffection.determineAffectedBrokersThatDoNotKnowTheClient(
-                    subscriptionId,
+                    clientIdentifier,
                     otherAffectedBrokers)
             for (newlyAffectedBroker in newlyAffectedBrokers) {
                 logger.debug("""|Broker ${newlyAffectedBroker.brokerId} did not know client $clientIdentifier
@@ -145,7 +164,7 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
 
             // update broker affection -> returns now not anymore affected brokers
             val notAnymoreAffectedOtherBrokers =
-                    subscriptionAffection.updateAffections(subscriptionId, otherAffectedBrokers)
+                    subscriptionAffection.updateAffections(clientIdentifier, subscriptionId, otherAffectedBrokers)
 
             // unsubscribe these now not anymore affected brokers
             for (notAnymoreAffectedOtherBroker in notAnymoreAffectedOtherBrokers) {
@@ -161,7 +180,7 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
          * Response
          ****************************************************************/
 
-        val response = SUBACKPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = SUBACKPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
         sendResponse(response, clients)
     }
 
@@ -187,7 +206,7 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
         // only if a subscription existed locally, the request should be forwarded
         if (subscription != null) {
             // determine other brokers that were affected by the subscription
-            val clientAffections = subscriptionAffection.getAffections(subscription.subscriptionId)
+            val clientAffections = subscriptionAffection.getAffections(clientIdentifier, subscription.subscriptionId)
 
             // forward unsubscribe
             for (otherAffectedBroker in clientAffections) {
@@ -197,16 +216,21 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
                 BrokerForwardUnsubscribePayload(clientIdentifier, payload).toZMsg(otherAffectedBroker.brokerId)
                     .send(brokers)
             }
+            subscriptionAffection.removeAffections(clientIdentifier, subscription.subscriptionId)
         }
 
         /* ***************************************************************
          * Response
          ****************************************************************/
 
-        val response = UNSUBACKPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = UNSUBACKPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
         sendResponse(response, clients)
     }
 
+    override fun rejectPUBLISH(clientIdentifier: String, clients: Socket): Boolean {
+        return rejectPublishOfUnconnectedClient(clientIdentifier, clientDirectory, clients, logger)
+    }
+
     override fun processPUBLISH(clientIdentifier: String, payload: PUBLISHPayload, clients: Socket,
                                 brokers: Socket) {
 
@@ -217,20 +241,18 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
             logger.debug("Client {} is not connected or has not provided a location", clientIdentifier)
             reasonCode = ReasonCode.NotConnectedOrNoLocation
         } else {
-            // get subscriptions that have a geofence containing the publisher location
-            val subscriptionIdResults =
-                    topicAndGeofenceMapper.getSubscriptionIds(payload.topic, publisherLocation, clientDirectory)
-
-            // only keep subscription if subscriber location is insider message geofence
-            val subscriptionIds = subscriptionIdResults.filter { subId ->
-                payload.geofence.contains(clientDirectory.getClientLocation(subId.left))
-            }
+            val subscriptions = getMatchingSubscriptions(payload.topic,
+                    publisherLocation,
+                    payload.geofence,
+                    clientDirectory,
+                    topicAndGeofenceMapper)
 
             val remoteClientIds = mutableMapOf<String, MutableList<String>>()
 
-            // publish message to remaining subscribers
-            for (subscriptionId in subscriptionIds) {
-                val subscriber = clientDirectory.getClient(subscriptionId.left)
+            // publish message to remaining subscribers, the payload is only encoded once for local subscribers
+            val encodedPayload = EncodedPayload(payload)
+            for (subscription in subscriptions) {
+                val subscriber = clientDirectory.getClient(subscription.clientIdentifier)
 
                 when {
                     subscriber == null -> // in very rare cases another thread removed it again already, so do nothing
@@ -249,8 +271,8 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
                     else -> {
                         // local client -> send directly
                         logger.debug("Client {} is a local subscriber", subscriber.clientIdentifier)
-                        val toPublish = payload.toZMsg(subscriber.clientIdentifier)
-                        logger.trace("Publishing $toPublish")
+                        val toPublish = encodedPayload.toClientZMsg(subscriber.clientIdentifier, clientDirectory)
+                        logger.trace("Publishing {}", toPublish)
                         toPublish.send(clients)
                     }
                 }
@@ -259,11 +281,13 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
 
             // forward message to remote brokers together with all their subscribers
             for ((otherBrokerId, subscribers) in remoteClientIds) {
-                // send message to BrokerCommunicator who takes care of the rest
-                BrokerForwardPublishPayload(payload, subscriberClientIdentifiers = subscribers).toZMsg(otherBrokerId).send(brokers)
+                // send message to BrokerCommunicator who takes care of the rest; binary to pass the content as is
+                BrokerForwardPublishPayload(payload, subscriberClientIdentifiers = subscribers)
+                    .toZMsg(otherBrokerId, WireFormat.BINARY)
+                    .send(brokers)
             }
 
-            reasonCode = if (subscriptionIds.isEmpty()) {
+            reasonCode = if (subscriptions.isEmpty()) {
                 logger.debug("No subscriber exists.")
                 ReasonCode.NoMatchingSubscribers
             } else {
@@ -273,7 +297,7 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
 
         // send response to publisher
         logger.trace("Sending response with reason code $reasonCode")
-        val response = PUBACKPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = PUBACKPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
         sendResponse(response, clients)
     }
 
@@ -298,7 +322,10 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
 
         if (clientDirectory.clientExistsAsRemoteClient(payload.clientIdentifier)) {
             reasonCode = ReasonCode.Success
-            clientDirectory.removeClient(payload.clientIdentifier)
+            disconnectClientAtLocalBroker(payload.clientIdentifier,
+                    clientDirectory,
+                    topicAndGeofenceMapper::removeSubscription,
+                    logger)
         }
 
         val response = DISCONNECTPayload(reasonCode).toZMsg(otherBrokerId)
@@ -418,13 +445,14 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
         // the id is determined by ZeroMQ based on the first frame, so here it is the id of the forwarding broker
         logger.trace("Processing BrokerForwardPublish from broker {}", otherBrokerId)
 
-        // validate that target client is connected
+        // validate that target client is connected, the payload is only encoded once
+        val encodedPayload = EncodedPayload(payload.publishPayload)
         for (subscriberClientIdentifier in payload.subscriberClientIdentifiers) {
             if (clientDirectory.clientExists(subscriberClientIdentifier)) {
                 logger.debug("Sending a message that was matched by broker $otherBrokerId to Client {}",
                         subscriberClientIdentifier)
-                val toPublish = payload.publishPayload.toZMsg(subscriberClientIdentifier)
-                logger.trace("Publishing $toPublish")
+                val toPublish = encodedPayload.toClientZMsg(subscriberClientIdentifier, clientDirectory)
+                logger.trace("Publishing {}", toPublish)
                 toPublish.send(clients)
             } else {
                 logger.warn("Another broker matched a message for client {}, but he is not connected",
@@ -460,7 +488,8 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
             // get responsible broker
             val repBroker = brokerAreaManager.getOtherBrokerContainingLocation(clientLocation)
 
-            val response = DISCONNECTPayload(ReasonCode.WrongBroker, repBroker).toZMsg(clientIdentifier)
+            val response =
+                    DISCONNECTPayload(ReasonCode.WrongBroker, repBroker).toClientZMsg(clientIdentifier, clientDirectory)
             logger.debug("Not responsible for client {}, responsible broker is {}", clientIdentifier, repBroker)
 
             sendResponse(response, clients)
@@ -491,7 +520,10 @@ class DisGBAtPublisherMatchingLogic constructor(private val clientDirectory: Cli
      */
     private fun doDisconnect(clientIdentifier: String, payload: DISCONNECTPayload, clients: Socket, brokers: Socket) {
 
-        val success = clientDirectory.removeClient(clientIdentifier)
+        val success = disconnectClientAtLocalBroker(clientIdentifier,
+                clientDirectory,
+                topicAndGeofenceMapper::removeSubscription,
+                logger)
         if (!success) {
             logger.trace("Client for {} did not exist", clientIdentifier)
             return
@@ -2,6 +2,7 @@ package de.hasenburg.geobroker.server.matching
 
 import de.hasenburg.geobroker.commons.model.message.Payload.*
 import de.hasenburg.geobroker.commons.model.message.ReasonCode
+import de.hasenburg.geobroker.commons.model.message.WireFormat
 import de.hasenburg.geobroker.commons.model.message.toZMsg
 import de.hasenburg.geobroker.commons.model.spatial.Location
 import de.hasenburg.geobroker.server.communication.ZMQProcess_BrokerCommunicator
@@ -27,15 +28,20 @@ class DisGBAtSubscriberMatchingLogic(private val clientDirectory: ClientDirector
         response.send(clients)
     }
 
-    override fun processCONNECT(clientIdentifier: String, payload: CONNECTPayload, clients: Socket,
-                                brokers: Socket) {
+    override fun processCONNECT(clientIdentifier: String, payload: CONNECTPayload, wireFormat: WireFormat,
+                                clients: Socket, brokers: Socket) {
 
         if (!weAreResponsible(clientIdentifier, payload.location, clients)) {
             return  // we are not responsible, client has been notified
         }
 
-        val payloadResponse = connectClientAtLocalBroker(clientIdentifier, payload.location, clientDirectory, logger)
-        val response = payloadResponse.toZMsg(clientIdentifier)
+        val payloadResponse = connectClientAtLocalBroker(clientIdentifier,
+                payload.location,
+                clientDirectory,
+                topicAndGeofenceMapper::removeSubscription,
+                wireFormat,
+                logger)
+        val response = payloadResponse.toZMsg(clientIdentifier, wireFormat)
 
         sendResponse(response, clients)
     }
@@ -43,7 +49,10 @@ class DisGBAtSubscriberMatchingLogic(private val clientDirectory: ClientDirector
     override fun processDISCONNECT(clientIdentifier: String, payload: DISCONNECTPayload, clients: Socket,
                                    brokers: Socket) {
 
-        val success = clientDirectory.removeClient(clientIdentifier)
+        val success = disconnectClientAtLocalBroker(clientIdentifier,
+                clientDirectory,
+                topicAndGeofenceMapper::removeSubscription,
+                logger)
         if (!success) {
             logger.trace("Client for {} did not exist", clientIdentifier)
             return
@@ -53,6 +62,16 @@ class DisGBAtSubscriberMatchingLogic(private val clientDirectory: ClientDirector
         // no response to send here
     }
 
+    override fun processHeartbeat(clientIdentifier: String) {
+        clientDirectory.updateHeartbeat(clientIdentifier)
+    }
+
+    override fun processExpiredClients(clients: Socket, brokers: Socket) {
+        for (clientIdentifier in clientDirectory.expireClients()) {
+            processDISCONNECT(clientIdentifier, DISCONNECTPayload(ReasonCode.KeepAliveExpired), clients, brokers)
+        }
+    }
+
     override fun processPINGREQ(clientIdentifier: String, payload: PINGREQPayload, clients: Socket,
                                 brokers: Socket) {
 
@@ -66,7 +85,7 @@ class DisGBAtSubscriberMatchingLogic(private val clientDirectory: ClientDirector
                 clientDirectory,
                 logger)
 
-        val response = PINGRESPPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = PINGRESPPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
 
         sendResponse(response, clients)
     }
@@ -81,7 +100,7 @@ class DisGBAtSubscriberMatchingLogic(private val clientDirectory: ClientDirector
                 payload.geofence,
                 logger)
 
-        val response = SUBACKPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = SUBACKPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
 
         sendResponse(response, clients)
     }
@@ -95,11 +114,15 @@ class DisGBAtSubscriberMatchingLogic(private val clientDirectory: ClientDirector
                 payload.topic,
                 logger)
 
-        val response = UNSUBACKPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = UNSUBACKPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
 
         sendResponse(response, clients)
     }
 
+    override fun rejectPUBLISH(clientIdentifier: String, clients: Socket): Boolean {
+        return rejectPublishOfUnconnectedClient(clientIdentifier, clientDirectory, clients, logger)
+    }
+
     override fun processPUBLISH(clientIdentifier: String, payload: PUBLISHPayload, clients: Socket,
                                 brokers: Socket) {
 
@@ -117,8 +140,9 @@ class DisGBAtSubscriberMatchingLogic(private val clientDirectory: ClientDirector
                 logger.debug("Broker area of {} intersects with message from client {}",
                         otherBroker.brokerId,
                         clientIdentifier)
-                // send message to BrokerCommunicator who takes care of the rest
-                BrokerForwardPublishPayload(payload, publisherLocation).toZMsg(otherBroker.brokerId).send(brokers)
+                // send message to BrokerCommunicator who takes care of the rest; binary to pass the content as is
+                BrokerForwardPublishPayload(payload, publisherLocation).toZMsg(otherBroker.brokerId, WireFormat.BINARY)
+                    .send(brokers)
 
             }
 
@@ -144,7 +168,7 @@ class DisGBAtSubscriberMatchingLogic(private val clientDirectory: ClientDirector
         }
 
         // send response to publisher
-        val response = PUBACKPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = PUBACKPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
         logger.trace("Sending response with reason code $reasonCode")
         sendResponse(response, clients)
     }
@@ -184,9 +208,9 @@ class DisGBAtSubscriberMatchingLogic(private val clientDirectory: ClientDirector
                                              clients: Socket, brokers: Socket) {
 
         // the id is determined by ZeroMQ based on the first frame, so here it is the id of the forwarding broker
-        logger.debug("Processing BrokerForwardPublish from broker {}, message is {}",
+        logger.debug("Processing BrokerForwardPublish from broker {}, topic is {}",
                 otherBrokerId,
-                payload.publishPayload.content)
+                payload.publishPayload.topic)
 
         val publisherLocation = payload.publisherLocation
         val reasonCode = if (publisherLocation != null) {
@@ -227,7 +251,8 @@ class DisGBAtSubscriberMatchingLogic(private val clientDirectory: ClientDirector
             // get responsible broker
             val repBroker = brokerAreaManager.getOtherBrokerContainingLocation(clientLocation)
 
-            val response = DISCONNECTPayload(ReasonCode.WrongBroker, repBroker).toZMsg(clientIdentifier)
+            val response =
+                    DISCONNECTPayload(ReasonCode.WrongBroker, repBroker).toClientZMsg(clientIdentifier, clientDirectory)
             logger.debug("Not responsible for client {}, responsible broker is {}", clientIdentifier, repBroker)
 
             sendResponse(response, clients)
@@ -235,7 +260,8 @@ class DisGBAtSubscriberMatchingLogic(private val clientDirectory: ClientDirector
             // TODO F: migrate client data to other broker, right now he has to update the information himself
             logger.debug("Client had {} active subscriptions",
                     clientDirectory.getCurrentClientSubscriptions(clientIdentifier))
-            clientDirectory.removeClient(clientIdentifier)
+            disconnectClientAtLocalBroker(clientIdentifier, clientDirectory, topicAndGeofenceMapper::removeSubscription,
+                logger)
             return false
         }
         return true
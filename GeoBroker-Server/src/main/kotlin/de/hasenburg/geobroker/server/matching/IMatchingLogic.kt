@@ -3,11 +3,20 @@ package de.hasenburg.geobroker.server.matching
 import de.hasenburg.geobroker.commons.model.message.*
 import de.hasenburg.geobroker.commons.model.spatial.Geofence
 import de.hasenburg.geobroker.commons.model.spatial.Location
+import de.hasenburg.geobroker.server.storage.SubscriptionIdList
 import de.hasenburg.geobroker.server.storage.TopicAndGeofenceMapper
 import de.hasenburg.geobroker.server.storage.client.ClientDirectory
+import de.hasenburg.geobroker.server.storage.client.Subscription
+import de.hasenburg.geobroker.server.storage.subscriptionTopicMatches
+import io.prometheus.client.Counter
 import org.apache.commons.lang3.tuple.ImmutablePair
 import org.apache.logging.log4j.Logger
 import org.zeromq.ZMQ.Socket
+import org.zeromq.ZMsg
+
+// Prometheus Counter, labeled with the chosen MatchingPlan
+private val matchingPlans = Counter.build().name("Geo_MatchingPlan_choices")
+    .help("Number of published messages matched with each plan").labelNames("plan").register()
 
 /**
  * We supply a [Json] serialization object, because re-using it is faster than creating new ones.
@@ -17,7 +26,11 @@ import org.zeromq.ZMQ.Socket
  */
 interface IMatchingLogic {
 
-    fun processCONNECT(clientIdentifier: String, payload: Payload.CONNECTPayload, clients: Socket, brokers: Socket)
+    /**
+     * @param wireFormat - the format of the CONNECT message, used for all messages to the client while it is connected
+     */
+    fun processCONNECT(clientIdentifier: String, payload: Payload.CONNECTPayload, wireFormat: WireFormat,
+                       clients: Socket, brokers: Socket)
 
     fun processDISCONNECT(clientIdentifier: String, payload: Payload.DISCONNECTPayload, clients: Socket,
                           brokers: Socket)
@@ -29,6 +42,13 @@ interface IMatchingLogic {
     fun processUNSUBSCRIBE(clientIdentifier: String, payload: Payload.UNSUBSCRIBEPayload, clients: Socket,
                            brokers: Socket)
 
+    /**
+     * Called before a PUBLISH message is decoded, so that messages that are rejected anyway cost almost nothing.
+     *
+     * @return true, if the message has been rejected and answered; then, it is neither decoded nor processed
+     */
+    fun rejectPUBLISH(clientIdentifier: String, clients: Socket): Boolean
+
     fun processPUBLISH(clientIdentifier: String, payload: Payload.PUBLISHPayload, clients: Socket, brokers: Socket)
 
     fun processBrokerForwardDisconnect(otherBrokerId: String, payload: Payload.BrokerForwardDisconnectPayload,
@@ -46,6 +66,18 @@ interface IMatchingLogic {
     fun processBrokerForwardPublish(otherBrokerId: String, payload: Payload.BrokerForwardPublishPayload,
                                     clients: Socket, brokers: Socket)
 
+    /**
+     * Called for every message of a client before it is decoded, so that any interaction refreshes the heartbeat of
+     * the client, see [ClientDirectory.updateHeartbeat].
+     */
+    fun processHeartbeat(clientIdentifier: String)
+
+    /**
+     * Disconnects the clients whose keep-alive expired, see [ClientDirectory.expireClients]. Expired clients are
+     * handled as if they sent a DISCONNECT, so that other brokers are notified as well.
+     */
+    fun processExpiredClients(clients: Socket, brokers: Socket)
+
 }
 
 /*****************************************************************
@@ -55,20 +87,73 @@ interface IMatchingLogic {
 fun connectClientAtLocalBroker(clientIdentifier: String,
                                location: Location?,
                                clientDirectory: ClientDirectory,
+                               removeFromStorage: (Subscription) -> Unit,
+                               wireFormat: WireFormat,
                                logger: Logger): Payload {
 
-    val success = clientDirectory.addClient(clientIdentifier, location)
+    val success = clientDirectory.addClient(clientIdentifier, location, wireFormat = wireFormat)
 
     return if (success) {
         logger.debug("Created client {}, acknowledging.", clientIdentifier)
         Payload.CONNACKPayload(ReasonCode.Success)
     } else {
         logger.debug("Client {} already exists, so protocol error. Disconnecting.", clientIdentifier)
-        clientDirectory.removeClient(clientIdentifier)
+        disconnectClientAtLocalBroker(clientIdentifier, clientDirectory, removeFromStorage, logger)
         Payload.DISCONNECTPayload(ReasonCode.ProtocolError)
     }
 }
 
+/**
+ * Creates a message for the given local client in its [WireFormat], see [ClientDirectory.getWireFormat].
+ */
+fun Payload.toClientZMsg(clientIdentifier: String, clientDirectory: ClientDirectory): ZMsg {
+    return toZMsg(clientIdentifier, clientDirectory.getWireFormat(clientIdentifier))
+}
+
+/**
+ * Same as [Payload.toClientZMsg], but the payload is only encoded once for all clients with the same [WireFormat].
+ */
+fun EncodedPayload.toClientZMsg(clientIdentifier: String, clientDirectory: ClientDirectory): ZMsg {
+    return toZMsg(clientIdentifier, clientDirectory.getWireFormat(clientIdentifier))
+}
+
+/**
+ * Rejects PUBLISH messages of clients that are not connected or have not provided a location, see
+ * [IMatchingLogic.rejectPUBLISH].
+ */
+fun rejectPublishOfUnconnectedClient(clientIdentifier: String,
+                                     clientDirectory: ClientDirectory,
+                                     clients: Socket,
+                                     logger: Logger): Boolean {
+
+    if (clientDirectory.getClientLocation(clientIdentifier) != null) {
+        return false
+    }
+
+    logger.debug("Client {} is not connected or has not provided a location", clientIdentifier)
+    Payload.PUBACKPayload(ReasonCode.NotConnectedOrNoLocation).toClientZMsg(clientIdentifier, clientDirectory)
+        .send(clients)
+    return true
+}
+
+/**
+ * Removes the client from the [clientDirectory] and its subscriptions from the storage, so that published messages
+ * are not matched against them anymore.
+ *
+ * @param removeFromStorage - removes a subscription from the storage, e.g., [TopicAndGeofenceMapper.removeSubscription]
+ * @return true, if the client existed before
+ */
+fun disconnectClientAtLocalBroker(clientIdentifier: String,
+                                  clientDirectory: ClientDirectory,
+                                  removeFromStorage: (Subscription) -> Unit,
+                                  logger: Logger): Boolean {
+
+    val subscriptions = clientDirectory.removeClient(clientIdentifier) ?: return false
+    subscriptions.forEach(removeFromStorage)
+    logger.debug("Removed client {} and its {} subscriptions", clientIdentifier, subscriptions.size)
+    return true
+}
+
 fun updateClientLocationAtLocalBroker(clientIdentifier: String,
                                       location: Location?,
                                       clientDirectory: ClientDirectory,
@@ -92,19 +177,24 @@ fun subscribeAtLocalBroker(clientIdentifier: String,
                            geofence: Geofence,
                            logger: Logger): ReasonCode {
 
-    val subscribed: ImmutablePair<ImmutablePair<String, Int>, Geofence>? =
+    val subscribed: ImmutablePair<Int, Geofence>? =
             clientDirectory.checkIfSubscribed(clientIdentifier, topic, geofence)
 
-    // if already subscribed -> remove subscription id from now unrelated geofence parts
-    subscribed?.let { topicAndGeofenceMapper.removeSubscriptionId(subscribed.left, topic, subscribed.right) }
-
     val subscriptionId = clientDirectory.updateSubscription(clientIdentifier, topic, geofence)
 
     return if (subscriptionId == null) {
+        // if already subscribed -> remove subscription id from the old geofence
+        subscribed?.let { topicAndGeofenceMapper.removeSubscriptionId(subscribed.left, topic, subscribed.right) }
         logger.debug("Client {} is not connected", clientIdentifier)
         ReasonCode.NotConnectedOrNoLocation
     } else {
-        topicAndGeofenceMapper.putSubscriptionId(subscriptionId, topic, geofence)
+        if (subscribed?.left == subscriptionId) {
+            // if already subscribed -> only update the parts of the storage that differ for the new geofence
+            topicAndGeofenceMapper.updateSubscriptionId(subscriptionId, topic, subscribed.right, geofence)
+        } else {
+            subscribed?.let { topicAndGeofenceMapper.removeSubscriptionId(subscribed.left, topic, subscribed.right) }
+            topicAndGeofenceMapper.putSubscriptionId(subscriptionId, topic, geofence)
+        }
         logger.debug("Client {} subscribed to topic {} and geofence {}", clientIdentifier, topic, geofence)
         ReasonCode.GrantedQoS0
     }
@@ -132,6 +222,135 @@ fun unsubscribeAtLocalBroker(clientIdentifier: String,
     return reasonCode
 }
 
+/**
+ * The order in which the two geo-contexts of a published message are evaluated, see [getMatchingSubscriptions].
+ */
+@Suppress("EnumEntryName")
+enum class MatchingPlan {
+    /**
+     * Topic -> subscriptions whose geofence contains the publisher location -> subscribers inside the message geofence
+     */
+    subscriberFirst,
+
+    /**
+     * Clients inside the message geofence -> their subscriptions to the topic -> geofence contains publisher location
+     */
+    locationFirst
+}
+
+/**
+ * Chooses the cheaper [MatchingPlan] for a published message, based on the number of potential subscription ids
+ * collected for the publisher location and on the number of clients located near the message geofence.
+ *
+ * @param subscriberFirstCosts - the number of potential subscription ids, see
+ * [TopicAndGeofenceMapper.collectPotentialSubscriptionIds]
+ * @param estimatedClients - the estimated number of clients near the message geofence, see
+ * [ClientDirectory.estimateClientsInGeofence]
+ * @return the chosen plan
+ */
+fun planMatching(subscriberFirstCosts: Int, estimatedClients: Int, clientDirectory: ClientDirectory): MatchingPlan {
+    if (subscriberFirstCosts == 0 || estimatedClients == Int.MAX_VALUE || clientDirectory.numberOfClients == 0) {
+        return MatchingPlan.subscriberFirst
+    }
+
+    // each client near the message geofence has to be checked together with each of its subscriptions
+    val subscriptionsPerClient =
+            maxOf(1, clientDirectory.subscriptionRegistry.numberOfSubscriptions / clientDirectory.numberOfClients)
+    return if (estimatedClients.toLong() * subscriptionsPerClient < subscriberFirstCosts) {
+        MatchingPlan.locationFirst
+    } else {
+        MatchingPlan.subscriberFirst
+    }
+}
+
+/**
+ * Returns the subscriptions that match a published message, i.e., whose topic matches, whose geofence contains the
+ * publisher location, and whose subscriber is located inside the message geofence. The order in which these are
+ * evaluated is chosen by [planMatching].
+ *
+ * @param topic - the topic of the published message
+ * @param publisherLocation - the location of the publisher
+ * @param messageGeofence - the geofence of the published message
+ * @return the matching subscriptions
+ */
+fun getMatchingSubscriptions(topic: Topic, publisherLocation: Location, messageGeofence: Geofence,
+                             clientDirectory: ClientDirectory,
+                             topicAndGeofenceMapper: TopicAndGeofenceMapper): List<Subscription> {
+    // the potential subscription ids are collected once, they are needed to plan and to match subscriber first
+    val coveringSubscriptionIds = SubscriptionIdList()
+    val intersectingSubscriptionIds = SubscriptionIdList()
+    topicAndGeofenceMapper.collectPotentialSubscriptionIds(topic,
+            publisherLocation,
+            coveringSubscriptionIds,
+            intersectingSubscriptionIds)
+    val subscriberFirstCosts = coveringSubscriptionIds.size + intersectingSubscriptionIds.size
+    if (subscriberFirstCosts == 0) {
+        // no subscription to the topic contains the publisher location, so there is nothing to plan
+        matchingPlans.labels(MatchingPlan.subscriberFirst.name).inc()
+        return emptyList()
+    }
+
+    val estimatedClients = clientDirectory.estimateClientsInGeofence(messageGeofence, subscriberFirstCosts)
+    val plan = planMatching(subscriberFirstCosts, estimatedClients, clientDirectory)
+    matchingPlans.labels(plan.name).inc()
+
+    return when (plan) {
+        MatchingPlan.subscriberFirst -> {
+            // get subscriptions that have a geofence containing the publisher location
+            val subscriptionResults = topicAndGeofenceMapper.getSubscriptions(coveringSubscriptionIds,
+                    intersectingSubscriptionIds,
+                    publisherLocation,
+                    clientDirectory)
+
+            // only keep subscription if subscriber location is insider message geofence
+            filterSubscriptionsBySubscriberLocation(subscriptionResults,
+                    messageGeofence,
+                    estimatedClients,
+                    clientDirectory)
+        }
+        MatchingPlan.locationFirst -> {
+            val result = mutableListOf<Subscription>()
+            for (clientIdentifier in clientDirectory.getClientIdentifiersInGeofence(messageGeofence)) {
+                val subscriber = clientDirectory.getClient(clientIdentifier) ?: continue
+                for (s in subscriber.allSubscriptions) {
+                    if (subscriptionTopicMatches(s.topic, topic) && s.geofence.contains(publisherLocation)) {
+                        result.add(s)
+                    }
+                }
+            }
+            result
+        }
+    }
+}
+
+/**
+ * Only keeps the subscriptions whose subscriber is located inside the given message geofence.
+ *
+ * If fewer clients are located near the message geofence than there are subscriptions, the clients inside the
+ * geofence are determined via the location index of the [clientDirectory] and intersected with the subscriptions;
+ * otherwise, the location of each subscriber is checked.
+ *
+ * @param subscriptions - the subscriptions whose geofence contains the publisher location
+ * @param messageGeofence - the geofence of the published message
+ * @param estimatedClients - the estimated number of clients near [messageGeofence], calculated with a limit of at least
+ * the number of [subscriptions], see [ClientDirectory.estimateClientsInGeofence]
+ * @return the subscriptions whose subscriber is inside [messageGeofence]
+ */
+fun filterSubscriptionsBySubscriberLocation(subscriptions: List<Subscription>, messageGeofence: Geofence,
+                                            estimatedClients: Int,
+                                            clientDirectory: ClientDirectory): List<Subscription> {
+    if (subscriptions.isEmpty()) {
+        return subscriptions
+    }
+
+    return if (estimatedClients < subscriptions.size) {
+        val clientsInGeofence = clientDirectory.getClientIdentifiersInGeofence(messageGeofence)
+        subscriptions.filter { s -> clientsInGeofence.contains(s.clientIdentifier) }
+    } else {
+        subscriptions.filter { s -> messageGeofence.contains(clientDirectory.getClientLocation(s.clientIdentifier)) }
+    }
+}
+
 /**
  * @param publisherLocation - the location of the publisher
  */
@@ -141,26 +360,23 @@ fun publishMessageToLocalClients(publisherLocation: Location, publishPayload: Pa
 
     logger.debug("Publishing topic {} to all subscribers", publishPayload.topic)
 
-    // get subscriptions that have a geofence containing the publisher location
-    val subscriptionIdResults =
-            topicAndGeofenceMapper.getSubscriptionIds(publishPayload.topic, publisherLocation, clientDirectory)
-
-
-    // only keep subscription if subscriber location is insider message geofence
-    val subscriptionIds = subscriptionIdResults.filter { subId ->
-        publishPayload.geofence.contains(clientDirectory.getClientLocation(subId.left))
-    }
+    val subscriptions = getMatchingSubscriptions(publishPayload.topic,
+            publisherLocation,
+            publishPayload.geofence,
+            clientDirectory,
+            topicAndGeofenceMapper)
 
-    // publish message to remaining subscribers
-    for (subscriptionId in subscriptionIds) {
-        val subscriberClientIdentifier = subscriptionId.left
+    // publish message to remaining subscribers, the payload is only encoded once
+    val encodedPayload = EncodedPayload(publishPayload)
+    for (subscription in subscriptions) {
+        val subscriberClientIdentifier = subscription.clientIdentifier
         logger.debug("Client {} is a subscriber", subscriberClientIdentifier)
-        val toPublish = publishPayload.toZMsg(subscriberClientIdentifier)
-        logger.trace("Publishing $toPublish")
+        val toPublish = encodedPayload.toClientZMsg(subscriberClientIdentifier, clientDirectory)
+        logger.trace("Publishing {}", toPublish)
         toPublish.send(clients)
     }
 
-    return if (subscriptionIds.isEmpty()) {
+    return if (subscriptions.isEmpty()) {
         logger.debug("No subscriber exists.")
         ReasonCode.NoMatchingSubscribers
     } else {
@@ -2,8 +2,10 @@ package de.hasenburg.geobroker.server.matching
 
 import de.hasenburg.geobroker.commons.model.message.Payload.*
 import de.hasenburg.geobroker.commons.model.message.ReasonCode
+import de.hasenburg.geobroker.commons.model.message.WireFormat
 import de.hasenburg.geobroker.commons.model.message.toZMsg
 import de.hasenburg.geobroker.server.storage.TopicAndGeofenceMapper
+import de.hasenburg.geobroker.server.storage.WriteAheadLog
 import de.hasenburg.geobroker.server.storage.client.ClientDirectory
 import kotlinx.serialization.json.Json
 import org.apache.logging.log4j.LogManager
@@ -14,26 +16,62 @@ private val logger = LogManager.getLogger()
 
 /**
  * One GeoBroker instance that does not communicate with others. Uses the [de.hasenburg.geobroker.server.storage.TopicAndGeofenceMapper].
+ *
+ * @param writeAheadLog - if not null, all successful changes to clients and subscriptions are logged to it, in the order
+ * in which they were applied per client
  */
-class SingleGeoBrokerMatchingLogic(private val clientDirectory: ClientDirectory,
-                                   private val topicAndGeofenceMapper: TopicAndGeofenceMapper) : IMatchingLogic {
+class SingleGeoBrokerMatchingLogic @JvmOverloads constructor(
+        private val clientDirectory: ClientDirectory,
+        private val topicAndGeofenceMapper: TopicAndGeofenceMapper,
+        private val writeAheadLog: WriteAheadLog? = null) : IMatchingLogic {
 
     private fun sendResponse(response: ZMsg, clients: Socket) {
         logger.trace("Sending response $response")
         response.send(clients)
     }
 
-    override fun processCONNECT(clientIdentifier: String, payload: CONNECTPayload, clients: Socket,
-                                brokers: Socket) {
-        val payloadResponse = connectClientAtLocalBroker(clientIdentifier, payload.location, clientDirectory, logger)
-        val response = payloadResponse.toZMsg(clientIdentifier)
+    /**
+     * Runs [change], which applies and logs a change of the given client, in the order of [WriteAheadLog.ordered].
+     */
+    private fun <T> logged(clientIdentifier: String, change: () -> T): T {
+        val log = writeAheadLog ?: return change()
+        return log.ordered(clientIdentifier, change)
+    }
+
+    override fun processCONNECT(clientIdentifier: String, payload: CONNECTPayload, wireFormat: WireFormat,
+                                clients: Socket, brokers: Socket) {
+        val payloadResponse = logged(clientIdentifier) {
+            connectClientAtLocalBroker(clientIdentifier,
+                    payload.location,
+                    clientDirectory,
+                    topicAndGeofenceMapper::removeSubscription,
+                    wireFormat,
+                    logger).also {
+                if (it is CONNACKPayload) {
+                    writeAheadLog?.logConnect(clientIdentifier, payload.location, wireFormat)
+                } else {
+                    // the existing client was disconnected
+                    writeAheadLog?.logDisconnect(clientIdentifier)
+                }
+            }
+        }
+        val response = payloadResponse.toZMsg(clientIdentifier, wireFormat)
 
         sendResponse(response, clients)
     }
 
     override fun processDISCONNECT(clientIdentifier: String, payload: DISCONNECTPayload, clients: Socket,
                                    brokers: Socket) {
-        val success = clientDirectory.removeClient(clientIdentifier)
+        val success = logged(clientIdentifier) {
+            disconnectClientAtLocalBroker(clientIdentifier,
+                    clientDirectory,
+                    topicAndGeofenceMapper::removeSubscription,
+                    logger).also {
+                if (it) {
+                    writeAheadLog?.logDisconnect(clientIdentifier)
+                }
+            }
+        }
         if (!success) {
             logger.trace("Client for {} did not exist", clientIdentifier)
             return
@@ -43,44 +81,76 @@ class SingleGeoBrokerMatchingLogic(private val clientDirectory: ClientDirectory,
         // no response to send here
     }
 
+    override fun processHeartbeat(clientIdentifier: String) {
+        clientDirectory.updateHeartbeat(clientIdentifier)
+    }
+
+    override fun processExpiredClients(clients: Socket, brokers: Socket) {
+        for (clientIdentifier in clientDirectory.expireClients()) {
+            processDISCONNECT(clientIdentifier, DISCONNECTPayload(ReasonCode.KeepAliveExpired), clients, brokers)
+        }
+    }
+
     override fun processPINGREQ(clientIdentifier: String, payload: PINGREQPayload, clients: Socket,
                                 brokers: Socket) {
-        val reasonCode = updateClientLocationAtLocalBroker(clientIdentifier,
-                payload.location,
-                clientDirectory,
-                logger)
-        val response = PINGRESPPayload(reasonCode).toZMsg(clientIdentifier)
+        val reasonCode = logged(clientIdentifier) {
+            updateClientLocationAtLocalBroker(clientIdentifier,
+                    payload.location,
+                    clientDirectory,
+                    logger).also {
+                if (it == ReasonCode.LocationUpdated) {
+                    writeAheadLog?.logLocation(clientIdentifier, payload.location)
+                }
+            }
+        }
+        val response = PINGRESPPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
 
         sendResponse(response, clients)
     }
 
     override fun processSUBSCRIBE(clientIdentifier: String, payload: SUBSCRIBEPayload, clients: Socket,
                                   brokers: Socket) {
-        val reasonCode = subscribeAtLocalBroker(clientIdentifier,
-                clientDirectory,
-                topicAndGeofenceMapper,
-                payload.topic,
-                payload.geofence,
-                logger)
+        val reasonCode = logged(clientIdentifier) {
+            subscribeAtLocalBroker(clientIdentifier,
+                    clientDirectory,
+                    topicAndGeofenceMapper,
+                    payload.topic,
+                    payload.geofence,
+                    logger).also {
+                if (it == ReasonCode.GrantedQoS0) {
+                    writeAheadLog?.logSubscribe(clientIdentifier, payload.topic, payload.geofence)
+                }
+            }
+        }
 
-        val response = SUBACKPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = SUBACKPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
 
         sendResponse(response, clients)
     }
 
     override fun processUNSUBSCRIBE(clientIdentifier: String, payload: UNSUBSCRIBEPayload, clients: Socket,
                                     brokers: Socket) {
-        val reasonCode = unsubscribeAtLocalBroker(clientIdentifier,
-                clientDirectory,
-                topicAndGeofenceMapper,
-                payload.topic,
-                logger)
+        val reasonCode = logged(clientIdentifier) {
+            unsubscribeAtLocalBroker(clientIdentifier,
+                    clientDirectory,
+                    topicAndGeofenceMapper,
+                    payload.topic,
+                    logger).also {
+                if (it == ReasonCode.Success) {
+                    writeAheadLog?.logUnsubscribe(clientIdentifier, payload.topic)
+                }
+            }
+        }
 
-        val response = UNSUBACKPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = UNSUBACKPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
 
         sendResponse(response, clients)
     }
 
+    override fun rejectPUBLISH(clientIdentifier: String, clients: Socket): Boolean {
+        return rejectPublishOfUnconnectedClient(clientIdentifier, clientDirectory, clients, logger)
+    }
+
     override fun processPUBLISH(clientIdentifier: String, payload: PUBLISHPayload, clients: Socket,
                                 brokers: Socket) {
 
@@ -100,7 +170,7 @@ class SingleGeoBrokerMatchingLogic(private val clientDirectory: ClientDirectory,
         }
 
         // send response to publisher
-        val response = PUBACKPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = PUBACKPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
         sendResponse(response, clients)
     }
 
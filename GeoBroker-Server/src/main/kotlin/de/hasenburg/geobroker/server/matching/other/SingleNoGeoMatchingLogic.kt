@@ -1,7 +1,9 @@
 package de.hasenburg.geobroker.server.matching.other
 
+import de.hasenburg.geobroker.commons.model.message.EncodedPayload
 import de.hasenburg.geobroker.commons.model.message.Payload.*
 import de.hasenburg.geobroker.commons.model.message.ReasonCode
+import de.hasenburg.geobroker.commons.model.message.WireFormat
 import de.hasenburg.geobroker.commons.model.message.toZMsg
 import de.hasenburg.geobroker.commons.model.spatial.Geofence
 import de.hasenburg.geobroker.server.matching.*
@@ -33,11 +35,16 @@ class SingleNoGeoMatchingLogic(private val clientDirectory: ClientDirectory,
         response.send(clients)
     }
 
-    override fun processCONNECT(clientIdentifier: String, payload: CONNECTPayload, clients: Socket, brokers: Socket) {
+    override fun processCONNECT(clientIdentifier: String, payload: CONNECTPayload, wireFormat: WireFormat,
+                                clients: Socket, brokers: Socket) {
 
-        val payloadResponse = connectClientAtLocalBroker(clientIdentifier, payload.location, clientDirectory,
+        val payloadResponse = connectClientAtLocalBroker(clientIdentifier,
+                payload.location,
+                clientDirectory,
+                subscriptionIndexingStructure::removeSubscription,
+                wireFormat,
                 logger)
-        val response = payloadResponse.toZMsg(clientIdentifier)
+        val response = payloadResponse.toZMsg(clientIdentifier, wireFormat)
 
         sendResponse(response, clients)
     }
@@ -45,7 +52,10 @@ class SingleNoGeoMatchingLogic(private val clientDirectory: ClientDirectory,
     override fun processDISCONNECT(clientIdentifier: String, payload: DISCONNECTPayload, clients: Socket,
                                    brokers: Socket) {
 
-        val success = clientDirectory.removeClient(clientIdentifier)
+        val success = disconnectClientAtLocalBroker(clientIdentifier,
+                clientDirectory,
+                subscriptionIndexingStructure::removeSubscription,
+                logger)
         if (!success) {
             logger.trace("Client for {} did not exist", clientIdentifier)
             return
@@ -55,6 +65,16 @@ class SingleNoGeoMatchingLogic(private val clientDirectory: ClientDirectory,
         // no response to send here
     }
 
+    override fun processHeartbeat(clientIdentifier: String) {
+        clientDirectory.updateHeartbeat(clientIdentifier)
+    }
+
+    override fun processExpiredClients(clients: Socket, brokers: Socket) {
+        for (clientIdentifier in clientDirectory.expireClients()) {
+            processDISCONNECT(clientIdentifier, DISCONNECTPayload(ReasonCode.KeepAliveExpired), clients, brokers)
+        }
+    }
+
     override fun processPINGREQ(clientIdentifier: String, payload: PINGREQPayload, clients: Socket, brokers: Socket) {
 
         val reasonCode = updateClientLocationAtLocalBroker(clientIdentifier,
@@ -62,7 +82,7 @@ class SingleNoGeoMatchingLogic(private val clientDirectory: ClientDirectory,
                 clientDirectory,
                 logger)
 
-        val response = PINGRESPPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = PINGRESPPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
 
         sendResponse(response, clients)
     }
@@ -70,7 +90,7 @@ class SingleNoGeoMatchingLogic(private val clientDirectory: ClientDirectory,
     override fun processSUBSCRIBE(clientIdentifier: String, payload: SUBSCRIBEPayload, clients: Socket, brokers: Socket) {
         val reasonCode: ReasonCode
 
-        val subscribed: ImmutablePair<ImmutablePair<String, Int>, Geofence>? =
+        val subscribed: ImmutablePair<Int, Geofence>? =
                 clientDirectory.checkIfSubscribed(clientIdentifier, payload.topic, ignore)
 
         if (subscribed != null) {
@@ -90,7 +110,7 @@ class SingleNoGeoMatchingLogic(private val clientDirectory: ClientDirectory,
             }
         }
 
-        val response = SUBACKPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = SUBACKPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
 
         sendResponse(response, clients)
     }
@@ -115,10 +135,14 @@ class SingleNoGeoMatchingLogic(private val clientDirectory: ClientDirectory,
             ReasonCode.NoSubscriptionExisted
         }
 
-        val response = UNSUBACKPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = UNSUBACKPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
         sendResponse(response, clients)
     }
 
+    override fun rejectPUBLISH(clientIdentifier: String, clients: Socket): Boolean {
+        return rejectPublishOfUnconnectedClient(clientIdentifier, clientDirectory, clients, logger)
+    }
+
     override fun processPUBLISH(clientIdentifier: String, payload: PUBLISHPayload, clients: Socket, brokers: Socket) {
         val reasonCode: ReasonCode
         val publisherLocation = clientDirectory.getClientLocation(clientIdentifier)
@@ -133,16 +157,21 @@ class SingleNoGeoMatchingLogic(private val clientDirectory: ClientDirectory,
             val subscriptionIds =
                     subscriptionIndexingStructure.getSubscriptionIds(payload.topic)
 
-            // publish message to subscribers
+            // publish message to subscribers, the payload is only encoded once
+            val encodedPayload = EncodedPayload(payload)
+            var numberOfSubscribers = 0
             for (subscriptionId in subscriptionIds) {
-                val subscriberClientIdentifier = subscriptionId.left
+                // null, if the subscription has been removed in the meantime
+                val subscriberClientIdentifier =
+                        clientDirectory.getSubscription(subscriptionId)?.clientIdentifier ?: continue
+                numberOfSubscribers++
                 logger.debug("Client {} is a subscriber", subscriberClientIdentifier)
-                val toPublish = payload.toZMsg(subscriberClientIdentifier)
-                logger.trace("Publishing $toPublish")
+                val toPublish = encodedPayload.toClientZMsg(subscriberClientIdentifier, clientDirectory)
+                logger.trace("Publishing {}", toPublish)
                 toPublish.send(clients)
             }
 
-            reasonCode = if (subscriptionIds.isEmpty()) {
+            reasonCode = if (numberOfSubscribers == 0) {
                 logger.debug("No subscriber exists.")
                 ReasonCode.NoMatchingSubscribers
             } else {
@@ -152,7 +181,7 @@ class SingleNoGeoMatchingLogic(private val clientDirectory: ClientDirectory,
 
         // send response to publisher
         logger.trace("Sending response with reason code $reasonCode")
-        val response = PUBACKPayload(reasonCode).toZMsg(clientIdentifier)
+        val response = PUBACKPayload(reasonCode).toClientZMsg(clientIdentifier, clientDirectory)
         sendResponse(response, clients)
     }
 
@@ -0,0 +1,102 @@
+package de.hasenburg.geobroker.server.storage
+
+import io.prometheus.client.Counter
+import org.apache.logging.log4j.LogManager
+import java.util.concurrent.ConcurrentHashMap
+
+private val logger = LogManager.getLogger()
+
+// Prometheus Counters, shared by all caches and labeled with the broker id
+private val cacheHits = Counter.build().name("Geo_PublishMatchCache_hits")
+    .help("Number of publish match cache lookups that returned a valid result").labelNames("broker").register()
+private val cacheMisses = Counter.build().name("Geo_PublishMatchCache_misses")
+    .help("Number of publish match cache lookups without a valid result").labelNames("broker").register()
+
+/**
+ * The [PublishMatchCache] caches the candidate subscription ids of published messages by their topic and the id of the
+ * [Raster] cell that contains the publisher location, see [calculateCellId].
+ *
+ * Cached results are not invalidated actively; instead, each result remembers the version of the topic level tree and
+ * of the [SubscriptionSpatialIndex] of each matching [TopicLevel] at the time it was computed. A result is only valid as
+ * long as none of these versions changed. Thus, subscriptions to other topics do not invalidate a result, while
+ * results that became stale are simply recomputed on their next lookup.
+ *
+ * The cache holds at most [maxSize] results; when full, an arbitrary result is evicted.
+ *
+ * @param maxSize - the maximum number of cached results, must be >= 1
+ * @param brokerId - the id of the broker, used to label the metrics
+ */
+class PublishMatchCache(private val maxSize: Int, brokerId: String) {
+
+    private val results = ConcurrentHashMap<PublishMatchKey, PublishMatchResult>()
+
+    private val hits = cacheHits.labels(brokerId)
+    private val misses = cacheMisses.labels(brokerId)
+
+    val size: Int
+        get() = results.size
+
+    init {
+        logger.info("Publish match cache created, max size = {}", maxSize)
+    }
+
+    /**
+     * Returns the cached result for the given topic and cell id, if it is still valid.
+     *
+     * @param topic - the topic of the published message
+     * @param cellId - the id of the cell that contains the publisher location
+     * @param topicLevelsVersion - the current version of the topic level tree
+     * @return the result or null, if none is cached or the cached one is outdated
+     */
+    fun get(topic: String, cellId: Long, topicLevelsVersion: Long): PublishMatchResult? {
+        val result = results[PublishMatchKey(topic, cellId)]
+        if (result != null && result.isValid(topicLevelsVersion)) {
+            hits.inc()
+            return result
+        }
+        misses.inc()
+        return null
+    }
+
+    fun put(topic: String, cellId: Long, result: PublishMatchResult) {
+        if (results.size >= maxSize) {
+            val iterator = results.keys.iterator()
+            if (iterator.hasNext()) {
+                results.remove(iterator.next())
+            }
+        }
+        results[PublishMatchKey(topic, cellId)] = result
+    }
+
+}
+
+private data class PublishMatchKey(val topic: String, val cellId: Long)
+
+/**
+ * The candidate subscription ids of a published message, see [TopicAndGeofenceMapper.getPotentialSubscriptionIds].
+ *
+ * @param topicLevelsVersion - the version of the topic level tree, read before the matching levels were determined
+ * @param spatialIndexes - the spatial indexes of the matching topic levels
+ * @param spatialIndexVersions - the versions of [spatialIndexes], read before their subscription ids were collected
+ * @param coveringSubscriptionIds - ids of subscriptions whose geofence covers the whole cell
+ * @param intersectingSubscriptionIds - ids of subscriptions whose geofence only intersects with the cell
+ */
+class PublishMatchResult(private val topicLevelsVersion: Long,
+                         private val spatialIndexes: Array<SubscriptionSpatialIndex>,
+                         private val spatialIndexVersions: LongArray,
+                         val coveringSubscriptionIds: IntArray,
+                         val intersectingSubscriptionIds: IntArray) {
+
+    fun isValid(currentTopicLevelsVersion: Long): Boolean {
+        if (topicLevelsVersion != currentTopicLevelsVersion) {
+            return false
+        }
+        for (i in spatialIndexes.indices) {
+            if (spatialIndexes[i].version != spatialIndexVersions[i]) {
+                return false
+            }
+        }
+        return true
+    }
+
+}
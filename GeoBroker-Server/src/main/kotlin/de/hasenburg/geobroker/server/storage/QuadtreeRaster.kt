@@ -0,0 +1,383 @@
+package de.hasenburg.geobroker.server.storage
+
+import de.hasenburg.geobroker.commons.exceptions.RuntimeStorageException
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import de.hasenburg.geobroker.commons.model.spatial.SpatialContextK.GEO
+import org.apache.logging.log4j.LogManager
+import org.jctools.maps.NonBlockingHashMapLong
+import org.locationtech.spatial4j.shape.SpatialRelation
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.ceil
+import kotlin.math.floor
+import kotlin.math.ln
+
+private val logger = LogManager.getLogger()
+
+// coarser levels would need cells that are 180 degree or more wide, which spatial4j treats as crossing the dateline
+const val QUADTREE_MIN_LEVEL = 2
+const val QUADTREE_MAX_LEVEL = 29
+
+// a subscription is stored in at most this many cells
+private const val MAX_CELLS_PER_SUBSCRIPTION = 64
+
+// at the level a subscription is first related to, its bounding box spans at most this many cells
+private const val MAX_START_CELLS = 4
+
+/**
+ * Creates a new multi-resolution raster that organizes its cells as a quadtree. At level l, the world is divided into
+ * 2^l x 2^l cells, so each cell is 180 / 2^l degree high and 360 / 2^l degree wide; a cell's four children at level
+ * l + 1 divide it into equally sized quarters.
+ *
+ * Instead of adding a subscription to all cells of a single fixed size, the subscription is first related to the
+ * cells of the finest level at which its bounding box spans at most four cells. Cells that are only intersected by the
+ * geofence are then refined level by level, as long as the subscription ends up in at most
+ * [MAX_CELLS_PER_SUBSCRIPTION] cells. Thus, the costs of adding a subscription and the number of cells that store it
+ * are bounded, no matter how large its geofence is, while small geofences are stored in small cells. As in [Raster],
+ * each [RasterEntry] records whether the geofence covers the cell completely or only intersects with it.
+ *
+ * To find the subscriptions for a publisher location, the raster looks up the cell containing the location at each
+ * level that stores any subscriptions.
+ *
+ * Cells that become empty are remembered and removed by the next [compact] call; a level without cells is not looked
+ * at anymore.
+ *
+ * The granularity determines the finest level: its cells are at most 1 degree / granularity high, just like the cells
+ * of a [Raster] with the same granularity.
+ *
+ * @param granularity - must be >= 1
+ * @param statistics - if not null, counts the raster entries and subscription ids of this raster
+ * @throws RuntimeStorageException if granularity < 1 or the finest level would be beyond [QUADTREE_MAX_LEVEL]
+ */
+class QuadtreeRaster(val granularity: Int, private val statistics: IndexStatistics? = null) :
+        SubscriptionSpatialIndex {
+
+    // cell id -> RasterEntry
+    private val rasterEntries = NonBlockingHashMapLong<RasterEntry>()
+    private val worldSubscriptionIds = SubscriptionIdSet(statistics)
+    private val modifications = AtomicLong(0)
+
+    // cell ids of RasterEntries that became empty since the last compaction
+    private val emptyCellIds = NonBlockingHashMapLong<Boolean>()
+
+    // bit l is set, if cells of level l exist
+    private val occupiedLevels = AtomicInteger(0)
+    // level -> number of existing cells
+    private val cellsPerLevel = AtomicIntegerArray(QUADTREE_MAX_LEVEL + 1)
+
+    val maxLevel: Int
+
+    val numberOfExistingRasterEntries: Int
+        get() = rasterEntries.size
+
+    override val version: Long
+        get() = modifications.get()
+
+    init {
+        if (granularity < 1) {
+            throw RuntimeStorageException("Granularity must be >= 1, is $granularity")
+        }
+        maxLevel = maxOf(QUADTREE_MIN_LEVEL, ceil(ln(180.0 * granularity) / ln(2.0)).toInt())
+        if (maxLevel > QUADTREE_MAX_LEVEL) {
+            throw RuntimeStorageException("Granularity $granularity is too fine, maximum level would be $maxLevel")
+        }
+        logger.debug("Quadtree raster created, granularity = {}, levels = {}..{}",
+                granularity,
+                QUADTREE_MIN_LEVEL,
+                maxLevel)
+    }
+
+    /*****************************************************************
+     * Subscribe/Unsubscribe Operations
+     ****************************************************************/
+
+    /**
+     * Adds a subscriptionId to the fitting [RasterEntry]s
+     *
+     * @param geofence - the geofence used to calculate the fitting [RasterEntry]
+     * @param subscriptionId - the subscriptionId to be added
+     */
+    override fun putSubscriptionId(geofence: Geofence, subscriptionId: Int) {
+        // add to worldSubscriptionIds if geofence is world
+        if (geofence == Geofence.world()) {
+            worldSubscriptionIds.add(subscriptionId)
+            modifications.incrementAndGet()
+            return
+        }
+
+        for (cell in calculateCells(geofence)) {
+            getOrCreateRasterEntry(cell.cellId).putSubscriptionId(subscriptionId, cell.covering)
+        }
+        modifications.incrementAndGet()
+    }
+
+    /**
+     * Removes a subscriptionId from the fitting [RasterEntry]s. Probably used for unsubscribe operations.
+     *
+     * @param geofence - the geofence used to calculate the fitting [RasterEntry], must be the one used when adding
+     * @param subscriptionId - the subscription id to be removed
+     */
+    override fun removeSubscriptionId(geofence: Geofence, subscriptionId: Int) {
+        // remove from worldSubscriptionIds if geofence is world
+        if (geofence == Geofence.world()) {
+            worldSubscriptionIds.remove(subscriptionId)
+            modifications.incrementAndGet()
+            return
+        }
+
+        // the calculation is deterministic, so we end up with the same cells as when adding
+        for (cell in calculateCells(geofence)) {
+            if (rasterEntries.get(cell.cellId)?.removeSubscriptionId(subscriptionId) == 0) {
+                emptyCellIds.put(cell.cellId, true)
+            }
+        }
+        modifications.incrementAndGet()
+    }
+
+    /**
+     * Updates the [RasterEntry]s of a subscriptionId whose geofence changed. Only cells that are not used for the new
+     * geofence anymore, or that are newly used or classified differently, are modified.
+     *
+     * @param oldGeofence - the geofence used when adding the subscriptionId
+     * @param newGeofence - the new geofence
+     * @param subscriptionId - the subscriptionId to be updated
+     */
+    override fun updateSubscriptionId(oldGeofence: Geofence, newGeofence: Geofence, subscriptionId: Int) {
+        if (oldGeofence == Geofence.world() || newGeofence == Geofence.world()) {
+            super.updateSubscriptionId(oldGeofence, newGeofence, subscriptionId)
+            return
+        }
+
+        val newCells = calculateCells(newGeofence)
+        val newCellIds = HashSet<Long>(newCells.size * 2)
+        for (cell in newCells) {
+            getOrCreateRasterEntry(cell.cellId).updateSubscriptionId(subscriptionId, cell.covering)
+            newCellIds.add(cell.cellId)
+        }
+
+        for (cell in calculateCells(oldGeofence)) {
+            if (cell.cellId !in newCellIds &&
+                    rasterEntries.get(cell.cellId)?.removeSubscriptionId(subscriptionId) == 0) {
+                emptyCellIds.put(cell.cellId, true)
+            }
+        }
+        modifications.incrementAndGet()
+    }
+
+    /*****************************************************************
+     * Process Published Message Operations
+     ****************************************************************/
+
+    /**
+     * Same as [getSubscriptionIdsForPublisherLocation], but adds the subscriptionIds to the given targets,
+     * also see [Raster.addSubscriptionIdsForPublisherLocation].
+     *
+     * @param location - the location that determines which [RasterEntry]s fit
+     * @param coveringTarget - the list to which fitting subscriptionIds of covering subscriptions are added
+     * @param intersectingTarget - the list to which fitting subscriptionIds of intersecting subscriptions are added
+     */
+    override fun addSubscriptionIdsForPublisherLocation(location: Location, coveringTarget: SubscriptionIdList,
+                                                        intersectingTarget: SubscriptionIdList) {
+        val levels = occupiedLevels.get()
+        for (level in QUADTREE_MIN_LEVEL..maxLevel) {
+            if (levels and (1 shl level) == 0) {
+                continue
+            }
+            val cellId = packQuadtreeCellId(level, latIndex(location.lat, level), lonIndex(location.lon, level))
+            val rasterEntry = rasterEntries.get(cellId) ?: continue
+            rasterEntry.coveringSubscriptionIds.copyInto(coveringTarget)
+            rasterEntry.intersectingSubscriptionIds.copyInto(intersectingTarget)
+        }
+
+        worldSubscriptionIds.copyInto(coveringTarget)
+    }
+
+    /*****************************************************************
+     * Reclamation
+     ****************************************************************/
+
+    override val isEmpty: Boolean
+        get() = worldSubscriptionIds.isEmpty() && rasterEntries.isEmpty()
+
+    /**
+     * Removes all [RasterEntry]s that became empty since the last compaction, also see
+     * [SubscriptionSpatialIndex.compact].
+     */
+    override fun compact(): Int {
+        var removed = 0
+        for (cellId in emptyCellIds.keySetLong()) {
+            // the entry might have been filled again in the meantime
+            val re = rasterEntries.get(cellId)
+            if (re != null && re.numberOfSubscriptionIds == 0) {
+                rasterEntries.remove(cellId)
+                statistics?.addIndexEntries(-1)
+                val level = unpackQuadtreeLevel(cellId)
+                if (cellsPerLevel.decrementAndGet(level) == 0) {
+                    occupiedLevels.accumulateAndGet((1 shl level).inv()) { levels, mask -> levels and mask }
+                }
+                removed++
+            }
+        }
+        emptyCellIds.clear()
+        logger.trace("Removed {} empty raster entries", removed)
+        return removed
+    }
+
+    /*****************************************************************
+     * Methods to calculate Cells
+     ****************************************************************/
+
+    private class Cell(val cellId: Long, val covering: Boolean)
+
+    /**
+     * Calculates the cells in which a subscription with the given geofence is stored.
+     *
+     * @param geofence - the geofence
+     * @return - the cells and whether the geofence covers them
+     */
+    private fun calculateCells(geofence: Geofence): List<Cell> {
+        val boundingBox = geofence.boundingBox
+        // the bounding box of a geofence crossing the dateline has minX > maxX, so we consider all longitudes
+        val minLon = if (boundingBox.crossesDateLine) -180.0 else boundingBox.minX
+        val maxLon = if (boundingBox.crossesDateLine) 180.0 else boundingBox.maxX
+        val startLevel = calculateStartLevel(boundingBox.minY, boundingBox.maxY, minLon, maxLon)
+
+        val result = ArrayList<Cell>()
+        var candidates = ArrayList<Long>()
+        for (latIndex in latIndex(boundingBox.minY, startLevel)..latIndex(boundingBox.maxY, startLevel)) {
+            for (lonIndex in lonIndex(minLon, startLevel)..lonIndex(maxLon, startLevel)) {
+                classifyCell(packQuadtreeCellId(startLevel, latIndex, lonIndex), geofence, result, candidates)
+            }
+        }
+
+        // refine intersected cells level by level, as long as the result cannot exceed the maximum number of cells
+        var level = startLevel
+        while (candidates.isNotEmpty() && level < maxLevel &&
+                result.size + candidates.size * 4 <= MAX_CELLS_PER_SUBSCRIPTION) {
+            val nextCandidates = ArrayList<Long>()
+            for (cellId in candidates) {
+                val childLatIndex = unpackQuadtreeLatIndex(cellId) * 2
+                val childLonIndex = unpackQuadtreeLonIndex(cellId) * 2
+                for (latOffset in 0..1) {
+                    for (lonOffset in 0..1) {
+                        val childCellId =
+                                packQuadtreeCellId(level + 1, childLatIndex + latOffset, childLonIndex + lonOffset)
+                        classifyCell(childCellId, geofence, result, nextCandidates)
+                    }
+                }
+            }
+            candidates = nextCandidates
+            level++
+        }
+
+        for (cellId in candidates) {
+            result.add(Cell(cellId, false))
+        }
+
+        return result
+    }
+
+    /**
+     * Relates the given cell to the geofence. Covered cells are added to [result], intersected cells to [candidates],
+     * and disjoint cells are dropped.
+     */
+    private fun classifyCell(cellId: Long, geofence: Geofence, result: MutableList<Cell>,
+                             candidates: MutableList<Long>) {
+        val cellBox = rasterEntries.get(cellId)?.rasterEntryBox ?: createCellBox(cellId)
+        when (cellBox.relate(geofence)) {
+            SpatialRelation.DISJOINT -> Unit
+            SpatialRelation.WITHIN -> result.add(Cell(cellId, true))
+            else -> candidates.add(cellId)
+        }
+    }
+
+    /**
+     * Calculates the finest level at which the given bounding box spans at most [MAX_START_CELLS] cells.
+     */
+    private fun calculateStartLevel(minLat: Double, maxLat: Double, minLon: Double, maxLon: Double): Int {
+        for (level in maxLevel downTo QUADTREE_MIN_LEVEL + 1) {
+            val latCells = latIndex(maxLat, level) - latIndex(minLat, level) + 1
+            val lonCells = lonIndex(maxLon, level) - lonIndex(minLon, level) + 1
+            if (latCells * lonCells <= MAX_START_CELLS) {
+                return level
+            }
+        }
+        return QUADTREE_MIN_LEVEL
+    }
+
+    private fun latIndex(lat: Double, level: Int): Int {
+        val cells = 1 shl level
+        return floor((lat + 90.0) * cells / 180.0).toInt().coerceIn(0, cells - 1)
+    }
+
+    private fun lonIndex(lon: Double, level: Int): Int {
+        val cells = 1 shl level
+        return floor((lon + 180.0) * cells / 360.0).toInt().coerceIn(0, cells - 1)
+    }
+
+    /**
+     * Creates the same box as [RasterEntry.rasterEntryBox] of the given cell, without creating the entry itself.
+     */
+    private fun createCellBox(cellId: Long): Geofence {
+        val level = unpackQuadtreeLevel(cellId)
+        val latDegreeStep = 180.0 / (1 shl level)
+        val lonDegreeStep = 360.0 / (1 shl level)
+        val minLat = unpackQuadtreeLatIndex(cellId) * latDegreeStep - 90.0
+        val minLon = unpackQuadtreeLonIndex(cellId) * lonDegreeStep - 180.0
+        return Geofence(GEO.shapeFactory.rect(minLon, minLon + lonDegreeStep, minLat, minLat + latDegreeStep))
+    }
+
+    private fun createRasterEntry(cellId: Long): RasterEntry {
+        val level = unpackQuadtreeLevel(cellId)
+        val latDegreeStep = 180.0 / (1 shl level)
+        val lonDegreeStep = 360.0 / (1 shl level)
+        val index = Location(unpackQuadtreeLatIndex(cellId) * latDegreeStep - 90.0,
+                unpackQuadtreeLonIndex(cellId) * lonDegreeStep - 180.0)
+        return RasterEntry(index, latDegreeStep, lonDegreeStep, statistics)
+    }
+
+    private fun getOrCreateRasterEntry(cellId: Long): RasterEntry {
+        rasterEntries.get(cellId)?.let { return it }
+
+        val re = createRasterEntry(cellId)
+        val level = unpackQuadtreeLevel(cellId)
+        // mark the level as occupied before the entry becomes visible, so queries do not miss it
+        cellsPerLevel.incrementAndGet(level)
+        occupiedLevels.accumulateAndGet(1 shl level) { levels, bit -> levels or bit }
+        rasterEntries.putIfAbsent(cellId, re)?.let { existing ->
+            // another thread was faster, the level is still occupied by its entry
+            cellsPerLevel.decrementAndGet(level)
+            return existing
+        }
+        statistics?.addIndexEntries(1)
+        return re
+    }
+
+}
+
+/*****************************************************************
+ * Cell Ids
+ ****************************************************************/
+
+/**
+ * Packs the level and the latitude and longitude index of a quadtree cell into a single cell id. The level is stored
+ * in the upper 6 bits, the latitude index in the next 29 bits, and the longitude index in the lower 29 bits. As for
+ * [packCellId], the bits are spread afterwards with [mixCellId].
+ */
+fun packQuadtreeCellId(level: Int, latIndex: Int, lonIndex: Int): Long {
+    return mixCellId((level.toLong() shl 58) or (latIndex.toLong() shl 29) or lonIndex.toLong())
+}
+
+fun unpackQuadtreeLevel(cellId: Long): Int {
+    return (unmixCellId(cellId) ushr 58).toInt()
+}
+
+fun unpackQuadtreeLatIndex(cellId: Long): Int {
+    return ((unmixCellId(cellId) ushr 29) and 0x1FFFFFFFL).toInt()
+}
+
+fun unpackQuadtreeLonIndex(cellId: Long): Int {
+    return (unmixCellId(cellId) and 0x1FFFFFFFL).toInt()
+}
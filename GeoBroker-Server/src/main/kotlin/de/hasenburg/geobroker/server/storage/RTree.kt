@@ -0,0 +1,280 @@
+package de.hasenburg.geobroker.server.storage
+
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import org.apache.logging.log4j.LogManager
+import org.jctools.maps.NonBlockingHashMapLong
+import org.locationtech.jts.geom.Envelope
+import org.locationtech.jts.index.ItemVisitor
+import org.locationtech.jts.index.strtree.STRtree
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+private val logger = LogManager.getLogger()
+
+// number of entries that are collected before they are bulk loaded into a tree
+const val RTREE_BUFFER_SIZE = 64
+private const val RTREE_NODE_CAPACITY = 10
+
+/**
+ * Creates a new R-tree over the bounding boxes of subscription geofences.
+ *
+ * The index consists of multiple static STR (Sort-Tile-Recursive) packed R-trees plus a small buffer: new
+ * subscriptions are first added to the buffer; once it holds [RTREE_BUFFER_SIZE] entries, they are bulk loaded into a
+ * new tree together with the entries of all smaller trees (the tree at slot i holds up to [RTREE_BUFFER_SIZE] * 2^i
+ * entries). Thus, each entry is re-packed only a logarithmic number of times, while every tree stays tightly packed.
+ * Removed entries are only marked as removed and dropped whenever their tree is re-packed; if more entries are
+ * removed than alive, all trees are rebuilt.
+ *
+ * As only bounding boxes are stored, all subscriptions are returned as intersecting, i.e., they require an additional
+ * contains check; world subscriptions are kept separately and returned as covering. Geofences whose bounding box
+ * crosses the dateline are stored with two boxes, one on each side; a location that is contained in both boxes still
+ * yields the subscription only once.
+ *
+ * Reads are guarded by a read lock, modifications by a write lock.
+ *
+ * @param statistics - if not null, counts the stored entries (including removed ones that have not been dropped yet)
+ * and subscription ids of this tree
+ */
+class RTree(private val statistics: IndexStatistics? = null) : SubscriptionSpatialIndex {
+
+    private val lock = ReentrantReadWriteLock()
+
+    // subscription id -> entry, only contains entries that have not been removed
+    private val entries = NonBlockingHashMapLong<RTreeEntry>()
+    private val worldSubscriptionIds = SubscriptionIdSet(statistics)
+    private val modifications = AtomicLong(0)
+
+    private val buffer = ArrayList<RTreeEntry>()
+    // slot i -> tree with up to RTREE_BUFFER_SIZE * 2^i entries and the entries stored in it, null if the slot is empty
+    private val trees = ArrayList<STRtree?>()
+    private val treeEntries = ArrayList<List<RTreeEntry>?>()
+    private var numberOfRemovedEntries = 0
+
+    val numberOfEntries: Int
+        get() = lock.read { entries.size }
+
+    val numberOfTrees: Int
+        get() = lock.read { trees.count { it != null } }
+
+    override val version: Long
+        get() = modifications.get()
+
+    init {
+        logger.debug("RTree created, buffer size = {}", RTREE_BUFFER_SIZE)
+    }
+
+    /*****************************************************************
+     * Subscribe/Unsubscribe Operations
+     ****************************************************************/
+
+    override fun putSubscriptionId(geofence: Geofence, subscriptionId: Int) {
+        // add to worldSubscriptionIds if geofence is world
+        if (geofence == Geofence.world()) {
+            worldSubscriptionIds.add(subscriptionId)
+            modifications.incrementAndGet()
+            return
+        }
+
+        val entry = RTreeEntry(subscriptionId, calculateEnvelopes(geofence))
+        lock.write {
+            val replaced = entries.put(subscriptionId.toLong(), entry)
+            if (replaced != null) {
+                markRemoved(replaced)
+            } else {
+                statistics?.addSubscriptionIds(1)
+            }
+            buffer.add(entry)
+            statistics?.addIndexEntries(1)
+            modifications.incrementAndGet()
+            if (buffer.size >= RTREE_BUFFER_SIZE) {
+                flushBuffer()
+            }
+        }
+    }
+
+    override fun removeSubscriptionId(geofence: Geofence, subscriptionId: Int) {
+        // remove from worldSubscriptionIds if geofence is world
+        if (geofence == Geofence.world()) {
+            worldSubscriptionIds.remove(subscriptionId)
+            modifications.incrementAndGet()
+            return
+        }
+
+        lock.write {
+            val entry = entries.remove(subscriptionId.toLong()) ?: return
+            statistics?.addSubscriptionIds(-1)
+            markRemoved(entry)
+            modifications.incrementAndGet()
+            if (numberOfRemovedEntries > entries.size) {
+                rebuild()
+            }
+        }
+    }
+
+    /*****************************************************************
+     * Process Published Message Operations
+     ****************************************************************/
+
+    override fun addSubscriptionIdsForPublisherLocation(location: Location, coveringTarget: SubscriptionIdList,
+                                                        intersectingTarget: SubscriptionIdList) {
+        worldSubscriptionIds.copyInto(coveringTarget)
+        forEachCandidate(location) { intersectingTarget.add(it) }
+    }
+
+    /**
+     * Runs [action] for the subscriptionId of each entry that has not been removed and whose bounding box contains the
+     * given location.
+     */
+    private inline fun forEachCandidate(location: Location, crossinline action: (Int) -> Unit) {
+        val searchEnvelope = Envelope(location.lon, location.lon, location.lat, location.lat)
+        val visitor = ItemVisitor { item ->
+            val entry = when (item) {
+                is RTreeEntry -> item
+                // skip the second box if the first one already contains the location
+                else -> (item as DatelineEnvelope).entry.takeUnless { it.envelopes[0].intersects(searchEnvelope) }
+            }
+            if (entry != null && !entry.removed) {
+                action(entry.subscriptionId)
+            }
+        }
+
+        lock.read {
+            for (tree in trees) {
+                tree?.query(searchEnvelope, visitor)
+            }
+            for (entry in buffer) {
+                if (entry.envelopes.any { it.intersects(searchEnvelope) }) {
+                    action(entry.subscriptionId)
+                }
+            }
+        }
+    }
+
+    /*****************************************************************
+     * Reclamation
+     ****************************************************************/
+
+    override val isEmpty: Boolean
+        get() = worldSubscriptionIds.isEmpty() && lock.read { entries.isEmpty() && trees.all { it == null } }
+
+    /**
+     * Rebuilds the trees if they contain removed entries, also see [SubscriptionSpatialIndex.compact].
+     */
+    override fun compact(): Int {
+        lock.write {
+            val removed = numberOfRemovedEntries
+            if (removed > 0) {
+                rebuild()
+            }
+            return removed
+        }
+    }
+
+    /*****************************************************************
+     * Tree Maintenance, callers must hold the write lock
+     ****************************************************************/
+
+    private fun markRemoved(entry: RTreeEntry) {
+        entry.removed = true
+        if (buffer.remove(entry)) {
+            statistics?.addIndexEntries(-1)
+        } else {
+            numberOfRemovedEntries++
+        }
+    }
+
+    /**
+     * Bulk loads the buffered entries together with the entries of all trees in the lower occupied slots into the
+     * first empty slot.
+     */
+    private fun flushBuffer() {
+        val merged = ArrayList<RTreeEntry>(buffer)
+        buffer.clear()
+
+        var slot = 0
+        while (slot < trees.size && trees[slot] != null) {
+            for (entry in treeEntries[slot]!!) {
+                if (entry.removed) {
+                    numberOfRemovedEntries--
+                    statistics?.addIndexEntries(-1)
+                } else {
+                    merged.add(entry)
+                }
+            }
+            trees[slot] = null
+            treeEntries[slot] = null
+            slot++
+        }
+
+        setSlot(slot, merged)
+    }
+
+    /**
+     * Bulk loads all entries into a single tree.
+     */
+    private fun rebuild() {
+        val all = ArrayList<RTreeEntry>(entries.values)
+        buffer.clear()
+        trees.clear()
+        treeEntries.clear()
+        statistics?.addIndexEntries(-numberOfRemovedEntries)
+        numberOfRemovedEntries = 0
+
+        if (all.isEmpty()) {
+            return
+        }
+        var slot = 0
+        while (RTREE_BUFFER_SIZE.toLong() shl slot < all.size) {
+            slot++
+        }
+        setSlot(slot, all)
+        logger.trace("Rebuilt RTree with {} entries in slot {}", all.size, slot)
+    }
+
+    private fun setSlot(slot: Int, slotEntries: List<RTreeEntry>) {
+        while (trees.size <= slot) {
+            trees.add(null)
+            treeEntries.add(null)
+        }
+        if (slotEntries.isEmpty()) {
+            return
+        }
+
+        val tree = STRtree(RTREE_NODE_CAPACITY)
+        for (entry in slotEntries) {
+            tree.insert(entry.envelopes[0], entry)
+            if (entry.envelopes.size > 1) {
+                tree.insert(entry.envelopes[1], DatelineEnvelope(entry))
+            }
+        }
+        tree.build() // trees are queried concurrently, so they must be built before
+        trees[slot] = tree
+        treeEntries[slot] = slotEntries
+    }
+
+    /**
+     * Calculates the envelopes of the bounding box of the given geofence; if the bounding box crosses the dateline,
+     * it is split into two envelopes.
+     */
+    private fun calculateEnvelopes(geofence: Geofence): Array<Envelope> {
+        val boundingBox = geofence.boundingBox
+        return if (boundingBox.crossesDateLine) {
+            arrayOf(Envelope(boundingBox.minX, 180.0, boundingBox.minY, boundingBox.maxY),
+                    Envelope(-180.0, boundingBox.maxX, boundingBox.minY, boundingBox.maxY))
+        } else {
+            arrayOf(Envelope(boundingBox.minX, boundingBox.maxX, boundingBox.minY, boundingBox.maxY))
+        }
+    }
+
+}
+
+private class RTreeEntry(val subscriptionId: Int, val envelopes: Array<Envelope>) {
+    // only modified while holding the write lock, so reads under the read lock see the latest value
+    var removed = false
+}
+
+// tree item of the second box of an entry whose bounding box crosses the dateline
+private class DatelineEnvelope(val entry: RTreeEntry)
@@ -3,17 +3,20 @@ package de.hasenburg.geobroker.server.storage
 import de.hasenburg.geobroker.commons.exceptions.RuntimeStorageException
 import de.hasenburg.geobroker.commons.model.spatial.Geofence
 import de.hasenburg.geobroker.commons.model.spatial.Location
-import org.apache.commons.lang3.tuple.ImmutablePair
 import org.apache.logging.log4j.LogManager
+import org.jctools.maps.NonBlockingHashMapLong
+import org.locationtech.spatial4j.shape.SpatialRelation
 import java.util.*
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.math.floor
-import kotlin.math.roundToLong
 
 private val logger = LogManager.getLogger()
 
 /**
- * Creates a new Raster. The index of each raster entry is the location of the entry's south west corner
+ * Creates a new Raster. The index of each raster entry is the location of the entry's south west corner.
+ * Internally, raster entries are stored by their cell id, which packs the latitude and longitude index of this corner
+ * into a single long (see [packCellId]). Thus, looking up the [RasterEntry] of a publisher location does not allocate
+ * any objects.
  *
  * The raster always contains the whole world. Limitations to allowed subscriptions, e.g., the server should only
  * accept subscriptions from Europe, have to be made on another level
@@ -21,19 +24,33 @@ private val logger = LogManager.getLogger()
  * The granularity is used to calculate the size of each [RasterEntry] in degrees. The size equals 1 degree /
  * granularity
  *
+ * When a subscription is added, each fitting [RasterEntry] records whether the subscription's geofence covers the entry
+ * completely or only intersects with it. Subscriptions of the former kind (and world subscriptions) match every
+ * publisher location inside the entry, so no further contains check is needed for them.
+ *
+ * Entries that become empty are remembered and removed by the next [compact] call.
+ *
  * @param granularity - must be >= 1
+ * @param statistics - if not null, counts the raster entries and subscription ids of this raster
  * @throws RuntimeStorageException if granularity < 1
  */
-class Raster(val granularity: Int) {
+class Raster(val granularity: Int, private val statistics: IndexStatistics? = null) : SubscriptionSpatialIndex {
 
-    private val rasterEntries = ConcurrentHashMap<Location, RasterEntry>()
-    private val worldSubscriptionIds = ConcurrentHashMap<String, MutableSet<ImmutablePair<String, Int>>>()
+    // cell id -> RasterEntry
+    private val rasterEntries = NonBlockingHashMapLong<RasterEntry>()
+    private val worldSubscriptionIds = SubscriptionIdSet(statistics)
+    private val modifications = AtomicLong(0)
+    // cell ids of RasterEntries that became empty since the last compaction
+    private val emptyCellIds = NonBlockingHashMapLong<Boolean>()
 
     private val degreeStep: Double // = 1 / granularity
 
     val numberOfExistingRasterEntries: Int
         get() = rasterEntries.size
 
+    override val version: Long
+        get() = modifications.get()
+
     init {
         if (granularity < 1) {
             throw RuntimeStorageException("Granularity must be >= 1, is $granularity")
@@ -52,20 +69,24 @@ class Raster(val granularity: Int) {
      * @param geofence - the geofence used to calculate the fitting [RasterEntry]
      * @param subscriptionId - the subscriptionId to be added
      */
-    fun putSubscriptionIdIntoRasterEntries(geofence: Geofence, subscriptionId: ImmutablePair<String, Int>) {
+    override fun putSubscriptionId(geofence: Geofence, subscriptionId: Int) {
         // add to worldSubscriptionIds if geofence is world
         if (geofence == Geofence.world()) {
-            worldSubscriptionIds.getOrPut(subscriptionId.left) { ConcurrentHashMap.newKeySet() }.add(subscriptionId)
+            worldSubscriptionIds.add(subscriptionId)
+            modifications.incrementAndGet()
             return
         }
 
-        // get all RasterEntries to which the id should be added
-        val viableRasterEntries = calculateIndexLocations(geofence)
-
-        // add the subscriptionId to the RasterEntries
-        for (viableRasterEntry in viableRasterEntries) {
-            viableRasterEntry.putSubscriptionId(subscriptionId)
+        // add the subscriptionId to all RasterEntries that are not disjoint with the geofence
+        forEachRasterEntryInBoundingBox(geofence, true) { cellId, re ->
+            when (re.rasterEntryBox.relate(geofence)) {
+                // the entry might have been created just for the relate check
+                SpatialRelation.DISJOINT -> if (re.numberOfSubscriptionIds == 0) emptyCellIds.put(cellId, true)
+                SpatialRelation.WITHIN -> re.putSubscriptionId(subscriptionId, covering = true)
+                else -> re.putSubscriptionId(subscriptionId)
+            }
         }
+        modifications.incrementAndGet()
     }
 
     /**
@@ -74,20 +95,63 @@ class Raster(val granularity: Int) {
      * @param geofence - the geofence used to calculate the fitting [RasterEntry]
      * @param subscriptionId - the subscription id to be removed
      */
-    fun removeSubscriptionIdFromRasterEntries(geofence: Geofence, subscriptionId: ImmutablePair<String, Int>) {
+    override fun removeSubscriptionId(geofence: Geofence, subscriptionId: Int) {
         // remove from worldSubscriptionIds if geofence is world
         if (geofence == Geofence.world()) {
-            worldSubscriptionIds[subscriptionId.left]?.remove(subscriptionId)
+            worldSubscriptionIds.remove(subscriptionId)
+            modifications.incrementAndGet()
+            return
+        }
+
+        // remove the subscriptionId from all existing RasterEntries, no need to check for intersections here
+        forEachRasterEntryInBoundingBox(geofence, false) { cellId, re ->
+            if (re.removeSubscriptionId(subscriptionId) == 0) {
+                emptyCellIds.put(cellId, true)
+            }
+        }
+        modifications.incrementAndGet()
+    }
+
+    /**
+     * Updates the [RasterEntry]s of a subscriptionId whose geofence changed. Only entries whose relation to the
+     * geofence changed are modified: entries that are not intersected by the new geofence anymore lose the
+     * subscriptionId, and entries that are newly intersected or covered gain it. Entries of the old geofence only
+     * have to be related to the new geofence, as done for [putSubscriptionId].
+     *
+     * @param oldGeofence - the geofence used when adding the subscriptionId
+     * @param newGeofence - the new geofence
+     * @param subscriptionId - the subscriptionId to be updated
+     */
+    override fun updateSubscriptionId(oldGeofence: Geofence, newGeofence: Geofence, subscriptionId: Int) {
+        if (oldGeofence == Geofence.world() || newGeofence == Geofence.world()) {
+            super.updateSubscriptionId(oldGeofence, newGeofence, subscriptionId)
             return
         }
 
-        // get all RasterEntries from which the id should be removed
-        val viableRasterEntries = calculateIndexLocations(geofence)
+        // update all RasterEntries in the bounding box of the new geofence
+        forEachRasterEntryInBoundingBox(newGeofence, true) { cellId, re ->
+            when (re.rasterEntryBox.relate(newGeofence)) {
+                SpatialRelation.DISJOINT -> if (re.removeSubscriptionId(subscriptionId) == 0) {
+                    emptyCellIds.put(cellId, true)
+                }
+                SpatialRelation.WITHIN -> re.updateSubscriptionId(subscriptionId, true)
+                else -> re.updateSubscriptionId(subscriptionId, false)
+            }
+        }
 
-        // remove the subscriptionId from the RasterEntries
-        for (viableRasterEntry in viableRasterEntries) {
-            viableRasterEntry.removeSubscriptionId(subscriptionId)
+        // remove the subscriptionId from existing RasterEntries that are only in the bounding box of the old geofence
+        val newBoundingBox = newGeofence.boundingBox
+        val newNorthEastCellId = calculateCellId(newBoundingBox.maxY, newBoundingBox.maxX)
+        val newSouthWestCellId = calculateCellId(newBoundingBox.minY, newBoundingBox.minX)
+        forEachRasterEntryInBoundingBox(oldGeofence, false) { cellId, re ->
+            val inNewBoundingBox = unpackLatIndex(cellId) in
+                    unpackLatIndex(newSouthWestCellId)..unpackLatIndex(newNorthEastCellId) &&
+                    unpackLonIndex(cellId) in unpackLonIndex(newSouthWestCellId)..unpackLonIndex(newNorthEastCellId)
+            if (!inNewBoundingBox && re.removeSubscriptionId(subscriptionId) == 0) {
+                emptyCellIds.put(cellId, true)
+            }
         }
+        modifications.incrementAndGet()
     }
 
     /**
@@ -98,8 +162,12 @@ class Raster(val granularity: Int) {
      * @param index - index of [RasterEntry] from which the subscription id should be removed
      * @param subscriptionId - the subscription id to be removed
      */
-    fun removeSubscriptionIdFromRasterEntry(index: Location, subscriptionId: ImmutablePair<String, Int>) {
-        rasterEntries[index]?.removeSubscriptionId(subscriptionId)
+    fun removeSubscriptionIdFromRasterEntry(index: Location, subscriptionId: Int) {
+        val cellId = calculateCellId(index.lat, index.lon)
+        if (rasterEntries.get(cellId)?.removeSubscriptionId(subscriptionId) == 0) {
+            emptyCellIds.put(cellId, true)
+        }
+        modifications.incrementAndGet()
     }
 
     /*****************************************************************
@@ -107,30 +175,51 @@ class Raster(val granularity: Int) {
      ****************************************************************/
 
     /**
-     * Returns all subscriptionIds that are in the fitting [RasterEntry]. In case no subscription ids exist, the
-     * returned Set is empty.
-     *
-     * Also returns all world subscription ids as the publisher location is in all of these.
+     * Same as [getSubscriptionIdsForPublisherLocation], but adds the subscriptionIds to the given targets
+     * so that the ids of multiple rasters can be collected without intermediate copies.
      *
-     * Note: while unlikely, the returned list might contain some duplicates
+     * The geofences of subscriptions added to [coveringTarget] contain the publisher location for sure (as they cover
+     * the whole [RasterEntry] or the world), only the ones added to [intersectingTarget] need an additional contains
+     * check.
      *
      * @param location - the location that determines which [RasterEntry] fits
-     * @return a set containing all fitting subscriptionIds
+     * @param coveringTarget - the list to which fitting subscriptionIds of covering subscriptions are added
+     * @param intersectingTarget - the list to which fitting subscriptionIds of intersecting subscriptions are added
      */
-    fun getSubscriptionIdsInRasterEntryForPublisherLocation(location: Location): List<ImmutablePair<String, Int>> {
-        val index = calculateIndexLocation(location)
+    override fun addSubscriptionIdsForPublisherLocation(location: Location, coveringTarget: SubscriptionIdList,
+                                                        intersectingTarget: SubscriptionIdList) {
+        val rasterEntry = rasterEntries.get(calculateCellId(location.lat, location.lon))
 
-        val result = mutableListOf<ImmutablePair<String, Int>>()
+        rasterEntry?.coveringSubscriptionIds?.copyInto(coveringTarget)
+        worldSubscriptionIds.copyInto(coveringTarget)
+        rasterEntry?.intersectingSubscriptionIds?.copyInto(intersectingTarget)
+    }
 
-        for (rasterEntry in rasterEntries[index]?.allSubscriptionIds?.values ?: emptyList()) {
-            result.addAll(rasterEntry)
-        }
+    /*****************************************************************
+     * Reclamation
+     ****************************************************************/
 
-        for (worldIds in worldSubscriptionIds.values) {
-            result.addAll(worldIds)
-        }
+    override val isEmpty: Boolean
+        get() = worldSubscriptionIds.isEmpty() && rasterEntries.isEmpty()
 
-        return result
+    /**
+     * Removes all [RasterEntry]s that became empty since the last compaction, also see
+     * [SubscriptionSpatialIndex.compact].
+     */
+    override fun compact(): Int {
+        var removed = 0
+        for (cellId in emptyCellIds.keySetLong()) {
+            // the entry might have been filled again in the meantime
+            val re = rasterEntries.get(cellId)
+            if (re != null && re.numberOfSubscriptionIds == 0) {
+                rasterEntries.remove(cellId)
+                statistics?.addIndexEntries(-1)
+                removed++
+            }
+        }
+        emptyCellIds.clear()
+        logger.trace("Removed {} empty raster entries", removed)
+        return removed
     }
 
     /*****************************************************************
@@ -138,84 +227,91 @@ class Raster(val granularity: Int) {
      ****************************************************************/
 
     /**
-     * Calculates at what index the corresponding [RasterEntry] is stored
+     * Calculates at what cell id the corresponding [RasterEntry] is stored; does not allocate any objects.
      *
-     * @param location - the location
-     * @return - the index
+     * @param lat - the latitude of a location
+     * @param lon - the longitude of a location
+     * @return - the cell id
      */
-    private fun calculateIndexLocation(location: Location): Location {
-        val latIndex = floor(location.lat * granularity) / granularity
-        val lonIndex = floor(location.lon * granularity) / granularity
-
-        return Location(latIndex, lonIndex)
+    private fun calculateCellId(lat: Double, lon: Double): Long {
+        return calculateCellId(lat, lon, granularity)
     }
 
     /**
-     * Calculates with which [RasterEntry] the given geofence intersects with.
+     * Runs [action] for each [RasterEntry] that intersects with the bounding box of the given geofence.
      *
      * @param geofence - the geofence
-     * @return - a list of [RasterEntry]s
+     * @param create - whether missing [RasterEntry]s should be created, otherwise they are skipped
+     * @param action - the action
      */
-    private fun calculateIndexLocations(geofence: Geofence): List<RasterEntry> {
-        // get north east and south west indices
-        val northEastIndex = calculateIndexLocation(geofence.boundingBoxNorthEast)
-        val southWestIndex = calculateIndexLocation(geofence.boundingBoxSouthWest)
-
-        // get raster entries that have to be checked for intersection
-        val rasterEntriesToCheckForIntersection = ArrayList<RasterEntry>()
-        // due to double precision, we need to check whether > -0.000000001
-        var lat = southWestIndex.lat
-        while (northEastIndex.lat - lat > -0.000000001) {
-            var lon = southWestIndex.lon
-            while (northEastIndex.lon - lon > -0.000000001) {
-                lat = (lat * granularity).roundToLong() / granularity.toDouble()
-                lon = (lon * granularity).roundToLong() / granularity.toDouble()
-                val index = Location(lat, lon)
-                val re = rasterEntries.getOrPut(index) { RasterEntry(index, degreeStep) }
-                rasterEntriesToCheckForIntersection.add(re)
-                lon += degreeStep
+    private inline fun forEachRasterEntryInBoundingBox(geofence: Geofence, create: Boolean,
+                                                       action: (Long, RasterEntry) -> Unit) {
+        // get north east and south west cell ids
+        val boundingBox = geofence.boundingBox
+        val northEastCellId = calculateCellId(boundingBox.maxY, boundingBox.maxX)
+        val southWestCellId = calculateCellId(boundingBox.minY, boundingBox.minX)
+
+        for (latIndex in unpackLatIndex(southWestCellId)..unpackLatIndex(northEastCellId)) {
+            for (lonIndex in unpackLonIndex(southWestCellId)..unpackLonIndex(northEastCellId)) {
+                val cellId = packCellId(latIndex, lonIndex)
+                val re = rasterEntries.get(cellId)
+                        ?: if (create) getOrCreateRasterEntry(cellId, latIndex, lonIndex) else continue
+                action(cellId, re)
             }
-            lat += degreeStep
         }
+    }
 
-//        // if geofence is a rectangle, we can collect the indices
-//        // doing the isRectangle check is too expensive with spatial4j to be worth it
-//        if (geofence.isRectangle) {
-//            return rasterEntriesToCheckForIntersection
-//        }
+    private fun getOrCreateRasterEntry(cellId: Long, latIndex: Int, lonIndex: Int): RasterEntry {
+        val index = Location(latIndex / granularity.toDouble(), lonIndex / granularity.toDouble())
+        val re = RasterEntry(index, degreeStep, statistics)
+        return rasterEntries.putIfAbsent(cellId, re) ?: re.also { statistics?.addIndexEntries(1) }
+    }
 
-        // remove raster entries whose box is disjoint with the actual geofence
-        rasterEntriesToCheckForIntersection.removeIf { re -> re.rasterEntryBox.disjoint(geofence) }
+}
 
-        // return
-        return rasterEntriesToCheckForIntersection
-    }
+/*****************************************************************
+ * Cell Ids
+ ****************************************************************/
 
-    /*****************************************************************
-     * No Geo-Context (used to calculate Overhead)
-     *
-     * In order to use the storage without geo-context information,
-     * the two private methods above need to be commented out.
-     *
-     * Note: the below is still Java code
-     ****************************************************************/
+// odd constant and its multiplicative inverse modulo 2^64
+private const val CELL_ID_MIX = -0x61c8864680b583ebL
+private const val CELL_ID_UNMIX = -0x0e217c1e66c88cc3L
 
-//    	private final Location index = new Location(0.0, 0.0);
-//
-//    	private Location calculateIndexLocation(Location location) {
-//    		return index;
-//    	}
-//
-//    	/**
-//    	 * Calculates with which {@link RasterEntry} the given geofence intersects with.
-//    	 *
-//    	 * @param geofence - the geofence
-//    	 * @return - a list of {@link RasterEntry}s
-//    	 */
-//    	private List<RasterEntry> calculateIndexLocations(Geofence geofence) {
-//    		List<RasterEntry> list = new ArrayList<>();
-//    		list.add(rasterEntries.computeIfAbsent(index, k -> new RasterEntry(index, degreeStep))); // only one entry
-//    		return list;
-//    	}
+/**
+ * Calculates the id of the cell that contains the given location in a [Raster] with the given granularity.
+ */
+fun calculateCellId(lat: Double, lon: Double, granularity: Int): Long {
+    return packCellId(floor(lat * granularity).toInt(), floor(lon * granularity).toInt())
+}
 
+/**
+ * Packs the latitude and longitude index of a raster cell into a single cell id. The latitude index is stored in the
+ * upper, the longitude index in the lower 32 bits; the result is then multiplied with an odd constant. Without doing
+ * so, neighbouring cells collide in the hash function of [NonBlockingHashMapLong], which then resizes over and over.
+ * The multiplication is reversible, see [unmixCellId].
+ */
+fun packCellId(latIndex: Int, lonIndex: Int): Long {
+    return mixCellId((latIndex.toLong() shl 32) or (lonIndex.toLong() and 0xFFFFFFFFL))
+}
+
+fun unpackLatIndex(cellId: Long): Int {
+    return (unmixCellId(cellId) shr 32).toInt()
+}
+
+fun unpackLonIndex(cellId: Long): Int {
+    return unmixCellId(cellId).toInt()
+}
+
+/**
+ * Spreads the bits of a packed cell id over the whole long, see [packCellId].
+ */
+fun mixCellId(packed: Long): Long {
+    return packed * CELL_ID_MIX
+}
+
+/**
+ * Reverses [mixCellId].
+ */
+fun unmixCellId(cellId: Long): Long {
+    return cellId * CELL_ID_UNMIX
 }
@@ -2,30 +2,39 @@ package de.hasenburg.geobroker.server.storage
 
 import de.hasenburg.geobroker.commons.model.spatial.Geofence
 import de.hasenburg.geobroker.commons.model.spatial.Location
-import org.apache.commons.lang3.tuple.ImmutablePair
+import de.hasenburg.geobroker.server.storage.client.SubscriptionRegistry
 
-import java.util.*
-import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.atomic.AtomicInteger
+/**
+ * A [RasterEntry] stores the ids of all subscriptions whose geofence intersects with its [rasterEntryBox].
+ * Subscriptions whose geofence covers the whole box are stored separately from the ones that only intersect with it, as
+ * every location inside the box is also inside the geofences of the former ones.
+ */
+class RasterEntry(val index: Location, latDegreeStep: Double, lonDegreeStep: Double,
+                  statistics: IndexStatistics? = null) {
 
-class RasterEntry(val index: Location, degreeStep: Double) {
+    constructor(index: Location, degreeStep: Double, statistics: IndexStatistics? = null) :
+            this(index, degreeStep, degreeStep, statistics)
 
-    // TODO O: it might be faster to use Geofence.rectangle(), especially when later using the geofence
-    val rasterEntryBox: Geofence = Geofence.polygon(listOf(index,
-            Location(index.lat + degreeStep, index.lon),
-            Location(index.lat + degreeStep, index.lon + degreeStep),
-            Location(index.lat, index.lon + degreeStep))) // let's buffer this
+    // a rectangle rather than a polygon, as spatial4j relates polygons to circles only approximately
+    val rasterEntryBox: Geofence =
+            Geofence.rectangle(index, Location(index.lat + latDegreeStep, index.lon + lonDegreeStep))
 
-    private val existingSubscriptionIds = ConcurrentHashMap<String, MutableSet<ImmutablePair<String, Int>>>()
-    private val numSubscriptionIds = AtomicInteger(0)
+    private val existingCoveringSubscriptionIds = SubscriptionIdSet(statistics)
+    private val existingIntersectingSubscriptionIds = SubscriptionIdSet(statistics)
     val numberOfSubscriptionIds: Int
-        get() = numSubscriptionIds.get()
+        get() = existingCoveringSubscriptionIds.size + existingIntersectingSubscriptionIds.size
 
     /**
-     * @return all subscriptions
+     * @return ids of all subscriptions whose geofence covers the [rasterEntryBox], must not be modified
      */
-    val allSubscriptionIds: Map<String, Set<ImmutablePair<String, Int>>>
-        get() = existingSubscriptionIds
+    val coveringSubscriptionIds: SubscriptionIdSet
+        get() = existingCoveringSubscriptionIds
+
+    /**
+     * @return ids of all subscriptions whose geofence only intersects with the [rasterEntryBox], must not be modified
+     */
+    val intersectingSubscriptionIds: SubscriptionIdSet
+        get() = existingIntersectingSubscriptionIds
 
     override fun toString(): String {
         return "RasterEntry{index=$index}"
@@ -40,12 +49,38 @@ class RasterEntry(val index: Location, degreeStep: Double) {
      *
      * It is assumed that every subscriptionId is unique. Otherwise, inconsistencies may arise.
      *
-     * @param subscriptionId - unique identifier for a subscription that comprises a clientId and an integer
+     * @param subscriptionId - unique identifier for a subscription handed out by the [SubscriptionRegistry]
+     * @param covering - whether the subscription's geofence covers the [rasterEntryBox] or only intersects with it
      * @return the number of subscriptionIds stored in the [RasterEntry] after the operation completed
      */
-    fun putSubscriptionId(subscriptionId: ImmutablePair<String, Int>): Int {
-        existingSubscriptionIds.getOrPut(subscriptionId.left) { ConcurrentHashMap.newKeySet() }.add(subscriptionId)
-        return numSubscriptionIds.incrementAndGet()
+    fun putSubscriptionId(subscriptionId: Int, covering: Boolean = false): Int {
+        if (covering) {
+            existingCoveringSubscriptionIds.add(subscriptionId)
+        } else {
+            existingIntersectingSubscriptionIds.add(subscriptionId)
+        }
+        return numberOfSubscriptionIds
+    }
+
+    /**
+     * Makes sure that the given subscriptionId is stored as covering or intersecting, respectively. Does not modify
+     * the [RasterEntry] if this is already the case, so it is cheaper than [removeSubscriptionId] followed by
+     * [putSubscriptionId] for subscriptions whose geofence changed only a little.
+     *
+     * @param subscriptionId - unique identifier for a subscription handed out by the [SubscriptionRegistry]
+     * @param covering - whether the subscription's geofence covers the [rasterEntryBox] or only intersects with it
+     * @return true, if the [RasterEntry] has been modified
+     */
+    fun updateSubscriptionId(subscriptionId: Int, covering: Boolean): Boolean {
+        val target = if (covering) existingCoveringSubscriptionIds else existingIntersectingSubscriptionIds
+        val other = if (covering) existingIntersectingSubscriptionIds else existingCoveringSubscriptionIds
+        if (target.contains(subscriptionId)) {
+            return false
+        }
+        // remove first, so that concurrent queries never return the subscription id twice
+        other.remove(subscriptionId)
+        target.add(subscriptionId)
+        return true
     }
 
     /**
@@ -53,29 +88,22 @@ class RasterEntry(val index: Location, degreeStep: Double) {
      *
      * It is assumed that every subscriptionId is unique. Otherwise, inconsistencies may arise.
      *
-     * @param subscriptionId - unique identifier for a subscription that comprises a clientId and an integer
+     * @param subscriptionId - unique identifier for a subscription handed out by the [SubscriptionRegistry]
      * @return the number of subscriptionIds stored in the [RasterEntry] after the operation completed
      */
-    fun removeSubscriptionId(subscriptionId: ImmutablePair<String, Int>): Int {
-        if (existingSubscriptionIds[subscriptionId.left]?.remove(subscriptionId) ?: false) {
-            // if the client has entries + the id was part of the client's entries
-            return numSubscriptionIds.decrementAndGet()
-        } else {
-            return numSubscriptionIds.get()
+    fun removeSubscriptionId(subscriptionId: Int): Int {
+        if (!existingIntersectingSubscriptionIds.remove(subscriptionId)) {
+            existingCoveringSubscriptionIds.remove(subscriptionId)
         }
+        return numberOfSubscriptionIds
     }
 
-    /*****************************************************************
-     * Process Published Message Operations
-     ****************************************************************/
-
     /**
-     * @param clientId - the id of the [Client]
-     * @return Returns all subscriptionIds for the specified client.
+     * @return true, if the subscription id is stored in this [RasterEntry]
      */
-    fun getSubscriptionIdsForClientIdentifier(clientId: String): Set<ImmutablePair<String, Int>> {
-        // this builds on the assumptions that this is faster then the toSet() method
-        return Collections.unmodifiableSet(existingSubscriptionIds[clientId])
+    fun containsSubscriptionId(subscriptionId: Int): Boolean {
+        return existingIntersectingSubscriptionIds.contains(subscriptionId) ||
+                existingCoveringSubscriptionIds.contains(subscriptionId)
     }
 
 }
@@ -0,0 +1,323 @@
+package de.hasenburg.geobroker.server.storage
+
+import de.hasenburg.geobroker.commons.exceptions.RuntimeStorageException
+import de.hasenburg.geobroker.commons.model.message.Topic
+import de.hasenburg.geobroker.commons.model.message.WireFormat
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import de.hasenburg.geobroker.commons.model.spatial.binarySize
+import de.hasenburg.geobroker.commons.model.spatial.getGeofence
+import de.hasenburg.geobroker.commons.model.spatial.putGeofence
+import de.hasenburg.geobroker.server.storage.client.ClientDirectory
+import org.apache.logging.log4j.LogManager
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+private val logger = LogManager.getLogger()
+
+// "GBS" + format version
+private const val SNAPSHOT_MAGIC = 0x47425303
+private const val SNAPSHOT_BUFFER_SIZE = 1 shl 20
+
+/*****************************************************************
+ * Writing
+ ****************************************************************/
+
+/**
+ * Writes all local clients of the [clientDirectory] together with their locations and subscriptions to [file].
+ *
+ * The clients are read while they are modified by the message processors, so the snapshot does not block them but it
+ * is only consistent per client. The snapshot is written sequentially to a temporary file which then replaces [file]
+ * atomically, so a crash while writing keeps the previous snapshot.
+ *
+ * Format: magic, number of clients, and for each client its identifier, whether it has a location, lat and lon, the
+ * ordinal of its [WireFormat], the number of its subscriptions, and for each subscription its topic and its geofence
+ * as binary geometry, see [putGeofence]. Strings are stored as length-prefixed UTF-8.
+ *
+ * @return the number of written clients
+ */
+fun writeSnapshot(clientDirectory: ClientDirectory, file: File): Int {
+    val tmp = File(file.absolutePath + ".tmp")
+    var numberOfClients = 0
+
+    FileChannel.open(tmp.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING).use { channel ->
+        val out = SnapshotOutput(channel)
+        out.writeInt(SNAPSHOT_MAGIC)
+        // patched below, as the number of clients might change while writing
+        out.writeInt(0)
+
+        for (c in clientDirectory.allClients) {
+            if (c.remote) {
+                continue
+            }
+            val subscriptions = c.allSubscriptions.toList()
+            val location = c.location
+
+            out.writeString(c.clientIdentifier)
+            out.writeBoolean(location != null)
+            out.writeDouble(location?.lat ?: 0.0)
+            out.writeDouble(location?.lon ?: 0.0)
+            out.writeByte(c.wireFormat.ordinal)
+            out.writeInt(subscriptions.size)
+            for (s in subscriptions) {
+                out.writeString(s.topic.topic)
+                out.writeGeofence(s.geofence)
+            }
+            numberOfClients++
+        }
+        out.flush()
+
+        channel.write(ByteBuffer.allocate(4).putInt(0, numberOfClients), 4)
+        channel.force(true)
+    }
+
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    return numberOfClients
+}
+
+/**
+ * Buffers writes to a [FileChannel], so that the snapshot is written sequentially in large blocks.
+ */
+private class SnapshotOutput(private val channel: FileChannel) {
+
+    private val buffer = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER_SIZE)
+
+    fun writeInt(value: Int) {
+        ensureRemaining(4)
+        buffer.putInt(value)
+    }
+
+    fun writeDouble(value: Double) {
+        ensureRemaining(8)
+        buffer.putDouble(value)
+    }
+
+    fun writeBoolean(value: Boolean) {
+        writeByte(if (value) 1 else 0)
+    }
+
+    fun writeByte(value: Int) {
+        ensureRemaining(1)
+        buffer.put(value.toByte())
+    }
+
+    fun writeString(value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        writeInt(bytes.size)
+        if (bytes.size > buffer.capacity()) {
+            flush()
+            writeFully(ByteBuffer.wrap(bytes))
+        } else {
+            ensureRemaining(bytes.size)
+            buffer.put(bytes)
+        }
+    }
+
+    fun writeGeofence(geofence: Geofence) {
+        val size = geofence.binarySize
+        if (size > buffer.capacity()) {
+            flush()
+            writeFully(ByteBuffer.allocate(size).putGeofence(geofence).flip())
+        } else {
+            ensureRemaining(size)
+            buffer.putGeofence(geofence)
+        }
+    }
+
+    fun flush() {
+        buffer.flip()
+        writeFully(buffer)
+        buffer.clear()
+    }
+
+    private fun ensureRemaining(bytes: Int) {
+        if (buffer.remaining() < bytes) {
+            flush()
+        }
+    }
+
+    private fun writeFully(source: ByteBuffer) {
+        while (source.hasRemaining()) {
+            channel.write(source)
+        }
+    }
+
+}
+
+/*****************************************************************
+ * Loading
+ ****************************************************************/
+
+/**
+ * Restores the clients and subscriptions of a snapshot written by [writeSnapshot]. The file is memory-mapped and
+ * parsed sequentially; afterwards, the clients are added to the [clientDirectory] and their subscriptions to the
+ * [topicAndGeofenceMapper] in parallel. Subscriptions receive new subscription ids.
+ *
+ * @return the number of restored clients
+ * @throws RuntimeStorageException if the file is not a valid snapshot
+ */
+fun loadSnapshot(file: File, clientDirectory: ClientDirectory, topicAndGeofenceMapper: TopicAndGeofenceMapper): Int {
+    val records = FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+        if (channel.size() > Int.MAX_VALUE) {
+            throw RuntimeStorageException("Snapshot ${file.absolutePath} is too large to be mapped")
+        }
+        parseSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file)
+    }
+
+    records.parallelStream().forEach { record ->
+        if (!clientDirectory.addClient(record.clientIdentifier, record.location, wireFormat = record.wireFormat)) {
+            return@forEach
+        }
+        for ((topic, geofence) in record.subscriptions) {
+            val subscriptionId = clientDirectory.updateSubscription(record.clientIdentifier, topic, geofence)
+            if (subscriptionId != null) {
+                topicAndGeofenceMapper.putSubscriptionId(subscriptionId, topic, geofence)
+            }
+        }
+    }
+    return records.size
+}
+
+/**
+ * Restores the snapshot at [file] if it exists, see [loadSnapshot]. Invalid snapshots are logged and ignored, so that
+ * the broker starts empty instead.
+ *
+ * @return the number of restored clients
+ */
+fun restoreSnapshot(file: File, clientDirectory: ClientDirectory,
+                    topicAndGeofenceMapper: TopicAndGeofenceMapper): Int {
+    if (!file.exists()) {
+        logger.info("No snapshot at {}, starting empty", file.absolutePath)
+        return 0
+    }
+    return try {
+        val time = System.currentTimeMillis()
+        val numberOfClients = loadSnapshot(file, clientDirectory, topicAndGeofenceMapper)
+        logger.info("Restored {} clients from snapshot {} in {}ms",
+                numberOfClients,
+                file.absolutePath,
+                System.currentTimeMillis() - time)
+        numberOfClients
+    } catch (e: Exception) {
+        logger.error("Could not restore snapshot ${file.absolutePath}, starting empty", e)
+        0
+    }
+}
+
+private class ClientRecord(val clientIdentifier: String, val location: Location?, val wireFormat: WireFormat,
+                           val subscriptions: List<Pair<Topic, Geofence>>)
+
+private fun parseSnapshot(buffer: ByteBuffer, file: File): List<ClientRecord> {
+    try {
+        if (buffer.int != SNAPSHOT_MAGIC) {
+            throw RuntimeStorageException("${file.absolutePath} is not a snapshot of this version")
+        }
+        val numberOfClients = buffer.getCount()
+        val records = ArrayList<ClientRecord>(numberOfClients)
+        for (i in 0 until numberOfClients) {
+            val clientIdentifier = buffer.getString()
+            val hasLocation = buffer.get() == 1.toByte()
+            val lat = buffer.double
+            val lon = buffer.double
+            val wireFormat = buffer.getWireFormat()
+            val subscriptions = (0 until buffer.getCount()).map {
+                Pair(Topic.intern(buffer.getString()), buffer.getGeofence())
+            }
+            records.add(ClientRecord(clientIdentifier,
+                    if (hasLocation) Location(lat, lon) else null,
+                    wireFormat,
+                    subscriptions))
+        }
+        return records
+    } catch (e: RuntimeException) {
+        if (e is RuntimeStorageException) throw e
+        throw RuntimeStorageException("Snapshot ${file.absolutePath} is corrupt", e)
+    }
+}
+
+internal fun ByteBuffer.getString(): String {
+    val bytes = ByteArray(getCount())
+    get(bytes)
+    return String(bytes, Charsets.UTF_8)
+}
+
+internal fun ByteBuffer.getWireFormat(): WireFormat {
+    val ordinal = get().toInt()
+    return wireFormats.getOrNull(ordinal) ?: throw RuntimeStorageException("Unknown wire format $ordinal")
+}
+
+private val wireFormats = WireFormat.values()
+
+/**
+ * Reads a length or number of elements; each element takes at least one byte, so larger values than the remaining
+ * bytes are corrupt and rejected before anything is allocated for them.
+ */
+internal fun ByteBuffer.getCount(): Int {
+    val count = int
+    if (count < 0 || count > remaining()) {
+        throw RuntimeStorageException("Count $count exceeds the remaining ${remaining()} bytes")
+    }
+    return count
+}
+
+/*****************************************************************
+ * Periodic Snapshots
+ ****************************************************************/
+
+/**
+ * Periodically writes a snapshot of the [clientDirectory] to [file] from a dedicated thread, see [writeSnapshot].
+ *
+ * If a [writeAheadLog] is given, it continues in a new segment before each snapshot; once the snapshot was written,
+ * the segments before are deleted, as the snapshot contains all their changes.
+ *
+ * @param intervalSeconds - seconds between two snapshots
+ */
+class SnapshotWriter @JvmOverloads constructor(private val file: File, private val intervalSeconds: Int,
+                                               private val clientDirectory: ClientDirectory,
+                                               private val writeAheadLog: WriteAheadLog? = null) {
+
+    private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "snapshot-writer").apply { isDaemon = true }
+    }
+
+    fun start() {
+        executor.scheduleWithFixedDelay({ write() },
+                intervalSeconds.toLong(),
+                intervalSeconds.toLong(),
+                TimeUnit.SECONDS)
+        logger.info("Writing a snapshot to {} every {}s", file.absolutePath, intervalSeconds)
+    }
+
+    /**
+     * Stops writing periodic snapshots and writes a final one.
+     */
+    fun stop() {
+        executor.shutdown()
+        executor.awaitTermination(intervalSeconds.toLong(), TimeUnit.SECONDS)
+        write()
+    }
+
+    private fun write() {
+        try {
+            val time = System.currentTimeMillis()
+            val segmentNumber = writeAheadLog?.roll()
+            val numberOfClients = writeSnapshot(clientDirectory, file)
+            segmentNumber?.let { writeAheadLog?.deleteSegmentsBefore(it) }
+            logger.debug("Wrote snapshot with {} clients in {}ms", numberOfClients, System.currentTimeMillis() - time)
+        } catch (e: Exception) {
+            // keep the previous snapshot, the next one might succeed
+            logger.error("Could not write snapshot to ${file.absolutePath}", e)
+        }
+    }
+
+}
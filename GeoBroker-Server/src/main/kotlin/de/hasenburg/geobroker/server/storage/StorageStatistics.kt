@@ -0,0 +1,130 @@
+package de.hasenburg.geobroker.server.storage
+
+import io.prometheus.client.Gauge
+import java.util.concurrent.atomic.AtomicInteger
+
+// Prometheus Gauges, labeled with the mapper and the top-level topic
+internal val topicLevelsGauge = Gauge.build().name("Geo_Storage_topicLevels")
+    .help("Number of existing topic levels").labelNames("mapper", "topic").register()
+private val indexEntriesGauge = Gauge.build().name("Geo_Storage_indexEntries")
+    .help("Number of raster entries (or entries of other spatial indexes)").labelNames("mapper", "topic").register()
+private val subscriptionIdsGauge = Gauge.build().name("Geo_Storage_subscriptionIds")
+    .help("Number of subscription ids stored in spatial indexes").labelNames("mapper", "topic").register()
+private val estimatedBytesGauge = Gauge.build().name("Geo_Storage_estimatedBytes")
+    .help("Estimated heap usage of topic levels and spatial indexes").labelNames("mapper", "topic").register()
+
+// Prometheus Gauges, labeled with the client directory
+internal val clientsGauge = Gauge.build().name("Geo_ClientDirectory_clients")
+    .help("Number of connected local and remote clients").labelNames("directory").register()
+private val subscriptionsGauge = Gauge.build().name("Geo_ClientDirectory_subscriptions")
+    .help("Number of registered subscriptions").labelNames("directory").register()
+private val clientBytesGauge = Gauge.build().name("Geo_ClientDirectory_estimatedBytes")
+    .help("Estimated heap usage of clients and subscriptions").labelNames("directory").register()
+
+/*
+ * Rough heap usage of the structures on a 64 bit JVM with compressed references, including the maps and geometries
+ * they own; the sizes of topics, identifiers, and geofences of subscriptions are not included.
+ */
+const val TOPIC_LEVEL_BYTES = 512L
+const val INDEX_ENTRY_BYTES = 1024L
+const val SUBSCRIPTION_ID_BYTES = 32L
+const val CLIENT_BYTES = 384L
+const val SUBSCRIPTION_BYTES = 96L
+
+// number the mappers and client directories of the JVM, so that their statistics do not overlap
+private val mapperCounter = AtomicInteger(0)
+private val directoryCounter = AtomicInteger(0)
+
+/**
+ * Counts the [TopicLevel]s, index entries (e.g., [RasterEntry]s), and stored subscription ids of one top-level topic
+ * and its children, and exports them to Prometheus labeled with [mapper] and [topLevelTopic]. Each
+ * [TopicAndGeofenceMapper] uses its own [mapper] label, see [nextMapperLabel], so that multiple mappers of the same JVM
+ * do not share or remove each other's counts.
+ *
+ * The counts are maintained incrementally by the structures themselves whenever they are created, removed, or
+ * modified, so reading them never scans the storage.
+ */
+class IndexStatistics(val mapper: String, val topLevelTopic: String) {
+
+    private val topicLevels = topicLevelsGauge.labels(mapper, topLevelTopic)
+    private val indexEntries = indexEntriesGauge.labels(mapper, topLevelTopic)
+    private val subscriptionIds = subscriptionIdsGauge.labels(mapper, topLevelTopic)
+    private val estimatedBytes = estimatedBytesGauge.labels(mapper, topLevelTopic)
+
+    val numberOfTopicLevels: Long
+        get() = topicLevels.get().toLong()
+
+    val numberOfIndexEntries: Long
+        get() = indexEntries.get().toLong()
+
+    val numberOfSubscriptionIds: Long
+        get() = subscriptionIds.get().toLong()
+
+    val numberOfEstimatedBytes: Long
+        get() = estimatedBytes.get().toLong()
+
+    fun addTopicLevels(delta: Int) {
+        topicLevels.inc(delta.toDouble())
+        estimatedBytes.inc(delta * TOPIC_LEVEL_BYTES.toDouble())
+    }
+
+    fun addIndexEntries(delta: Int) {
+        indexEntries.inc(delta.toDouble())
+        estimatedBytes.inc(delta * INDEX_ENTRY_BYTES.toDouble())
+    }
+
+    fun addSubscriptionIds(delta: Int) {
+        subscriptionIds.inc(delta.toDouble())
+        estimatedBytes.inc(delta * SUBSCRIPTION_ID_BYTES.toDouble())
+    }
+
+    /**
+     * Stops exporting the counts, e.g., after the top-level topic has been removed.
+     */
+    fun unregister() {
+        topicLevelsGauge.remove(mapper, topLevelTopic)
+        indexEntriesGauge.remove(mapper, topLevelTopic)
+        subscriptionIdsGauge.remove(mapper, topLevelTopic)
+        estimatedBytesGauge.remove(mapper, topLevelTopic)
+    }
+
+    companion object {
+
+        /**
+         * @return a new label for the statistics of one mapper, unique within the JVM
+         */
+        fun nextMapperLabel(): String {
+            return "mapper-${mapperCounter.incrementAndGet()}"
+        }
+
+    }
+
+}
+
+/**
+ * Counts the clients and subscriptions of one [de.hasenburg.geobroker.server.storage.client.ClientDirectory] and
+ * exports them to Prometheus labeled with [directory], which is unique within the JVM, also see [IndexStatistics].
+ */
+class ClientStatistics(val directory: String = "directory-${directoryCounter.incrementAndGet()}") {
+
+    private val clients = clientsGauge.labels(directory)
+    private val subscriptions = subscriptionsGauge.labels(directory)
+    private val estimatedBytes = clientBytesGauge.labels(directory)
+
+    val numberOfClients: Long
+        get() = clients.get().toLong()
+
+    val numberOfSubscriptions: Long
+        get() = subscriptions.get().toLong()
+
+    fun addClients(delta: Int) {
+        clients.inc(delta.toDouble())
+        estimatedBytes.inc(delta * CLIENT_BYTES.toDouble())
+    }
+
+    fun addSubscriptions(delta: Int) {
+        subscriptions.inc(delta.toDouble())
+        estimatedBytes.inc(delta * SUBSCRIPTION_BYTES.toDouble())
+    }
+
+}
@@ -0,0 +1,119 @@
+package de.hasenburg.geobroker.server.storage
+
+import de.hasenburg.geobroker.server.storage.client.SubscriptionRegistry
+import org.jctools.maps.NonBlockingHashMapLong
+
+/**
+ * A concurrent set of subscription ids handed out by the [SubscriptionRegistry]. Ids are stored as primitive keys, so
+ * neither adding, removing, nor iterating ids boxes them.
+ *
+ * @param statistics - if not null, counts the ids added to and removed from this set
+ */
+class SubscriptionIdSet(private val statistics: IndexStatistics? = null) {
+
+    // subscription id -> PRESENT
+    private val ids = NonBlockingHashMapLong<Boolean>()
+
+    val size: Int
+        get() = ids.size
+
+    fun isEmpty(): Boolean {
+        return ids.isEmpty()
+    }
+
+    /**
+     * @return true, if the id was not part of the set before
+     */
+    fun add(subscriptionId: Int): Boolean {
+        val added = ids.putIfAbsent(subscriptionId.toLong(), PRESENT) == null
+        if (added) {
+            statistics?.addSubscriptionIds(1)
+        }
+        return added
+    }
+
+    /**
+     * @return true, if the id was part of the set before
+     */
+    fun remove(subscriptionId: Int): Boolean {
+        val removed = ids.remove(subscriptionId.toLong()) != null
+        if (removed) {
+            statistics?.addSubscriptionIds(-1)
+        }
+        return removed
+    }
+
+    fun contains(subscriptionId: Int): Boolean {
+        return ids.containsKey(subscriptionId.toLong())
+    }
+
+    /**
+     * Adds all ids of this set to the given [target]. Ids that are added or removed concurrently might or might not be
+     * part of the result.
+     */
+    fun copyInto(target: SubscriptionIdList) {
+        val iterator = ids.IteratorLong()
+        while (iterator.hasNext()) {
+            target.add(iterator.nextLong().toInt())
+        }
+    }
+
+    fun toIntArray(): IntArray {
+        val list = SubscriptionIdList(size)
+        copyInto(list)
+        return list.toIntArray()
+    }
+
+    override fun toString(): String {
+        return toIntArray().contentToString()
+    }
+
+}
+
+private const val PRESENT = true
+
+/**
+ * A growable list of subscription ids that stores them in a primitive array. Used to collect the ids matching a
+ * published message without boxing.
+ */
+class SubscriptionIdList(initialCapacity: Int = 16) {
+
+    private var ids = IntArray(maxOf(initialCapacity, 1))
+
+    var size: Int = 0
+        private set
+
+    fun isEmpty(): Boolean {
+        return size == 0
+    }
+
+    fun add(subscriptionId: Int) {
+        if (size == ids.size) {
+            ids = ids.copyOf(ids.size * 2)
+        }
+        ids[size++] = subscriptionId
+    }
+
+    /**
+     * Adds all given subscription ids with a single array copy.
+     */
+    fun addAll(subscriptionIds: IntArray) {
+        if (size + subscriptionIds.size > ids.size) {
+            ids = ids.copyOf(maxOf(ids.size * 2, size + subscriptionIds.size))
+        }
+        subscriptionIds.copyInto(ids, size)
+        size += subscriptionIds.size
+    }
+
+    operator fun get(index: Int): Int {
+        if (index >= size) {
+            throw IndexOutOfBoundsException("Index $index, size $size")
+        }
+        return ids[index]
+    }
+
+    fun toIntArray(): IntArray {
+        return ids.copyOf(size)
+    }
+
+}
@@ -0,0 +1,116 @@
+package de.hasenburg.geobroker.server.storage
+
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import de.hasenburg.geobroker.server.main.SpatialIndexType
+
+/**
+ * A [SubscriptionSpatialIndex] stores the subscription ids of a single [TopicLevel] by their geofences and returns
+ * the ones that might match a publisher location.
+ *
+ * Implementations differ in how they trade subscribe costs, memory, and the number of candidates that need an
+ * additional contains check; which one is used is configured via [SpatialIndexType].
+ */
+interface SubscriptionSpatialIndex {
+
+    /**
+     * Incremented after each modification of the stored subscription ids, so results that were computed while the
+     * version did not change are still valid.
+     */
+    val version: Long
+
+    /**
+     * Adds a subscriptionId to the index.
+     *
+     * @param geofence - the geofence of the subscription
+     * @param subscriptionId - the subscriptionId to be added
+     */
+    fun putSubscriptionId(geofence: Geofence, subscriptionId: Int)
+
+    /**
+     * Removes a subscriptionId from the index. If it is not stored, does nothing.
+     *
+     * @param geofence - the geofence of the subscription, must be the one used when adding
+     * @param subscriptionId - the subscription id to be removed
+     */
+    fun removeSubscriptionId(geofence: Geofence, subscriptionId: Int)
+
+    /**
+     * Replaces the geofence of a stored subscriptionId, e.g., when a client re-subscribes with a moved geofence.
+     *
+     * The default implementation removes the subscriptionId and adds it again; implementations that store it in
+     * multiple places should only touch the places whose relation to the geofence changed.
+     *
+     * @param oldGeofence - the geofence used when adding the subscriptionId
+     * @param newGeofence - the new geofence
+     * @param subscriptionId - the subscriptionId to be updated
+     */
+    fun updateSubscriptionId(oldGeofence: Geofence, newGeofence: Geofence, subscriptionId: Int) {
+        removeSubscriptionId(oldGeofence, subscriptionId)
+        putSubscriptionId(newGeofence, subscriptionId)
+    }
+
+    /**
+     * Returns all subscriptionIds whose geofence might contain the given location. In case no subscription ids exist,
+     * the returned array is empty.
+     *
+     * @param location - the publisher location
+     * @return an array containing all fitting subscriptionIds
+     */
+    fun getSubscriptionIdsForPublisherLocation(location: Location): IntArray {
+        val result = SubscriptionIdList()
+        addSubscriptionIdsForPublisherLocation(location, result, result)
+        return result.toIntArray()
+    }
+
+    /**
+     * Same as [getSubscriptionIdsForPublisherLocation], but adds the subscriptionIds to the given targets so that the
+     * ids of multiple indexes can be collected without intermediate copies.
+     *
+     * The geofences of subscriptions added to [coveringTarget] contain the publisher location for sure, only the ones
+     * added to [intersectingTarget] need an additional contains check.
+     *
+     * @param location - the publisher location
+     * @param coveringTarget - the list to which fitting subscriptionIds of covering subscriptions are added
+     * @param intersectingTarget - the list to which fitting subscriptionIds of intersecting subscriptions are added
+     */
+    fun addSubscriptionIdsForPublisherLocation(location: Location, coveringTarget: SubscriptionIdList,
+                                               intersectingTarget: SubscriptionIdList)
+
+    /*****************************************************************
+     * Reclamation
+     ****************************************************************/
+
+    /**
+     * True, if the index neither stores any subscription ids nor any internal structures, i.e., if [compact] has
+     * nothing to reclaim.
+     */
+    val isEmpty: Boolean
+
+    /**
+     * Removes internal structures that do not store any subscription ids anymore, e.g., empty [RasterEntry]s.
+     *
+     * Must not run concurrently with [putSubscriptionId] or [removeSubscriptionId]; concurrent queries are fine, they
+     * might still see removed structures, which are empty anyway.
+     *
+     * @return the number of removed structures
+     */
+    fun compact(): Int
+
+}
+
+/**
+ * Creates a new, empty [SubscriptionSpatialIndex] of the given type.
+ *
+ * @param type - the type of the index
+ * @param granularity - the granularity used by raster based indexes, must be >= 1
+ * @param statistics - if not null, counts the entries and subscription ids of the index
+ */
+fun createSubscriptionSpatialIndex(type: SpatialIndexType, granularity: Int,
+                                   statistics: IndexStatistics? = null): SubscriptionSpatialIndex {
+    return when (type) {
+        SpatialIndexType.raster -> Raster(granularity, statistics)
+        SpatialIndexType.quadtree -> QuadtreeRaster(granularity, statistics)
+        SpatialIndexType.rtree -> RTree(statistics)
+    }
+}
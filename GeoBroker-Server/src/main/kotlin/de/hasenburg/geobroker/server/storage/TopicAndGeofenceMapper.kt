@@ -4,36 +4,166 @@ import de.hasenburg.geobroker.commons.model.message.Topic
 import de.hasenburg.geobroker.commons.model.spatial.Geofence
 import de.hasenburg.geobroker.commons.model.spatial.Location
 import de.hasenburg.geobroker.server.main.Configuration
+import de.hasenburg.geobroker.server.main.SpatialIndexType
 import de.hasenburg.geobroker.server.storage.client.ClientDirectory
-import org.apache.commons.lang3.tuple.ImmutablePair
+import de.hasenburg.geobroker.server.storage.client.Subscription
 import org.apache.logging.log4j.LogManager
 
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantReadWriteLock
 import java.util.stream.Collectors
 import java.util.stream.Stream
+import kotlin.concurrent.read
+import kotlin.concurrent.write
 
 private val logger = LogManager.getLogger()
 
+// number of removed subscription ids after which the mapper tries to compact itself
+private const val COMPACTION_INTERVAL = 1000
+
 /**
  * The [TopicAndGeofenceMapper] maps provided topics and geofences to subscription ids. Thus, it helps to identify
  * to which clients a published message should be delivered.
+ *
+ * Empty [RasterEntry]s and [TopicLevel]s are reclaimed by [compact], which also runs inline every
+ * [COMPACTION_INTERVAL] removals if no subscription ids are added or removed at the same time. Subscribe and
+ * unsubscribe operations hold the read lock of [compactionLock], so they run concurrently with each other but never
+ * with a compaction; publish operations do not lock at all.
+ *
+ * If configured, the candidates of published messages are cached by topic and raster cell, see [PublishMatchCache].
+ *
+ * The number and estimated size of the stored structures are counted per top-level topic and exported with a label
+ * that is unique to this mapper, see [IndexStatistics].
  */
 class TopicAndGeofenceMapper(configuration: Configuration) {
 
-    val anchor: TopicLevel = TopicLevel("ANCHOR", configuration.granularity)
+    val anchor: TopicLevel = TopicLevel("ANCHOR", configuration.granularity, configuration.spatialIndex)
+
+    private val compactionLock = ReentrantReadWriteLock()
+    // topics of which subscription ids have been removed since the last compaction
+    private val topicsWithRemovals = ConcurrentHashMap.newKeySet<Topic>()
+    private val removalsSinceCompaction = AtomicInteger(0)
+
+    private val granularity = configuration.granularity
+    private val publishMatchCache = createPublishMatchCache(configuration)
+    // incremented after topic levels have been created or removed
+    private val topicLevelsVersion = AtomicLong(0)
+
+    /**
+     * The [IndexStatistics] of all existing top-level topics.
+     */
+    val indexStatistics: List<IndexStatistics>
+        get() = anchor.getAllDirectChildren().mapNotNull { it.statistics }
 
     /*****************************************************************
      * Subscribe/Unsubscribe Operations
      ****************************************************************/
 
-    fun putSubscriptionId(subscriptionId: ImmutablePair<String, Int>, topic: Topic, geofence: Geofence) {
-        val level = anchor.getOrCreateChildren(*topic.levelSpecifiers)
-        level.raster.putSubscriptionIdIntoRasterEntries(geofence, subscriptionId)
+    fun putSubscriptionId(subscriptionId: Int, topic: Topic, geofence: Geofence) {
+        compactionLock.read {
+            getOrCreateTopicLevel(topic).spatialIndex.putSubscriptionId(geofence, subscriptionId)
+        }
+    }
+
+    fun removeSubscriptionId(subscriptionId: Int, topic: Topic, geofence: Geofence) {
+        compactionLock.read {
+            val level = anchor.getChildren(*topic.levelSpecifiers) ?: return
+            level.spatialIndex.removeSubscriptionId(geofence, subscriptionId)
+            topicsWithRemovals.add(topic)
+        }
+
+        if (removalsSinceCompaction.incrementAndGet() >= COMPACTION_INTERVAL) {
+            // skip if other threads currently modify the mapper, one of the next removals will try again
+            if (compactionLock.writeLock().tryLock()) {
+                try {
+                    compactTopicsWithRemovals()
+                } finally {
+                    compactionLock.writeLock().unlock()
+                }
+            }
+        }
     }
 
-    fun removeSubscriptionId(subscriptionId: ImmutablePair<String, Int>, topic: Topic, geofence: Geofence) {
-        val level = anchor.getChildren(*topic.levelSpecifiers) ?: return
-        level.raster.removeSubscriptionIdFromRasterEntries(geofence, subscriptionId)
+    /**
+     * Removes the subscription id of the given [Subscription], e.g., after its client has been removed.
+     */
+    fun removeSubscription(subscription: Subscription) {
+        removeSubscriptionId(subscription.subscriptionId, subscription.topic, subscription.geofence)
+    }
+
+    /**
+     * Replaces the geofence of an existing subscription, also see [SubscriptionSpatialIndex.updateSubscriptionId].
+     */
+    fun updateSubscriptionId(subscriptionId: Int, topic: Topic, oldGeofence: Geofence, newGeofence: Geofence) {
+        if (oldGeofence == newGeofence) {
+            return
+        }
+
+        compactionLock.read {
+            getOrCreateTopicLevel(topic).spatialIndex.updateSubscriptionId(oldGeofence, newGeofence, subscriptionId)
+            // parts of the old geofence might have become empty
+            topicsWithRemovals.add(topic)
+        }
+    }
+
+    private fun getOrCreateTopicLevel(topic: Topic): TopicLevel {
+        return anchor.getChildren(*topic.levelSpecifiers) ?: anchor.getOrCreateChildren(*topic.levelSpecifiers).also {
+            // increment after creation, so that cached results computed without the new level become invalid
+            topicLevelsVersion.incrementAndGet()
+        }
+    }
+
+    /*****************************************************************
+     * Reclamation
+     ****************************************************************/
+
+    /**
+     * Removes all [RasterEntry]s and [TopicLevel]s that became empty since the last compaction. Blocks subscribe and
+     * unsubscribe operations while running.
+     *
+     * @return the number of removed raster entries (or other structures of the spatial indexes) and topic levels
+     */
+    fun compact(): Int {
+        return compactionLock.write { compactTopicsWithRemovals() }
+    }
+
+    /**
+     * Must only be called while holding the write lock of [compactionLock].
+     */
+    private fun compactTopicsWithRemovals(): Int {
+        var removed = 0
+        var removedLevels = 0
+        for (topic in topicsWithRemovals) {
+            // collect the levels from the anchor to the topic's level
+            val path = ArrayList<TopicLevel>(topic.numberOfLevels + 1)
+            path.add(anchor)
+            for (levelSpecifier in topic.levelSpecifiers) {
+                path.add(path.last().getDirectChild(levelSpecifier) ?: break)
+            }
+            if (path.size == topic.numberOfLevels + 1) {
+                removed += path.last().spatialIndex.compact()
+            }
+
+            // remove empty levels bottom up
+            for (i in path.size - 1 downTo 1) {
+                if (!path[i - 1].removeDirectChildIfEmpty(path[i].levelSpecifier)) {
+                    break
+                }
+                removedLevels++
+            }
+        }
+        if (removedLevels > 0) {
+            // cached results might reference removed levels
+            topicLevelsVersion.incrementAndGet()
+        }
+        removed += removedLevels
+        topicsWithRemovals.clear()
+        removalsSinceCompaction.set(0)
+        logger.debug("Compaction removed {} empty structures", removed)
+        return removed
     }
 
     /*****************************************************************
@@ -49,42 +179,119 @@ class TopicAndGeofenceMapper(configuration: Configuration) {
      * When using this method, you have to run an additional contains check for the corresponding
      * geofences and the given [publisherLocation] if you want 100% accurate results.
      *
-     * Note: while unlikely, the returned list might contain some duplicates
-     *
      * @param topic - see above
      * @param publisherLocation - see above
      * @return see above
      */
-    fun getPotentialSubscriptionIds(topic: Topic, publisherLocation: Location): List<ImmutablePair<String, Int>> {
-        // get TopicLevel that match Topic
-        val matchingTopicLevels = getMatchingTopicLevels(topic)
-
-        // get subscription ids from raster for publisher location
-        val subscriptionIds = mutableListOf<ImmutablePair<String, Int>>()
-        for (matchingTopicLevel in matchingTopicLevels) {
-            subscriptionIds.addAll(matchingTopicLevel.raster.getSubscriptionIdsInRasterEntryForPublisherLocation(
-                    publisherLocation))
-        }
-
-        return subscriptionIds
+    fun getPotentialSubscriptionIds(topic: Topic, publisherLocation: Location): IntArray {
+        val subscriptionIds = SubscriptionIdList()
+        collectPotentialSubscriptionIds(topic, publisherLocation, subscriptionIds, subscriptionIds)
+        return subscriptionIds.toIntArray()
     }
 
     /**
-     * Gets all subscription ids for clients that subscribed to the given [Topic] and that have subscribed to a
+     * Gets all [Subscription]s of clients that subscribed to the given [Topic] and that have subscribed to a
      * [Geofence] which contains the publisher's current [Location].
      *
-     * Note: while unlikely, the returned list might contain some duplicates
+     * The contains check is only run for subscriptions whose geofence does not cover the whole raster entry of the
+     * publisher's location.
      *
      * @param topic - see above
      * @param publisherLocation - see above
-     * @param clientDirectory - used to get the subscription geofences that are needed for the final contains check,
-     *        also see [getPotentialSubscriptionIds].
+     * @param clientDirectory - used to resolve the subscription ids to subscriptions whose geofences are needed for the
+     *        final contains check, also see [getPotentialSubscriptionIds].
      * @return see above
      */
-    fun getSubscriptionIds(topic: Topic, publisherLocation: Location,
-                           clientDirectory: ClientDirectory): List<ImmutablePair<String, Int>> {
-        return getPotentialSubscriptionIds(topic, publisherLocation).filter { subId ->
-            clientDirectory.getSubscription(subId.left, topic)?.geofence?.contains(publisherLocation) ?: false
+    fun getSubscriptions(topic: Topic, publisherLocation: Location,
+                         clientDirectory: ClientDirectory): List<Subscription> {
+        val coveringSubscriptionIds = SubscriptionIdList()
+        val intersectingSubscriptionIds = SubscriptionIdList()
+        collectPotentialSubscriptionIds(topic, publisherLocation, coveringSubscriptionIds, intersectingSubscriptionIds)
+        return getSubscriptions(coveringSubscriptionIds, intersectingSubscriptionIds, publisherLocation, clientDirectory)
+    }
+
+    /**
+     * Resolves subscription ids collected by [collectPotentialSubscriptionIds] to the [Subscription]s whose geofence
+     * contains the publisher's current [Location], see [getSubscriptions].
+     *
+     * @param coveringSubscriptionIds - ids of subscriptions whose geofence covers the publisher location
+     * @param intersectingSubscriptionIds - ids of subscriptions whose geofence might contain the publisher location
+     * @param publisherLocation - the location of the publisher
+     * @param clientDirectory - used to resolve the subscription ids to subscriptions
+     * @return the subscriptions whose geofence contains the publisher location
+     */
+    fun getSubscriptions(coveringSubscriptionIds: SubscriptionIdList, intersectingSubscriptionIds: SubscriptionIdList,
+                         publisherLocation: Location, clientDirectory: ClientDirectory): List<Subscription> {
+        val subscriptions =
+                ArrayList<Subscription>(coveringSubscriptionIds.size + intersectingSubscriptionIds.size)
+        for (i in 0 until coveringSubscriptionIds.size) {
+            // null, if the subscription has been removed in the meantime
+            val s = clientDirectory.getSubscription(coveringSubscriptionIds[i]) ?: continue
+            subscriptions.add(s)
+        }
+        for (i in 0 until intersectingSubscriptionIds.size) {
+            val s = clientDirectory.getSubscription(intersectingSubscriptionIds[i]) ?: continue
+            if (s.geofence.contains(publisherLocation)) {
+                subscriptions.add(s)
+            }
+        }
+        return subscriptions
+    }
+
+    /**
+     * Adds the potential subscription ids of a published message to the given lists, see
+     * [getPotentialSubscriptionIds]; uses the [PublishMatchCache] if configured. The number of collected ids is the
+     * number of subscriptions that have to be resolved when matching the message, e.g., to plan how it is matched.
+     *
+     * @param topic - the topic of the published message
+     * @param publisherLocation - the location of the publisher
+     * @param coveringTarget - the list to which ids of subscriptions whose geofence covers the whole cell are added
+     * @param intersectingTarget - the list to which ids of subscriptions that only intersect with the cell are added
+     */
+    fun collectPotentialSubscriptionIds(topic: Topic, publisherLocation: Location,
+                                        coveringTarget: SubscriptionIdList,
+                                        intersectingTarget: SubscriptionIdList) {
+        val cache = publishMatchCache
+        if (cache == null) {
+            collectPotentialSubscriptionIdsFromTopicLevels(topic, publisherLocation, coveringTarget, intersectingTarget)
+            return
+        }
+
+        // versions must be read before the levels and ids are collected, so concurrent modifications invalidate
+        val cellId = calculateCellId(publisherLocation.lat, publisherLocation.lon, granularity)
+        val currentTopicLevelsVersion = topicLevelsVersion.get()
+        val result = cache.get(topic.topic, cellId, currentTopicLevelsVersion) ?: run {
+            val spatialIndexes = getMatchingTopicLevels(topic).map { it.spatialIndex }.toTypedArray()
+            val spatialIndexVersions = LongArray(spatialIndexes.size) { spatialIndexes[it].version }
+            val coveringSubscriptionIds = SubscriptionIdList()
+            val intersectingSubscriptionIds = SubscriptionIdList()
+            for (spatialIndex in spatialIndexes) {
+                spatialIndex.addSubscriptionIdsForPublisherLocation(publisherLocation,
+                        coveringSubscriptionIds,
+                        intersectingSubscriptionIds)
+            }
+            PublishMatchResult(currentTopicLevelsVersion,
+                    spatialIndexes,
+                    spatialIndexVersions,
+                    coveringSubscriptionIds.toIntArray(),
+                    intersectingSubscriptionIds.toIntArray()).also { cache.put(topic.topic, cellId, it) }
+        }
+
+        coveringTarget.addAll(result.coveringSubscriptionIds)
+        intersectingTarget.addAll(result.intersectingSubscriptionIds)
+    }
+
+    private fun collectPotentialSubscriptionIdsFromTopicLevels(topic: Topic, publisherLocation: Location,
+                                                               coveringTarget: SubscriptionIdList,
+                                                               intersectingTarget: SubscriptionIdList) {
+        // get TopicLevel that match Topic
+        val matchingTopicLevels = getMatchingTopicLevels(topic)
+
+        // get subscription ids from the spatial index of each level for publisher location
+        for (matchingTopicLevel in matchingTopicLevels) {
+            matchingTopicLevel.spatialIndex.addSubscriptionIdsForPublisherLocation(publisherLocation,
+                    coveringTarget,
+                    intersectingTarget)
         }
     }
 
@@ -108,16 +315,14 @@ class TopicAndGeofenceMapper(configuration: Configuration) {
             val levelSpecifier = topic.getLevelSpecifier(levelIndex)
             // look into each to be checked topic level
             for (topicLevel in currentLevelsInWhichChildrenHaveToBeChecked) {
-                // for each children, check whether important
-                val children = topicLevel.getAllDirectChildren()
-                for (child in children) {
-                    if (levelSpecifier == child.levelSpecifier || SINGLE_LEVEL_WILDCARD == child.levelSpecifier) {
-                        // important for single level
-                        nextLevelsInWhichChildrenHaveToBeChecked.add(child)
-                    } else if (MULTI_LEVEL_WILDCARD == child.levelSpecifier) {
-                        // important for multi level
-                        multiLevelWildcardTopicLevels.add(child)
-                    }
+                // the child with the same level specifier and the single level wildcard are important for single level
+                topicLevel.getDirectChild(levelSpecifier)?.let { nextLevelsInWhichChildrenHaveToBeChecked.add(it) }
+                if (levelSpecifier != SINGLE_LEVEL_WILDCARD) {
+                    topicLevel.singleLevelWildcardChild?.let { nextLevelsInWhichChildrenHaveToBeChecked.add(it) }
+                }
+                // the multi level wildcard is important for multi level
+                if (levelSpecifier != MULTI_LEVEL_WILDCARD) {
+                    topicLevel.multiLevelWildcardChild?.let { multiLevelWildcardTopicLevels.add(it) }
                 }
             }
 
@@ -128,12 +333,7 @@ class TopicAndGeofenceMapper(configuration: Configuration) {
 
         // check if there are any multi-level wildcards left in the next level -> if so add to multi level list
         for (topicLevel in currentLevelsInWhichChildrenHaveToBeChecked) {
-            val children = topicLevel.getAllDirectChildren()
-            for (child in children) {
-                if (MULTI_LEVEL_WILDCARD == child.levelSpecifier) {
-                    multiLevelWildcardTopicLevels.add(child)
-                }
-            }
+            topicLevel.multiLevelWildcardChild?.let { multiLevelWildcardTopicLevels.add(it) }
         }
 
         // add multilevel wildcards to all others and return
@@ -141,3 +341,20 @@ class TopicAndGeofenceMapper(configuration: Configuration) {
                 multiLevelWildcardTopicLevels.stream()).collect(Collectors.toList())
     }
 }
+
+/**
+ * Creates the [PublishMatchCache] of a [TopicAndGeofenceMapper], or returns null, if it is disabled or not supported by
+ * the configured [SpatialIndexType].
+ */
+private fun createPublishMatchCache(configuration: Configuration): PublishMatchCache? {
+    if (configuration.publishMatchCacheSize <= 0) {
+        return null
+    }
+    // only with a raster, all locations within a raster cell have the same candidates
+    if (configuration.spatialIndex != SpatialIndexType.raster) {
+        logger.warn("Publish match cache is only supported with the raster spatial index, not with {}",
+                configuration.spatialIndex)
+        return null
+    }
+    return PublishMatchCache(configuration.publishMatchCacheSize, configuration.brokerId)
+}
@@ -1,8 +1,10 @@
 package de.hasenburg.geobroker.server.storage
 
 import de.hasenburg.geobroker.commons.model.message.Topic
+import de.hasenburg.geobroker.server.main.SpatialIndexType
 import org.apache.logging.log4j.LogManager
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReference
 
 private val logger = LogManager.getLogger()
 
@@ -13,16 +15,30 @@ const val MULTI_LEVEL_WILDCARD: String = "#"
  * A [TopicLevel] is a single part of a complete [Topic]. For example, the topic a/b/c has the three
  * topic levels a, b, and c. Topic levels can also be single level wildcards [SINGLE_LEVEL_WILDCARD] or
  * multilevel wildcards [MULTI_LEVEL_WILDCARD].
+ *
+ * Each topic level stores the subscription ids of subscriptions to its topic in a [SubscriptionSpatialIndex] of the
+ * given [spatialIndexType]; its children use the same type of index.
+ *
+ * Wildcard children are kept in dedicated slots next to the other children, so matching a published topic only
+ * requires a few lookups per level, regardless of the number of children.
+ *
+ * Each child of a level without [statistics], e.g., the anchor of a [TopicAndGeofenceMapper], starts new
+ * [IndexStatistics] for its top-level topic, which are shared by all its children.
+ *
+ * @param statistics - if not null, counts this level, its children, and their spatial indexes
+ * @param mapperLabel - the mapper label of [IndexStatistics] started by children, see [IndexStatistics.mapper]
  */
-class TopicLevel(val levelSpecifier: String, granularity: Int) {
+class TopicLevel(val levelSpecifier: String, private val granularity: Int,
+                 private val spatialIndexType: SpatialIndexType = SpatialIndexType.raster,
+                 val statistics: IndexStatistics? = null,
+                 private val mapperLabel: String = statistics?.mapper ?: IndexStatistics.nextMapperLabel()) {
 
-    val raster: Raster
-    // levelSpecifier -> TopicLevel
+    val spatialIndex: SubscriptionSpatialIndex =
+            createSubscriptionSpatialIndex(spatialIndexType, granularity, statistics)
+    // levelSpecifier -> TopicLevel, without wildcards
     private val children = ConcurrentHashMap<String, TopicLevel>()
-
-    init {
-        raster = Raster(granularity)
-    }
+    private val singleLevelWildcardSlot = AtomicReference<TopicLevel?>()
+    private val multiLevelWildcardSlot = AtomicReference<TopicLevel?>()
 
     /*****************************************************************
      * Subscribe/Unsubscribe Operations
@@ -38,14 +54,35 @@ class TopicLevel(val levelSpecifier: String, granularity: Int) {
     fun getOrCreateChildren(vararg levelSpecifiers: String): TopicLevel {
         var currentChild = this
         for (specifier in levelSpecifiers) {
-            currentChild = currentChild.children.computeIfAbsent(specifier) { k ->
-                TopicLevel(specifier, raster.granularity)
-            }
+            currentChild = currentChild.getOrCreateDirectChild(specifier)
         }
 
         return currentChild
     }
 
+    private fun getOrCreateDirectChild(levelSpecifier: String): TopicLevel {
+        val slot = getWildcardSlot(levelSpecifier) ?: return children.computeIfAbsent(levelSpecifier) {
+            createChild(levelSpecifier).also { child -> child.statistics?.addTopicLevels(1) }
+        }
+        slot.get()?.let { return it }
+
+        val child = createChild(levelSpecifier)
+        if (!slot.compareAndSet(null, child)) {
+            // another thread was faster
+            return slot.get()!!
+        }
+        child.statistics?.addTopicLevels(1)
+        return child
+    }
+
+    private fun createChild(levelSpecifier: String): TopicLevel {
+        return TopicLevel(levelSpecifier,
+                granularity,
+                spatialIndexType,
+                statistics ?: IndexStatistics(mapperLabel, levelSpecifier),
+                mapperLabel)
+    }
+
     /**
      * Gets an already existing child for the given level specifiers. A minimum of one specifier must be provided. If at
      * one point none exist yet, this method returns null
@@ -56,21 +93,105 @@ class TopicLevel(val levelSpecifier: String, granularity: Int) {
     fun getChildren(vararg levelSpecifiers: String): TopicLevel? {
         var currentChild: TopicLevel? = this
         for (specifier in levelSpecifiers) {
-            currentChild = currentChild?.children?.get(specifier) ?: return null
+            currentChild = currentChild?.getDirectChild(specifier) ?: return null
         }
         return currentChild
     }
 
+    /**
+     * True, if neither this level nor any of its children store subscription ids, also see
+     * [SubscriptionSpatialIndex.isEmpty].
+     */
+    val isEmpty: Boolean
+        get() = children.isEmpty() && singleLevelWildcardSlot.get() == null && multiLevelWildcardSlot.get() == null &&
+                spatialIndex.isEmpty
+
+    /**
+     * Removes the direct child with the given level specifier, if it [isEmpty].
+     * Must not run concurrently with operations that add subscription ids to the child or its children.
+     *
+     * @param levelSpecifier - the level specifier of the child
+     * @return true, if the child has been removed
+     */
+    fun removeDirectChildIfEmpty(levelSpecifier: String): Boolean {
+        val child = getDirectChild(levelSpecifier) ?: return false
+        if (!child.isEmpty) {
+            return false
+        }
+        val slot = getWildcardSlot(levelSpecifier)
+        val removed = slot?.compareAndSet(child, null) ?: children.remove(levelSpecifier, child)
+        if (removed) {
+            child.statistics?.addTopicLevels(-1)
+            if (statistics == null) {
+                // the child was a top-level topic, which is empty now
+                child.statistics?.unregister()
+            }
+        }
+        return removed
+    }
+
     /*****************************************************************
      * Process Published Message Operations
      ****************************************************************/
 
+    /**
+     * Gets the direct child with the given level specifier, wildcards are only returned if the level specifier is
+     * the wildcard itself.
+     */
     fun getDirectChild(levelSpecifier: String): TopicLevel? {
-        return children[levelSpecifier]
+        val slot = getWildcardSlot(levelSpecifier)
+        return if (slot != null) slot.get() else children[levelSpecifier]
     }
 
+    /**
+     * The child with level specifier [SINGLE_LEVEL_WILDCARD] or null, if none exists.
+     */
+    val singleLevelWildcardChild: TopicLevel?
+        get() = singleLevelWildcardSlot.get()
+
+    /**
+     * The child with level specifier [MULTI_LEVEL_WILDCARD] or null, if none exists.
+     */
+    val multiLevelWildcardChild: TopicLevel?
+        get() = multiLevelWildcardSlot.get()
+
     fun getAllDirectChildren(): Collection<TopicLevel> {
-        return children.values
+        return children.values + listOfNotNull(singleLevelWildcardSlot.get(), multiLevelWildcardSlot.get())
+    }
+
+    private fun getWildcardSlot(levelSpecifier: String): AtomicReference<TopicLevel?>? {
+        return when (levelSpecifier) {
+            SINGLE_LEVEL_WILDCARD -> singleLevelWildcardSlot
+            MULTI_LEVEL_WILDCARD -> multiLevelWildcardSlot
+            else -> null
+        }
     }
 
 }
+
+/**
+ * Checks whether a subscription to [subscriptionTopic] matches a message published to [publishedTopic], i.e., whether
+ * [TopicAndGeofenceMapper.getMatchingTopicLevels] returns the [TopicLevel] of [subscriptionTopic] for [publishedTopic].
+ *
+ * A [SINGLE_LEVEL_WILDCARD] matches exactly one level, a [MULTI_LEVEL_WILDCARD] matches all remaining levels
+ * (including none) if it is the last level of the subscription topic.
+ *
+ * @param subscriptionTopic - the topic of the subscription, may contain wildcards
+ * @param publishedTopic - the topic of the published message
+ * @return true, if the topics match
+ */
+fun subscriptionTopicMatches(subscriptionTopic: Topic, publishedTopic: Topic): Boolean {
+    for (levelIndex in 0 until subscriptionTopic.numberOfLevels) {
+        val levelSpecifier = subscriptionTopic.getLevelSpecifier(levelIndex)
+        if (levelSpecifier == MULTI_LEVEL_WILDCARD && levelIndex == subscriptionTopic.numberOfLevels - 1) {
+            return publishedTopic.numberOfLevels >= levelIndex
+        }
+        if (levelIndex >= publishedTopic.numberOfLevels) {
+            return false
+        }
+        if (levelSpecifier != SINGLE_LEVEL_WILDCARD && levelSpecifier != publishedTopic.getLevelSpecifier(levelIndex)) {
+            return false
+        }
+    }
+    return subscriptionTopic.numberOfLevels == publishedTopic.numberOfLevels
+}
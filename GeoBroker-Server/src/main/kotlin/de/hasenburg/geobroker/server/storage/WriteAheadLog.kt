@@ -0,0 +1,498 @@
+package de.hasenburg.geobroker.server.storage
+
+import de.hasenburg.geobroker.commons.exceptions.RuntimeStorageException
+import de.hasenburg.geobroker.commons.model.message.Topic
+import de.hasenburg.geobroker.commons.model.message.WireFormat
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import de.hasenburg.geobroker.commons.model.spatial.binarySize
+import de.hasenburg.geobroker.commons.model.spatial.getGeofence
+import de.hasenburg.geobroker.commons.model.spatial.putGeofence
+import de.hasenburg.geobroker.server.matching.connectClientAtLocalBroker
+import de.hasenburg.geobroker.server.matching.disconnectClientAtLocalBroker
+import de.hasenburg.geobroker.server.matching.subscribeAtLocalBroker
+import de.hasenburg.geobroker.server.matching.unsubscribeAtLocalBroker
+import de.hasenburg.geobroker.server.matching.updateClientLocationAtLocalBroker
+import de.hasenburg.geobroker.server.storage.client.ClientDirectory
+import org.apache.logging.log4j.LogManager
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import java.util.zip.CRC32
+import kotlin.concurrent.withLock
+
+private val logger = LogManager.getLogger()
+
+private const val WAL_SEGMENT_SUFFIX = ".wal"
+private const val WAL_BUFFER_SIZE = 1 shl 20
+private const val WAL_CLIENT_LOCKS = 64
+
+private const val RECORD_CONNECT: Byte = 1
+private const val RECORD_DISCONNECT: Byte = 2
+private const val RECORD_LOCATION: Byte = 3
+private const val RECORD_SUBSCRIBE: Byte = 4
+private const val RECORD_UNSUBSCRIBE: Byte = 5
+// replaces RECORD_SUBSCRIBE, whose geofence is stored as WKT; the latter is still replayed
+private const val RECORD_SUBSCRIBE_GEOMETRY: Byte = 6
+// replaces RECORD_CONNECT, which does not contain the wire format of the client; the latter is still replayed
+private const val RECORD_CONNECT_WIRE_FORMAT: Byte = 7
+
+/**
+ * An append-only log of all changes to the clients and subscriptions of a broker, so that changes made after the last
+ * snapshot are not lost on a crash, see [replayWriteAheadLog].
+ *
+ * The message processors only append their records to a shared buffer. A dedicated thread writes the buffer to the
+ * current segment file and forces it to disk every [fsyncIntervalMillis] (group commit), so that a single fsync
+ * covers all changes of that period; these are lost if the broker crashes before. If the buffer runs full in the
+ * meantime, the appending message processor writes it without forcing it.
+ *
+ * Changes of the same client must be applied and logged within [ordered], so that its records are logged in the
+ * order in which the changes were applied, even if several message processors handle messages of the client.
+ *
+ * The log is split into numbered segment files. A new segment is started once the current one reaches
+ * [segmentSizeBytes] and whenever a snapshot is written, see [roll]; segments that precede a snapshot can be deleted.
+ *
+ * Format of each record: length of the body, body, CRC32 of the body. The body starts with the record type, followed
+ * by the client identifier and the record specific fields; strings are stored as length-prefixed UTF-8 and geofences as
+ * binary geometries, see [putGeofence].
+ *
+ * @param directory - directory of the segment files, created if it does not exist
+ * @param fsyncIntervalMillis - milliseconds between two fsyncs, must be > 0
+ * @param segmentSizeBytes - size after which a new segment is started
+ */
+class WriteAheadLog(private val directory: File, private val fsyncIntervalMillis: Int,
+                    private val segmentSizeBytes: Long) {
+
+    // a change of a client is applied and logged while holding the lock its identifier hashes to
+    private val clientLocks = Array(WAL_CLIENT_LOCKS) { ReentrantLock() }
+    // guards pending
+    private val appendLock = ReentrantLock()
+    // guards the channel and spare; if both are needed, it is acquired before appendLock
+    private val ioLock = ReentrantLock()
+
+    private var pending = ByteBuffer.allocateDirect(WAL_BUFFER_SIZE)
+    private var spare = ByteBuffer.allocateDirect(WAL_BUFFER_SIZE)
+    private var unforcedBytes = 0L
+
+    private var segmentNumber: Long
+    private var channel: FileChannel
+
+    private val encoders = ThreadLocal.withInitial { RecordEncoder() }
+
+    private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "wal-writer").apply { isDaemon = true }
+    }
+
+    init {
+        if (fsyncIntervalMillis <= 0) {
+            throw RuntimeStorageException("fsync interval must be > 0, is $fsyncIntervalMillis")
+        }
+        Files.createDirectories(directory.toPath())
+        // never append to segments that already exist, they might end with a partially written record
+        segmentNumber = (listSegments(directory).lastOrNull()?.let { segmentNumberOf(it) } ?: 0) + 1
+        channel = openSegment(segmentNumber)
+    }
+
+    fun start() {
+        executor.scheduleWithFixedDelay({ commit() },
+                fsyncIntervalMillis.toLong(),
+                fsyncIntervalMillis.toLong(),
+                TimeUnit.MILLISECONDS)
+        logger.info("Writing a write-ahead log to {}, fsync every {}ms", directory.absolutePath, fsyncIntervalMillis)
+    }
+
+    /**
+     * Stops the periodic commits, commits the remaining records, and closes the current segment.
+     */
+    fun close() {
+        executor.shutdown()
+        executor.awaitTermination(1, TimeUnit.SECONDS)
+        commit()
+        ioLock.withLock {
+            channel.close()
+        }
+    }
+
+    /*****************************************************************
+     * Records
+     ****************************************************************/
+
+    /**
+     * Runs [change], which applies and logs a change of the given client, while no other change of the client is
+     * applied or logged.
+     */
+    fun <T> ordered(clientIdentifier: String, change: () -> T): T {
+        return clientLocks[Math.floorMod(clientIdentifier.hashCode(), WAL_CLIENT_LOCKS)].withLock(change)
+    }
+
+    /**
+     * A client connected; replaces all previous state of the client.
+     */
+    fun logConnect(clientIdentifier: String, location: Location?, wireFormat: WireFormat = WireFormat.JSON) {
+        val encoder = encoders.get()
+        encoder.begin(RECORD_CONNECT_WIRE_FORMAT, clientIdentifier)
+        encoder.putLocation(location)
+        encoder.putByte(wireFormat.ordinal)
+        append(encoder.end())
+    }
+
+    fun logDisconnect(clientIdentifier: String) {
+        val encoder = encoders.get()
+        encoder.begin(RECORD_DISCONNECT, clientIdentifier)
+        append(encoder.end())
+    }
+
+    fun logLocation(clientIdentifier: String, location: Location?) {
+        val encoder = encoders.get()
+        encoder.begin(RECORD_LOCATION, clientIdentifier)
+        encoder.putLocation(location)
+        append(encoder.end())
+    }
+
+    fun logSubscribe(clientIdentifier: String, topic: Topic, geofence: Geofence) {
+        val encoder = encoders.get()
+        encoder.begin(RECORD_SUBSCRIBE_GEOMETRY, clientIdentifier)
+        encoder.putString(topic.topic)
+        encoder.putGeofence(geofence)
+        append(encoder.end())
+    }
+
+    fun logUnsubscribe(clientIdentifier: String, topic: Topic) {
+        val encoder = encoders.get()
+        encoder.begin(RECORD_UNSUBSCRIBE, clientIdentifier)
+        encoder.putString(topic.topic)
+        append(encoder.end())
+    }
+
+    private fun append(record: ByteBuffer) {
+        try {
+            while (true) {
+                appendLock.withLock {
+                    if (pending.remaining() >= record.remaining()) {
+                        pending.put(record)
+                        return
+                    }
+                }
+
+                // make room by writing the pending records, records larger than the buffer are written directly
+                ioLock.withLock {
+                    writePending()
+                    if (record.remaining() > WAL_BUFFER_SIZE) {
+                        unforcedBytes += writeFully(record)
+                        return
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            logger.error("Could not append to write-ahead log ${directory.absolutePath}", e)
+        }
+    }
+
+    /*****************************************************************
+     * Segments
+     ****************************************************************/
+
+    /**
+     * Writes the pending records to the current segment and forces them to disk. Starts a new segment if the current
+     * one reached its maximum size.
+     */
+    fun commit() {
+        try {
+            ioLock.withLock {
+                writePending()
+                if (unforcedBytes > 0) {
+                    channel.force(false)
+                    unforcedBytes = 0
+                }
+                if (channel.size() >= segmentSizeBytes) {
+                    startNextSegment()
+                }
+            }
+        } catch (e: IOException) {
+            // the records that could not be written are lost, the next commit might succeed
+            logger.error("Could not commit write-ahead log ${directory.absolutePath}", e)
+        }
+    }
+
+    /**
+     * Commits the pending records and starts a new segment; used before writing a snapshot, so that all segments
+     * preceding the returned one can be deleted once the snapshot was written, see [deleteSegmentsBefore].
+     *
+     * @return the number of the new segment
+     */
+    fun roll(): Long {
+        ioLock.withLock {
+            commit()
+            startNextSegment()
+            return segmentNumber
+        }
+    }
+
+    /**
+     * Deletes all segments whose number is smaller than [segmentNumber].
+     */
+    fun deleteSegmentsBefore(segmentNumber: Long) {
+        for (segment in listSegments(directory)) {
+            if (segmentNumberOf(segment) < segmentNumber) {
+                Files.deleteIfExists(segment.toPath())
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding [ioLock].
+     */
+    private fun startNextSegment() {
+        channel.close()
+        segmentNumber++
+        channel = openSegment(segmentNumber)
+        logger.debug("Started write-ahead log segment {}", segmentNumber)
+    }
+
+    /**
+     * Must be called while holding [ioLock].
+     */
+    private fun writePending() {
+        appendLock.withLock {
+            val full = pending
+            pending = spare
+            spare = full
+        }
+        spare.flip()
+        try {
+            unforcedBytes += writeFully(spare)
+        } finally {
+            spare.clear()
+        }
+    }
+
+    private fun writeFully(source: ByteBuffer): Int {
+        val bytes = source.remaining()
+        while (source.hasRemaining()) {
+            channel.write(source)
+        }
+        return bytes
+    }
+
+    private fun openSegment(number: Long): FileChannel {
+        return FileChannel.open(directory.resolve(segmentName(number)).toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)
+    }
+
+}
+
+/**
+ * Encodes a single record into a reusable buffer, see [WriteAheadLog] for the format.
+ */
+private class RecordEncoder {
+
+    private var buffer = ByteBuffer.allocate(256)
+    private val crc = CRC32()
+
+    fun begin(type: Byte, clientIdentifier: String) {
+        buffer.clear()
+        buffer.putInt(0) // length, set by end
+        buffer.put(type)
+        putString(clientIdentifier)
+    }
+
+    fun putString(value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        ensureRemaining(4 + bytes.size)
+        buffer.putInt(bytes.size)
+        buffer.put(bytes)
+    }
+
+    fun putByte(value: Int) {
+        ensureRemaining(1)
+        buffer.put(value.toByte())
+    }
+
+    fun putLocation(location: Location?) {
+        ensureRemaining(17)
+        buffer.put(if (location != null) 1 else 0)
+        buffer.putDouble(location?.lat ?: 0.0)
+        buffer.putDouble(location?.lon ?: 0.0)
+    }
+
+    fun putGeofence(geofence: Geofence) {
+        ensureRemaining(geofence.binarySize)
+        buffer.putGeofence(geofence)
+    }
+
+    fun end(): ByteBuffer {
+        ensureRemaining(4)
+        val length = buffer.position() - 4
+        buffer.putInt(0, length)
+        crc.reset()
+        crc.update(buffer.array(), 4, length)
+        buffer.putInt(crc.value.toInt())
+        return buffer.flip()
+    }
+
+    private fun ensureRemaining(bytes: Int) {
+        if (buffer.remaining() < bytes) {
+            val old = buffer.flip()
+            buffer = ByteBuffer.allocate(maxOf(old.capacity() * 2, old.limit() + bytes))
+            buffer.put(old)
+        }
+    }
+
+}
+
+/*****************************************************************
+ * Replay
+ ****************************************************************/
+
+/**
+ * Replays the records of all segments in [directory] on top of the clients and subscriptions restored from the last
+ * snapshot, see [restoreSnapshot]. Records that were written while the snapshot was taken might be contained in both;
+ * as each record sets the state of a client or subscription rather than modifying it, replaying them again is
+ * harmless.
+ *
+ * A partially written or corrupt record, e.g., due to a crash while writing, ends the replay of its segment; it is cut
+ * off the segment together with all following records, and the replay continues with the next segment. Segments
+ * that cannot be read are logged and skipped, so that the broker always starts.
+ *
+ * @return the number of replayed records
+ */
+fun replayWriteAheadLog(directory: File, clientDirectory: ClientDirectory,
+                        topicAndGeofenceMapper: TopicAndGeofenceMapper): Int {
+    val time = System.currentTimeMillis()
+    var numberOfRecords = 0
+    val crc = CRC32()
+
+    for (segment in listSegments(directory)) {
+        try {
+            numberOfRecords += replaySegment(segment, crc, clientDirectory, topicAndGeofenceMapper)
+        } catch (e: IOException) {
+            logger.error("Could not replay write-ahead log segment ${segment.absolutePath}, skipping it", e)
+        }
+    }
+
+    logger.info("Replayed {} records of the write-ahead log {} in {}ms",
+            numberOfRecords,
+            directory.absolutePath,
+            System.currentTimeMillis() - time)
+    return numberOfRecords
+}
+
+/**
+ * Replays the records of a single segment until its end or the first record that cannot be replayed, see
+ * [replayWriteAheadLog].
+ *
+ * @return the number of replayed records
+ */
+private fun replaySegment(segment: File, crc: CRC32, clientDirectory: ClientDirectory,
+                          topicAndGeofenceMapper: TopicAndGeofenceMapper): Int {
+    var numberOfRecords = 0
+    FileChannel.open(segment.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE).use { channel ->
+        val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+        while (buffer.hasRemaining()) {
+            val start = buffer.position()
+            val length = if (buffer.remaining() >= 4) buffer.int else -1
+            if (length <= 0 || length > buffer.remaining() - 4) {
+                truncateSegment(segment, channel, start, "a partially written record")
+                break
+            }
+            val body = buffer.slice().limit(length)
+            buffer.position(buffer.position() + length)
+            crc.reset()
+            crc.update(body.duplicate())
+            if (buffer.int != crc.value.toInt()) {
+                truncateSegment(segment, channel, start, "a record with an invalid checksum")
+                break
+            }
+            try {
+                applyRecord(body, segment, clientDirectory, topicAndGeofenceMapper)
+            } catch (e: RuntimeException) {
+                // e.g., an unknown record type or a buffer underflow of a malformed body
+                logger.error("Could not replay record at byte $start of ${segment.absolutePath}", e)
+                truncateSegment(segment, channel, start, "a record that cannot be replayed")
+                break
+            }
+            numberOfRecords++
+        }
+    }
+    return numberOfRecords
+}
+
+private fun truncateSegment(segment: File, channel: FileChannel, validBytes: Int, reason: String) {
+    logger.warn("Write-ahead log segment {} ends with {} at byte {}, cutting it off",
+            segment.absolutePath,
+            reason,
+            validBytes)
+    channel.truncate(validBytes.toLong())
+}
+
+private fun applyRecord(body: ByteBuffer, segment: File, clientDirectory: ClientDirectory,
+                        topicAndGeofenceMapper: TopicAndGeofenceMapper) {
+    val type = body.get()
+    val clientIdentifier = body.getString()
+
+    when (type) {
+        RECORD_CONNECT, RECORD_CONNECT_WIRE_FORMAT -> {
+            val location = body.getLocation()
+            val wireFormat = if (type == RECORD_CONNECT) WireFormat.JSON else body.getWireFormat()
+            // the client might already exist if the record is also contained in the snapshot, so replace it
+            disconnectClientAtLocalBroker(clientIdentifier,
+                    clientDirectory,
+                    topicAndGeofenceMapper::removeSubscription,
+                    logger)
+            connectClientAtLocalBroker(clientIdentifier,
+                    location,
+                    clientDirectory,
+                    topicAndGeofenceMapper::removeSubscription,
+                    wireFormat,
+                    logger)
+        }
+        RECORD_DISCONNECT -> {
+            disconnectClientAtLocalBroker(clientIdentifier,
+                    clientDirectory,
+                    topicAndGeofenceMapper::removeSubscription,
+                    logger)
+        }
+        RECORD_LOCATION -> {
+            updateClientLocationAtLocalBroker(clientIdentifier, body.getLocation(), clientDirectory, logger)
+        }
+        RECORD_SUBSCRIBE, RECORD_SUBSCRIBE_GEOMETRY -> {
+            val topic = Topic.intern(body.getString())
+            val geofence = if (type == RECORD_SUBSCRIBE) Geofence.fromWkt(body.getString()) else body.getGeofence()
+            subscribeAtLocalBroker(clientIdentifier, clientDirectory, topicAndGeofenceMapper, topic, geofence, logger)
+        }
+        RECORD_UNSUBSCRIBE -> {
+            val topic = Topic.intern(body.getString())
+            unsubscribeAtLocalBroker(clientIdentifier, clientDirectory, topicAndGeofenceMapper, topic, logger)
+        }
+        else -> throw RuntimeStorageException("Unknown record type $type in ${segment.absolutePath}")
+    }
+}
+
+private fun ByteBuffer.getLocation(): Location? {
+    val hasLocation = get() == 1.toByte()
+    val lat = double
+    val lon = double
+    return if (hasLocation) Location(lat, lon) else null
+}
+
+private fun segmentName(number: Long): String {
+    // zero padded, so that segments sort by name
+    return String.format("%020d%s", number, WAL_SEGMENT_SUFFIX)
+}
+
+private fun segmentNumberOf(segment: File): Long {
+    return segment.name.removeSuffix(WAL_SEGMENT_SUFFIX).toLong()
+}
+
+private fun listSegments(directory: File): List<File> {
+    val segments = directory.listFiles { f -> f.isFile && f.name.endsWith(WAL_SEGMENT_SUFFIX) } ?: return emptyList()
+    return segments.sortedBy { segmentNumberOf(it) }
+}
@@ -1,30 +1,34 @@
 package de.hasenburg.geobroker.server.storage.client
 
 import de.hasenburg.geobroker.commons.model.message.Topic
-import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.message.WireFormat
 import de.hasenburg.geobroker.commons.model.spatial.Location
 import de.hasenburg.geobroker.server.matching.DisGBAtPublisherMatchingLogic
-import org.apache.commons.lang3.tuple.ImmutablePair
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * [clientIdentifier] must be unique
  * [location] might be null, if none has been supplied yet
  * [remote] indicates whether the client is connected to another broker, so far only needed for [DisGBAtPublisherMatchingLogic]
+ * [wireFormat] is the format of all messages sent to the client, i.e., the one of its CONNECT message
  */
-class Client(val clientIdentifier: String, location: Location?, val remote: Boolean = false) {
+class Client(val clientIdentifier: String, location: Location?, val remote: Boolean = false,
+             val wireFormat: WireFormat = WireFormat.JSON) {
 
     var location: Location? = location
         private set // prevent to be set by other classes
 
+    // time of the last location or subscription update, see CoarseClock
+    @Volatile
     var heartbeat: Long = 0
-    private val lastSubscriptionId = AtomicInteger(0)
     private val subscriptions = ConcurrentHashMap<Topic, Subscription>()
 
     val subscriptionCount: Int
         get() = subscriptions.keys.size
 
+    val allSubscriptions: Collection<Subscription>
+        get() = subscriptions.values
+
     init {
         updateHeartbeat()
     }
@@ -38,11 +42,18 @@ class Client(val clientIdentifier: String, location: Location?, val remote: Bool
         this.location = location
     }
 
-    fun createAndPutSubscription(topic: Topic, geofence: Geofence): ImmutablePair<String, Int> {
+    /*****************************************************************
+     * Subscriptions
+     ****************************************************************/
+
+    /**
+     * Puts the given [Subscription], which has been created by the [SubscriptionRegistry], to this client.
+     *
+     * @return the [Subscription] that existed for the same topic before, if any
+     */
+    fun putSubscription(subscription: Subscription): Subscription? {
         updateHeartbeat()
-        val s = Subscription(ImmutablePair(clientIdentifier, lastSubscriptionId.incrementAndGet()), topic, geofence)
-        subscriptions[topic] = s
-        return s.subscriptionId
+        return subscriptions.put(subscription.topic, subscription)
     }
 
     fun getSubscription(topic: Topic): Subscription? {
@@ -58,8 +69,8 @@ class Client(val clientIdentifier: String, location: Location?, val remote: Bool
      * Others
      ****************************************************************/
 
-    private fun updateHeartbeat() {
-        heartbeat = System.currentTimeMillis()
+    fun updateHeartbeat() {
+        heartbeat = CoarseClock.millis
     }
 
     override fun toString(): String {
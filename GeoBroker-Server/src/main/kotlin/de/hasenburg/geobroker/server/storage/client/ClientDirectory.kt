@@ -1,21 +1,50 @@
 package de.hasenburg.geobroker.server.storage.client
 
 import de.hasenburg.geobroker.commons.model.message.Topic
+import de.hasenburg.geobroker.commons.model.message.WireFormat
 import de.hasenburg.geobroker.commons.model.spatial.Geofence
 import de.hasenburg.geobroker.commons.model.spatial.Location
+import de.hasenburg.geobroker.server.storage.ClientStatistics
+import de.hasenburg.geobroker.server.storage.TopicAndGeofenceMapper
 import org.apache.commons.lang3.tuple.ImmutablePair
 import org.apache.logging.log4j.LogManager
 import java.util.concurrent.ConcurrentHashMap
 
 private val logger = LogManager.getLogger()
 
-class ClientDirectory {
+// resolution of keep-alive expiry
+private const val KEEP_ALIVE_TICK_MILLIS = 1000L
+
+/**
+ * The [ClientDirectory] stores all connected clients and their subscriptions. The current client locations are also
+ * indexed in a [ClientLocationIndex], which is updated together with the location of a client.
+ *
+ * If [keepAliveSeconds] is > 0, local clients whose [Client.heartbeat] is older than that expire, see [expireClients].
+ * Each local client has one timer in a [TimerWheel]; heartbeats do not touch the wheel, instead, an expired timer is
+ * rescheduled if the client had a heartbeat in the meantime.
+ *
+ * @param keepAliveSeconds - seconds after the last heartbeat until a client expires, 0 disables the expiry
+ */
+class ClientDirectory @JvmOverloads constructor(keepAliveSeconds: Int = 0) {
 
     private val clients = ConcurrentHashMap<String, Client>()
+    val statistics = ClientStatistics()
+    val subscriptionRegistry = SubscriptionRegistry(statistics)
+    private val clientLocationIndex = ClientLocationIndex()
+
+    private val keepAliveMillis = keepAliveSeconds * 1000L
+    private val keepAliveTimers =
+            if (keepAliveSeconds > 0) TimerWheel<Client>(KEEP_ALIVE_TICK_MILLIS, CoarseClock.millis) else null
 
     val numberOfClients: Int
         get() = clients.size
 
+    /**
+     * All clients, the returned view is updated concurrently.
+     */
+    val allClients: Collection<Client>
+        get() = clients.values
+
     /*****************************************************************
      * Clients
      ****************************************************************/
@@ -34,15 +63,26 @@ class ClientDirectory {
      * @param clientIdentifier of the to be added client
      * @param initialLocation - the initial location of the client
      * @param remote - whether the client is a remote client (connected to another broker)
+     * @param wireFormat - the format of messages sent to the client
      * @return true, if added
      */
-    fun addClient(clientIdentifier: String, initialLocation: Location?, remote: Boolean = false): Boolean {
+    fun addClient(clientIdentifier: String, initialLocation: Location?, remote: Boolean = false,
+                  wireFormat: WireFormat = WireFormat.JSON): Boolean {
         logger.trace("Connecting client {}, is remote: {}", clientIdentifier, remote)
-        if (clients.containsKey(clientIdentifier)) {
-            logger.warn("Tried to add client {}, but already existed", clientIdentifier)
-            return false
+        val c = Client(clientIdentifier, initialLocation, remote, wireFormat)
+        // the location index is updated while holding the client's lock, see updateClientLocation
+        synchronized(c) {
+            if (clients.putIfAbsent(clientIdentifier, c) != null) {
+                logger.warn("Tried to add client {}, but already existed", clientIdentifier)
+                return false
+            }
+            clientLocationIndex.update(clientIdentifier, null, initialLocation)
+        }
+        statistics.addClients(1)
+        // remote clients expire at the broker they are connected to
+        if (!remote) {
+            keepAliveTimers?.schedule(c, c.heartbeat + keepAliveMillis)
         }
-        clients[clientIdentifier] = Client(clientIdentifier, initialLocation, remote)
         return true
     }
 
@@ -51,19 +91,77 @@ class ClientDirectory {
     }
 
     /**
-     * Removes a client from the directory.
-     * TODO B: the client's subscriptions should be removed from the TopicAndGeofenceMapper as well
+     * Returns the [WireFormat] of messages sent to the given client, or [WireFormat.JSON] if the client does not exist.
+     */
+    fun getWireFormat(clientIdentifier: String): WireFormat {
+        return clients[clientIdentifier]?.wireFormat ?: WireFormat.JSON
+    }
+
+    /**
+     * Removes a client from the directory. Its subscriptions are unregistered from the [SubscriptionRegistry], so their
+     * ids do not resolve anymore.
+     *
+     * The returned subscriptions still have to be removed from the storage; as each one knows its topic and geofence,
+     * this only touches the topic level and the cells it occupies, see [TopicAndGeofenceMapper.removeSubscription].
      *
      * @param clientIdentifier of the to be removed client
-     * @return true, if client existed before
+     * @return the subscriptions of the removed client or null, if the client did not exist
      */
-    fun removeClient(clientIdentifier: String): Boolean {
+    fun removeClient(clientIdentifier: String): List<Subscription>? {
         logger.trace("Removing client {}", clientIdentifier)
-        if (clients.remove(clientIdentifier) == null) {
+        val c = clients.remove(clientIdentifier)
+        if (c == null) {
             logger.warn("Tried to remove client, but did not exist")
-            return false
+            return null
+        }
+        statistics.addClients(-1)
+        val subscriptions = c.allSubscriptions.toList()
+        for (s in subscriptions) {
+            subscriptionRegistry.unregister(s)
+        }
+        synchronized(c) {
+            clientLocationIndex.update(clientIdentifier, c.location, null)
+        }
+        return subscriptions
+    }
+
+    /**
+     * Refreshes the heartbeat of the client with the given [clientIdentifier], if it exists, so that its keep-alive
+     * does not expire; does nothing if the expiry is disabled.
+     */
+    fun updateHeartbeat(clientIdentifier: String) {
+        if (keepAliveTimers != null) {
+            clients[clientIdentifier]?.updateHeartbeat()
         }
-        return true
+    }
+
+    /**
+     * Returns the identifiers of the local clients whose last heartbeat is at least keepAliveSeconds before
+     * [nowMillis]. The clients are not removed, so that callers can disconnect them properly.
+     *
+     * @param nowMillis - the current time
+     * @return the identifiers of the expired clients, empty if the expiry is disabled
+     */
+    fun expireClients(nowMillis: Long = CoarseClock.millis): List<String> {
+        val timers = keepAliveTimers ?: return emptyList()
+
+        val expired = ArrayList<String>()
+        for (c in timers.advance(nowMillis)) {
+            // ignore clients that have been removed in the meantime
+            if (clients[c.clientIdentifier] !== c) {
+                continue
+            }
+            val deadline = c.heartbeat + keepAliveMillis
+            if (deadline <= nowMillis) {
+                expired.add(c.clientIdentifier)
+            } else {
+                timers.schedule(c, deadline)
+            }
+        }
+        if (expired.isNotEmpty()) {
+            logger.debug("Keep-alive of {} clients expired", expired.size)
+        }
+        return expired
     }
 
     /**
@@ -74,7 +172,16 @@ class ClientDirectory {
         logger.trace("Updating client {} location to {}", clientIdentifier, location)
         val c = clients[clientIdentifier] ?: return false
 
-        c.updateLocation(location)
+        // synchronized, so that the index moves the client from the cell of the location it really had before
+        synchronized(c) {
+            // the client might have been removed meanwhile, it must not be added to the index again
+            if (clients[clientIdentifier] !== c) {
+                return false
+            }
+            val oldLocation = c.location
+            c.updateLocation(location)
+            clientLocationIndex.update(clientIdentifier, oldLocation, location)
+        }
         return true
     }
 
@@ -89,6 +196,36 @@ class ClientDirectory {
 
     }
 
+    /**
+     * Estimates the costs of [getClientIdentifiersInGeofence], i.e., the number of clients whose location has to be
+     * checked, see [ClientLocationIndex.countClientsInBoundingBox].
+     *
+     * @param geofence - the geofence
+     * @param limit - costs above this limit are not calculated exactly
+     * @return the estimated costs or [Int.MAX_VALUE], if above [limit] or the index cannot be used for the geofence
+     */
+    fun estimateClientsInGeofence(geofence: Geofence, limit: Int): Int {
+        return clientLocationIndex.countClientsInBoundingBox(geofence, limit)
+    }
+
+    /**
+     * Returns the identifiers of all clients whose current location is inside the given geofence. Only use this if
+     * [estimateClientsInGeofence] did not return [Int.MAX_VALUE], as otherwise the result might be incomplete.
+     *
+     * @param geofence - the geofence
+     * @return the identifiers of the clients inside the geofence
+     */
+    fun getClientIdentifiersInGeofence(geofence: Geofence): Set<String> {
+        val result = HashSet<String>()
+        clientLocationIndex.forEachClientInBoundingBox(geofence) { clientIdentifier ->
+            // the index might not reflect the latest location yet
+            if (geofence.contains(clients[clientIdentifier]?.location)) {
+                result.add(clientIdentifier)
+            }
+        }
+        return result
+    }
+
     /*****************************************************************
      * Subscriptions of Clients
      ****************************************************************/
@@ -105,18 +242,18 @@ class ClientDirectory {
     }
 
     /**
-     * Checks whether a [Client] is subscribed to the given [Topic]. If so, it calculates the [Geofence]
-     * difference (old geofence - given geofence) and returns it together with the subscription identifier of the
-     * existing [Subscription]. If not subscribed yet, return null
-     *
-     * Reasoning is that returned geofence can be used to unsubscribe from now unrelated parts.
-     *
-     * !!!!!!!!!!!!!!!!!!!!!
-     *
-     * NOTE: For now, the method returns the existing subscription's original geofence and does not calculate the
-     * difference
+     * @return the [Subscription] with the given subscription id or null, if it does not exist (anymore)
+     */
+    fun getSubscription(subscriptionId: Int): Subscription? {
+        return subscriptionRegistry.getSubscription(subscriptionId)
+    }
+
+    /**
+     * Checks whether a [Client] is subscribed to the given [Topic]. If so, it returns the subscription identifier and
+     * the current geofence of the existing [Subscription]. If not subscribed yet, return null
      *
-     * !!!!!!!!!!!!!!!!!!!!!
+     * Reasoning is that the returned geofence can be used to update the storage, which only touches the parts that
+     * differ from the given geofence, see [TopicAndGeofenceMapper.updateSubscriptionId].
      *
      * @param clientIdentifier - the identifier of the [Client]
      * @param topic - see above
@@ -124,7 +261,7 @@ class ClientDirectory {
      * @return see above
      */
     fun checkIfSubscribed(clientIdentifier: String, topic: Topic,
-                          geofence: Geofence): ImmutablePair<ImmutablePair<String, Int>, Geofence>? {
+                          geofence: Geofence): ImmutablePair<Int, Geofence>? {
         val c = clients[clientIdentifier] ?: return null
         val s = c.getSubscription(topic) ?: return null
         return ImmutablePair(s.subscriptionId, s.geofence)
@@ -139,10 +276,10 @@ class ClientDirectory {
      * @param geofence - geofence of subscription
      * @return the above specified subscription id or null if no client existed
      */
-    fun updateSubscription(clientIdentifier: String, topic: Topic, geofence: Geofence): ImmutablePair<String, Int>? {
+    fun updateSubscription(clientIdentifier: String, topic: Topic, geofence: Geofence): Int? {
         val c = clients[clientIdentifier] ?: return null
 
-        val s = c.getSubscription(topic) ?: return c.createAndPutSubscription(topic, geofence)
+        val s = c.getSubscription(topic) ?: return createSubscription(c, topic, geofence)
 
         // a subscription existed, so we need to update the geofence to the new one
         s.geofence = geofence
@@ -160,7 +297,16 @@ class ClientDirectory {
     fun removeSubscription(clientIdentifier: String, topic: Topic): Subscription? {
         val c = clients[clientIdentifier] ?: return null
 
-        return c.removeSubscription(topic)
+        val s = c.removeSubscription(topic) ?: return null
+        subscriptionRegistry.unregister(s)
+        return s
+    }
+
+    private fun createSubscription(c: Client, topic: Topic, geofence: Geofence): Int {
+        val s = subscriptionRegistry.register(c.clientIdentifier, topic, geofence)
+        // unregister the replaced subscription, in case another thread created one concurrently
+        c.putSubscription(s)?.let { subscriptionRegistry.unregister(it) }
+        return s.subscriptionId
     }
 
     /*****************************************************************
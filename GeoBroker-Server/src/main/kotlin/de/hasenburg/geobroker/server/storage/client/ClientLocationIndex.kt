@@ -0,0 +1,126 @@
+package de.hasenburg.geobroker.server.storage.client
+
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import de.hasenburg.geobroker.server.storage.calculateCellId
+import de.hasenburg.geobroker.server.storage.packCellId
+import de.hasenburg.geobroker.server.storage.unpackLatIndex
+import de.hasenburg.geobroker.server.storage.unpackLonIndex
+import org.apache.logging.log4j.LogManager
+import java.util.concurrent.ConcurrentHashMap
+
+private val logger = LogManager.getLogger()
+
+// cells of 0.1 x 0.1 degree
+const val CLIENT_LOCATION_INDEX_GRANULARITY = 10
+
+/**
+ * The [ClientLocationIndex] stores the identifiers of clients by the raster cell that contains their current location,
+ * so that the clients located inside a geofence can be determined without looking at every client.
+ *
+ * The index is maintained by the [ClientDirectory]; as a client's location might change concurrently, callers of
+ * [forEachClientInBoundingBox] must check the current location of each returned client.
+ *
+ * @param granularity - cells are 1/granularity degree wide and high, must be >= 1
+ */
+class ClientLocationIndex(private val granularity: Int = CLIENT_LOCATION_INDEX_GRANULARITY) {
+
+    // cell id -> identifiers of the clients located in the cell, cells without clients are removed
+    private val cells = ConcurrentHashMap<Long, MutableSet<String>>()
+
+    val numberOfCells: Int
+        get() = cells.size
+
+    init {
+        logger.debug("ClientLocationIndex created, granularity = {}", granularity)
+    }
+
+    /**
+     * Moves the client from the cell of its old location to the cell of its new location.
+     * Must not be called concurrently for the same client.
+     *
+     * @param clientIdentifier - the identifier of the client
+     * @param oldLocation - the previous location of the client, null if it did not have one
+     * @param newLocation - the new location of the client, null if it does not have one anymore
+     */
+    fun update(clientIdentifier: String, oldLocation: Location?, newLocation: Location?) {
+        val oldCellId = oldLocation?.let { calculateCellId(it.lat, it.lon, granularity) }
+        val newCellId = newLocation?.let { calculateCellId(it.lat, it.lon, granularity) }
+        if (oldCellId == newCellId) {
+            return
+        }
+
+        if (oldCellId != null) {
+            cells.computeIfPresent(oldCellId) { _, clientIdentifiers ->
+                clientIdentifiers.remove(clientIdentifier)
+                if (clientIdentifiers.isEmpty()) null else clientIdentifiers
+            }
+        }
+        if (newCellId != null) {
+            cells.compute(newCellId) { _, clientIdentifiers ->
+                (clientIdentifiers ?: ConcurrentHashMap.newKeySet<String>()).also { it.add(clientIdentifier) }
+            }
+        }
+    }
+
+    /**
+     * Counts the clients located in cells that intersect with the bounding box of the given geofence, i.e., the number
+     * of clients [forEachClientInBoundingBox] would return.
+     *
+     * Counting stops as soon as the number of visited cells and counted clients exceeds [limit]; in this case, or if
+     * the bounding box crosses the dateline, [Int.MAX_VALUE] is returned.
+     *
+     * @param geofence - the geofence
+     * @param limit - the maximum number of visited cells plus counted clients
+     * @return the number of clients or [Int.MAX_VALUE]
+     */
+    fun countClientsInBoundingBox(geofence: Geofence, limit: Int): Int {
+        val boundingBox = geofence.boundingBox
+        if (boundingBox.crossesDateLine) {
+            return Int.MAX_VALUE
+        }
+        val southWestCellId = calculateCellId(boundingBox.minY, boundingBox.minX, granularity)
+        val northEastCellId = calculateCellId(boundingBox.maxY, boundingBox.maxX, granularity)
+        val numberOfLatIndexes = unpackLatIndex(northEastCellId) - unpackLatIndex(southWestCellId) + 1L
+        val numberOfLonIndexes = unpackLonIndex(northEastCellId) - unpackLonIndex(southWestCellId) + 1L
+        var cost = numberOfLatIndexes * numberOfLonIndexes
+        if (cost > limit) {
+            return Int.MAX_VALUE
+        }
+
+        var count = 0
+        for (latIndex in unpackLatIndex(southWestCellId)..unpackLatIndex(northEastCellId)) {
+            for (lonIndex in unpackLonIndex(southWestCellId)..unpackLonIndex(northEastCellId)) {
+                val size = cells[packCellId(latIndex, lonIndex)]?.size ?: continue
+                count += size
+                cost += size
+                if (cost > limit) {
+                    return Int.MAX_VALUE
+                }
+            }
+        }
+        return count
+    }
+
+    /**
+     * Calls [action] for each client located in a cell that intersects with the bounding box of the given geofence.
+     * Does nothing, if the bounding box crosses the dateline, so check [countClientsInBoundingBox] beforehand.
+     *
+     * @param geofence - the geofence
+     * @param action - called with the identifier of each client
+     */
+    fun forEachClientInBoundingBox(geofence: Geofence, action: (String) -> Unit) {
+        val boundingBox = geofence.boundingBox
+        if (boundingBox.crossesDateLine) {
+            return
+        }
+        val southWestCellId = calculateCellId(boundingBox.minY, boundingBox.minX, granularity)
+        val northEastCellId = calculateCellId(boundingBox.maxY, boundingBox.maxX, granularity)
+        for (latIndex in unpackLatIndex(southWestCellId)..unpackLatIndex(northEastCellId)) {
+            for (lonIndex in unpackLonIndex(southWestCellId)..unpackLonIndex(northEastCellId)) {
+                cells[packCellId(latIndex, lonIndex)]?.forEach(action)
+            }
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+package de.hasenburg.geobroker.server.storage.client
+
+/**
+ * A clock that caches [System.currentTimeMillis], so that frequent readers, e.g., [Client] heartbeat updates, do not
+ * query the system clock each time. The cached time is refreshed by the message processors whenever they polled for
+ * a message, see [update].
+ */
+object CoarseClock {
+
+    @Volatile
+    var millis: Long = System.currentTimeMillis()
+        private set
+
+    fun update(): Long {
+        millis = System.currentTimeMillis()
+        return millis
+    }
+
+}
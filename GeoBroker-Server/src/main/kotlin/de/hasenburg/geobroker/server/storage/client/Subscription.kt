@@ -2,19 +2,22 @@ package de.hasenburg.geobroker.server.storage.client
 
 import de.hasenburg.geobroker.commons.model.message.Topic
 import de.hasenburg.geobroker.commons.model.spatial.Geofence
-import org.apache.commons.lang3.tuple.ImmutablePair
 
-
-class Subscription(val subscriptionId: ImmutablePair<String, Int>, val topic: Topic, var geofence: Geofence) {
+/**
+ * [subscriptionId] is unique across the whole broker, it is handed out by the [SubscriptionRegistry]
+ * [clientIdentifier] is the identifier of the [Client] that owns the subscription
+ */
+class Subscription(val subscriptionId: Int, val clientIdentifier: String, val topic: Topic, var geofence: Geofence) {
 
     fun getClientId(): String {
-        return subscriptionId.getLeft()
+        return clientIdentifier
     }
 
     override fun toString(): String {
         return "Subscription{" +
-                "id=" + subscriptionId.toString() +
-                "topic=" + topic +
+                "id=" + subscriptionId +
+                ", clientIdentifier=" + clientIdentifier +
+                ", topic=" + topic +
                 ", geofence=" + geofence +
                 '}'
     }
@@ -2,8 +2,8 @@ package de.hasenburg.geobroker.server.storage.client
 
 import de.hasenburg.geobroker.commons.model.disgb.BrokerInfo
 import de.hasenburg.geobroker.server.matching.DisGBAtPublisherMatchingLogic
-import org.apache.commons.lang3.tuple.ImmutablePair
 import org.apache.logging.log4j.LogManager
+import org.jctools.maps.NonBlockingHashMapLong
 import java.util.concurrent.ConcurrentHashMap
 
 private val logger = LogManager.getLogger()
@@ -16,36 +16,38 @@ private val logger = LogManager.getLogger()
  */
 class SubscriptionAffection {
 
-    // client id -> subscription id + list(broker info)
-    private val affections = ConcurrentHashMap<String, ConcurrentHashMap<ImmutablePair<String, Int>, List<BrokerInfo>>>()
+    // client id -> subscription id + list(broker info), brokers of unsubscribed subscriptions
+    private val affections = ConcurrentHashMap<String, ClientAffections>()
 
-    fun updateAffections(subscriptionId: ImmutablePair<String, Int>,
-                         otherAffectedBrokers: List<BrokerInfo>): List<BrokerInfo> {
+    val numberOfClients: Int
+        get() = affections.size
 
-        val clientAffections = affections.getOrPut(subscriptionId.left) { ConcurrentHashMap() }
+    fun updateAffections(clientIdentifier: String, subscriptionId: Int,
+                         otherAffectedBrokers: List<BrokerInfo>): List<BrokerInfo> {
 
-        val oldAffectedBrokers = clientAffections[subscriptionId]?.toMutableList() ?: mutableListOf()
+        val clientAffections = affections.computeIfAbsent(clientIdentifier) { ClientAffections() }
+        val oldAffectedBrokers = clientAffections.subscriptions.put(subscriptionId.toLong(), otherAffectedBrokers)
 
         // brokers that are in the old but not in the new list
-        val notAnymoreAffectedBrokers = oldAffectedBrokers.filter { bi -> !otherAffectedBrokers.contains(bi) }
+        val notAnymoreAffectedBrokers =
+                oldAffectedBrokers?.filter { bi -> !otherAffectedBrokers.contains(bi) } ?: emptyList()
         if (notAnymoreAffectedBrokers.isNotEmpty()) {
             logger.debug("$notAnymoreAffectedBrokers are not affected anymore by subscription $subscriptionId")
         }
 
-        clientAffections[subscriptionId] = otherAffectedBrokers
         return notAnymoreAffectedBrokers
     }
 
     /**
      * @param clientIdentifier - specifies a client
-     * @return all affections for the specified client
+     * @return all affections for the specified client, including those of subscriptions that have been unsubscribed
      */
     fun getAffections(clientIdentifier: String): Set<BrokerInfo> {
 
         val clientAffections = affections[clientIdentifier] ?: return emptySet()
 
-        val affectionSet = mutableSetOf<BrokerInfo>()
-        for (clientAffection: List<BrokerInfo> in clientAffections.values) {
+        val affectionSet = clientAffections.unsubscribedBrokers.toMutableSet()
+        for (clientAffection: List<BrokerInfo> in clientAffections.subscriptions.values) {
             affectionSet.addAll(clientAffection)
         }
 
@@ -53,27 +55,46 @@ class SubscriptionAffection {
     }
 
     /**
+     * @param clientIdentifier - specifies the client that owns the subscription
      * @param subscriptionId - specifies a subscription
      * @return all affections for the specified subscription
      */
-    fun getAffections(subscriptionId: ImmutablePair<String, Int>): List<BrokerInfo> {
-        return this.affections[subscriptionId.left]?.get(subscriptionId) ?: emptyList()
+    fun getAffections(clientIdentifier: String, subscriptionId: Int): List<BrokerInfo> {
+        return this.affections[clientIdentifier]?.subscriptions?.get(subscriptionId.toLong()) ?: emptyList()
     }
 
     fun removeAffections(clientIdentifier: String) {
         affections.remove(clientIdentifier)
     }
 
+    /**
+     * Removes the affections of the specified subscription. Its brokers still know the client, so they remain part of
+     * the client's affections until [removeAffections] is called for the whole client on disconnect.
+     *
+     * @param clientIdentifier - specifies the client that owns the subscription
+     * @param subscriptionId - specifies a subscription
+     */
+    fun removeAffections(clientIdentifier: String, subscriptionId: Int) {
+        val clientAffections = affections[clientIdentifier] ?: return
+        val removedAffections = clientAffections.subscriptions.remove(subscriptionId.toLong()) ?: return
+        clientAffections.unsubscribedBrokers.addAll(removedAffections)
+    }
+
     /**
      * Returns what other brokers do not know the client yet.
      * Calculated by [updatedAffectedBrokers] - all brokers affected by any of the client's subscriptions
      * This is required as these brokers also have to receive the most up to date client location.
      */
-    fun determineAffectedBrokersThatDoNotKnowTheClient(subscriptionId: ImmutablePair<String, Int>,
-                                             updatedAffectedBrokers: List<BrokerInfo>): List<BrokerInfo> {
+    fun determineAffectedBrokersThatDoNotKnowTheClient(clientIdentifier: String,
+                                                       updatedAffectedBrokers: List<BrokerInfo>): List<BrokerInfo> {
         val result = updatedAffectedBrokers.toMutableList()
-        result.removeAll(getAffections(subscriptionId.left))
+        result.removeAll(getAffections(clientIdentifier))
         return result
     }
 
-}
\ No newline at end of file
+    private class ClientAffections {
+        val subscriptions = NonBlockingHashMapLong<List<BrokerInfo>>()
+        val unsubscribedBrokers: MutableSet<BrokerInfo> = ConcurrentHashMap.newKeySet()
+    }
+
+}
@@ -0,0 +1,174 @@
+package de.hasenburg.geobroker.server.storage.client
+
+import de.hasenburg.geobroker.commons.exceptions.RuntimeStorageException
+import de.hasenburg.geobroker.commons.model.message.Topic
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.server.storage.ClientStatistics
+import org.apache.logging.log4j.LogManager
+import java.util.BitSet
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+private val logger = LogManager.getLogger()
+
+// a subscription id consists of a generation (upper bits) and a slot (lower bits), the sign bit is never used
+private const val SLOT_BITS = 24
+private const val SLOT_MASK = (1 shl SLOT_BITS) - 1
+private const val GENERATION_MASK = (1 shl (31 - SLOT_BITS)) - 1
+
+private const val CHUNK_BITS = 12
+private const val CHUNK_SIZE = 1 shl CHUNK_BITS
+private const val CHUNK_MASK = CHUNK_SIZE - 1
+private const val MAX_CHUNKS = 1 shl (SLOT_BITS - CHUNK_BITS)
+
+/**
+ * The [SubscriptionRegistry] hands out broker-wide unique subscription ids and resolves them to their [Subscription].
+ *
+ * Subscription ids are small integers, so the storage only has to deal with primitive ints, and resolving an id is a
+ * lookup in chunked arrays rather than in a hash map. The lower [SLOT_BITS] of an id address a slot in these chunks,
+ * the upper bits contain the generation of the slot. Slots of unregistered subscriptions are re-used, lowest chunk
+ * first, but each re-use increments the slot's generation. Thus, outdated ids that are still stored somewhere resolve
+ * to null, unless their slot has been re-used for all generations in the meantime.
+ * Chunks that became empty are released, except for the last one that still has free slots.
+ *
+ * @param statistics - counts the registered subscriptions, usually the ones of the [ClientDirectory]
+ */
+class SubscriptionRegistry(private val statistics: ClientStatistics = ClientStatistics()) {
+
+    private val numSubscriptions = AtomicInteger(0)
+
+    // chunk index -> chunk, each chunk stores CHUNK_SIZE subscriptions
+    private val chunks = AtomicReferenceArray<Chunk?>(MAX_CHUNKS)
+    // chunk index -> generation its slots start with if the chunk is created again
+    private val releasedGenerations = ByteArray(MAX_CHUNKS)
+    // indices of chunks that have free slots
+    private val availableChunks = BitSet()
+
+    val numberOfSubscriptions: Int
+        get() = numSubscriptions.get()
+
+    /**
+     * Creates a new [Subscription] with a new subscription id and registers it.
+     *
+     * @throws RuntimeStorageException if all subscription slots are in use
+     */
+    @Synchronized
+    fun register(clientIdentifier: String, topic: Topic, geofence: Geofence): Subscription {
+        var chunkIndex = availableChunks.nextSetBit(0)
+        if (chunkIndex < 0) {
+            chunkIndex = createChunk()
+        }
+        val chunk = chunks.get(chunkIndex)!!
+
+        val offset = chunk.takeFreeSlot()
+        if (!chunk.hasFreeSlots()) {
+            availableChunks.clear(chunkIndex)
+        }
+        val slot = (chunkIndex shl CHUNK_BITS) or offset
+        val subscriptionId = (chunk.generations[offset] shl SLOT_BITS) or slot
+
+        val s = Subscription(subscriptionId, clientIdentifier, topic, geofence)
+        chunk.subscriptions.set(offset, s)
+        numSubscriptions.incrementAndGet()
+        statistics.addSubscriptions(1)
+        logger.trace("Registered subscription {}", s)
+        return s
+    }
+
+    /**
+     * Unregisters the given [Subscription], afterwards its subscription id resolves to null.
+     *
+     * @return true, if the subscription was registered before
+     */
+    @Synchronized
+    fun unregister(subscription: Subscription): Boolean {
+        val slot = subscription.subscriptionId and SLOT_MASK
+        val chunkIndex = slot ushr CHUNK_BITS
+        val offset = slot and CHUNK_MASK
+        val chunk = chunks.get(chunkIndex) ?: return false
+        if (!chunk.subscriptions.compareAndSet(offset, subscription, null)) {
+            return false
+        }
+        numSubscriptions.decrementAndGet()
+        statistics.addSubscriptions(-1)
+
+        chunk.generations[offset] = (chunk.generations[offset] + 1) and GENERATION_MASK
+        chunk.putFreeSlot(offset)
+        availableChunks.set(chunkIndex)
+        if (chunk.isEmpty() && availableChunks.cardinality() > 1) {
+            releaseChunk(chunkIndex, chunk)
+        }
+        return true
+    }
+
+    /**
+     * @return the [Subscription] with the given id or null, if none is registered
+     */
+    fun getSubscription(subscriptionId: Int): Subscription? {
+        if (subscriptionId < 0) {
+            return null
+        }
+        val slot = subscriptionId and SLOT_MASK
+        val s = chunks.get(slot ushr CHUNK_BITS)?.subscriptions?.get(slot and CHUNK_MASK) ?: return null
+        // the slot might have been re-used by a subscription of another generation
+        return if (s.subscriptionId == subscriptionId) s else null
+    }
+
+    /**
+     * Creates a chunk at the lowest index that has none.
+     *
+     * @return the index of the created chunk
+     * @throws RuntimeStorageException if all chunks exist already
+     */
+    private fun createChunk(): Int {
+        var chunkIndex = 0
+        while (chunkIndex < MAX_CHUNKS && chunks.get(chunkIndex) != null) {
+            chunkIndex++
+        }
+        if (chunkIndex == MAX_CHUNKS) {
+            throw RuntimeStorageException("No subscription ids left")
+        }
+        chunks.set(chunkIndex, Chunk(releasedGenerations[chunkIndex].toInt()))
+        availableChunks.set(chunkIndex)
+        logger.trace("Created subscription chunk {}", chunkIndex)
+        return chunkIndex
+    }
+
+    private fun releaseChunk(chunkIndex: Int, chunk: Chunk) {
+        // slots of a re-created chunk start with a generation that follows the ones of the released slots
+        releasedGenerations[chunkIndex] = ((chunk.generations.maxOrNull()!! + 1) and GENERATION_MASK).toByte()
+        chunks.set(chunkIndex, null)
+        availableChunks.clear(chunkIndex)
+        logger.trace("Released subscription chunk {}", chunkIndex)
+    }
+
+    /**
+     * A chunk of [CHUNK_SIZE] slots; all fields except [subscriptions] may only be accessed while holding the lock of
+     * the registry.
+     */
+    private class Chunk(initialGeneration: Int) {
+        val subscriptions = AtomicReferenceArray<Subscription?>(CHUNK_SIZE)
+        val generations = IntArray(CHUNK_SIZE) { initialGeneration }
+
+        // stack of free offsets, initially the lowest offset is on top
+        private val freeSlots = IntArray(CHUNK_SIZE) { CHUNK_MASK - it }
+        private var numFreeSlots = CHUNK_SIZE
+
+        fun hasFreeSlots(): Boolean {
+            return numFreeSlots > 0
+        }
+
+        fun isEmpty(): Boolean {
+            return numFreeSlots == CHUNK_SIZE
+        }
+
+        fun takeFreeSlot(): Int {
+            return freeSlots[--numFreeSlots]
+        }
+
+        fun putFreeSlot(offset: Int) {
+            freeSlots[numFreeSlots++] = offset
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package de.hasenburg.geobroker.server.storage.client
+
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+private const val SLOT_BITS = 6
+private const val SLOTS = 1 shl SLOT_BITS
+private const val SLOT_MASK = SLOTS - 1L
+private const val LEVELS = 4
+
+/**
+ * A hierarchical timer wheel that returns items once their deadline has passed.
+ *
+ * The wheel consists of [LEVELS] levels with [SLOTS] slots each; a slot at level i covers [SLOTS]^i ticks. A timer is
+ * put into the lowest level whose range covers its deadline; whenever the slots of a level have been passed once, the
+ * timers of the next slot of the level above are distributed over the levels below (cascading). Thus, scheduling a
+ * timer costs O(1), and advancing the wheel costs O(1) per passed tick plus the number of expired and cascaded timers,
+ * which is independent of the total number of timers. Timers that are further away than the wheel covers, i.e.,
+ * [SLOTS]^[LEVELS] ticks, expire at the end of the covered range, so their owner has to check and reschedule them.
+ *
+ * Timers cannot be cancelled; instead, owners ignore expired items that are not of interest anymore.
+ *
+ * @param tickMillis - the resolution of the wheel, deadlines are rounded up to the next tick
+ * @param startMillis - the current time
+ */
+class TimerWheel<T>(private val tickMillis: Long, startMillis: Long) {
+
+    private val lock = ReentrantLock()
+
+    // level -> slot -> timers
+    private val wheels = Array(LEVELS) { Array(SLOTS) { ArrayList<Timer<T>>() } }
+    // all timers up to this tick have expired
+    private var currentTick = startMillis / tickMillis
+
+    var size = 0
+        private set
+
+    /**
+     * Schedules a timer for the given item, which is returned by [advance] once [deadlineMillis] has passed.
+     */
+    fun schedule(item: T, deadlineMillis: Long) {
+        lock.withLock {
+            // the current tick has expired already
+            insert(Timer(item, maxOf((deadlineMillis + tickMillis - 1) / tickMillis, currentTick + 1)))
+            size++
+        }
+    }
+
+    /**
+     * Advances the wheel to [nowMillis] and returns the items whose timers expired in the meantime. If another thread
+     * is advancing the wheel at the moment, nothing is returned, as that thread is going to return the items.
+     */
+    fun advance(nowMillis: Long): List<T> {
+        if (!lock.tryLock()) {
+            return emptyList()
+        }
+        try {
+            val nowTick = nowMillis / tickMillis
+            val expired = ArrayList<T>()
+            while (currentTick < nowTick) {
+                currentTick++
+                cascade()
+                val slot = wheels[0][(currentTick and SLOT_MASK).toInt()]
+                for (timer in slot) {
+                    expired.add(timer.item)
+                }
+                size -= slot.size
+                slot.clear()
+            }
+            return expired
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * Distributes the timers of the current slot of each level whose lower levels have just been passed once.
+     */
+    private fun cascade() {
+        for (level in 1 until LEVELS) {
+            val shift = level * SLOT_BITS
+            if (currentTick and ((1L shl shift) - 1) != 0L) {
+                return
+            }
+            val slot = wheels[level][((currentTick shr shift) and SLOT_MASK).toInt()]
+            if (slot.isNotEmpty()) {
+                val timers = ArrayList(slot)
+                slot.clear()
+                timers.forEach { insert(it) }
+            }
+        }
+    }
+
+    /**
+     * Inserts the timer at the lowest level whose range covers its tick, which must not be before [currentTick].
+     */
+    private fun insert(timer: Timer<T>) {
+        val delta = timer.tick - currentTick
+        for (level in 0 until LEVELS) {
+            val shift = level * SLOT_BITS
+            if (delta < 1L shl (shift + SLOT_BITS)) {
+                wheels[level][((timer.tick shr shift) and SLOT_MASK).toInt()].add(timer)
+                return
+            }
+        }
+
+        // out of range, expire at the end of the covered range
+        timer.tick = currentTick + (1L shl (LEVELS * SLOT_BITS)) - 1
+        insert(timer)
+    }
+
+}
+
+private class Timer<T>(val item: T, var tick: Long)
@@ -1,7 +1,8 @@
 package de.hasenburg.geobroker.server.storage.other.nogeo
 
 import de.hasenburg.geobroker.commons.model.message.Topic
-import org.apache.commons.lang3.tuple.ImmutablePair
+import de.hasenburg.geobroker.server.storage.SubscriptionIdList
+import de.hasenburg.geobroker.server.storage.client.Subscription
 import org.apache.logging.log4j.LogManager
 
 import java.util.*
@@ -25,16 +26,23 @@ class NoGeoSubscriptionIndexingStructure() {
      * Subscribe/Unsubscribe Operations
      ****************************************************************/
 
-    fun putSubscriptionId(subscriptionId: ImmutablePair<String, Int>, topic: Topic) {
+    fun putSubscriptionId(subscriptionId: Int, topic: Topic) {
         val level = anchor.getOrCreateChild(*topic.levelSpecifiers)
         level.putSubscriptionId(subscriptionId)
     }
 
-    fun removeSubscriptionId(subscriptionId: ImmutablePair<String, Int>, topic: Topic) {
+    fun removeSubscriptionId(subscriptionId: Int, topic: Topic) {
         val level = anchor.getChild(*topic.levelSpecifiers) ?: return
         level.removeSubscriptionId(subscriptionId)
     }
 
+    /**
+     * Removes the subscription id of the given [Subscription], e.g., after its client has been removed.
+     */
+    fun removeSubscription(subscription: Subscription) {
+        removeSubscriptionId(subscription.subscriptionId, subscription.topic)
+    }
+
     /*****************************************************************
      * Process Published Message Operations
      ****************************************************************/
@@ -45,21 +53,18 @@ class NoGeoSubscriptionIndexingStructure() {
      * @param topic - see above
      * @return see above
      */
-    fun getSubscriptionIds(topic: Topic): List<ImmutablePair<String, Int>> {
+    fun getSubscriptionIds(topic: Topic): IntArray {
 
         // get TopicLevel that match Topic
         val matchingTopicLevels = getMatchingTopicLevels(topic)
 
-        // get subscription ids from raster for publisher location
-        val subscriptionIds = mutableListOf<ImmutablePair<String, Int>>()
+        // get subscription ids from the matching topic levels
+        val subscriptionIds = SubscriptionIdList()
         for (matchingTopicLevel in matchingTopicLevels) {
-            val clientSets = matchingTopicLevel.allSubscriptionIds.values;
-            for (clientSet in clientSets) {
-                subscriptionIds.addAll(clientSet)
-            }
+            matchingTopicLevel.allSubscriptionIds.copyInto(subscriptionIds)
         }
 
-        return subscriptionIds
+        return subscriptionIds.toIntArray()
     }
 
     /**
@@ -82,16 +87,14 @@ class NoGeoSubscriptionIndexingStructure() {
             val levelSpecifier = topic.getLevelSpecifier(levelIndex)
             // look into each to be checked topic level
             for (topicLevel in currentLevelsInWhichChildrenHaveToBeChecked) {
-                // for each children, check whether important
-                val children = topicLevel.getAllDirectChildren()
-                for (child in children) {
-                    if (levelSpecifier == child.levelSpecifier || SINGLE_LEVEL_WILDCARD == child.levelSpecifier) {
-                        // important for single level
-                        nextLevelsInWhichChildrenHaveToBeChecked.add(child)
-                    } else if (MULTI_LEVEL_WILDCARD == child.levelSpecifier) {
-                        // important for multi level
-                        multiLevelWildcardTopicLevels.add(child)
-                    }
+                // the child with the same level specifier and the single level wildcard are important for single level
+                topicLevel.getDirectChild(levelSpecifier)?.let { nextLevelsInWhichChildrenHaveToBeChecked.add(it) }
+                if (levelSpecifier != SINGLE_LEVEL_WILDCARD) {
+                    topicLevel.singleLevelWildcardChild?.let { nextLevelsInWhichChildrenHaveToBeChecked.add(it) }
+                }
+                // the multi level wildcard is important for multi level
+                if (levelSpecifier != MULTI_LEVEL_WILDCARD) {
+                    topicLevel.multiLevelWildcardChild?.let { multiLevelWildcardTopicLevels.add(it) }
                 }
             }
 
@@ -102,12 +105,7 @@ class NoGeoSubscriptionIndexingStructure() {
 
         // check if there are any multi-level wildcards left in the next level -> if so add to multi level list
         for (topicLevel in currentLevelsInWhichChildrenHaveToBeChecked) {
-            val children = topicLevel.getAllDirectChildren()
-            for (child in children) {
-                if (MULTI_LEVEL_WILDCARD == child.levelSpecifier) {
-                    multiLevelWildcardTopicLevels.add(child)
-                }
-            }
+            topicLevel.multiLevelWildcardChild?.let { multiLevelWildcardTopicLevels.add(it) }
         }
 
         // add multilevel wildcards to all others and return
@@ -1,11 +1,11 @@
 package de.hasenburg.geobroker.server.storage.other.nogeo
 
 import de.hasenburg.geobroker.commons.model.message.Topic
-import org.apache.commons.lang3.tuple.ImmutablePair
+import de.hasenburg.geobroker.server.storage.SubscriptionIdSet
+import de.hasenburg.geobroker.server.storage.client.SubscriptionRegistry
 import org.apache.logging.log4j.LogManager
-import java.util.*
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
 
 private val logger = LogManager.getLogger()
 
@@ -16,19 +16,23 @@ const val MULTI_LEVEL_WILDCARD: String = "#"
  * A [NoGeoTopicLevel] is a single part of a complete [Topic]. For example, the topic a/b/c has the three
  * topic levels a, b, and c. Topic levels can also be single level wildcards [SINGLE_LEVEL_WILDCARD] or
  * multilevel wildcards [MULTI_LEVEL_WILDCARD].
+ *
+ * Wildcard children are kept in dedicated slots next to the other children, so matching a published topic only
+ * requires a few lookups per level, regardless of the number of children.
  */
 class NoGeoTopicLevel(val levelSpecifier: String) {
 
-    // levelSpecifier -> TopicLevel
+    // levelSpecifier -> TopicLevel, without wildcards
     private val children = ConcurrentHashMap<String, NoGeoTopicLevel>()
+    private val singleLevelWildcardSlot = AtomicReference<NoGeoTopicLevel?>()
+    private val multiLevelWildcardSlot = AtomicReference<NoGeoTopicLevel?>()
 
     // subscriptions
-    private val existingSubscriptionIds = ConcurrentHashMap<String, MutableSet<ImmutablePair<String, Int>>>()
-    private val numSubscriptionIds = AtomicInteger(0)
+    private val existingSubscriptionIds = SubscriptionIdSet()
     val numberOfSubscriptionIds: Int
-        get() = numSubscriptionIds.get()
+        get() = existingSubscriptionIds.size
 
-    val allSubscriptionIds: Map<String, Set<ImmutablePair<String, Int>>>
+    val allSubscriptionIds: SubscriptionIdSet
         get() = existingSubscriptionIds
 
     /*****************************************************************
@@ -45,14 +49,19 @@ class NoGeoTopicLevel(val levelSpecifier: String) {
     fun getOrCreateChild(vararg levelSpecifiers: String): NoGeoTopicLevel {
         var currentChild = this
         for (specifier in levelSpecifiers) {
-            currentChild = currentChild.children.computeIfAbsent(specifier) {
-                NoGeoTopicLevel(specifier)
-            }
+            currentChild = currentChild.getOrCreateDirectChild(specifier)
         }
 
         return currentChild
     }
 
+    private fun getOrCreateDirectChild(levelSpecifier: String): NoGeoTopicLevel {
+        val slot = getWildcardSlot(levelSpecifier) ?: return children.computeIfAbsent(levelSpecifier) {
+            NoGeoTopicLevel(levelSpecifier)
+        }
+        return slot.get() ?: slot.updateAndGet { it ?: NoGeoTopicLevel(levelSpecifier) }!!
+    }
+
     /**
      * Gets an already existing child for the given level specifiers. A minimum of one specifier must be provided. If at
      * one point none exist yet, this method returns null
@@ -63,7 +72,7 @@ class NoGeoTopicLevel(val levelSpecifier: String) {
     fun getChild(vararg levelSpecifiers: String): NoGeoTopicLevel? {
         var currentChild: NoGeoTopicLevel? = this
         for (specifier in levelSpecifiers) {
-            currentChild = currentChild?.children?.get(specifier) ?: return null
+            currentChild = currentChild?.getDirectChild(specifier) ?: return null
         }
         return currentChild
     }
@@ -73,12 +82,12 @@ class NoGeoTopicLevel(val levelSpecifier: String) {
      *
      * It is assumed that every subscriptionId is unique. Otherwise, inconsistencies may arise.
      *
-     * @param subscriptionId - unique identifier for a subscription that comprises a clientId and an integer
+     * @param subscriptionId - unique identifier for a subscription handed out by the [SubscriptionRegistry]
      * @return the number of subscriptionIds stored in this [NoGeoTopicLevel] after the operation completed
      */
-    fun putSubscriptionId(subscriptionId: ImmutablePair<String, Int>): Int {
-        existingSubscriptionIds.getOrPut(subscriptionId.left) { ConcurrentHashMap.newKeySet() }.add(subscriptionId)
-        return numSubscriptionIds.incrementAndGet()
+    fun putSubscriptionId(subscriptionId: Int): Int {
+        existingSubscriptionIds.add(subscriptionId)
+        return existingSubscriptionIds.size
     }
 
     /**
@@ -86,37 +95,49 @@ class NoGeoTopicLevel(val levelSpecifier: String) {
      *
      * It is assumed that every subscriptionId is unique. Otherwise, inconsistencies may arise.
      *
-     * @param subscriptionId - unique identifier for a subscription that comprises a clientId and an integer
+     * @param subscriptionId - unique identifier for a subscription handed out by the [SubscriptionRegistry]
      * @return the number of subscriptionIds stored in this [NoGeoTopicLevel] after the operation completed
      */
-    fun removeSubscriptionId(subscriptionId: ImmutablePair<String, Int>): Int {
-        if (existingSubscriptionIds[subscriptionId.left]?.remove(subscriptionId) ?: false) {
-            // if the client has entries + the id was part of the client's entries
-            return numSubscriptionIds.decrementAndGet()
-        } else {
-            return numSubscriptionIds.get()
-        }
+    fun removeSubscriptionId(subscriptionId: Int): Int {
+        existingSubscriptionIds.remove(subscriptionId)
+        return existingSubscriptionIds.size
     }
 
     /*****************************************************************
      * Process Published Message Operations
      ****************************************************************/
 
+    /**
+     * Gets the direct child with the given level specifier, wildcards are only returned if the level specifier is
+     * the wildcard itself.
+     */
     fun getDirectChild(levelSpecifier: String): NoGeoTopicLevel? {
-        return children[levelSpecifier]
+        val slot = getWildcardSlot(levelSpecifier)
+        return if (slot != null) slot.get() else children[levelSpecifier]
     }
 
-    fun getAllDirectChildren(): Collection<NoGeoTopicLevel> {
-        return children.values
-    }
+    /**
+     * The child with level specifier [SINGLE_LEVEL_WILDCARD] or null, if none exists.
+     */
+    val singleLevelWildcardChild: NoGeoTopicLevel?
+        get() = singleLevelWildcardSlot.get()
 
     /**
-     * @param clientId - the id of the [Client]
-     * @return Returns all subscriptionIds for the specified client.
+     * The child with level specifier [MULTI_LEVEL_WILDCARD] or null, if none exists.
      */
-    fun getSubscriptionIdsForClientIdentifier(clientId: String): Set<ImmutablePair<String, Int>> {
-        // this builds on the assumptions that this is faster then the toSet() method
-        return Collections.unmodifiableSet(existingSubscriptionIds[clientId])
+    val multiLevelWildcardChild: NoGeoTopicLevel?
+        get() = multiLevelWildcardSlot.get()
+
+    fun getAllDirectChildren(): Collection<NoGeoTopicLevel> {
+        return children.values + listOfNotNull(singleLevelWildcardSlot.get(), multiLevelWildcardSlot.get())
+    }
+
+    private fun getWildcardSlot(levelSpecifier: String): AtomicReference<NoGeoTopicLevel?>? {
+        return when (levelSpecifier) {
+            SINGLE_LEVEL_WILDCARD -> singleLevelWildcardSlot
+            MULTI_LEVEL_WILDCARD -> multiLevelWildcardSlot
+            else -> null
+        }
     }
 
 }
@@ -0,0 +1,65 @@
+package de.hasenburg.geobroker.server.scenarios
+
+import de.hasenburg.geobroker.client.main.SimpleClient
+import de.hasenburg.geobroker.commons.*
+import de.hasenburg.geobroker.commons.model.message.Payload.*
+import de.hasenburg.geobroker.commons.model.message.Topic
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import de.hasenburg.geobroker.server.main.Configuration
+import de.hasenburg.geobroker.server.main.server.SingleGeoBrokerServerLogic
+import io.prometheus.client.CollectorRegistry
+import org.apache.logging.log4j.LogManager
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+class KeepAliveTest {
+
+    private val logger = LogManager.getLogger()
+    private lateinit var serverLogic: SingleGeoBrokerServerLogic
+
+    @Before
+    fun setUp() {
+        logger.info("Running test setUp")
+        CollectorRegistry.defaultRegistry.clear();
+
+        serverLogic = SingleGeoBrokerServerLogic()
+        serverLogic.loadConfiguration(Configuration(keepAliveSeconds = 1))
+        serverLogic.initializeFields()
+        serverLogic.startServer()
+    }
+
+    @After
+    fun tearDown() {
+        logger.info("Running test tearDown.")
+        serverLogic.cleanUp()
+    }
+
+    @Test
+    fun testAnyMessageRefreshesKeepAlive() {
+        val l = Location.random()
+        val publisher = SimpleClient("localhost", 5559, identity = "publisher")
+        val idle = SimpleClient("localhost", 5559, identity = "idle")
+        publisher.send(CONNECTPayload(l))
+        idle.send(CONNECTPayload(l))
+        assertTrue(publisher.receiveWithTimeout(500) is CONNACKPayload)
+        assertTrue(idle.receiveWithTimeout(500) is CONNACKPayload)
+
+        // only publishes, which keeps the client connected
+        for (i in 0 until 15) {
+            publisher.send(PUBLISHPayload(Topic("test"), Geofence.circle(l, 0.1), "Content"))
+            assertTrue(publisher.receiveWithTimeout(500) is PUBACKPayload)
+            sleepNoLog(200, 0)
+        }
+
+        // whereas the client without any message expired in the meantime
+        assertTrue(serverLogic.clientDirectory.clientExists("publisher"))
+        assertFalse(serverLogic.clientDirectory.clientExists("idle"))
+
+        publisher.tearDownClient()
+        idle.tearDownClient()
+    }
+
+}
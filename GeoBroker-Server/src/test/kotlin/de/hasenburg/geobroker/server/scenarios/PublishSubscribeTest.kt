@@ -6,6 +6,7 @@ import de.hasenburg.geobroker.commons.communication.ZMQProcessManager
 import de.hasenburg.geobroker.commons.model.message.Payload.*
 import de.hasenburg.geobroker.commons.model.message.ReasonCode
 import de.hasenburg.geobroker.commons.model.message.Topic
+import de.hasenburg.geobroker.commons.model.message.WireFormat
 import de.hasenburg.geobroker.commons.model.spatial.Geofence
 import de.hasenburg.geobroker.commons.model.spatial.Location
 import de.hasenburg.geobroker.server.main.Configuration
@@ -77,6 +78,51 @@ class PublishSubscribeTest {
         client.tearDownClient()
     }
 
+    @Test
+    fun testBinaryWireFormat() {
+        val l = Location.random()
+        val g = Geofence.circle(l, 0.4)
+        val t = Topic("test")
+
+        // binary subscriber, json publisher
+        val clientSubscriber = SimpleClient("localhost", 5559, wireFormat = WireFormat.BINARY)
+        clientSubscriber.send(CONNECTPayload(l))
+        clientSubscriber.send(SUBSCRIBEPayload(t, g))
+        sleepNoLog(100, 0)
+        val clientPublisher = SimpleClient("localhost", 5559)
+        clientPublisher.send(CONNECTPayload(l))
+        clientPublisher.send(PUBLISHPayload(t, g, "Content"))
+
+        sleepNoLog(500, 0)
+
+        assertTrue(clientSubscriber.receiveWithTimeout(100) is CONNACKPayload)
+        assertTrue(clientSubscriber.receiveWithTimeout(100) is SUBACKPayload)
+        assertEquals(PUBLISHPayload(t, g, "Content"), clientSubscriber.receiveWithTimeout(100))
+        assertTrue(clientPublisher.receiveWithTimeout(100) is CONNACKPayload)
+        assertEquals(PUBACKPayload(ReasonCode.Success), clientPublisher.receiveWithTimeout(100))
+
+        clientSubscriber.tearDownClient()
+        clientPublisher.tearDownClient()
+    }
+
+    @Test
+    fun testPublisherNotConnected() {
+        val l = Location.random()
+        val g = Geofence.circle(l, 0.4)
+
+        for (wireFormat in WireFormat.values()) {
+            // rejected before the messages are decoded
+            val client = SimpleClient("localhost", 5559, wireFormat = wireFormat)
+            client.send(SUBACKPayload(ReasonCode.GrantedQoS0))
+            client.send(PUBLISHPayload(Topic("test"), g, "Content"))
+
+            assertEquals(PUBACKPayload(ReasonCode.NotConnectedOrNoLocation), client.receiveWithTimeout(500))
+            assertNull(client.receiveWithTimeout(100))
+
+            client.tearDownClient()
+        }
+    }
+
     @Test
     fun testSubscriberNotInGeofence() {
         // subscriber
@@ -0,0 +1,38 @@
+package de.hasenburg.geobroker.server.storage
+
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import org.junit.Assert.*
+import org.junit.Test
+
+class PublishMatchCacheTest {
+
+    @Test
+    fun testVersionValidation() {
+        val cache = PublishMatchCache(10, "test")
+        val raster = Raster(10)
+        val result = PublishMatchResult(0, arrayOf(raster), longArrayOf(raster.version), intArrayOf(1), intArrayOf())
+
+        cache.put("a", 1L, result)
+        assertSame(result, cache.get("a", 1L, 0))
+        assertNull(cache.get("a", 2L, 0))
+        assertNull(cache.get("b", 1L, 0))
+
+        // outdated topic levels
+        assertNull(cache.get("a", 1L, 1))
+
+        // outdated spatial index
+        raster.putSubscriptionId(Geofence.circle(Location(10.0, 10.0), 1.0), 1)
+        assertNull(cache.get("a", 1L, 0))
+    }
+
+    @Test
+    fun testMaxSize() {
+        val cache = PublishMatchCache(5, "test")
+        for (i in 0 until 20) {
+            cache.put("a", i.toLong(), PublishMatchResult(0, arrayOf(), longArrayOf(), intArrayOf(), intArrayOf()))
+        }
+        assertEquals(5, cache.size)
+    }
+
+}
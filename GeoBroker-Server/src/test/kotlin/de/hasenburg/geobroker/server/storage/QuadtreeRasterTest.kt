@@ -0,0 +1,178 @@
+package de.hasenburg.geobroker.server.storage
+
+import de.hasenburg.geobroker.commons.exceptions.RuntimeStorageException
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import org.apache.logging.log4j.LogManager
+import org.junit.Assert.*
+import org.junit.Test
+
+private val logger = LogManager.getLogger()
+
+class QuadtreeRasterTest {
+
+    @Test(expected = RuntimeStorageException::class)
+    fun testInvalidGranularity() {
+        QuadtreeRaster(0)
+    }
+
+    @Test
+    fun testMaxLevel() {
+        // finest cells must not be larger than those of a raster with the same granularity
+        assertEquals(8, QuadtreeRaster(1).maxLevel) // 180 / 2^8 = 0.70 degree
+        assertEquals(15, QuadtreeRaster(100).maxLevel) // 180 / 2^15 = 0.0055 degree
+    }
+
+    @Test
+    fun testPackAndUnpackCellId() {
+        for (level in listOf(QUADTREE_MIN_LEVEL, 10, QUADTREE_MAX_LEVEL)) {
+            val max = (1 shl level) - 1
+            for ((latIndex, lonIndex) in listOf(Pair(0, 0), Pair(max, 0), Pair(0, max), Pair(max, max))) {
+                val cellId = packQuadtreeCellId(level, latIndex, lonIndex)
+                assertEquals(level, unpackQuadtreeLevel(cellId))
+                assertEquals(latIndex, unpackQuadtreeLatIndex(cellId))
+                assertEquals(lonIndex, unpackQuadtreeLonIndex(cellId))
+            }
+        }
+    }
+
+    @Test
+    fun testPutAndThenGet() {
+        val raster = QuadtreeRaster(25)
+        val l = Location(40.007499, 116.320013)
+        val fence = Geofence.circle(l, 0.01)
+
+        raster.putSubscriptionId(fence, 1)
+        assertArrayEquals(intArrayOf(1), raster.getSubscriptionIdsForPublisherLocation(l))
+        assertTrue(raster.getSubscriptionIdsForPublisherLocation(Location(-40.0, -116.3)).isEmpty())
+
+        raster.removeSubscriptionId(fence, 1)
+        assertTrue(raster.getSubscriptionIdsForPublisherLocation(l).isEmpty())
+    }
+
+    @Test
+    fun testWorld() {
+        val raster = QuadtreeRaster(1)
+        raster.putSubscriptionId(Geofence.world(), 1)
+
+        val covering = SubscriptionIdList()
+        val intersecting = SubscriptionIdList()
+        raster.addSubscriptionIdsForPublisherLocation(Location.random(), covering, intersecting)
+        assertArrayEquals(intArrayOf(1), covering.toIntArray())
+        assertTrue(intersecting.isEmpty())
+        assertEquals(0, raster.numberOfExistingRasterEntries)
+    }
+
+    @Test
+    fun testLargeGeofenceIsStoredInBoundedNumberOfCells() {
+        val raster = QuadtreeRaster(100)
+        val center = Location(10.0, 10.0)
+        val fence = Geofence.circle(center, 20.0)
+
+        raster.putSubscriptionId(fence, 1)
+        logger.info("Stored large geofence in {} raster entries", raster.numberOfExistingRasterEntries)
+        assertTrue(raster.numberOfExistingRasterEntries <= 64)
+
+        // the center is covered, so no contains check is needed
+        val covering = SubscriptionIdList()
+        val intersecting = SubscriptionIdList()
+        raster.addSubscriptionIdsForPublisherLocation(center, covering, intersecting)
+        assertArrayEquals(intArrayOf(1), covering.toIntArray())
+        assertTrue(intersecting.isEmpty())
+    }
+
+    @Test
+    fun testDatelineGeofence() {
+        val raster = QuadtreeRaster(10)
+        val fence = Geofence.rectangle(Location(-5.0, 175.0), Location(5.0, -175.0))
+
+        raster.putSubscriptionId(fence, 1)
+        assertArrayEquals(intArrayOf(1),
+                raster.getSubscriptionIdsForPublisherLocation(Location(0.0, 179.0)))
+        assertArrayEquals(intArrayOf(1),
+                raster.getSubscriptionIdsForPublisherLocation(Location(0.0, -179.0)))
+        assertTrue(raster.getSubscriptionIdsForPublisherLocation(Location(0.0, 0.0)).isEmpty())
+    }
+
+    @Test
+    fun testUpdateSubscriptionId() {
+        val raster = QuadtreeRaster(10)
+        val testedArea = Geofence.circle(Location(10.0, 10.0), 3.0)
+        val oldFence = Geofence.circle(Location(10.0, 10.0), 1.0)
+        val newFence = Geofence.circle(Location(10.5, 10.5), 1.0)
+        raster.putSubscriptionId(oldFence, 1)
+        raster.updateSubscriptionId(oldFence, newFence, 1)
+
+        // the result equals the one of a raster that only got the new geofence
+        val expected = QuadtreeRaster(10)
+        expected.putSubscriptionId(newFence, 1)
+        for (i in 0 until 500) {
+            val l = Location.randomInGeofence(testedArea)!!
+            assertArrayEquals(expected.getSubscriptionIdsForPublisherLocation(l),
+                    raster.getSubscriptionIdsForPublisherLocation(l))
+        }
+
+        raster.compact()
+        assertEquals(expected.numberOfExistingRasterEntries, raster.numberOfExistingRasterEntries)
+    }
+
+    @Test
+    fun testCompact() {
+        val raster = QuadtreeRaster(25)
+        val l = Location(40.007499, 116.320013)
+        val fence = Geofence.circle(l, 0.01)
+
+        raster.putSubscriptionId(fence, 1)
+        val numberOfEntries = raster.numberOfExistingRasterEntries
+        raster.removeSubscriptionId(fence, 1)
+        assertEquals(numberOfEntries, raster.compact())
+        assertEquals(0, raster.numberOfExistingRasterEntries)
+        assertTrue(raster.isEmpty)
+
+        // cells and their levels are used again when needed
+        raster.putSubscriptionId(fence, 2)
+        assertArrayEquals(intArrayOf(2), raster.getSubscriptionIdsForPublisherLocation(l))
+    }
+
+    @Test
+    fun testRandomGeofences() {
+        val raster = QuadtreeRaster(10)
+        val testedArea = Geofence.circle(Location(10.0, 10.0), 10.0)
+
+        // geofences of very different sizes
+        val geofences = mutableListOf<Geofence>()
+        for (i in 0 until 200) {
+            val g = Geofence.circle(Location.randomInGeofence(testedArea)!!, 0.01 + (i % 5) * 1.5)
+            raster.putSubscriptionId(g, i)
+            geofences.add(g)
+        }
+
+        for (i in 0 until 200) {
+            val l = Location.randomInGeofence(testedArea)!!
+            val covering = SubscriptionIdList()
+            val intersecting = SubscriptionIdList()
+            raster.addSubscriptionIdsForPublisherLocation(l, covering, intersecting)
+
+            // every covering geofence contains the location
+            for (id in covering.toIntArray()) {
+                assertTrue(geofences[id].contains(l))
+            }
+
+            // every geofence that contains the location is returned exactly once
+            val candidates = covering.toIntArray() + intersecting.toIntArray()
+            assertEquals(candidates.size, candidates.toSet().size)
+            for ((id, g) in geofences.withIndex()) {
+                if (g.contains(l)) {
+                    assertTrue(candidates.contains(id))
+                }
+            }
+        }
+
+        // remove all again
+        for ((id, g) in geofences.withIndex()) {
+            raster.removeSubscriptionId(g, id)
+        }
+        assertTrue(raster.getSubscriptionIdsForPublisherLocation(Location(10.0, 10.0)).isEmpty())
+    }
+
+}
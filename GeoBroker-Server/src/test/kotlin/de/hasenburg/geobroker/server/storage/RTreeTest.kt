@@ -0,0 +1,167 @@
+package de.hasenburg.geobroker.server.storage
+
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import org.junit.Assert.*
+import org.junit.Test
+
+class RTreeTest {
+
+    @Test
+    fun testPutAndThenGet() {
+        val rTree = RTree()
+        val l = Location(40.007499, 116.320013)
+        val fence = Geofence.circle(l, 0.01)
+
+        rTree.putSubscriptionId(fence, 1)
+        assertArrayEquals(intArrayOf(1), rTree.getSubscriptionIdsForPublisherLocation(l))
+        assertTrue(rTree.getSubscriptionIdsForPublisherLocation(Location(-40.0, -116.3)).isEmpty())
+
+        rTree.removeSubscriptionId(fence, 1)
+        assertTrue(rTree.getSubscriptionIdsForPublisherLocation(l).isEmpty())
+        assertEquals(0, rTree.numberOfEntries)
+    }
+
+    @Test
+    fun testWorld() {
+        val rTree = RTree()
+        rTree.putSubscriptionId(Geofence.world(), 1)
+
+        val covering = SubscriptionIdList()
+        val intersecting = SubscriptionIdList()
+        rTree.addSubscriptionIdsForPublisherLocation(Location.random(), covering, intersecting)
+        assertArrayEquals(intArrayOf(1), covering.toIntArray())
+        assertTrue(intersecting.isEmpty())
+        assertEquals(0, rTree.numberOfEntries)
+    }
+
+    @Test
+    fun testSubscriptionIdsInTreesAndBuffer() {
+        val rTree = RTree()
+        rTree.putSubscriptionId(Geofence.world(), 0)
+        // enough entries to be stored in trees and in the buffer
+        for (id in 1..RTREE_BUFFER_SIZE + 10) {
+            rTree.putSubscriptionId(Geofence.circle(Location(10.0, id.toDouble()), 0.5), id)
+        }
+
+        // only the entries whose bounding box contains the location are returned
+        assertEquals(2, rTree.getSubscriptionIdsForPublisherLocation(Location(10.0, 5.0)).size)
+        assertEquals(2, rTree.getSubscriptionIdsForPublisherLocation(Location(10.0, 70.0)).size)
+        assertEquals(1, rTree.getSubscriptionIdsForPublisherLocation(Location(-10.0, 5.0)).size)
+
+        rTree.removeSubscriptionId(Geofence.circle(Location(10.0, 5.0), 0.5), 5)
+        assertEquals(1, rTree.getSubscriptionIdsForPublisherLocation(Location(10.0, 5.0)).size)
+    }
+
+    @Test
+    fun testDatelineGeofence() {
+        val rTree = RTree()
+        val fence = Geofence.rectangle(Location(-5.0, 175.0), Location(5.0, -175.0))
+
+        rTree.putSubscriptionId(fence, 1)
+        assertArrayEquals(intArrayOf(1), rTree.getSubscriptionIdsForPublisherLocation(Location(0.0, 179.0)))
+        assertArrayEquals(intArrayOf(1), rTree.getSubscriptionIdsForPublisherLocation(Location(0.0, -179.0)))
+        assertTrue(rTree.getSubscriptionIdsForPublisherLocation(Location(0.0, 0.0)).isEmpty())
+    }
+
+    @Test
+    fun testDatelineGeofenceInTree() {
+        val rTree = RTree()
+        rTree.putSubscriptionId(Geofence.rectangle(Location(-5.0, 175.0), Location(5.0, -175.0)), 1)
+        // the entry is bulk loaded into a tree with both of its boxes
+        for (id in 2..RTREE_BUFFER_SIZE) {
+            rTree.putSubscriptionId(Geofence.circle(Location(10.0, id.toDouble()), 0.5), id)
+        }
+        assertEquals(1, rTree.numberOfTrees)
+
+        // reported once, also on the dateline
+        for (lon in listOf(179.0, 180.0, -180.0, -179.0)) {
+            assertArrayEquals("Wrong ids at $lon",
+                    intArrayOf(1),
+                    rTree.getSubscriptionIdsForPublisherLocation(Location(0.0, lon)))
+        }
+    }
+
+    @Test
+    fun testBulkLoading() {
+        val rTree = RTree()
+        val fence = Geofence.circle(Location(10.0, 10.0), 1.0)
+
+        // buffered entries are bulk loaded into trees of increasing size
+        for (id in 0 until 3 * RTREE_BUFFER_SIZE) {
+            rTree.putSubscriptionId(fence, id)
+        }
+        assertEquals(3 * RTREE_BUFFER_SIZE, rTree.numberOfEntries)
+        assertEquals(2, rTree.numberOfTrees)
+        assertEquals(3 * RTREE_BUFFER_SIZE, rTree.getSubscriptionIdsForPublisherLocation(Location(10.0, 10.0)).size)
+
+        // removed entries are not returned anymore
+        for (id in 0 until 2 * RTREE_BUFFER_SIZE) {
+            rTree.removeSubscriptionId(fence, id)
+        }
+        val ids = rTree.getSubscriptionIdsForPublisherLocation(Location(10.0, 10.0))
+        assertEquals(RTREE_BUFFER_SIZE, ids.size)
+        assertTrue(ids.all { it >= 2 * RTREE_BUFFER_SIZE })
+
+        // the rest is removed as well
+        for (id in 2 * RTREE_BUFFER_SIZE until 3 * RTREE_BUFFER_SIZE) {
+            rTree.removeSubscriptionId(fence, id)
+        }
+        assertTrue(rTree.getSubscriptionIdsForPublisherLocation(Location(10.0, 10.0)).isEmpty())
+        assertEquals(0, rTree.numberOfTrees)
+    }
+
+    @Test
+    fun testCompact() {
+        val rTree = RTree()
+        val fence = Geofence.circle(Location(10.0, 10.0), 1.0)
+
+        for (id in 0 until 2 * RTREE_BUFFER_SIZE) {
+            rTree.putSubscriptionId(fence, id)
+        }
+        rTree.removeSubscriptionId(fence, 0)
+        assertEquals(1, rTree.compact())
+        assertEquals(0, rTree.compact())
+        assertEquals(2 * RTREE_BUFFER_SIZE - 1, rTree.getSubscriptionIdsForPublisherLocation(Location(10.0, 10.0)).size)
+
+        for (id in 1 until 2 * RTREE_BUFFER_SIZE) {
+            rTree.removeSubscriptionId(fence, id)
+        }
+        rTree.compact()
+        assertTrue(rTree.isEmpty)
+    }
+
+    @Test
+    fun testRandomGeofences() {
+        val rTree = RTree()
+        val testedArea = Geofence.circle(Location(10.0, 10.0), 10.0)
+
+        // geofences of very different sizes
+        val geofences = mutableListOf<Geofence>()
+        for (i in 0 until 500) {
+            val g = Geofence.circle(Location.randomInGeofence(testedArea)!!, 0.01 + (i % 5) * 1.5)
+            rTree.putSubscriptionId(g, i)
+            geofences.add(g)
+        }
+
+        // remove every second one
+        for (i in 0 until 500 step 2) {
+            rTree.removeSubscriptionId(geofences[i], i)
+        }
+
+        for (i in 0 until 200) {
+            val l = Location.randomInGeofence(testedArea)!!
+            val candidates = rTree.getSubscriptionIdsForPublisherLocation(l)
+
+            // every remaining geofence that contains the location is returned exactly once
+            assertEquals(candidates.size, candidates.toSet().size)
+            assertTrue(candidates.all { it % 2 == 1 })
+            for ((id, g) in geofences.withIndex()) {
+                if (id % 2 == 1 && g.contains(l)) {
+                    assertTrue(candidates.contains(id))
+                }
+            }
+        }
+    }
+
+}
@@ -5,7 +5,6 @@ import de.hasenburg.geobroker.commons.model.spatial.Geofence
 import de.hasenburg.geobroker.commons.model.spatial.Location
 import de.hasenburg.geobroker.commons.randomInt
 import de.hasenburg.geobroker.commons.setLogLevel
-import org.apache.commons.lang3.tuple.ImmutablePair
 import org.apache.logging.log4j.Level
 import org.apache.logging.log4j.LogManager
 import org.junit.After
@@ -45,18 +44,49 @@ class RasterEntryTest {
     @Test
     fun testSubscribeUnsubscribe() {
         val rasterEntry = RasterEntry(Location.random(), 1.0)
-        val subscriptionId = ImmutablePair("client", 1)
+        val subscriptionId = 1
         rasterEntry.putSubscriptionId(subscriptionId)
         assertEquals(1, rasterEntry.numberOfSubscriptionIds.toLong())
-        assertEquals(1, rasterEntry.allSubscriptionIds.size.toLong())
+        assertEquals(1, rasterEntry.intersectingSubscriptionIds.size.toLong())
+        assertTrue(rasterEntry.intersectingSubscriptionIds.contains(subscriptionId))
         rasterEntry.removeSubscriptionId(subscriptionId)
         assertEquals(0, rasterEntry.numberOfSubscriptionIds.toLong())
-        assertTrue(rasterEntry.allSubscriptionIds.get(subscriptionId.left).isNullOrEmpty())
+        assertTrue(rasterEntry.intersectingSubscriptionIds.isEmpty())
+        assertFalse(rasterEntry.intersectingSubscriptionIds.contains(subscriptionId))
+    }
+
+    @Test
+    fun testSubscribeUnsubscribeCovering() {
+        val rasterEntry = RasterEntry(Location.random(), 1.0)
+        rasterEntry.putSubscriptionId(1, covering = true)
+        rasterEntry.putSubscriptionId(2)
+        assertEquals(2, rasterEntry.numberOfSubscriptionIds.toLong())
+        assertArrayEquals(intArrayOf(1), rasterEntry.coveringSubscriptionIds.toIntArray())
+        assertArrayEquals(intArrayOf(2), rasterEntry.intersectingSubscriptionIds.toIntArray())
+        assertTrue(rasterEntry.containsSubscriptionId(1))
+
+        rasterEntry.removeSubscriptionId(1)
+        assertEquals(1, rasterEntry.numberOfSubscriptionIds.toLong())
+        assertFalse(rasterEntry.containsSubscriptionId(1))
+        assertTrue(rasterEntry.coveringSubscriptionIds.isEmpty())
+    }
+
+    @Test
+    fun testUpdateSubscriptionId() {
+        val rasterEntry = RasterEntry(Location(10.0, 10.0), 1.0)
+        rasterEntry.putSubscriptionId(1)
+
+        // already stored as intersecting
+        assertFalse(rasterEntry.updateSubscriptionId(1, false))
 
-        // fine, as the HashSet is empty, even though the key persists
-        assertEquals(1, rasterEntry.allSubscriptionIds.size.toLong())
-        // see, it is empty
-        assertEquals(0, rasterEntry.getSubscriptionIdsForClientIdentifier(subscriptionId.left).size.toLong())
+        // moved to the covering ones
+        assertTrue(rasterEntry.updateSubscriptionId(1, true))
+        assertArrayEquals(intArrayOf(1), rasterEntry.coveringSubscriptionIds.toIntArray())
+        assertTrue(rasterEntry.intersectingSubscriptionIds.isEmpty())
+
+        // not stored before
+        assertTrue(rasterEntry.updateSubscriptionId(2, false))
+        assertEquals(2, rasterEntry.numberOfSubscriptionIds)
     }
 
     /*****************************************************************
@@ -82,12 +112,12 @@ class RasterEntryTest {
 //
 //        // small speed test
 //        for (i in 0 until 100 * OPERATIONS_PER_CLIENT) {
-//            val size = rasterEntry.allSubscriptionIds.size
+//            val size = rasterEntry.intersectingSubscriptionIds.size
 //        }
 //
-//        rasterEntry.allSubscriptionIds.put("fail",
+//        rasterEntry.intersectingSubscriptionIds.put("fail",
 //                Stream.of(ImmutablePair.of("fail",
-//                        1)).collect<Set<ImmutablePair<String, Int>>, Any>(Collectors.toSet()))
+//                        1)).collect<Set<Int>, Any>(Collectors.toSet()))
 //    }
 
     /*****************************************************************
@@ -97,10 +127,7 @@ class RasterEntryTest {
     @Test
     fun testRasterEntryBox() {
         val entry = RasterEntry(Location(1.5, 1.2), 1.0)
-        val expectedBox = Geofence.polygon(Arrays.asList(Location(1.5, 1.2),
-                Location(2.5, 1.2),
-                Location(2.5, 2.2),
-                Location(1.5, 2.2)))
+        val expectedBox = Geofence.rectangle(Location(1.5, 1.2), Location(2.5, 2.2))
         assertEquals(expectedBox, entry.rasterEntryBox)
     }
 
@@ -112,11 +139,7 @@ class RasterEntryTest {
     @Throws(InterruptedException::class, ExecutionException::class, TimeoutException::class)
     fun testSingleThreaded() {
         val rasterEntry = RasterEntry(Location.random(), 1.0)
-        val clientIdentifier = "U3"
-        val f = executorService.submit(FakeClientCallable(clientIdentifier,
-                OPERATIONS_PER_CLIENT,
-                rasterEntry,
-                AtomicInteger(0)))
+        val f = executorService.submit(FakeClientCallable(OPERATIONS_PER_CLIENT, rasterEntry, AtomicInteger(0)))
         val resultList = f.get(3, TimeUnit.SECONDS)
 
         // test size
@@ -124,43 +147,42 @@ class RasterEntryTest {
         logger.info("Raster entry stores {} subscriptionIds", rasterEntry.numberOfSubscriptionIds)
 
         // compare content
-        resultList.removeAll(rasterEntry.getSubscriptionIdsForClientIdentifier(clientIdentifier))
+        resultList.removeAll(rasterEntry.intersectingSubscriptionIds.toIntArray().toSet())
         assertEquals(0, resultList.size.toLong())
-        logger.info("SubscriptionsIds of client {} match", clientIdentifier)
+        logger.info("SubscriptionsIds match")
     }
 
     /**
-     * Clients are ALLOWED to add subscriptionIds concurrently for different clientIds without inconsistencies.
+     * Clients are ALLOWED to add subscriptionIds concurrently from different id ranges without inconsistencies.
      */
     @Test
     @Throws(InterruptedException::class, ExecutionException::class, TimeoutException::class)
     fun testMultiThreadedDifferentClientIds() {
         val rasterEntry = RasterEntry(Location.random(), 1.0)
-        val futures = HashMap<String, Future<MutableSet<ImmutablePair<String, Int>>>>()
+        val futures = ArrayList<Future<MutableSet<Int>>>()
 
         for (i in 0 until THREADS) {
-            val clientIdentifier = System.nanoTime().toString() + ""
-            // every client has its own client identifier and ids are not synchronized
-            futures[clientIdentifier] = executorService.submit(FakeClientCallable(clientIdentifier,
-                    OPERATIONS_PER_CLIENT,
+            // every client has its own id range and ids are not synchronized
+            futures.add(executorService.submit(FakeClientCallable(OPERATIONS_PER_CLIENT,
                     rasterEntry,
-                    AtomicInteger(0)))
+                    AtomicInteger(i * OPERATIONS_PER_CLIENT))))
         }
 
         executorService.shutdown()
         executorService.awaitTermination(10, TimeUnit.SECONDS)
 
+        val idsFromRaster = rasterEntry.intersectingSubscriptionIds.toIntArray().toSet()
+
         var sum = 0
-        for ((clientIdentifier, future) in futures) {
+        for (future in futures) {
             // add to sum
             val idsFromThread = future.get(1, TimeUnit.SECONDS)
             sum += idsFromThread.size
 
             // check content
-            val idsFromRaster = rasterEntry.getSubscriptionIdsForClientIdentifier(clientIdentifier)
-            assertEquals(idsFromThread, idsFromRaster)
-            logger.info("SubscriptionsIds of client {} match", clientIdentifier)
+            assertTrue(idsFromRaster.containsAll(idsFromThread))
         }
+        logger.info("SubscriptionsIds of all clients match")
 
         // check size
         assertEquals(sum.toLong(), rasterEntry.numberOfSubscriptionIds.toLong())
@@ -169,30 +191,25 @@ class RasterEntryTest {
     }
 
     /**
-     * Clients are ALLOWED to add subscriptionIds concurrently for similar clientIds if each subscriptionId is unique
-     * without inconsistencies.
+     * Clients are ALLOWED to add subscriptionIds concurrently if each subscriptionId is unique without inconsistencies.
      */
     @Test
     @Throws(InterruptedException::class, ExecutionException::class, TimeoutException::class)
     fun testMultiThreadedSameClientIdSynchronized() {
         val rasterEntry = RasterEntry(Location.random(), 1.0)
-        val futures = ArrayList<Future<MutableSet<ImmutablePair<String, Int>>>>()
+        val futures = ArrayList<Future<MutableSet<Int>>>()
         val atomicInteger = AtomicInteger()
-        val clientIdentifier = "U3"
 
         for (i in 0 until THREADS) {
-            // every client has its own client identifier and ids are synchronized via an atomic integer
-            futures.add(executorService.submit(FakeClientCallable(clientIdentifier,
-                    OPERATIONS_PER_CLIENT,
-                    rasterEntry,
-                    atomicInteger)))
+            // ids are synchronized via an atomic integer
+            futures.add(executorService.submit(FakeClientCallable(OPERATIONS_PER_CLIENT, rasterEntry, atomicInteger)))
         }
 
         executorService.shutdown()
         executorService.awaitTermination(10, TimeUnit.SECONDS)
 
-        val idsFromRaster = rasterEntry.getSubscriptionIdsForClientIdentifier(clientIdentifier)
-        val idsFromThreads = HashSet<ImmutablePair<String, Int>>()
+        val idsFromRaster = rasterEntry.intersectingSubscriptionIds.toIntArray().toSet()
+        val idsFromThreads = HashSet<Int>()
 
         var sum = 0
         for (future in futures) {
@@ -210,33 +227,29 @@ class RasterEntryTest {
 
         // check if all ids in raster have been in threads lists
         assertEquals(idsFromThreads, idsFromRaster)
-        logger.info("SubscriptionsIds of client {} match", clientIdentifier)
+        logger.info("SubscriptionsIds match")
     }
 
     /**
-     * Clients are NOT ALLOWED to add subscriptionIds concurrently for similar clientIds if subscriptionIds are not
-     * unique -> leads to INCONSISTENCIES
+     * Clients are NOT ALLOWED to add subscriptionIds concurrently if subscriptionIds are not unique -> leads to
+     * INCONSISTENCIES
      */
     @Test
     @Throws(InterruptedException::class, ExecutionException::class, TimeoutException::class)
     fun testMultiThreadedSameClientIdNotSynchronized() {
         val rasterEntry = RasterEntry(Location.random(), 1.0)
-        val futures = ArrayList<Future<MutableSet<ImmutablePair<String, Int>>>>()
-        val clientIdentifier = "U3"
+        val futures = ArrayList<Future<MutableSet<Int>>>()
 
         for (i in 0 until THREADS) {
-            // every client has its own client identifier and ids are synchronized via an atomic integer
-            futures.add(executorService.submit(FakeClientCallable(clientIdentifier,
-                    OPERATIONS_PER_CLIENT,
-                    rasterEntry,
-                    AtomicInteger())))
+            // every client has its own atomic integer, so ids are not unique
+            futures.add(executorService.submit(FakeClientCallable(OPERATIONS_PER_CLIENT, rasterEntry, AtomicInteger())))
         }
 
         executorService.shutdown()
         executorService.awaitTermination(10, TimeUnit.SECONDS)
 
-        val idsFromRaster = rasterEntry.getSubscriptionIdsForClientIdentifier(clientIdentifier)
-        val idsFromThreads = HashSet<ImmutablePair<String, Int>>()
+        val idsFromRaster = rasterEntry.intersectingSubscriptionIds.toIntArray().toSet()
+        val idsFromThreads = HashSet<Int>()
 
         var sum = 0
         for (future in futures) {
@@ -256,25 +269,24 @@ class RasterEntryTest {
 
         // check if all ids in raster have been in threads lists
         assertNotEquals(idsFromThreads, idsFromRaster)
-        logger.info("Raster entry has not subscriptionIds that have not been added for client {}", clientIdentifier)
+        logger.info("Raster entry has subscriptionIds that are not known by the clients")
     }
 
 }
 
-private class FakeClientCallable(private val clientIdentifier: String, private val numberOfOperations: Int,
-                                 private val rasterEntry: RasterEntry, private val currentId: AtomicInteger) :
-    Callable<MutableSet<ImmutablePair<String, Int>>> {
+private class FakeClientCallable(private val numberOfOperations: Int, private val rasterEntry: RasterEntry,
+                                 private val currentId: AtomicInteger) :
+    Callable<MutableSet<Int>> {
 
     /**
      * @return the number of Ids that should be inside the [RasterEntry] for this [FakeClientCallable].
      */
-    override fun call(): MutableSet<ImmutablePair<String, Int>> {
-        val existingIds = ArrayList<ImmutablePair<String, Int>>()
+    override fun call(): MutableSet<Int> {
+        val existingIds = ArrayList<Int>()
 
         for (i in 0 until numberOfOperations) {
             if (getTrueWithChance(70)) {
-                val id = currentId.incrementAndGet()
-                val subscriptionId = ImmutablePair.of(clientIdentifier, id)
+                val subscriptionId = currentId.incrementAndGet()
                 rasterEntry.putSubscriptionId(subscriptionId)
                 logger.trace("Added subscriptionId {}", subscriptionId)
                 existingIds.add(subscriptionId)
@@ -2,135 +2,124 @@ package de.hasenburg.geobroker.server.storage
 
 import de.hasenburg.geobroker.commons.model.spatial.Geofence
 import de.hasenburg.geobroker.commons.model.spatial.Location
-import org.apache.commons.lang3.tuple.ImmutablePair
 import org.apache.logging.log4j.LogManager
 import org.junit.After
 import org.junit.Assert.*
-import org.junit.Before
 import org.junit.Test
 import org.locationtech.spatial4j.exception.InvalidShapeException
-import java.lang.reflect.InvocationTargetException
-import java.lang.reflect.Method
 import java.util.*
+import kotlin.math.floor
 
 private val logger = LogManager.getLogger()
 
-@Suppress("PrivatePropertyName")
 class RasterTest {
 
-    private var privateMethod_calculateIndexLocation: Method? = null
-    private var privateMethod_calculateIndexLocations: Method? = null
     private var raster: Raster? = null
 
-    @Before
-    @Throws(NoSuchMethodException::class)
-    fun setUpTest() {
-        privateMethod_calculateIndexLocation = Raster::class.java.getDeclaredMethod("calculateIndexLocation",
-                Location::class.java)
-        privateMethod_calculateIndexLocations = Raster::class.java.getDeclaredMethod("calculateIndexLocations",
-                Geofence::class.java)
-
-        privateMethod_calculateIndexLocation!!.isAccessible = true
-        privateMethod_calculateIndexLocations!!.isAccessible = true
-    }
-
     @After
     fun tearDownTest() {
-        privateMethod_calculateIndexLocation = null
-        privateMethod_calculateIndexLocations = null
         raster = null
     }
 
-    private fun invokeCalculateIndexLocation(location: Location): Location? {
-        try {
-            return privateMethod_calculateIndexLocation!!.invoke(raster, location) as Location
-        } catch (e: IllegalAccessException) {
-            e.printStackTrace()
-            fail("Could not invoke private method")
-        } catch (e: InvocationTargetException) {
-            e.printStackTrace()
-            fail("Could not invoke private method")
-        }
-
-        // Stupid, I never get here, why do I need to return something?
-        return null
+    /**
+     * Returns the location of the south west corner of the cell that contains [location], as calculated by the cell
+     * id of the raster.
+     */
+    private fun calculateIndexLocation(location: Location): Location {
+        val granularity = raster!!.granularity.toDouble()
+        val cellId = calculateCellId(location.lat, location.lon, raster!!.granularity)
+        return Location(unpackLatIndex(cellId) / granularity, unpackLonIndex(cellId) / granularity)
     }
 
-    private fun invokeCalculateIndexLocations(geofence: Geofence): List<RasterEntry>? {
-        try {
-            return privateMethod_calculateIndexLocations!!.invoke(raster, geofence) as List<RasterEntry>
-        } catch (e: IllegalAccessException) {
-            e.printStackTrace()
-            fail("Could not invoke private method")
-        } catch (e: InvocationTargetException) {
-            e.printStackTrace()
-            fail("Could not invoke private method")
+    /**
+     * Adds the [geofence] to the raster and returns the locations of the south west corners of all cells that are not
+     * disjoint with it; the raster must be empty before.
+     */
+    private fun calculateIndexLocations(geofence: Geofence): List<Location> {
+        val sid = 1
+        raster!!.putSubscriptionId(geofence, sid)
+        // removes the entries that have only been created to relate them to the geofence
+        raster!!.compact()
+
+        val step = 1.0 / raster!!.granularity
+        val boundingBox = geofence.boundingBox
+        val result = ArrayList<Location>()
+        var lat = floor(boundingBox.minY * raster!!.granularity) * step
+        while (lat <= boundingBox.maxY) {
+            var lon = floor(boundingBox.minX * raster!!.granularity) * step
+            while (lon <= boundingBox.maxX) {
+                val center = Location(lat + step / 2, lon + step / 2)
+                if (raster!!.getSubscriptionIdsForPublisherLocation(center).contains(sid)) {
+                    result.add(calculateIndexLocation(center))
+                }
+                lon += step
+            }
+            lat += step
         }
-
-        // Stupid, I never get here, why do I need to return something?
-        return null
+        assertEquals(raster!!.numberOfExistingRasterEntries, result.size)
+        return result
     }
 
     @Test(expected = InvalidShapeException::class)
     fun testCalculateIndexGranularity1() {
         raster = Raster(1)
-        var calculatedIndex = invokeCalculateIndexLocation(Location(10.0, -10.0))
+        var calculatedIndex = calculateIndexLocation(Location(10.0, -10.0))
 
         // even
         assertEquals(Location(10.0, -10.0), calculatedIndex)
 
         // many fractions
-        calculatedIndex = invokeCalculateIndexLocation(Location(10.198, -11.198))
+        calculatedIndex = calculateIndexLocation(Location(10.198, -11.198))
         assertEquals(Location(10.0, -12.0), calculatedIndex)
 
         // exact boundary
-        calculatedIndex = invokeCalculateIndexLocation(Location(90.0, -180.0))
+        calculatedIndex = calculateIndexLocation(Location(90.0, -180.0))
         assertEquals(Location(90.0, -180.0), calculatedIndex)
 
         // out of bounds, expect throw
-        invokeCalculateIndexLocation(Location(91.0, -181.0))
+        calculateIndexLocation(Location(91.0, -181.0))
     }
 
     @Test(expected = InvalidShapeException::class)
     fun testCalculateIndexGranularity10() {
 
         raster = Raster(10)
-        var calculatedIndex = invokeCalculateIndexLocation(Location(10.0, -10.0))
+        var calculatedIndex = calculateIndexLocation(Location(10.0, -10.0))
 
         // even
         assertEquals(Location(10.0, -10.0), calculatedIndex)
 
         // many fractions
-        calculatedIndex = invokeCalculateIndexLocation(Location(10.198, -11.198))
+        calculatedIndex = calculateIndexLocation(Location(10.198, -11.198))
         assertEquals(Location(10.1, -11.2), calculatedIndex)
 
         // exact boundary
-        calculatedIndex = invokeCalculateIndexLocation(Location(90.0, -180.0))
+        calculatedIndex = calculateIndexLocation(Location(90.0, -180.0))
         assertEquals(Location(90.0, -180.0), calculatedIndex)
 
         // out of bounds, expect throw
-        invokeCalculateIndexLocation(Location(91.0, -181.0))
+        calculateIndexLocation(Location(91.0, -181.0))
     }
 
     @Test(expected = InvalidShapeException::class)
     fun testCalculateIndexGranularity100() {
 
         raster = Raster(100)
-        var calculatedIndex = invokeCalculateIndexLocation(Location(10.0, -10.0))
+        var calculatedIndex = calculateIndexLocation(Location(10.0, -10.0))
 
         // even
         assertEquals(Location(10.0, -10.0), calculatedIndex)
 
         // many fractions
-        calculatedIndex = invokeCalculateIndexLocation(Location(10.198, -11.198))
+        calculatedIndex = calculateIndexLocation(Location(10.198, -11.198))
         assertEquals(Location(10.19, -11.2), calculatedIndex)
 
         // exact boundary
-        calculatedIndex = invokeCalculateIndexLocation(Location(90.0, -180.0))
+        calculatedIndex = calculateIndexLocation(Location(90.0, -180.0))
         assertEquals(Location(90.0, -180.0), calculatedIndex)
 
         // out of bounds, expect throw
-        invokeCalculateIndexLocation(Location(91.0, -181.0))
+        calculateIndexLocation(Location(91.0, -181.0))
     }
 
     @Test
@@ -141,8 +130,8 @@ class RasterTest {
                 Location(1.5, 1.5),
                 Location(1.5, -0.5)))
 
-        val result = invokeCalculateIndexLocations(fence)
-        assertEquals(9, result!!.size.toLong())
+        val result = calculateIndexLocations(fence)
+        assertEquals(9, result.size.toLong())
         assertTrue(containsLocation(result, Location(-1.0, -1.0)))
         assertTrue(containsLocation(result, Location(-1.0, 0.0)))
         assertTrue(containsLocation(result, Location(-1.0, 1.0)))
@@ -159,8 +148,8 @@ class RasterTest {
         raster = Raster(1)
         val fence = Geofence.polygon(Arrays.asList(Location(-0.5, -1.5), Location(-0.5, 0.7), Location(1.7, -1.5)))
 
-        val result = invokeCalculateIndexLocations(fence)
-        assertEquals(8, result!!.size.toLong())
+        val result = calculateIndexLocations(fence)
+        assertEquals(8, result.size.toLong())
         assertTrue(containsLocation(result, Location(-1.0, -2.0)))
         assertTrue(containsLocation(result, Location(-1.0, -1.0)))
         assertTrue(containsLocation(result, Location(-1.0, 0.0)))
@@ -176,8 +165,8 @@ class RasterTest {
         raster = Raster(1)
         val fence = Geofence.circle(Location(0.5, 0.0), 1.1)
 
-        val result = invokeCalculateIndexLocations(fence)
-        assertEquals(8, result!!.size.toLong())
+        val result = calculateIndexLocations(fence)
+        assertEquals(8, result.size.toLong())
         assertTrue(containsLocation(result, Location(-1.0, -1.0)))
         assertTrue(containsLocation(result, Location(-1.0, 0.0)))
         assertTrue(containsLocation(result, Location(0.0, -2.0)))
@@ -194,12 +183,15 @@ class RasterTest {
         val l = Location(39.984702, 116.318417)
         val fence = Geofence.circle(l, 0.1)
 
-        val result = invokeCalculateIndexLocations(fence)
-        assertTrue(containsLocation(result!!, Location(39.8, 116.2)))
+        val result = calculateIndexLocations(fence)
+        // at this latitude, the circle spans more than 0.1 degree in each longitudinal direction
+        assertTrue(containsLocation(result, Location(39.8, 116.0)))
+        assertTrue(containsLocation(result, Location(39.8, 116.2)))
         assertTrue(containsLocation(result, Location(39.8, 116.4)))
+        assertTrue(containsLocation(result, Location(40.0, 116.0)))
         assertTrue(containsLocation(result, Location(40.0, 116.2)))
         assertTrue(containsLocation(result, Location(40.0, 116.4)))
-        assertEquals(4, result.size.toLong())
+        assertEquals(6, result.size.toLong())
     }
 
     @Test
@@ -208,16 +200,18 @@ class RasterTest {
         val l = Location(39.984702, 116.318417)
         val fence = Geofence.circle(l, 0.1)
 
-        val result = invokeCalculateIndexLocations(fence)
-        assertTrue(containsLocation(result!!, Location(39.8, 116.2)))
+        val result = calculateIndexLocations(fence)
+        assertTrue(containsLocation(result, Location(39.8, 116.2)))
         assertTrue(containsLocation(result, Location(39.8, 116.3)))
+        assertTrue(containsLocation(result, Location(39.9, 116.1)))
         assertTrue(containsLocation(result, Location(39.9, 116.2)))
         assertTrue(containsLocation(result, Location(39.9, 116.3)))
         assertTrue(containsLocation(result, Location(39.9, 116.4)))
+        assertTrue(containsLocation(result, Location(40.0, 116.1)))
         assertTrue(containsLocation(result, Location(40.0, 116.2)))
         assertTrue(containsLocation(result, Location(40.0, 116.3)))
         assertTrue(containsLocation(result, Location(40.0, 116.4)))
-        assertEquals(8, result.size.toLong())
+        assertEquals(10, result.size.toLong())
     }
 
     @Test
@@ -225,25 +219,135 @@ class RasterTest {
         raster = Raster(25)
         val l = Location(40.007499, 116.320013)
         val fence = Geofence.circle(l, 0.01)
-        val sid = ImmutablePair("test", 1)
+        val sid = 1
+
+        val result = calculateIndexLocations(fence)
+        val index = calculateIndexLocation(l)
+        assertTrue(containsLocation(result, index))
+
+        val ids = raster!!.getSubscriptionIdsForPublisherLocation(l)
+        logger.info(ids.contentToString())
+        assertArrayEquals(intArrayOf(sid), ids)
+    }
+
+    @Test
+    fun testPackAndUnpackCellId() {
+        for ((latIndex, lonIndex) in listOf(Pair(0, 0), Pair(-90, 180), Pair(90, -180), Pair(-1, -1),
+                Pair(9000, -18000), Pair(-9000, 18000))) {
+            val cellId = packCellId(latIndex, lonIndex)
+            assertEquals(latIndex, unpackLatIndex(cellId))
+            assertEquals(lonIndex, unpackLonIndex(cellId))
+        }
+        assertNotEquals(packCellId(1, -1), packCellId(-1, 1))
+    }
+
+    @Test
+    fun testPutAndThenGetNegativeCoordinates() {
+        raster = Raster(10)
+        val l = Location(-33.8688, -151.2093)
+        val fence = Geofence.circle(l, 0.05)
+        val sid = 1
 
-        val result = invokeCalculateIndexLocations(fence)
-        val index = invokeCalculateIndexLocation(l)
-        assertTrue(containsLocation(result!!, index))
+        raster!!.putSubscriptionId(fence, sid)
+        assertArrayEquals(intArrayOf(sid), raster!!.getSubscriptionIdsForPublisherLocation(l))
+        assertTrue(raster!!.getSubscriptionIdsForPublisherLocation(Location(-33.8688, 151.2093))
+            .isEmpty())
 
-        raster!!.putSubscriptionIdIntoRasterEntries(fence, sid)
-        val ids = raster!!.getSubscriptionIdsInRasterEntryForPublisherLocation(l)
-        logger.info(ids)
+        raster!!.removeSubscriptionId(fence, sid)
+        assertTrue(raster!!.getSubscriptionIdsForPublisherLocation(l).isEmpty())
+    }
+
+    @Test
+    fun testCoveringAndIntersectingRasterEntries() {
+        raster = Raster(10)
+        val center = Location(10.05, 10.05)
+        val fence = Geofence.circle(center, 1.0)
+        val sid = 1
+
+        raster!!.putSubscriptionId(fence, sid)
+
+        // the cell of the center is covered by the geofence
+        val coveringIds = SubscriptionIdList()
+        val intersectingIds = SubscriptionIdList()
+        raster!!.addSubscriptionIdsForPublisherLocation(center, coveringIds, intersectingIds)
+        assertArrayEquals(intArrayOf(sid), coveringIds.toIntArray())
+        assertTrue(intersectingIds.isEmpty())
+
+        // the cell at the border of the geofence is only intersected
+        val border = Location(10.05, 11.0)
+        val coveringBorderIds = SubscriptionIdList()
+        val intersectingBorderIds = SubscriptionIdList()
+        raster!!.addSubscriptionIdsForPublisherLocation(border, coveringBorderIds, intersectingBorderIds)
+        assertTrue(coveringBorderIds.isEmpty())
+        assertArrayEquals(intArrayOf(sid), intersectingBorderIds.toIntArray())
+
+        raster!!.removeSubscriptionId(fence, sid)
+        assertTrue(raster!!.getSubscriptionIdsForPublisherLocation(center).isEmpty())
+        assertTrue(raster!!.getSubscriptionIdsForPublisherLocation(border).isEmpty())
     }
 
-    private fun containsLocation(result: List<RasterEntry>, l: Location?): Boolean {
-        for (rasterEntry in result) {
-            if (rasterEntry.index == l) {
-                return true
+    @Test
+    fun testUpdateSubscriptionId() {
+        raster = Raster(10)
+        val oldFence = Geofence.circle(Location(10.0, 10.0), 0.5)
+        val newFence = Geofence.circle(Location(10.3, 10.3), 0.5)
+        raster!!.putSubscriptionId(oldFence, 1)
+        raster!!.updateSubscriptionId(oldFence, newFence, 1)
+
+        // the result equals the one of a raster that only got the new geofence
+        val expected = Raster(10)
+        expected.putSubscriptionId(newFence, 1)
+        for (lat in 90..110) {
+            for (lon in 90..110) {
+                val l = Location(lat / 10.0 + 0.05, lon / 10.0 + 0.05)
+                val covering = SubscriptionIdList()
+                val intersecting = SubscriptionIdList()
+                raster!!.addSubscriptionIdsForPublisherLocation(l, covering, intersecting)
+                val expectedCovering = SubscriptionIdList()
+                val expectedIntersecting = SubscriptionIdList()
+                expected.addSubscriptionIdsForPublisherLocation(l, expectedCovering, expectedIntersecting)
+                assertArrayEquals(expectedCovering.toIntArray(), covering.toIntArray())
+                assertArrayEquals(expectedIntersecting.toIntArray(), intersecting.toIntArray())
             }
         }
 
-        return false
+        // the entries only used by the old geofence are empty now
+        raster!!.compact()
+        expected.compact()
+        assertEquals(expected.numberOfExistingRasterEntries, raster!!.numberOfExistingRasterEntries)
+    }
+
+    @Test
+    fun testCompact() {
+        raster = Raster(10)
+        val small = Geofence.circle(Location(10.05, 10.05), 0.01)
+        val large = Geofence.circle(Location(10.05, 10.05), 0.5)
+
+        raster!!.putSubscriptionId(small, 1)
+        raster!!.putSubscriptionId(large, 2)
+        val numberOfEntries = raster!!.numberOfExistingRasterEntries
+
+        // only the entries of the large geofence become empty
+        raster!!.removeSubscriptionId(large, 2)
+        assertEquals(numberOfEntries - 1, raster!!.compact())
+        assertEquals(1, raster!!.numberOfExistingRasterEntries)
+        assertFalse(raster!!.isEmpty)
+        assertArrayEquals(intArrayOf(1), raster!!.getSubscriptionIdsForPublisherLocation(Location(10.05, 10.05)))
+
+        // nothing to do without further removals
+        assertEquals(0, raster!!.compact())
+
+        raster!!.removeSubscriptionId(small, 1)
+        assertEquals(1, raster!!.compact())
+        assertTrue(raster!!.isEmpty)
+
+        // entries are created again when needed
+        raster!!.putSubscriptionId(small, 3)
+        assertArrayEquals(intArrayOf(3), raster!!.getSubscriptionIdsForPublisherLocation(Location(10.05, 10.05)))
+    }
+
+    private fun containsLocation(result: List<Location>, l: Location): Boolean {
+        return result.contains(l)
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,95 @@
+package de.hasenburg.geobroker.server.storage
+
+import de.hasenburg.geobroker.commons.model.message.Topic
+import de.hasenburg.geobroker.commons.model.message.WireFormat
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import de.hasenburg.geobroker.server.main.Configuration
+import de.hasenburg.geobroker.server.storage.client.ClientDirectory
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+class SnapshotTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun testWriteAndLoad() {
+        val random = Random(1)
+        val area = Geofence.rectangle(Location(-60.0, -170.0), Location(60.0, 170.0))
+        val clientDirectory = ClientDirectory()
+        val topics = listOf(Topic("a/b"), Topic("a/+"), Topic("#"))
+        for (i in 0 until 1000) {
+            clientDirectory.addClient("client-$i",
+                    if (i % 10 == 0) null else Location.random(random),
+                    wireFormat = if (i % 3 == 0) WireFormat.BINARY else WireFormat.JSON)
+            for (t in topics.take(i % 4)) {
+                val geofence = Geofence.circle(Location.randomInGeofence(area, random)!!, 0.5)
+                clientDirectory.updateSubscription("client-$i", t, geofence)
+            }
+        }
+        clientDirectory.addClient("remote", Location.random(random), true)
+
+        val file = folder.newFile("broker.snapshot")
+        assertEquals(1000, writeSnapshot(clientDirectory, file))
+
+        val restoredDirectory = ClientDirectory()
+        val restoredMapper = TopicAndGeofenceMapper(Configuration(granularity = 10))
+        assertEquals(1000, loadSnapshot(file, restoredDirectory, restoredMapper))
+        assertEquals(1000, restoredDirectory.numberOfClients)
+        assertEquals(clientDirectory.subscriptionRegistry.numberOfSubscriptions,
+                restoredDirectory.subscriptionRegistry.numberOfSubscriptions)
+
+        for (i in 0 until 1000) {
+            val clientIdentifier = "client-$i"
+            assertEquals(clientDirectory.getClientLocation(clientIdentifier),
+                    restoredDirectory.getClientLocation(clientIdentifier))
+            assertEquals(clientDirectory.getWireFormat(clientIdentifier),
+                    restoredDirectory.getWireFormat(clientIdentifier))
+            for (t in topics.take(i % 4)) {
+                val geofence = clientDirectory.getSubscription(clientIdentifier, t)!!.geofence
+                val restored = restoredDirectory.getSubscription(clientIdentifier, t)!!
+                assertEquals(geofence, restored.geofence)
+                // the mapper knows the restored subscription
+                assertTrue(restoredMapper.getPotentialSubscriptionIds(Topic("a/b"), geofence.center)
+                    .contains(restored.subscriptionId))
+            }
+        }
+    }
+
+    @Test
+    fun testRestoreInvalidSnapshot() {
+        val clientDirectory = ClientDirectory()
+        val mapper = TopicAndGeofenceMapper(Configuration())
+
+        // missing and corrupt snapshots are ignored
+        assertEquals(0, restoreSnapshot(folder.root.resolve("missing"), clientDirectory, mapper))
+        val file = folder.newFile("corrupt.snapshot")
+        file.writeText("not a snapshot")
+        assertEquals(0, restoreSnapshot(file, clientDirectory, mapper))
+
+        // a snapshot replaces the previous one
+        clientDirectory.addClient("client", null)
+        writeSnapshot(clientDirectory, file)
+        assertEquals(1, restoreSnapshot(file, ClientDirectory(), mapper))
+        assertFalse(folder.root.resolve("corrupt.snapshot.tmp").exists())
+
+        // corrupt counts of clients and subscriptions are rejected before anything is allocated for them
+        clientDirectory.updateSubscription("client", Topic("a"), Geofence.circle(Location(10.0, 10.0), 1.0))
+        writeSnapshot(clientDirectory, file)
+        val valid = file.readBytes()
+        val numberOfSubscriptionsOffset = 4 + 4 + 4 + "client".length + 1 + 8 + 8 + 1
+        for (offset in listOf(4, numberOfSubscriptionsOffset)) {
+            val corrupt = valid.copyOf()
+            ByteBuffer.wrap(corrupt).putInt(offset, Int.MAX_VALUE)
+            file.writeBytes(corrupt)
+            assertEquals(0, restoreSnapshot(file, ClientDirectory(), mapper))
+        }
+    }
+
+}
@@ -4,11 +4,12 @@ import de.hasenburg.geobroker.commons.model.message.Topic
 import de.hasenburg.geobroker.commons.model.spatial.Geofence
 import de.hasenburg.geobroker.commons.model.spatial.Location
 import de.hasenburg.geobroker.commons.randomInt
-import de.hasenburg.geobroker.commons.randomName
 import de.hasenburg.geobroker.server.main.Configuration
+import de.hasenburg.geobroker.server.main.SpatialIndexType
+import de.hasenburg.geobroker.server.matching.getMatchingSubscriptions
 import de.hasenburg.geobroker.server.storage.client.ClientDirectory
-import org.apache.commons.lang3.tuple.ImmutablePair
 import org.apache.logging.log4j.LogManager
+import io.prometheus.client.CollectorRegistry
 import org.junit.Assert.*
 import org.junit.Test
 import java.util.*
@@ -20,6 +21,42 @@ class TopicAndGeofenceMapperTest {
 
     private lateinit var mapper: TopicAndGeofenceMapper
 
+    @Test
+    fun testCollectPotentialSubscriptionIds() {
+        val t = Topic("sensor/temperature")
+        val wildcard = Topic("sensor/#")
+        val l = Location(10.0, 10.0)
+        val fence = Geofence.circle(l, 1.0)
+
+        for (type in listOf(SpatialIndexType.raster, SpatialIndexType.quadtree, SpatialIndexType.rtree)) {
+            val td = ClientDirectory()
+            mapper = TopicAndGeofenceMapper(
+                    Configuration(granularity = 10, spatialIndex = type, publishMatchCacheSize = 10))
+            td.addClient("client", l)
+            val id1 = td.updateSubscription("client", t, fence)!!
+            mapper.putSubscriptionId(id1, t, fence)
+            val id2 = td.updateSubscription("client", wildcard, Geofence.world())!!
+            mapper.putSubscriptionId(id2, wildcard, Geofence.world())
+
+            // the collected ids are the ones of getPotentialSubscriptionIds, also when cached
+            for (i in 0 until 2) {
+                val covering = SubscriptionIdList()
+                val intersecting = SubscriptionIdList()
+                mapper.collectPotentialSubscriptionIds(t, l, covering, intersecting)
+                assertEquals("Wrong ids for $type",
+                        mapper.getPotentialSubscriptionIds(t, l).sorted(),
+                        (covering.toIntArray() + intersecting.toIntArray()).sorted())
+                assertEquals(2, mapper.getSubscriptions(covering, intersecting, l, td).size)
+            }
+
+            // the subscriber has to be inside the message geofence
+            assertEquals(2, getMatchingSubscriptions(t, l, fence, td, mapper).size)
+            assertEquals(0,
+                    getMatchingSubscriptions(t, l, Geofence.circle(Location(-10.0, -10.0), 1.0), td, mapper).size)
+            assertEquals(0, getMatchingSubscriptions(Topic("other"), l, fence, td, mapper).size)
+        }
+    }
+
     @Test
     fun testGetMatchingTopicLevels_NoWildcards() {
         mapper = TopicAndGeofenceMapper(Configuration())
@@ -59,6 +96,20 @@ class TopicAndGeofenceMapperTest {
         checkTopicLevels(arrayOf("#", "#"), mapper.getMatchingTopicLevels(Topic("a/b/c/d")))
     }
 
+    @Test
+    fun testSubscriptionTopicMatches() {
+        val subscriptionTopics = listOf("a/b/c", "a/b/+", "a/+/c", "a/#", "#", "+", "+/b/#", "b")
+        mapper = TopicAndGeofenceMapper(Configuration())
+        subscriptionTopics.forEachIndexed { id, t -> mapper.putSubscriptionId(id, Topic(t), Geofence.world()) }
+
+        // must match exactly the subscriptions returned by the mapper
+        for (published in listOf("a/b/c", "a/b/x", "a/x", "a", "b", "b/b", "x/b/c/d", "a/b/c/d")) {
+            val expected = mapper.getPotentialSubscriptionIds(Topic(published), Location(0.0, 0.0)).size
+            val actual = subscriptionTopics.count { subscriptionTopicMatches(Topic(it), Topic(published)) }
+            assertEquals("Wrong number of matching subscription topics for $published", expected, actual)
+        }
+    }
+
     @Test
     fun testOneGeofenceOneTopic() {
         mapper = TopicAndGeofenceMapper(Configuration())
@@ -99,9 +150,9 @@ class TopicAndGeofenceMapperTest {
         testIds1.forEach { id -> mapper.putSubscriptionId(id, t1, berlinRectangle()) }
         testIds2.forEach { id -> mapper.putSubscriptionId(id, t2, berlinRectangle()) }
 
-        var returnedIds1: MutableSet<ImmutablePair<String, Int>> =
+        var returnedIds1: MutableSet<Int> =
                 mapper.getPotentialSubscriptionIds(t1, berlinPoint()).toMutableSet()
-        var returnedIds2: MutableSet<ImmutablePair<String, Int>> =
+        var returnedIds2: MutableSet<Int> =
                 mapper.getPotentialSubscriptionIds(Topic("t/a/2"), berlinPoint()).toMutableSet()
 
         // verify berlin
@@ -137,9 +188,9 @@ class TopicAndGeofenceMapperTest {
         testIds1.forEach { id -> mapper.putSubscriptionId(id, t1, berlinRectangle()) }
         testIds2.forEach { id -> mapper.putSubscriptionId(id, t2, datelineRectangle()) }
 
-        var returnedIds1: MutableSet<ImmutablePair<String, Int>> =
+        var returnedIds1: MutableSet<Int> =
                 mapper.getPotentialSubscriptionIds(t1, berlinPoint()).toMutableSet()
-        var returnedIds2: MutableSet<ImmutablePair<String, Int>> =
+        var returnedIds2: MutableSet<Int> =
                 mapper.getPotentialSubscriptionIds(Topic("t/x/2"), datelinePoint()).toMutableSet()
 
         // verify
@@ -165,7 +216,7 @@ class TopicAndGeofenceMapperTest {
         mapper = TopicAndGeofenceMapper(Configuration(granularity = 25, messageProcessors = 1))
 
         // prepare
-        val testId = ImmutablePair("test-client", 1)
+        val testId = 1
         val t = Topic("data")
         val l = Location(40.007499, 116.320013)
         val f = Geofence.circle(l, 0.01)
@@ -185,12 +236,12 @@ class TopicAndGeofenceMapperTest {
         val top = Topic("a")
         val l1 = Location(40.1, 116.3)
         val g1 = Geofence.circle(l1, 1.5)
-        val t1 = ImmutablePair("t1", 1)
+        val t1 = 1
         val l2 = Location(73.1, 105.3)
         val g2 = Geofence.circle(l2, 1.5)
-        val t2 = ImmutablePair("t2", 1)
+        val t2 = 2
         val w = Geofence.world()
-        val t3 = ImmutablePair("t3", 1)
+        val t3 = 3
 
         // put
         mapper.putSubscriptionId(t1, top, g1)
@@ -252,7 +303,7 @@ class TopicAndGeofenceMapperTest {
                 }
             }
 
-            val mapperResultIndices = mapper.getSubscriptionIds(t1, publisherLocation, td).stream().map { id -> id.right }
+            val mapperResultIndices = mapper.getSubscriptions(t1, publisherLocation, td).stream().map { s -> s.subscriptionId }
                     .sorted(naturalOrder()).collect(Collectors.toList())
             assertEquals(matchingIndices.size, mapperResultIndices.size)
         }
@@ -267,13 +318,306 @@ class TopicAndGeofenceMapperTest {
                 }
             }
 
-            val mapperResultIndices = mapper.getSubscriptionIds(t2, publisherLocation, td).stream().map { id -> id.right }
+            val mapperResultIndices = mapper.getSubscriptions(t2, publisherLocation, td).stream().map { s -> s.subscriptionId }
                     .sorted(naturalOrder()).collect(Collectors.toList())
             assertEquals(matchingIndices.size, mapperResultIndices.size)
         }
 
     }
 
+    @Test
+    fun testCoveringGeofences() {
+        val td = ClientDirectory()
+        mapper = TopicAndGeofenceMapper(Configuration(granularity = 10, messageProcessors = 1))
+
+        // large geofences, so most raster entries are covered completely
+        val testedArea = Geofence.circle(Location(10.0, 10.0), 5.0)
+        val t = Topic("sensor/temperature")
+        val geofences = mutableListOf<Geofence>()
+        for (i in 0..50) {
+            val clientIdentifier = "client-" + i
+            val g = Geofence.circle(Location.randomInGeofence(testedArea)!!, 2.0)
+            td.addClient(clientIdentifier, null)
+            mapper.putSubscriptionId(td.updateSubscription(clientIdentifier, t, g)!!, t, g)
+            geofences.add(g)
+        }
+
+        for (i in 0..100) {
+            val publisherLocation = Location.randomInGeofence(testedArea)!!
+            val expected = geofences.count { g -> g.contains(publisherLocation) }
+            val subscriptions = mapper.getSubscriptions(t, publisherLocation, td)
+            assertEquals(expected, subscriptions.size)
+            assertTrue(subscriptions.all { s -> s.geofence.contains(publisherLocation) })
+        }
+    }
+
+    @Test
+    fun testUpdateSubscriptionId() {
+        val td = ClientDirectory()
+        mapper = TopicAndGeofenceMapper(Configuration(granularity = 10))
+        val t = Topic("sensor/temperature")
+        val oldFence = Geofence.circle(Location(10.0, 10.0), 0.5)
+        val newFence = Geofence.circle(Location(10.3, 10.3), 0.5)
+
+        td.addClient("client", null)
+        val id = td.updateSubscription("client", t, oldFence)!!
+        mapper.putSubscriptionId(id, t, oldFence)
+        mapper.updateSubscriptionId(id, t, oldFence, newFence)
+        td.updateSubscription("client", t, newFence)
+
+        assertTrue(mapper.getSubscriptions(t, Location(9.7, 9.7), td).isEmpty())
+        assertEquals(1, mapper.getSubscriptions(t, Location(10.0, 10.0), td).size)
+        assertEquals(1, mapper.getSubscriptions(t, Location(10.6, 10.6), td).size)
+    }
+
+    @Test
+    fun testCompact() {
+        mapper = TopicAndGeofenceMapper(Configuration(granularity = 10))
+        val l = Location(10.05, 10.05)
+        val g = Geofence.circle(l, 0.5)
+
+        mapper.putSubscriptionId(1, Topic("a/b/c"), g)
+        mapper.putSubscriptionId(2, Topic("a/d"), g)
+        mapper.removeSubscriptionId(1, Topic("a/b/c"), g)
+
+        // the raster entries of a/b/c and the levels b and c are removed, a is still needed for a/d
+        assertTrue(mapper.compact() > 2)
+        assertNull(mapper.anchor.getChildren("a", "b"))
+        assertNotNull(mapper.anchor.getChildren("a", "d"))
+        assertArrayEquals(intArrayOf(2), mapper.getPotentialSubscriptionIds(Topic("a/d"), l))
+
+        mapper.removeSubscriptionId(2, Topic("a/d"), g)
+        mapper.compact()
+        assertTrue(mapper.anchor.isEmpty)
+
+        // levels are created again when needed
+        mapper.putSubscriptionId(3, Topic("a/b/c"), g)
+        assertArrayEquals(intArrayOf(3), mapper.getPotentialSubscriptionIds(Topic("a/b/c"), l))
+    }
+
+    @Test
+    fun testConcurrentCompaction() {
+        mapper = TopicAndGeofenceMapper(Configuration(granularity = 10))
+        val testedArea = Geofence.circle(Location(10.0, 10.0), 2.0)
+        val numberOfThreads = 4
+        val idsPerThread = 2000
+
+        // every thread subscribes and unsubscribes repeatedly, keeping every third subscription
+        val remaining = Collections.synchronizedList(mutableListOf<Triple<Int, Topic, Geofence>>())
+        val threads = (0 until numberOfThreads).map { t ->
+            Thread {
+                for (i in 0 until idsPerThread) {
+                    val id = t * idsPerThread + i
+                    val topic = Topic("t/${i % 5}")
+                    val g = Geofence.circle(Location.randomInGeofence(testedArea)!!, 0.3)
+                    mapper.putSubscriptionId(id, topic, g)
+                    if (i % 3 == 0) {
+                        remaining.add(Triple(id, topic, g))
+                    } else {
+                        mapper.removeSubscriptionId(id, topic, g)
+                    }
+                }
+            }
+        }
+        val compactor = Thread {
+            while (threads.any { it.isAlive }) {
+                mapper.compact()
+            }
+        }
+        threads.forEach { it.start() }
+        compactor.start()
+        threads.forEach { it.join() }
+        compactor.join()
+
+        // no remaining subscription got lost
+        for ((id, topic, g) in remaining) {
+            val l = Location.randomInGeofence(g)!!
+            assertTrue(mapper.getPotentialSubscriptionIds(topic, l).contains(id))
+        }
+    }
+
+    @Test
+    fun testSpatialIndexTypes() {
+        val testedArea = Geofence.circle(Location(10.0, 10.0), 5.0)
+        val t = Topic("sensor/temperature")
+
+        for (type in SpatialIndexType.values()) {
+            val td = ClientDirectory()
+            mapper = TopicAndGeofenceMapper(Configuration(granularity = 10, spatialIndex = type))
+
+            // small and large geofences
+            val geofences = mutableListOf<Geofence>()
+            for (i in 0..100) {
+                val clientIdentifier = "client-" + i
+                val g = Geofence.circle(Location.randomInGeofence(testedArea)!!, 0.1 + (i % 3) * 1.0)
+                td.addClient(clientIdentifier, null)
+                mapper.putSubscriptionId(td.updateSubscription(clientIdentifier, t, g)!!, t, g)
+                geofences.add(g)
+            }
+
+            for (i in 0..100) {
+                val publisherLocation = Location.randomInGeofence(testedArea)!!
+                val expected = geofences.count { g -> g.contains(publisherLocation) }
+                assertEquals("Wrong result for $type", expected,
+                        mapper.getSubscriptions(t, publisherLocation, td).size)
+            }
+        }
+    }
+
+    @Test
+    fun testPublishMatchCache() {
+        val td = ClientDirectory()
+        mapper = TopicAndGeofenceMapper(Configuration(granularity = 10, publishMatchCacheSize = 10))
+        val t = Topic("sensor/temperature")
+        val l = Location(10.0, 10.0)
+        val fence = Geofence.circle(l, 1.0)
+
+        td.addClient("client-1", null)
+        td.addClient("client-2", null)
+        val id1 = td.updateSubscription("client-1", t, fence)!!
+        mapper.putSubscriptionId(id1, t, fence)
+        assertArrayEquals(intArrayOf(id1), mapper.getPotentialSubscriptionIds(t, l))
+        // cached result
+        assertArrayEquals(intArrayOf(id1), mapper.getPotentialSubscriptionIds(t, l))
+
+        // subscriptions to the same topic invalidate
+        val id2 = td.updateSubscription("client-2", t, fence)!!
+        mapper.putSubscriptionId(id2, t, fence)
+        assertEquals(setOf(id1, id2), mapper.getPotentialSubscriptionIds(t, l).toSet())
+
+        // new matching topic levels invalidate
+        val wildcard = Topic("sensor/+")
+        val id3 = td.updateSubscription("client-2", wildcard, fence)!!
+        mapper.putSubscriptionId(id3, wildcard, fence)
+        assertEquals(setOf(id1, id2, id3), mapper.getPotentialSubscriptionIds(t, l).toSet())
+
+        // removals and compaction invalidate
+        mapper.removeSubscriptionId(id3, wildcard, fence)
+        mapper.removeSubscriptionId(id1, t, fence)
+        assertArrayEquals(intArrayOf(id2), mapper.getPotentialSubscriptionIds(t, l))
+        mapper.compact()
+        assertArrayEquals(intArrayOf(id2), mapper.getPotentialSubscriptionIds(t, l))
+        assertEquals(1, mapper.getSubscriptions(t, l, td).size)
+    }
+
+    @Test
+    fun testRemoveClientSubscriptions() {
+        val td = ClientDirectory()
+        mapper = TopicAndGeofenceMapper(Configuration(granularity = 10))
+        val l = Location(10.0, 10.0)
+        val topics = listOf(Topic("a/b"), Topic("a/+"), Topic("#"))
+
+        td.addClient("client-1", l)
+        td.addClient("client-2", l)
+        for (t in topics) {
+            mapper.putSubscriptionId(td.updateSubscription("client-1", t, Geofence.circle(l, 1.0))!!, t,
+                    Geofence.circle(l, 1.0))
+        }
+        val id = td.updateSubscription("client-2", topics[0], Geofence.world())!!
+        mapper.putSubscriptionId(id, topics[0], Geofence.world())
+        assertEquals(4, mapper.getPotentialSubscriptionIds(Topic("a/b"), l).size)
+
+        // removing a client returns its subscriptions, so that they can be removed from the storage
+        val removed = td.removeClient("client-1")!!
+        assertEquals(topics.toSet(), removed.map { it.topic }.toSet())
+        removed.forEach { mapper.removeSubscription(it) }
+        assertArrayEquals(intArrayOf(id), mapper.getPotentialSubscriptionIds(Topic("a/b"), l))
+        assertNull(td.removeClient("client-1"))
+    }
+
+    @Test
+    fun testIndexStatistics() {
+        // intersects with all raster entries in its bounding box
+        val g = Geofence.rectangle(Location(10.0, 10.0), Location(10.45, 10.45))
+
+        for (type in SpatialIndexType.values()) {
+            mapper = TopicAndGeofenceMapper(Configuration(granularity = 10, spatialIndex = type))
+            // another mapper of the JVM with the same top-level topic
+            val other = TopicAndGeofenceMapper(Configuration(granularity = 10, spatialIndex = type))
+            val topLevel = "statistics"
+            val t1 = Topic("$topLevel/a")
+            val t2 = Topic("$topLevel/+")
+            mapper.putSubscriptionId(1, t1, g)
+            mapper.putSubscriptionId(2, t1, g)
+            mapper.putSubscriptionId(3, t2, Geofence.world())
+            other.putSubscriptionId(1, t1, g)
+
+            val statistics = mapper.indexStatistics.single { it.topLevelTopic == topLevel }
+            assertEquals(3, statistics.numberOfTopicLevels)
+            assertEquals(3.0, topicLevelsSample(statistics)!!, 0.0)
+            val entries = when (type) {
+                SpatialIndexType.raster -> listOf(t1, t2).sumOf { topic ->
+                    (mapper.anchor.getChildren(*topic.levelSpecifiers)!!.spatialIndex as Raster)
+                            .numberOfExistingRasterEntries
+                }
+                SpatialIndexType.quadtree -> (mapper.anchor.getChildren(*t1.levelSpecifiers)!!.spatialIndex
+                        as QuadtreeRaster).numberOfExistingRasterEntries
+                SpatialIndexType.rtree -> 2
+            }
+            assertEquals("Wrong entries for $type", entries.toLong(), statistics.numberOfIndexEntries)
+            // subscription ids are stored once per raster entry
+            val ids = if (type == SpatialIndexType.rtree) 3L else 2L * entries + 1
+            assertEquals("Wrong ids for $type", ids, statistics.numberOfSubscriptionIds)
+            assertEquals(3 * TOPIC_LEVEL_BYTES + entries * INDEX_ENTRY_BYTES + ids * SUBSCRIPTION_ID_BYTES,
+                    statistics.numberOfEstimatedBytes)
+
+            // removed structures are subtracted, empty top-level topics are not exported anymore
+            mapper.removeSubscriptionId(1, t1, g)
+            mapper.removeSubscriptionId(2, t1, g)
+            mapper.removeSubscriptionId(3, t2, Geofence.world())
+            mapper.compact()
+            assertEquals(0, statistics.numberOfIndexEntries)
+            assertEquals(0, statistics.numberOfSubscriptionIds)
+            assertEquals(0, statistics.numberOfTopicLevels)
+            assertNull(topicLevelsSample(statistics))
+
+            // the statistics of the other mapper are separate and still exported
+            val otherStatistics = other.indexStatistics.single()
+            assertNotEquals(statistics.mapper, otherStatistics.mapper)
+            assertEquals(2, otherStatistics.numberOfTopicLevels)
+            assertEquals(2.0, topicLevelsSample(otherStatistics)!!, 0.0)
+        }
+    }
+
+    @Test
+    fun testClientStatistics() {
+        val directory = ClientDirectory()
+        val other = ClientDirectory()
+        assertNotEquals(directory.statistics.directory, other.statistics.directory)
+
+        directory.addClient("client-1", null)
+        directory.addClient("client-2", null)
+        directory.updateSubscription("client-1", Topic("a"), Geofence.world())
+        other.addClient("client-1", null)
+
+        // each directory only counts its own clients and subscriptions
+        assertEquals(2, directory.statistics.numberOfClients)
+        assertEquals(1, directory.statistics.numberOfSubscriptions)
+        assertEquals(1, other.statistics.numberOfClients)
+        assertEquals(0, other.statistics.numberOfSubscriptions)
+
+        // other tests clear the default registry, so the gauge is collected by a dedicated one
+        val registry = CollectorRegistry().apply { register(clientsGauge) }
+        for ((d, clients) in listOf(Pair(directory, 2.0), Pair(other, 1.0))) {
+            assertEquals(clients,
+                    registry.getSampleValue("Geo_ClientDirectory_clients",
+                            arrayOf("directory"),
+                            arrayOf(d.statistics.directory))!!,
+                    0.0)
+        }
+    }
+
+    /**
+     * @return the exported number of topic levels of the given [statistics] or null, if they are not exported
+     */
+    private fun topicLevelsSample(statistics: IndexStatistics): Double? {
+        // other tests clear the default registry, so the gauge is collected by a dedicated one
+        val registry = CollectorRegistry().apply { register(topicLevelsGauge) }
+        return registry.getSampleValue("Geo_Storage_topicLevels",
+                arrayOf("mapper", "topic"),
+                arrayOf(statistics.mapper, statistics.topLevelTopic))
+    }
+
     @Test
     fun specificTest() {
         val g = Geofence.fromWkt("BUFFER (POINT (8.079053798283907 10.017496679172208), 0.5)")
@@ -287,7 +631,7 @@ class TopicAndGeofenceMapperTest {
         mapper.putSubscriptionId(id, Topic("t"), g)
 
         assertFalse(g.contains(pl))
-        assertTrue(mapper.getSubscriptionIds(Topic("t"), pl, td).size == 0)
+        assertTrue(mapper.getSubscriptions(Topic("t"), pl, td).size == 0)
     }
 
     /*****************************************************************
@@ -328,17 +672,18 @@ class TopicAndGeofenceMapperTest {
         return Location(-1.2, 1.4)
     }
 
-    private fun testIds(numClient: Int, numIds: Int): Set<ImmutablePair<String, Int>> {
+    private fun testIds(numClient: Int, numIds: Int): Set<Int> {
         val seed = System.nanoTime()
         val r = Random(seed)
         logger.info("Random seed for test ids is {}", seed)
 
-        val ids = HashSet<ImmutablePair<String, Int>>()
+        val ids = HashSet<Int>()
 
+        // subscription ids are unique across clients, so each client gets its own range of ids
+        var nextId = r.nextInt(1000)
         for (i in 0 until numClient) {
-            val client = randomName(r)
             for (j in 1..numIds) {
-                ids.add(ImmutablePair(client, j))
+                ids.add(nextId++)
             }
         }
 
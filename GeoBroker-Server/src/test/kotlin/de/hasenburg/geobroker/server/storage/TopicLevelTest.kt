@@ -21,7 +21,7 @@ class TopicLevelTest {
         anchor.getOrCreateChildren("child1")
         anchor.getOrCreateChildren("child2")
         assertEquals("child1", anchor.getDirectChild("child1")?.levelSpecifier)
-        assertNotNull(anchor.getDirectChild("child1")?.raster)
+        assertNotNull(anchor.getDirectChild("child1")?.spatialIndex)
         assertEquals("child2", anchor.getDirectChild("child2")?.levelSpecifier)
     }
 
@@ -33,4 +33,20 @@ class TopicLevelTest {
                 anchor.getDirectChild("child1")?.getDirectChild("child2")?.getDirectChild("child3")?.levelSpecifier)
     }
 
+    @Test
+    fun testWildcardChildren() {
+        anchor.getOrCreateChildren("child1")
+        val single = anchor.getOrCreateChildren(SINGLE_LEVEL_WILDCARD)
+        val multi = anchor.getOrCreateChildren(MULTI_LEVEL_WILDCARD)
+        assertSame(single, anchor.getOrCreateChildren(SINGLE_LEVEL_WILDCARD))
+        assertSame(single, anchor.singleLevelWildcardChild)
+        assertSame(multi, anchor.getDirectChild(MULTI_LEVEL_WILDCARD))
+        assertSame(multi, anchor.multiLevelWildcardChild)
+        assertEquals(3, anchor.getAllDirectChildren().size)
+
+        assertTrue(anchor.removeDirectChildIfEmpty(SINGLE_LEVEL_WILDCARD))
+        assertNull(anchor.singleLevelWildcardChild)
+        assertSame(multi, anchor.multiLevelWildcardChild)
+    }
+
 }
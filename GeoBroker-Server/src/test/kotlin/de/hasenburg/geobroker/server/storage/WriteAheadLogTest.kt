@@ -0,0 +1,183 @@
+package de.hasenburg.geobroker.server.storage
+
+import de.hasenburg.geobroker.commons.model.message.Topic
+import de.hasenburg.geobroker.commons.model.message.WireFormat
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import de.hasenburg.geobroker.server.main.Configuration
+import de.hasenburg.geobroker.server.storage.client.ClientDirectory
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+
+class WriteAheadLogTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val topic = Topic("a/b")
+    private val geofence1 = Geofence.circle(Location(10.0, 10.0), 1.0)
+    private val geofence2 = Geofence.circle(Location(20.0, 20.0), 1.0)
+
+    @Test
+    fun testLogAndReplay() {
+        val directory = folder.newFolder("wal")
+        val wal = WriteAheadLog(directory, 10, 1024)
+        wal.start()
+        wal.logConnect("client-1", Location(1.0, 1.0), WireFormat.BINARY)
+        wal.logConnect("client-2", null)
+        wal.logSubscribe("client-1", topic, geofence1)
+        wal.logSubscribe("client-1", Topic("c"), geofence1)
+        wal.logSubscribe("client-1", topic, geofence2)
+        wal.logUnsubscribe("client-1", Topic("c"))
+        wal.logLocation("client-2", Location(2.0, 2.0))
+        wal.logSubscribe("client-2", topic, geofence1)
+        // reconnecting resets the client
+        wal.logConnect("client-2", null)
+        wal.logConnect("client-3", null)
+        wal.logDisconnect("client-3")
+        // many records, so that the log continues in new segments
+        for (i in 0 until 100) {
+            wal.logLocation("client-1", Location(1.0, i.toDouble()))
+        }
+        wal.close()
+        assertTrue(directory.listFiles()!!.size > 1)
+
+        val clientDirectory = ClientDirectory()
+        val mapper = TopicAndGeofenceMapper(Configuration())
+        assertEquals(111, replayWriteAheadLog(directory, clientDirectory, mapper))
+        assertEquals(2, clientDirectory.numberOfClients)
+        assertEquals(Location(1.0, 99.0), clientDirectory.getClientLocation("client-1"))
+        assertNull(clientDirectory.getClientLocation("client-2"))
+        assertEquals(WireFormat.BINARY, clientDirectory.getWireFormat("client-1"))
+        assertEquals(WireFormat.JSON, clientDirectory.getWireFormat("client-2"))
+        assertEquals(1, clientDirectory.getCurrentClientSubscriptions("client-1"))
+        assertEquals(0, clientDirectory.getCurrentClientSubscriptions("client-2"))
+
+        val subscription = clientDirectory.getSubscription("client-1", topic)!!
+        assertEquals(geofence2, subscription.geofence)
+        assertArrayEquals(intArrayOf(subscription.subscriptionId),
+                mapper.getPotentialSubscriptionIds(topic, geofence2.center))
+        assertArrayEquals(intArrayOf(), mapper.getPotentialSubscriptionIds(topic, geofence1.center))
+    }
+
+    @Test
+    fun testSnapshotAndPartialRecord() {
+        val directory = folder.newFolder("wal")
+        val snapshot = folder.root.resolve("broker.snapshot")
+        val clientDirectory = ClientDirectory()
+        val wal = WriteAheadLog(directory, 10, 1 shl 20)
+
+        clientDirectory.addClient("client-1", null)
+        wal.logConnect("client-1", null)
+        val writer = SnapshotWriter(snapshot, 60, clientDirectory, wal)
+        writer.stop()
+        // the snapshot contains everything logged so far
+        assertEquals(1, directory.listFiles()!!.size)
+
+        // logged twice, as the client subscribed while the snapshot was written
+        clientDirectory.updateSubscription("client-1", topic, geofence1)
+        wal.logSubscribe("client-1", topic, geofence1)
+        writeSnapshot(clientDirectory, snapshot)
+        wal.logConnect("client-2", null)
+        wal.close()
+
+        // a crash while writing a record
+        val segment = directory.listFiles()!!.single()
+        val length = segment.length()
+        segment.appendBytes(byteArrayOf(0, 0, 0, 42, 1, 2))
+
+        val restoredDirectory = ClientDirectory()
+        val mapper = TopicAndGeofenceMapper(Configuration())
+        assertEquals(1, restoreSnapshot(snapshot, restoredDirectory, mapper))
+        assertEquals(2, replayWriteAheadLog(directory, restoredDirectory, mapper))
+        assertEquals(length, segment.length())
+        assertEquals(2, restoredDirectory.numberOfClients)
+        assertEquals(1, restoredDirectory.subscriptionRegistry.numberOfSubscriptions)
+        assertEquals(1, mapper.getPotentialSubscriptionIds(topic, geofence1.center).size)
+
+        // the log continues in a new segment
+        val next = WriteAheadLog(directory, 10, 1 shl 20)
+        next.logDisconnect("client-2")
+        next.close()
+        assertEquals(3, replayWriteAheadLog(directory, ClientDirectory(), mapper))
+    }
+
+    @Test
+    fun testOrderedChanges() {
+        val directory = folder.newFolder("wal")
+        val clientDirectory = ClientDirectory()
+        val wal = WriteAheadLog(directory, 10, 1 shl 20)
+        clientDirectory.addClient("client-1", null)
+        wal.logConnect("client-1", null)
+
+        // several message processors change the location of the same client
+        val threads = (0 until 4).map { t ->
+            Thread {
+                for (i in 0 until 1000) {
+                    val location = Location(t.toDouble(), i / 10.0)
+                    wal.ordered("client-1") {
+                        clientDirectory.updateClientLocation("client-1", location)
+                        wal.logLocation("client-1", location)
+                    }
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+        wal.close()
+
+        // the last logged location is the one that was applied last
+        val restoredDirectory = ClientDirectory()
+        assertEquals(4001, replayWriteAheadLog(directory, restoredDirectory, TopicAndGeofenceMapper(Configuration())))
+        assertEquals(clientDirectory.getClientLocation("client-1"), restoredDirectory.getClientLocation("client-1"))
+    }
+
+    @Test
+    fun testInvalidRecordsInEarlierSegment() {
+        val records = listOf(
+                // an unknown record type
+                record(byteArrayOf(99, 0, 0, 0, 0)),
+                // a connect record whose location is missing
+                record(byteArrayOf(1, 0, 0, 0, 1, 'x'.code.toByte())),
+                // an invalid checksum
+                record(byteArrayOf(2, 0, 0, 0, 0)).also { it[it.size - 1] = (it[it.size - 1] + 1).toByte() },
+                // a corrupt length close to Int.MAX_VALUE
+                byteArrayOf(127, -1, -1, -1, 2, 0, 0, 0, 0))
+
+        for (invalidRecord in records) {
+            val directory = folder.newFolder()
+            val wal = WriteAheadLog(directory, 10, 1 shl 20)
+            wal.logConnect("client-1", null)
+            wal.close()
+            val segment = directory.listFiles()!!.single()
+            val length = segment.length()
+            segment.appendBytes(invalidRecord)
+            segment.appendBytes(record(byteArrayOf(2, 0, 0, 0, 8) + "client-1".toByteArray()))
+
+            // the log continues in a new segment, which must still be replayed
+            val next = WriteAheadLog(directory, 10, 1 shl 20)
+            next.logConnect("client-2", null)
+            next.close()
+
+            val clientDirectory = ClientDirectory()
+            assertEquals(2, replayWriteAheadLog(directory, clientDirectory, TopicAndGeofenceMapper(Configuration())))
+            assertEquals(length, segment.length())
+            assertEquals(2, clientDirectory.numberOfClients)
+            assertEquals(2, directory.listFiles()!!.size)
+        }
+    }
+
+    /**
+     * Frames the given record [body] with its length and checksum.
+     */
+    private fun record(body: ByteArray): ByteArray {
+        val crc = CRC32()
+        crc.update(body)
+        return ByteBuffer.allocate(body.size + 8).putInt(body.size).put(body).putInt(crc.value.toInt()).array()
+    }
+
+}
@@ -0,0 +1,70 @@
+package de.hasenburg.geobroker.server.storage.client
+
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import de.hasenburg.geobroker.commons.model.spatial.Location
+import org.junit.Assert.*
+import org.junit.Test
+
+class ClientLocationIndexTest {
+
+    @Test
+    fun testUpdate() {
+        val index = ClientLocationIndex(10)
+        val fence = Geofence.circle(Location(10.0, 10.0), 0.05)
+
+        index.update("client", null, Location(10.0, 10.0))
+        assertEquals(1, index.countClientsInBoundingBox(fence, 100))
+
+        // same cell
+        index.update("client", Location(10.0, 10.0), Location(10.01, 10.01))
+        assertEquals(1, index.numberOfCells)
+
+        // other cell, the empty one is removed
+        index.update("client", Location(10.01, 10.01), Location(20.0, 20.0))
+        assertEquals(0, index.countClientsInBoundingBox(fence, 100))
+        assertEquals(1, index.numberOfCells)
+
+        index.update("client", Location(20.0, 20.0), null)
+        assertEquals(0, index.numberOfCells)
+    }
+
+    @Test
+    fun testCountLimit() {
+        val index = ClientLocationIndex(10)
+        for (i in 0 until 10) {
+            index.update("client-$i", null, Location(10.0, 10.0))
+        }
+        val small = Geofence.circle(Location(10.0, 10.0), 0.05)
+        assertEquals(10, index.countClientsInBoundingBox(small, 100))
+        assertEquals(Int.MAX_VALUE, index.countClientsInBoundingBox(small, 5))
+        assertEquals(Int.MAX_VALUE, index.countClientsInBoundingBox(Geofence.world(), 100))
+    }
+
+    @Test
+    fun testClientsInGeofence() {
+        val clientDirectory = ClientDirectory()
+        val fence = Geofence.circle(Location(10.0, 10.0), 1.0)
+        val expected = mutableSetOf<String>()
+        for (i in 0 until 200) {
+            val l = Location.randomInGeofence(Geofence.circle(Location(10.0, 10.0), 2.0))!!
+            clientDirectory.addClient("client-$i", l)
+            // move half of them
+            val current = if (i % 2 == 0) {
+                Location.randomInGeofence(Geofence.circle(Location(10.0, 10.0), 2.0))!!.also {
+                    clientDirectory.updateClientLocation("client-$i", it)
+                }
+            } else {
+                l
+            }
+            if (fence.contains(current)) {
+                expected.add("client-$i")
+            }
+        }
+        clientDirectory.removeClient("client-1")
+        expected.remove("client-1")
+
+        assertTrue(clientDirectory.estimateClientsInGeofence(fence, 10000) < Int.MAX_VALUE)
+        assertEquals(expected, clientDirectory.getClientIdentifiersInGeofence(fence))
+    }
+
+}
@@ -1,7 +1,6 @@
 package de.hasenburg.geobroker.server.storage.client
 
 import de.hasenburg.geobroker.commons.model.disgb.BrokerInfo
-import org.apache.commons.lang3.tuple.ImmutablePair
 import org.junit.After
 import org.junit.Assert.assertEquals
 import org.junit.Before
@@ -20,11 +19,11 @@ class SubscriptionAffectionTest {
     private lateinit var cId2: String
 
     // subscription identifier
-    private lateinit var sub1_1: ImmutablePair<String, Int>
-    private lateinit var sub1_2: ImmutablePair<String, Int>
-    private lateinit var sub1_3: ImmutablePair<String, Int>
-    private lateinit var sub2_1: ImmutablePair<String, Int>
-    private lateinit var sub2_2: ImmutablePair<String, Int>
+    private val sub1_1 = 1
+    private val sub1_2 = 2
+    private val sub1_3 = 3
+    private val sub2_1 = 4
+    private val sub2_2 = 5
 
     // broker infos
     private lateinit var bi1: BrokerInfo
@@ -37,13 +36,6 @@ class SubscriptionAffectionTest {
         cId1 = "Client 1"
         cId2 = "Client 2"
 
-        sub1_1 = ImmutablePair(cId1, 1)
-        sub1_2 = ImmutablePair(cId1, 2)
-        sub1_3 = ImmutablePair(cId1, 3)
-
-        sub2_1 = ImmutablePair(cId2, 1)
-        sub2_2 = ImmutablePair(cId2, 2)
-
         bi1 = BrokerInfo("Broker 1", ip, port)
         bi2 = BrokerInfo("Broker 2", ip, port)
         bi3 = BrokerInfo("Broker 3", ip, port)
@@ -56,24 +48,57 @@ class SubscriptionAffectionTest {
     @Test
     fun testAffections() {
         // test init
-        assertEquals(0, subscriptionAffection.updateAffections(sub1_1, listOf(bi1, bi2)).size)
-        assertEquals(0, subscriptionAffection.updateAffections(sub1_2, listOf(bi3)).size)
-        assertEquals(0, subscriptionAffection.updateAffections(sub1_3, listOf()).size)
+        assertEquals(0, subscriptionAffection.updateAffections(cId1, sub1_1, listOf(bi1, bi2)).size)
+        assertEquals(0, subscriptionAffection.updateAffections(cId1, sub1_2, listOf(bi3)).size)
+        assertEquals(0, subscriptionAffection.updateAffections(cId1, sub1_3, listOf()).size)
 
-        assertEquals(0, subscriptionAffection.updateAffections(sub2_1, listOf(bi1, bi2)).size)
-        assertEquals(0, subscriptionAffection.updateAffections(sub2_2, listOf(bi2)).size)
+        assertEquals(0, subscriptionAffection.updateAffections(cId2, sub2_1, listOf(bi1, bi2)).size)
+        assertEquals(0, subscriptionAffection.updateAffections(cId2, sub2_2, listOf(bi2)).size)
 
         // test get
         assertEquals(setOf(bi1, bi2, bi3), subscriptionAffection.getAffections(cId1))
         assertEquals(setOf(bi1, bi2), subscriptionAffection.getAffections(cId2))
 
         // overwrite
-        assertEquals(listOf(bi1), subscriptionAffection.updateAffections(sub1_1, listOf(bi2, bi3)))
-        assertEquals(emptyList<BrokerInfo>(), subscriptionAffection.updateAffections(sub1_2, listOf(bi3)))
-        assertEquals(emptyList<BrokerInfo>(), subscriptionAffection.updateAffections(sub1_3, listOf(bi2)))
+        assertEquals(listOf(bi1), subscriptionAffection.updateAffections(cId1, sub1_1, listOf(bi2, bi3)))
+        assertEquals(emptyList<BrokerInfo>(), subscriptionAffection.updateAffections(cId1, sub1_2, listOf(bi3)))
+        assertEquals(emptyList<BrokerInfo>(), subscriptionAffection.updateAffections(cId1, sub1_3, listOf(bi2)))
 
         // test get
         assertEquals(setOf(bi2, bi3), subscriptionAffection.getAffections(cId1))
         assertEquals(setOf(bi1, bi2), subscriptionAffection.getAffections(cId2))
     }
+
+    @Test
+    fun testRemoveAffections() {
+        subscriptionAffection.updateAffections(cId1, sub1_1, listOf(bi1))
+        subscriptionAffection.updateAffections(cId1, sub1_2, listOf(bi2))
+        assertEquals(1, subscriptionAffection.numberOfClients)
+
+        subscriptionAffection.removeAffections(cId1, sub1_1)
+        assertEquals(emptyList<BrokerInfo>(), subscriptionAffection.getAffections(cId1, sub1_1))
+        assertEquals(listOf(bi2), subscriptionAffection.getAffections(cId1, sub1_2))
+
+        // the client's entry is only removed on disconnect
+        subscriptionAffection.removeAffections(cId1)
+        assertEquals(emptySet<BrokerInfo>(), subscriptionAffection.getAffections(cId1))
+        assertEquals(0, subscriptionAffection.numberOfClients)
+    }
+
+    @Test
+    fun testSubscribeUnsubscribeDisconnect() {
+        subscriptionAffection.updateAffections(cId1, sub1_1, listOf(bi1, bi2))
+        subscriptionAffection.removeAffections(cId1, sub1_1)
+
+        // bi1 and bi2 still know the client, so they need its location updates and disconnect
+        assertEquals(setOf(bi1, bi2), subscriptionAffection.getAffections(cId1))
+        assertEquals(1, subscriptionAffection.numberOfClients)
+        assertEquals(listOf(bi3), subscriptionAffection.determineAffectedBrokersThatDoNotKnowTheClient(cId1,
+                listOf(bi1, bi3)))
+
+        // disconnect
+        subscriptionAffection.removeAffections(cId1)
+        assertEquals(emptySet<BrokerInfo>(), subscriptionAffection.getAffections(cId1))
+        assertEquals(0, subscriptionAffection.numberOfClients)
+    }
 }
\ No newline at end of file
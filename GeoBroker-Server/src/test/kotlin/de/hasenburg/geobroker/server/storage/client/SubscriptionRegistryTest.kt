@@ -0,0 +1,78 @@
+package de.hasenburg.geobroker.server.storage.client
+
+import de.hasenburg.geobroker.commons.model.message.Topic
+import de.hasenburg.geobroker.commons.model.spatial.Geofence
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+class SubscriptionRegistryTest {
+
+    private lateinit var registry: SubscriptionRegistry
+
+    @Before
+    fun setUp() {
+        registry = SubscriptionRegistry()
+    }
+
+    @Test
+    fun testRegisterAndUnregister() {
+        val s1 = registry.register("c1", Topic("a"), Geofence.world())
+        val s2 = registry.register("c2", Topic("a"), Geofence.world())
+
+        assertEquals(0, s1.subscriptionId)
+        assertEquals(1, s2.subscriptionId)
+        assertEquals(2, registry.numberOfSubscriptions)
+        assertSame(s1, registry.getSubscription(s1.subscriptionId))
+        assertSame(s2, registry.getSubscription(s2.subscriptionId))
+
+        assertTrue(registry.unregister(s1))
+        assertFalse(registry.unregister(s1))
+        assertNull(registry.getSubscription(s1.subscriptionId))
+        assertEquals(1, registry.numberOfSubscriptions)
+
+        // the slot is re-used with the next generation, so the outdated id still resolves to null
+        val s3 = registry.register("c1", Topic("a"), Geofence.world())
+        assertEquals(1 shl 24, s3.subscriptionId)
+        assertSame(s3, registry.getSubscription(s3.subscriptionId))
+        assertNull(registry.getSubscription(s1.subscriptionId))
+        assertFalse(registry.unregister(s1))
+    }
+
+    @Test
+    fun testManySubscriptions() {
+        val subscriptions = (0 until 100_000).map { registry.register("c$it", Topic("t/$it"), Geofence.world()) }
+
+        for (s in subscriptions) {
+            assertSame(s, registry.getSubscription(s.subscriptionId))
+        }
+        assertNull(registry.getSubscription(100_000))
+        assertNull(registry.getSubscription(-1))
+    }
+
+    @Test
+    fun testReleaseChunks() {
+        val chunkSize = 4096
+        val subscriptions = (0 until 2 * chunkSize).map { registry.register("c$it", Topic("t/$it"), Geofence.world()) }
+        for (s in subscriptions) {
+            assertTrue(registry.unregister(s))
+        }
+        assertEquals(0, registry.numberOfSubscriptions)
+
+        // the first chunk is kept, the second one is released and starts with a later generation once re-created
+        val newSubscriptions = (0..chunkSize).map { registry.register("c$it", Topic("t/$it"), Geofence.world()) }
+        for (s in newSubscriptions.dropLast(1)) {
+            assertEquals(1, s.subscriptionId ushr 24)
+            assertTrue((s.subscriptionId and 0xFFFFFF) < chunkSize)
+        }
+        assertEquals((2 shl 24) or chunkSize, newSubscriptions.last().subscriptionId)
+
+        for (s in subscriptions) {
+            assertNull(registry.getSubscription(s.subscriptionId))
+        }
+        for (s in newSubscriptions) {
+            assertSame(s, registry.getSubscription(s.subscriptionId))
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package de.hasenburg.geobroker.server.storage.client
+
+import org.junit.Assert.*
+import org.junit.Test
+import kotlin.random.Random
+
+class TimerWheelTest {
+
+    @Test
+    fun testAdvance() {
+        val wheel = TimerWheel<String>(10, 0)
+        wheel.schedule("a", 5)
+        wheel.schedule("b", 100)
+        wheel.schedule("c", 100)
+        assertEquals(3, wheel.size)
+
+        assertEquals(emptyList<String>(), wheel.advance(9))
+        assertEquals(listOf("a"), wheel.advance(10))
+        assertEquals(emptyList<String>(), wheel.advance(99))
+        assertEquals(setOf("b", "c"), wheel.advance(1000).toSet())
+        assertEquals(0, wheel.size)
+
+        // deadlines that passed already expire with the next tick
+        wheel.schedule("d", 0)
+        assertEquals(listOf("d"), wheel.advance(1010))
+    }
+
+    @Test
+    fun testCascading() {
+        val random = Random(1)
+        val wheel = TimerWheel<Long>(1, 0)
+        // deadlines on all levels, including ones beyond the covered range
+        val deadlines = (0 until 10000).map { 1L + random.nextLong(1L shl (4 * 6 + 1)) }
+        deadlines.forEach { wheel.schedule(it, it) }
+
+        var now = 0L
+        while (wheel.size > 0) {
+            now += 1 + random.nextLong(1L shl 16)
+            for (deadline in wheel.advance(now)) {
+                // never too early, only too late if beyond the covered range
+                assertTrue(deadline <= now || deadline >= 1L shl (4 * 6))
+                assertTrue(deadline > now - (1L shl 16) - 1 || deadline >= 1L shl (4 * 6))
+                if (deadline > now) {
+                    wheel.schedule(deadline, deadline)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testExpireClients() {
+        val clientDirectory = ClientDirectory(1)
+        clientDirectory.addClient("client-1", null)
+        clientDirectory.addClient("client-2", null)
+        clientDirectory.addClient("remote", null, true)
+        clientDirectory.addClient("removed", null)
+        clientDirectory.removeClient("removed")
+
+        val heartbeat1 = clientDirectory.getClient("client-1")!!.heartbeat
+        assertEquals(emptyList<String>(), clientDirectory.expireClients(heartbeat1 + 999))
+
+        // client-2 had a heartbeat later on, so its timer is rescheduled
+        Thread.sleep(1100)
+        CoarseClock.update()
+        clientDirectory.updateClientLocation("client-2", null)
+        assertEquals(listOf("client-1"), clientDirectory.expireClients(heartbeat1 + 2000))
+        val heartbeat2 = clientDirectory.getClient("client-2")!!.heartbeat
+        assertEquals(listOf("client-2"), clientDirectory.expireClients(heartbeat2 + 2000))
+
+        // expiry is disabled by default
+        val disabled = ClientDirectory()
+        disabled.addClient("client", null)
+        assertEquals(emptyList<String>(), disabled.expireClients(Long.MAX_VALUE))
+    }
+
+}